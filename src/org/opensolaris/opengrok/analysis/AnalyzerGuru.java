@@ -18,7 +18,7 @@
  */
 
 /*
- * Copyright (c) 2005, 2012, Oracle and/or its affiliates. All rights reserved.
+ * Copyright (c) 2005, 2013, Oracle and/or its affiliates. All rights reserved.
  */
 package org.opensolaris.opengrok.analysis;
 
@@ -34,8 +34,13 @@ import org.apache.lucene.document.DateTools;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.PackedLongDocValuesField;
+import org.apache.lucene.document.SortedBytesDocValuesField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.util.BytesRef;
 import org.opensolaris.opengrok.OpenGrokLogger;
 import org.opensolaris.opengrok.analysis.FileAnalyzer.Genre;
 import org.opensolaris.opengrok.analysis.archive.BZip2AnalyzerFactory;
@@ -66,10 +71,12 @@ import org.opensolaris.opengrok.analysis.sql.SQLAnalyzerFactory;
 import org.opensolaris.opengrok.analysis.tcl.TclAnalyzerFactory;
 import org.opensolaris.opengrok.analysis.vb.VBAnalyzerFactory;
 import org.opensolaris.opengrok.configuration.Project;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
 import org.opensolaris.opengrok.history.Annotation;
 import org.opensolaris.opengrok.history.HistoryException;
 import org.opensolaris.opengrok.history.HistoryGuru;
 import org.opensolaris.opengrok.history.HistoryReader;
+import org.opensolaris.opengrok.search.QueryBuilder;
 import org.opensolaris.opengrok.web.Util;
 
 /**
@@ -114,6 +121,12 @@ public class AnalyzerGuru {
     public static final String dummyS = "";
     public static final FieldType string_ft_stored_nanalyzed_norms = new FieldType(StringField.TYPE_STORED);
     public static final FieldType string_ft_nstored_nanalyzed_norms = new FieldType(StringField.TYPE_NOT_STORED);
+    /** Type of the trigram field: only tells which documents contain a trigram. */
+    public static final FieldType trigram_ft_nstored_docs = new FieldType(TextField.TYPE_NOT_STORED);
+    /** Type of the reversed term fields: only used to find matching documents. */
+    public static final FieldType reversed_ft_nstored_docs = new FieldType(TextField.TYPE_NOT_STORED);
+    /** Type of the full field if line offsets are indexed: keeps the term offsets in the term vector. */
+    public static final FieldType full_ft_stored_offsets = new FieldType(TextField.TYPE_STORED);
 
     /*
      * If you write your own analyzer please register it here
@@ -156,6 +169,15 @@ public class AnalyzerGuru {
         
         string_ft_stored_nanalyzed_norms.setOmitNorms(false);
         string_ft_nstored_nanalyzed_norms.setOmitNorms(false);
+        trigram_ft_nstored_docs.setOmitNorms(true);
+        trigram_ft_nstored_docs.setIndexOptions(FieldInfo.IndexOptions.DOCS_ONLY);
+        trigram_ft_nstored_docs.freeze();
+        reversed_ft_nstored_docs.setOmitNorms(true);
+        reversed_ft_nstored_docs.setIndexOptions(FieldInfo.IndexOptions.DOCS_ONLY);
+        reversed_ft_nstored_docs.freeze();
+        full_ft_stored_offsets.setStoreTermVectors(true);
+        full_ft_stored_offsets.setStoreTermVectorOffsets(true);
+        full_ft_stored_offsets.freeze();
         
     }
 
@@ -246,6 +268,10 @@ public class AnalyzerGuru {
             string_ft_stored_nanalyzed_norms));
         doc.add(new Field("fullpath", file.getAbsolutePath(),
             string_ft_nstored_nanalyzed_norms));
+        // doc values to sort by without uninverting the fields, see SortFields
+        doc.add(new SortedBytesDocValuesField("fullpath",
+            new BytesRef(file.getAbsolutePath())));
+        doc.add(new PackedLongDocValuesField("date", file.lastModified()));
 
         try {
             HistoryReader hr = HistoryGuru.getInstance().getHistoryReader(file);
@@ -273,11 +299,42 @@ public class AnalyzerGuru {
                     ));
             }                   
             fa.analyze(doc, in);
+            if (RuntimeEnvironment.getInstance().isIndexReversedTerms()) {
+                addReversedFields(doc);
+            }
         }
 
         return doc;
     }
 
+    /**
+     * Add the fields holding the reversed terms of the full, defs and refs
+     * fields of a document. Each indexed field is replaced with a field
+     * which records its terms for the reversed twin (see
+     * {@link ReversedTermsField}), whatever produces its token stream.
+     *
+     * @param doc the analyzed document
+     */
+    private static void addReversedFields(Document doc) {
+        for (String name : new String[]{QueryBuilder.FULL,
+                    QueryBuilder.DEFS, QueryBuilder.REFS}) {
+            IndexableField[] fields = doc.getFields(name);
+            if (fields.length == 0) {
+                continue;
+            }
+            doc.removeFields(name);
+            for (IndexableField f : fields) {
+                if (f.fieldType().indexed() && f.fieldType().tokenized()) {
+                    ReversedTermsField reversed = new ReversedTermsField(f);
+                    doc.add(reversed.getSource());
+                    doc.add(reversed);
+                } else {
+                    doc.add(f);
+                }
+            }
+        }
+    }
+
     /**
      * Get the content type for a named file.
      *
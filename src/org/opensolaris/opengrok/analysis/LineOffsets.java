@@ -0,0 +1,107 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.analysis;
+
+import java.util.Arrays;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * The character offsets at which the lines of a document start, stored in
+ * the {@code lines} field of the document. Together with the offsets stored
+ * in the term vector of the {@code full} field they tell which lines of a
+ * file contain a term, without reading the file.
+ * <p>
+ * The offsets are stored as variable length deltas, so that a typical line
+ * takes one byte.
+ */
+public final class LineOffsets {
+
+    private LineOffsets() {
+        // Util class, should not be constructed
+    }
+
+    /**
+     * Encode the line start offsets of a text.
+     *
+     * @param content buffer holding the text
+     * @param len number of valid characters in the buffer
+     * @return the encoded offsets
+     */
+    public static byte[] encode(char[] content, int len) {
+        int lines = 1;
+        for (int i = 0; i < len; i++) {
+            if (content[i] == '\n') {
+                lines++;
+            }
+        }
+        // a vint takes at most 5 bytes
+        byte[] bytes = new byte[5 * (lines + 1)];
+        ByteArrayDataOutput out = new ByteArrayDataOutput(bytes);
+        out.writeVInt(lines);
+        out.writeVInt(0);
+        int last = 0;
+        for (int i = 0; i < len; i++) {
+            if (content[i] == '\n') {
+                out.writeVInt(i + 1 - last);
+                last = i + 1;
+            }
+        }
+        return Arrays.copyOf(bytes, out.getPosition());
+    }
+
+    /**
+     * Decode line start offsets.
+     *
+     * @param bytes the encoded offsets as returned by
+     * {@link #encode(char[], int)}
+     * @return the offset of the first character of each line, in ascending
+     * order
+     */
+    public static int[] decode(BytesRef bytes) {
+        ByteArrayDataInput in =
+                new ByteArrayDataInput(bytes.bytes, bytes.offset, bytes.length);
+        int[] starts = new int[in.readVInt()];
+        int offset = 0;
+        for (int i = 0; i < starts.length; i++) {
+            offset += in.readVInt();
+            starts[i] = offset;
+        }
+        return starts;
+    }
+
+    /**
+     * Get the number of the line containing a character.
+     *
+     * @param starts the line start offsets as returned by
+     * {@link #decode(BytesRef)}
+     * @param offset the offset of the character
+     * @return the number of the line, starting with {@code 1}
+     */
+    public static int getLine(int[] starts, int offset) {
+        int idx = Arrays.binarySearch(starts, offset);
+        // not a line start: the insertion point follows the line
+        return idx >= 0 ? idx + 1 : -idx - 1;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.analysis;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.reverse.ReverseStringFilter;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.IndexableFieldType;
+import org.apache.lucene.util.BytesRef;
+import org.opensolaris.opengrok.search.QueryBuilder;
+import org.opensolaris.opengrok.search.SearchEngine;
+
+/**
+ * A field holding the reversed terms of another field of the same document.
+ * The terms of the original field are recorded while the original field is
+ * inverted, and passed through a {@link ReverseStringFilter} when this field
+ * is inverted. So it works for the token stream of every analyzer, including
+ * fields created with their own reader or token stream, which can only be
+ * read once.
+ * <p>
+ * The original field has to be replaced in the document with the field
+ * returned by {@link #getSource()}. Lucene inverts the fields of a document
+ * ordered by their names, and the name of a reversed field starts with the
+ * name of its original field, so the original is always inverted first.
+ */
+final class ReversedTermsField implements IndexableField {
+
+    private final String name;
+    private final SourceField source;
+
+    /**
+     * Create the reversed twin of a field.
+     *
+     * @param field a field with a reversed twin (see
+     * {@link QueryBuilder#getReversedField(String)})
+     */
+    ReversedTermsField(IndexableField field) {
+        this.name = QueryBuilder.getReversedField(field.name());
+        this.source = new SourceField(field);
+    }
+
+    /**
+     * Get the field which replaces the original field in the document, and
+     * records its terms.
+     */
+    IndexableField getSource() {
+        return source;
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public IndexableFieldType fieldType() {
+        return AnalyzerGuru.reversed_ft_nstored_docs;
+    }
+
+    @Override
+    public float boost() {
+        return 1.0f;
+    }
+
+    @Override
+    public BytesRef binaryValue() {
+        return null;
+    }
+
+    @Override
+    public String stringValue() {
+        return null;
+    }
+
+    @Override
+    public Reader readerValue() {
+        return null;
+    }
+
+    @Override
+    public Number numericValue() {
+        return null;
+    }
+
+    @Override
+    public TokenStream tokenStream(Analyzer analyzer) throws IOException {
+        return new ReverseStringFilter(SearchEngine.LUCENE_VERSION,
+                new TermsTokenStream(source.terms));
+    }
+
+    /**
+     * Delegates to the original field, but records the terms of its token
+     * stream.
+     */
+    private static final class SourceField implements IndexableField {
+
+        private final IndexableField field;
+        /** the distinct terms, the reversed field only tells which
+         * documents contain a term */
+        private final Set<String> terms = new LinkedHashSet<String>();
+
+        SourceField(IndexableField field) {
+            this.field = field;
+        }
+
+        @Override
+        public String name() {
+            return field.name();
+        }
+
+        @Override
+        public IndexableFieldType fieldType() {
+            return field.fieldType();
+        }
+
+        @Override
+        public float boost() {
+            return field.boost();
+        }
+
+        @Override
+        public BytesRef binaryValue() {
+            return field.binaryValue();
+        }
+
+        @Override
+        public String stringValue() {
+            return field.stringValue();
+        }
+
+        @Override
+        public Reader readerValue() {
+            return field.readerValue();
+        }
+
+        @Override
+        public Number numericValue() {
+            return field.numericValue();
+        }
+
+        @Override
+        public TokenStream tokenStream(Analyzer analyzer) throws IOException {
+            return new RecordingFilter(field.tokenStream(analyzer), terms);
+        }
+
+        @Override
+        public String toString() {
+            return field.toString();
+        }
+    }
+
+    /**
+     * Adds the terms passing through to a set.
+     */
+    private static final class RecordingFilter extends TokenFilter {
+
+        private final CharTermAttribute termAtt =
+                addAttribute(CharTermAttribute.class);
+        private final Set<String> terms;
+
+        RecordingFilter(TokenStream input, Set<String> terms) {
+            super(input);
+            this.terms = terms;
+        }
+
+        @Override
+        public boolean incrementToken() throws IOException {
+            if (!input.incrementToken()) {
+                return false;
+            }
+            terms.add(termAtt.toString());
+            return true;
+        }
+    }
+
+    /**
+     * Returns the terms of a set as tokens.
+     */
+    private static final class TermsTokenStream extends TokenStream {
+
+        private final CharTermAttribute termAtt =
+                addAttribute(CharTermAttribute.class);
+        private final Set<String> terms;
+        private Iterator<String> it;
+
+        TermsTokenStream(Set<String> terms) {
+            this.terms = terms;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            it = terms.iterator();
+        }
+
+        @Override
+        public boolean incrementToken() throws IOException {
+            if (it == null || !it.hasNext()) {
+                return false;
+            }
+            clearAttributes();
+            termAtt.setEmpty().append(it.next());
+            return true;
+        }
+    }
+}
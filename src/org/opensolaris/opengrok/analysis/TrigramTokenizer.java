@@ -0,0 +1,100 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.analysis;
+
+import java.io.IOException;
+import java.io.Reader;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+
+/**
+ * Splits the content of a file into overlapping, lower cased three character
+ * tokens (trigrams). Trigrams containing white space are skipped, so that the
+ * index does not depend on the tab settings of a project.
+ * <p>
+ * The resulting field allows to quickly find the candidate documents for a
+ * substring or regular expression search: a document can only contain a
+ * literal string if it contains all of its trigrams.
+ *
+ * @see org.opensolaris.opengrok.search.RegexpContentQuery
+ */
+public final class TrigramTokenizer extends Tokenizer {
+
+    /** Length of the emitted tokens. */
+    public static final int GRAM_SIZE = 3;
+
+    private final CharTermAttribute termAtt =
+            addAttribute(CharTermAttribute.class);
+    private char[] buf;
+    private int len;
+    private int pos;
+
+    public TrigramTokenizer(Reader reader) {
+        super(reader);
+        buf = new char[0];
+    }
+
+    /**
+     * Reinitialize the tokenizer with new content.
+     *
+     * @param buf a buffer holding the content
+     * @param len the number of valid characters in the buffer
+     */
+    public void reInit(char[] buf, int len) {
+        this.buf = buf;
+        this.len = len;
+        this.pos = 0;
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        clearAttributes();
+        while (pos + GRAM_SIZE <= len) {
+            int skip = -1;
+            for (int i = GRAM_SIZE - 1; i >= 0; i--) {
+                if (Character.isWhitespace(buf[pos + i])) {
+                    skip = i;
+                    break;
+                }
+            }
+            if (skip >= 0) {
+                // no trigram may start at or before the white space
+                pos += skip + 1;
+                continue;
+            }
+            termAtt.setEmpty();
+            for (int i = 0; i < GRAM_SIZE; i++) {
+                termAtt.append(Character.toLowerCase(buf[pos + i]));
+            }
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        pos = 0;
+    }
+}
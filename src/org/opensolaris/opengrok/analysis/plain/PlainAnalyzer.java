@@ -35,8 +35,11 @@ import org.opensolaris.opengrok.analysis.Definitions;
 import org.opensolaris.opengrok.analysis.ExpandTabsReader;
 import org.opensolaris.opengrok.analysis.FileAnalyzerFactory;
 import org.opensolaris.opengrok.analysis.Hash2Tokenizer;
+import org.opensolaris.opengrok.analysis.LineOffsets;
 import org.opensolaris.opengrok.analysis.TextAnalyzer;
+import org.opensolaris.opengrok.analysis.TrigramTokenizer;
 import org.opensolaris.opengrok.configuration.Project;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
 import org.opensolaris.opengrok.history.Annotation;
 
 /**
@@ -78,7 +81,15 @@ public class PlainAnalyzer extends TextAnalyzer {
             }
         } while (true);
 
-        doc.add(new Field("full", AnalyzerGuru.dummyS, TextField.TYPE_STORED));
+        if (RuntimeEnvironment.getInstance().isIndexLineOffsets()) {
+            doc.add(new Field("full", AnalyzerGuru.dummyS,
+                    AnalyzerGuru.full_ft_stored_offsets));
+            doc.add(new StoredField("lines", LineOffsets.encode(content, len)));
+        } else {
+            doc.add(new Field("full", AnalyzerGuru.dummyS, TextField.TYPE_STORED));
+        }
+        doc.add(new Field("trigram", AnalyzerGuru.dummyS,
+                AnalyzerGuru.trigram_ft_nstored_docs));
         String fullpath;
         if ((fullpath = doc.get("fullpath")) != null && ctags != null) {
             defs = ctags.doCtags(fullpath + "\n");
@@ -104,6 +115,17 @@ public class PlainAnalyzer extends TextAnalyzer {
                 }
             };
             return tsc_pf;
+        } else if ("trigram".equals(fieldName)) {
+            final TrigramTokenizer trigrams = new TrigramTokenizer(AnalyzerGuru.dummyR);
+            trigrams.reInit(content, len);
+            TokenStreamComponents tsc_tg = new TokenStreamComponents(trigrams) {
+                @Override
+                protected void setReader(final Reader reader) throws IOException {
+                    trigrams.reInit(content, len);
+                    super.setReader(reader);
+                }
+            };
+            return tsc_tg;
         } else if ("refs".equals(fieldName)) {
             final PlainSymbolTokenizer plainref = new PlainSymbolTokenizer(AnalyzerGuru.dummyR);
             plainref.reInit(content, len);
@@ -72,6 +72,7 @@ public final class Configuration {
      * Should the history cache be stored in a database?
      */
     private boolean historyCacheInDB;
+    private boolean historyCacheInLucene;
 
     private List<Project> projects;
     private String sourceRoot;
@@ -112,6 +113,10 @@ public final class Configuration {
     private int cachePages;
     private String databaseDriver;
     private String databaseUrl;
+    private int databaseMaxConnections;
+    private int databaseMinIdleConnections;
+    private int databaseBorrowTimeout;
+    private int databaseIdleTimeout;
     private String CTagsExtraOptionsFile;
     private int scanningDepth;
     private Set<String> allowedSymlinks;
@@ -120,6 +125,19 @@ public final class Configuration {
     private final Map<String, String> cmds;
     private int tabSize;
     private int searchPoolSize;
+    private int searcherCacheMaxOpen;
+    private int searcherCacheMaxSizeMB;
+    private int resultCacheSize;
+    private int resultCacheMaxSizeMB;
+    private int historyMemoryCacheSize;
+    private int historyMemoryCacheMaxSizeMB;
+    private int searchTimeLimit;
+    private int queryTermExpansionDegradeLimit;
+    private int queryTermExpansionRejectLimit;
+    private boolean indexReversedTerms;
+    private boolean indexLineOffsets;
+    private int contextPoolSize;
+    private int contextTimeout;
     private static final Logger logger = Logger.getLogger(Configuration.class.getName());
 
     /**
@@ -169,6 +187,293 @@ public final class Configuration {
         this.searchPoolSize = searchPoolSize;
     }
 
+    public int getContextPoolSize() {
+        return contextPoolSize;
+    }
+
+    /**
+     * Sets the size of the thread pool that will be used to generate the
+     * matching lines shown for the hits of a result page concurrently.
+     * Changing this on runtime by sending a new configuration has no effect.
+     *
+     * @param contextPoolSize the size of the pool, a negative number for
+     * the default to be used, or 0 for no thread pool to be used.
+     */
+    public void setContextPoolSize(int contextPoolSize) {
+        this.contextPoolSize = contextPoolSize;
+    }
+
+    /**
+     * Get the maximum time to wait for the matching lines of the hits of a
+     * result page.
+     *
+     * @return the timeout in milliseconds, {@code 0} if unlimited
+     */
+    public int getContextTimeout() {
+        return contextTimeout;
+    }
+
+    /**
+     * Set the maximum time to wait for the matching lines of the hits of a
+     * result page, e.g. if some files reside on a slow file system. The hits
+     * whose matching lines are not ready when the time is exceeded are shown
+     * without them.
+     * Only used if the context thread pool is enabled.
+     *
+     * @param contextTimeout the timeout in milliseconds, or {@code 0} for no
+     * limit
+     * @see #setContextPoolSize(int)
+     */
+    public void setContextTimeout(int contextTimeout) {
+        this.contextTimeout = contextTimeout;
+    }
+
+    /**
+     * Get the maximum number of index databases the searcher cache keeps
+     * open at the same time.
+     *
+     * @return the maximum number of open index databases, or a number
+     * {@code <= 0} if unlimited
+     * @see #setSearcherCacheMaxOpen(int)
+     */
+    public int getSearcherCacheMaxOpen() {
+        return searcherCacheMaxOpen;
+    }
+
+    /**
+     * Set the maximum number of index databases the searcher cache keeps
+     * open at the same time. If the limit is exceeded, the least recently
+     * used index is closed as soon as no search uses it anymore. Changing
+     * this on runtime by sending a new configuration recreates the cache.
+     *
+     * @param searcherCacheMaxOpen the maximum number of open index
+     * databases, or a number {@code <= 0} for no limit
+     */
+    public void setSearcherCacheMaxOpen(int searcherCacheMaxOpen) {
+        this.searcherCacheMaxOpen = searcherCacheMaxOpen;
+    }
+
+    /**
+     * Get the maximum accumulated on-disk size of the index databases the
+     * searcher cache keeps open at the same time.
+     *
+     * @return the size limit in megabytes, or a number {@code <= 0} if
+     * unlimited
+     * @see #setSearcherCacheMaxSizeMB(int)
+     */
+    public int getSearcherCacheMaxSizeMB() {
+        return searcherCacheMaxSizeMB;
+    }
+
+    /**
+     * Set the maximum accumulated on-disk size of the index databases the
+     * searcher cache keeps open at the same time. Since the index files are
+     * usually memory mapped, this roughly bounds the virtual memory used by
+     * open readers. The most recently used index is always kept open, even
+     * if it alone exceeds the limit.
+     *
+     * @param searcherCacheMaxSizeMB the size limit in megabytes, or a number
+     * {@code <= 0} for no limit
+     */
+    public void setSearcherCacheMaxSizeMB(int searcherCacheMaxSizeMB) {
+        this.searcherCacheMaxSizeMB = searcherCacheMaxSizeMB;
+    }
+
+    /**
+     * Get the maximum number of queries whose top documents are cached.
+     *
+     * @return the maximum number of cached queries, {@code 0} if the result
+     * cache is disabled
+     */
+    public int getResultCacheSize() {
+        return resultCacheSize;
+    }
+
+    /**
+     * Set the maximum number of queries whose top documents are cached, so
+     * that paging through the results or repeating a popular query does not
+     * search the indexes again.
+     *
+     * @param resultCacheSize the maximum number of cached queries, or
+     * {@code 0} to disable the cache
+     */
+    public void setResultCacheSize(int resultCacheSize) {
+        this.resultCacheSize = resultCacheSize;
+    }
+
+    /**
+     * Get the maximum estimated memory used by the result cache.
+     *
+     * @return the size limit in megabytes
+     */
+    public int getResultCacheMaxSizeMB() {
+        return resultCacheMaxSizeMB;
+    }
+
+    /**
+     * Set the maximum estimated memory used by the result cache.
+     *
+     * @param resultCacheMaxSizeMB the size limit in megabytes, or {@code 0}
+     * to disable the cache
+     */
+    public void setResultCacheMaxSizeMB(int resultCacheMaxSizeMB) {
+        this.resultCacheMaxSizeMB = resultCacheMaxSizeMB;
+    }
+
+    /**
+     * Get the maximum number of decoded file histories kept in memory.
+     *
+     * @return the maximum number of cached histories, {@code 0} if the
+     * history memory cache is disabled
+     */
+    public int getHistoryMemoryCacheSize() {
+        return historyMemoryCacheSize;
+    }
+
+    /**
+     * Set the maximum number of decoded file histories kept in memory, so
+     * that the history of popular files does not have to be read from the
+     * history cache or the repository on every request.
+     * Changing this on runtime by sending a new configuration has no effect.
+     *
+     * @param historyMemoryCacheSize the maximum number of cached histories,
+     * or {@code 0} to disable the cache
+     */
+    public void setHistoryMemoryCacheSize(int historyMemoryCacheSize) {
+        this.historyMemoryCacheSize = historyMemoryCacheSize;
+    }
+
+    /**
+     * Get the maximum estimated memory used by the history memory cache.
+     *
+     * @return the size limit in megabytes
+     */
+    public int getHistoryMemoryCacheMaxSizeMB() {
+        return historyMemoryCacheMaxSizeMB;
+    }
+
+    /**
+     * Set the maximum estimated memory used by the history memory cache.
+     * Changing this on runtime by sending a new configuration has no effect.
+     *
+     * @param historyMemoryCacheMaxSizeMB the size limit in megabytes, or
+     * {@code 0} to disable the cache
+     */
+    public void setHistoryMemoryCacheMaxSizeMB(int historyMemoryCacheMaxSizeMB) {
+        this.historyMemoryCacheMaxSizeMB = historyMemoryCacheMaxSizeMB;
+    }
+
+    /**
+     * Get the maximum time a single search may take.
+     *
+     * @return the time limit in milliseconds, {@code 0} if unlimited
+     */
+    public int getSearchTimeLimit() {
+        return searchTimeLimit;
+    }
+
+    /**
+     * Set the maximum time a single search may take. A search which runs
+     * longer gets stopped and only the hits found so far are shown. Note
+     * that time limited searches can't use the search thread pool.
+     *
+     * @param searchTimeLimit the time limit in milliseconds, or {@code 0}
+     * for no limit
+     */
+    public void setSearchTimeLimit(int searchTimeLimit) {
+        this.searchTimeLimit = searchTimeLimit;
+    }
+
+    /**
+     * Get the number of terms a wildcard or prefix query may expand to
+     * before only its top scoring terms get searched.
+     *
+     * @return the term limit, {@code 0} if unlimited
+     */
+    public int getQueryTermExpansionDegradeLimit() {
+        return queryTermExpansionDegradeLimit;
+    }
+
+    /**
+     * Set the number of terms a wildcard or prefix query may expand to
+     * before only its top scoring terms get searched.
+     *
+     * @param queryTermExpansionDegradeLimit the term limit, or {@code 0}
+     * for no limit
+     */
+    public void setQueryTermExpansionDegradeLimit(int queryTermExpansionDegradeLimit) {
+        this.queryTermExpansionDegradeLimit = queryTermExpansionDegradeLimit;
+    }
+
+    /**
+     * Get the number of terms a wildcard or prefix query may expand to
+     * before it gets refused.
+     *
+     * @return the term limit, {@code 0} if unlimited
+     */
+    public int getQueryTermExpansionRejectLimit() {
+        return queryTermExpansionRejectLimit;
+    }
+
+    /**
+     * Set the number of terms a wildcard or prefix query may expand to
+     * before it gets refused.
+     *
+     * @param queryTermExpansionRejectLimit the term limit, or {@code 0}
+     * for no limit
+     */
+    public void setQueryTermExpansionRejectLimit(int queryTermExpansionRejectLimit) {
+        this.queryTermExpansionRejectLimit = queryTermExpansionRejectLimit;
+    }
+
+    /**
+     * Should the terms of the full, defs and refs fields also be indexed in
+     * reverse?
+     *
+     * @return {@code true} if reversed terms get indexed
+     */
+    public boolean isIndexReversedTerms() {
+        return indexReversedTerms;
+    }
+
+    /**
+     * Set whether the terms of the full, defs and refs fields should also be
+     * indexed in reverse. If enabled (and leading wildcards are allowed), a
+     * query like {@code *Handler} is answered by a prefix query on the
+     * reversed terms instead of scanning all terms of the field. This makes
+     * the index bigger and requires the index to be regenerated.
+     *
+     * @param indexReversedTerms whether to index reversed terms
+     */
+    public void setIndexReversedTerms(boolean indexReversedTerms) {
+        this.indexReversedTerms = indexReversedTerms;
+    }
+
+    /**
+     * Should the offsets of the lines and of the terms of the full field be
+     * stored in the index?
+     *
+     * @return {@code true} if line and term offsets get stored
+     */
+    public boolean isIndexLineOffsets() {
+        return indexLineOffsets;
+    }
+
+    /**
+     * Set whether the offsets of the lines of plain text files and of the
+     * terms of their full field should be stored in the index. If enabled,
+     * the matching lines shown in the search results are located with the
+     * help of the index, so that only the beginning of a file up to the last
+     * shown line has to be read, and files without matching lines are not
+     * read at all. This makes the index bigger and requires the index to be
+     * regenerated.
+     *
+     * @param indexLineOffsets whether to store line and term offsets
+     */
+    public void setIndexLineOffsets(boolean indexLineOffsets) {
+        this.indexLineOffsets = indexLineOffsets;
+    }
+
     public int getScanningDepth() {
         return scanningDepth;
     }
@@ -185,6 +490,7 @@ public final class Configuration {
         setHistoryCache(true);
         setHistoryCacheTime(30);
         setHistoryCacheInDB(false);
+        setHistoryCacheInLucene(false);
         setProjects(new ArrayList<Project>());
         setRepositories(new ArrayList<RepositoryInfo>());
         setUrlPrefix("/source/s?");
@@ -216,6 +522,23 @@ public final class Configuration {
         setAllowedSymlinks(new HashSet<String>());
         //setTabSize(4);
         setSearchPoolSize(-1); //auto
+        setSearcherCacheMaxOpen(256);
+        setSearcherCacheMaxSizeMB(0); //unlimited
+        setResultCacheSize(128);
+        setResultCacheMaxSizeMB(16);
+        setHistoryMemoryCacheSize(1024);
+        setHistoryMemoryCacheMaxSizeMB(32);
+        setSearchTimeLimit(0); //unlimited
+        setQueryTermExpansionDegradeLimit(10000);
+        setQueryTermExpansionRejectLimit(100000);
+        setIndexReversedTerms(true);
+        setIndexLineOffsets(true);
+        setContextPoolSize(-1); //auto
+        setContextTimeout(5000);
+        setDatabaseMaxConnections(32);
+        setDatabaseMinIdleConnections(2);
+        setDatabaseBorrowTimeout(30000);
+        setDatabaseIdleTimeout(300000);
         cmds = new HashMap<String, String>();
         setSourceRoot(null);
         setDataRoot(null);
@@ -333,6 +656,31 @@ public final class Configuration {
         this.historyCacheInDB = historyCacheInDB;
     }
 
+    /**
+     * Should the history cache be stored in a Lucene index? If yes, and the
+     * history cache is not stored in a database, {@code LuceneHistoryCache}
+     * will be used to cache the history; otherwise, {@code FileHistoryCache}
+     * is used.
+     *
+     * @return whether the history cache should be stored in a Lucene index
+     * @see #isHistoryCacheInDB()
+     */
+    public boolean isHistoryCacheInLucene() {
+        return historyCacheInLucene;
+    }
+
+    /**
+     * Set whether the history cache should be stored in a Lucene index, and
+     * {@code LuceneHistoryCache} should be used instead of {@code
+     * FileHistoryCache}.
+     *
+     * @param historyCacheInLucene whether the history cache should be stored
+     * in a Lucene index
+     */
+    public void setHistoryCacheInLucene(boolean historyCacheInLucene) {
+        this.historyCacheInLucene = historyCacheInLucene;
+    }
+
     public List<Project> getProjects() {
         return projects;
     }
@@ -699,6 +1047,95 @@ public final class Configuration {
         this.databaseUrl = databaseUrl;
     }
 
+    /**
+     * Get the maximum number of database connections in use at the same time
+     * by the history cache.
+     *
+     * @return the maximum number of connections, {@code 0} if unbounded
+     */
+    public int getDatabaseMaxConnections() {
+        return databaseMaxConnections;
+    }
+
+    /**
+     * Set the maximum number of database connections in use at the same time
+     * by the history cache. Threads which need a connection when all of them
+     * are in use wait for one to be released.
+     * Changing this on runtime by sending a new configuration has no effect.
+     *
+     * @param databaseMaxConnections the maximum number of connections, or
+     * {@code 0} for no limit
+     * @see #setDatabaseBorrowTimeout(int)
+     */
+    public void setDatabaseMaxConnections(int databaseMaxConnections) {
+        this.databaseMaxConnections = databaseMaxConnections;
+    }
+
+    /**
+     * Get the number of idle database connections kept open.
+     *
+     * @return the minimum number of idle connections
+     */
+    public int getDatabaseMinIdleConnections() {
+        return databaseMinIdleConnections;
+    }
+
+    /**
+     * Set the number of idle database connections which are kept open even
+     * if they have been idle for longer than the idle timeout.
+     * Changing this on runtime by sending a new configuration has no effect.
+     *
+     * @param databaseMinIdleConnections the minimum number of idle
+     * connections
+     * @see #setDatabaseIdleTimeout(int)
+     */
+    public void setDatabaseMinIdleConnections(int databaseMinIdleConnections) {
+        this.databaseMinIdleConnections = databaseMinIdleConnections;
+    }
+
+    /**
+     * Get the maximum time to wait for a database connection.
+     *
+     * @return the timeout in milliseconds
+     */
+    public int getDatabaseBorrowTimeout() {
+        return databaseBorrowTimeout;
+    }
+
+    /**
+     * Set the maximum time to wait for a database connection if all of them
+     * are in use. Changing this on runtime by sending a new configuration has
+     * no effect.
+     *
+     * @param databaseBorrowTimeout the timeout in milliseconds
+     * @see #setDatabaseMaxConnections(int)
+     */
+    public void setDatabaseBorrowTimeout(int databaseBorrowTimeout) {
+        this.databaseBorrowTimeout = databaseBorrowTimeout;
+    }
+
+    /**
+     * Get the time after which an idle database connection gets closed.
+     *
+     * @return the timeout in milliseconds, {@code 0} if idle connections are
+     * kept open
+     */
+    public int getDatabaseIdleTimeout() {
+        return databaseIdleTimeout;
+    }
+
+    /**
+     * Set the time after which an idle database connection gets closed.
+     * Changing this on runtime by sending a new configuration has no effect.
+     *
+     * @param databaseIdleTimeout the timeout in milliseconds, or {@code 0}
+     * to keep idle connections open
+     * @see #setDatabaseMinIdleConnections(int)
+     */
+    public void setDatabaseIdleTimeout(int databaseIdleTimeout) {
+        this.databaseIdleTimeout = databaseIdleTimeout;
+    }
+
     public String getCTagsExtraOptionsFile() {
         return CTagsExtraOptionsFile;
     }
@@ -38,6 +38,9 @@ import java.net.UnknownHostException;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.opensolaris.opengrok.OpenGrokLogger;
@@ -45,7 +48,9 @@ import org.opensolaris.opengrok.history.HistoryGuru;
 import org.opensolaris.opengrok.history.RepositoryInfo;
 import org.opensolaris.opengrok.index.Filter;
 import org.opensolaris.opengrok.index.IgnoredNames;
+import org.opensolaris.opengrok.search.ResultCache;
 import org.opensolaris.opengrok.search.SearcherCache;
+import org.opensolaris.opengrok.search.SpellCheckerCache;
 import org.opensolaris.opengrok.util.Executor;
 import org.opensolaris.opengrok.util.IOUtils;
 
@@ -58,6 +63,10 @@ public final class RuntimeEnvironment {
     private Configuration configuration;
     private final ThreadLocal<Configuration> threadConfig;
     private volatile SearcherCache searcherCache;
+    private volatile ResultCache resultCache;
+    private volatile SpellCheckerCache spellCheckerCache;
+    private volatile ExecutorService contextExecutor;
+    private boolean contextExecutorCreated;
 
     private static final Logger log = Logger.getLogger(RuntimeEnvironment.class.getName());
     private static RuntimeEnvironment instance = new RuntimeEnvironment();
@@ -238,6 +247,18 @@ public final class RuntimeEnvironment {
         return this;
     }
 
+    /**
+     * Register this thread with the given configuration, e.g. the one of the
+     * request a pool thread works for (see {@link #getConfiguration()}).
+     *
+     * @param config the configuration to use in this thread
+     * @return this instance
+     */
+    public RuntimeEnvironment register(Configuration config) {
+        threadConfig.set(config);
+        return this;
+    }
+
     /**
      * Get the context name of the web application
      *
@@ -282,6 +303,71 @@ public final class RuntimeEnvironment {
         threadConfig.get().setCachePages(cachePages);
     }
 
+    public int getSearchTimeLimit() {
+        return threadConfig.get().getSearchTimeLimit();
+    }
+
+    public void setSearchTimeLimit(int searchTimeLimit) {
+        threadConfig.get().setSearchTimeLimit(searchTimeLimit);
+    }
+
+    public int getQueryTermExpansionDegradeLimit() {
+        return threadConfig.get().getQueryTermExpansionDegradeLimit();
+    }
+
+    public void setQueryTermExpansionDegradeLimit(int limit) {
+        threadConfig.get().setQueryTermExpansionDegradeLimit(limit);
+    }
+
+    public int getQueryTermExpansionRejectLimit() {
+        return threadConfig.get().getQueryTermExpansionRejectLimit();
+    }
+
+    public void setQueryTermExpansionRejectLimit(int limit) {
+        threadConfig.get().setQueryTermExpansionRejectLimit(limit);
+    }
+
+    public boolean isIndexReversedTerms() {
+        return threadConfig.get().isIndexReversedTerms();
+    }
+
+    public void setIndexReversedTerms(boolean indexReversedTerms) {
+        threadConfig.get().setIndexReversedTerms(indexReversedTerms);
+    }
+
+    public int getContextTimeout() {
+        return threadConfig.get().getContextTimeout();
+    }
+
+    public void setContextTimeout(int contextTimeout) {
+        threadConfig.get().setContextTimeout(contextTimeout);
+    }
+
+    public int getHistoryMemoryCacheSize() {
+        return threadConfig.get().getHistoryMemoryCacheSize();
+    }
+
+    public void setHistoryMemoryCacheSize(int historyMemoryCacheSize) {
+        threadConfig.get().setHistoryMemoryCacheSize(historyMemoryCacheSize);
+    }
+
+    public int getHistoryMemoryCacheMaxSizeMB() {
+        return threadConfig.get().getHistoryMemoryCacheMaxSizeMB();
+    }
+
+    public void setHistoryMemoryCacheMaxSizeMB(int historyMemoryCacheMaxSizeMB) {
+        threadConfig.get().setHistoryMemoryCacheMaxSizeMB(
+                historyMemoryCacheMaxSizeMB);
+    }
+
+    public boolean isIndexLineOffsets() {
+        return threadConfig.get().isIndexLineOffsets();
+    }
+
+    public void setIndexLineOffsets(boolean indexLineOffsets) {
+        threadConfig.get().setIndexLineOffsets(indexLineOffsets);
+    }
+
     public int getHitsPerPage() {
         return threadConfig.get().getHitsPerPage();
     }
@@ -369,6 +455,26 @@ public final class RuntimeEnvironment {
         threadConfig.get().setHistoryCacheInDB(store);
     }
 
+    /**
+     * Should the history cache be stored in a Lucene index instead of in
+     * files? Only used if the history cache is not stored in a database.
+     *
+     * @return {@code true} if the cache should be stored in a Lucene index
+     */
+    public boolean storeHistoryCacheInLucene() {
+        return threadConfig.get().isHistoryCacheInLucene();
+    }
+
+    /**
+     * Set whether the history cache should be stored in a Lucene index.
+     *
+     * @param store {@code true} if the cache should be stored in a Lucene
+     * index
+     */
+    public void setStoreHistoryCacheInLucene(boolean store) {
+        threadConfig.get().setHistoryCacheInLucene(store);
+    }
+
     /**
      * Should we generate HTML or not during the indexing phase
      *
@@ -748,6 +854,38 @@ public final class RuntimeEnvironment {
         threadConfig.get().setDatabaseUrl(databaseUrl);
     }
 
+    public int getDatabaseMaxConnections() {
+        return threadConfig.get().getDatabaseMaxConnections();
+    }
+
+    public void setDatabaseMaxConnections(int databaseMaxConnections) {
+        threadConfig.get().setDatabaseMaxConnections(databaseMaxConnections);
+    }
+
+    public int getDatabaseMinIdleConnections() {
+        return threadConfig.get().getDatabaseMinIdleConnections();
+    }
+
+    public void setDatabaseMinIdleConnections(int databaseMinIdleConnections) {
+        threadConfig.get().setDatabaseMinIdleConnections(databaseMinIdleConnections);
+    }
+
+    public int getDatabaseBorrowTimeout() {
+        return threadConfig.get().getDatabaseBorrowTimeout();
+    }
+
+    public void setDatabaseBorrowTimeout(int databaseBorrowTimeout) {
+        threadConfig.get().setDatabaseBorrowTimeout(databaseBorrowTimeout);
+    }
+
+    public int getDatabaseIdleTimeout() {
+        return threadConfig.get().getDatabaseIdleTimeout();
+    }
+
+    public void setDatabaseIdleTimeout(int databaseIdleTimeout) {
+        threadConfig.get().setDatabaseIdleTimeout(databaseIdleTimeout);
+    }
+
     public String getCTagsExtraOptionsFile() {
         return threadConfig.get().getCTagsExtraOptionsFile();
     }
@@ -848,9 +986,23 @@ public final class RuntimeEnvironment {
         SearcherCache staleSearcherCache = null;
         if (this.searcherCache != null && this.configuration != null &&
                 (this.configuration.getSearchPoolSize() != configuration.getSearchPoolSize()
+                || this.configuration.getSearcherCacheMaxOpen() != configuration.getSearcherCacheMaxOpen()
+                || this.configuration.getSearcherCacheMaxSizeMB() != configuration.getSearcherCacheMaxSizeMB()
                 || !this.configuration.getDataRoot().equals(configuration.getDataRoot()))) {
             staleSearcherCache = this.searcherCache;
         }
+        if (this.resultCache != null && this.configuration != null &&
+                (this.configuration.getResultCacheSize() != configuration.getResultCacheSize()
+                || this.configuration.getResultCacheMaxSizeMB() != configuration.getResultCacheMaxSizeMB()
+                || !this.configuration.getDataRoot().equals(configuration.getDataRoot()))) {
+            this.resultCache = null;
+        }
+        SpellCheckerCache staleSpellCheckerCache = null;
+        if (this.spellCheckerCache != null && this.configuration != null
+                && !this.configuration.getDataRoot().equals(configuration.getDataRoot())) {
+            staleSpellCheckerCache = this.spellCheckerCache;
+            this.spellCheckerCache = null;
+        }
         this.configuration = configuration;
         register();
         
@@ -863,6 +1015,9 @@ public final class RuntimeEnvironment {
             }
             staleSearcherCache.destroy();
         }
+        if (staleSpellCheckerCache != null) {
+            staleSpellCheckerCache.destroy();
+        }
         
         HistoryGuru.getInstance().invalidateRepositories(configuration.getRepositories());
     }
@@ -875,7 +1030,9 @@ public final class RuntimeEnvironment {
             synchronized (this) {
                 if (this.searcherCache == null) {
                     this.searcherCache = new SearcherCache(
-                            this.configuration.getSearchPoolSize());
+                            this.configuration.getSearchPoolSize(),
+                            this.configuration.getSearcherCacheMaxOpen(),
+                            this.configuration.getSearcherCacheMaxSizeMB() * 1024L * 1024L);
                 }
             }
         }
@@ -883,12 +1040,91 @@ public final class RuntimeEnvironment {
         return this.searcherCache;
     }
     
+    /**
+     * Get the cache of query results shared by all searches.
+     *
+     * @return the result cache
+     */
+    public ResultCache getResultCache() {
+        if (this.resultCache == null) {
+            synchronized (this) {
+                if (this.resultCache == null) {
+                    this.resultCache = new ResultCache(
+                            this.configuration.getResultCacheSize(),
+                            this.configuration.getResultCacheMaxSizeMB() * 1024L * 1024L);
+                }
+            }
+        }
+
+        return this.resultCache;
+    }
+
+    /**
+     * Get the cache of spell checkers used to suggest alternatives for
+     * searches without hits.
+     *
+     * @return the spell checker cache
+     */
+    public SpellCheckerCache getSpellCheckerCache() {
+        if (this.spellCheckerCache == null) {
+            synchronized (this) {
+                if (this.spellCheckerCache == null) {
+                    this.spellCheckerCache = new SpellCheckerCache();
+                }
+            }
+        }
+
+        return this.spellCheckerCache;
+    }
+
+    /**
+     * Get the thread pool used to generate the matching lines of the hits
+     * of a result page concurrently.
+     *
+     * @return the thread pool, or {@code null} if the matching lines should
+     * be generated sequentially by the requesting thread
+     * @see Configuration#setContextPoolSize(int)
+     */
+    public ExecutorService getContextExecutor() {
+        synchronized (this) {
+            if (!this.contextExecutorCreated) {
+                int size = this.configuration.getContextPoolSize();
+                if (size < 0) {
+                    size = 2 + (2 * Runtime.getRuntime().availableProcessors());
+                }
+                if (size > 0) {
+                    this.contextExecutor = Executors.newFixedThreadPool(size,
+                        new ThreadFactory() {
+                            private ThreadGroup group = new ThreadGroup("context-pool");
+                            private int i = 1;
+
+                            @Override
+                            public synchronized Thread newThread(Runnable r) {
+                                Thread ret = new Thread(group, r,
+                                        "context-pool-thread-" + i++);
+                                ret.setDaemon(true);
+                                return ret;
+                            }
+                        });
+                }
+                this.contextExecutorCreated = true;
+            }
+        }
+        return this.contextExecutor;
+    }
+
     /**
      * Destroys the searcher cache without waiting.
      * To be called on application shutdown.
      */
     public void destroySearcherCache() {
         this.searcherCache.destroy();
+        if (this.spellCheckerCache != null) {
+            this.spellCheckerCache.destroy();
+        }
+        if (this.contextExecutor != null) {
+            this.contextExecutor.shutdownNow();
+        }
     }
 
     private ServerSocket configServerSocket;
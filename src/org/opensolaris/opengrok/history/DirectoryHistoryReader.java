@@ -18,7 +18,7 @@
  */
 
 /*
- * Copyright (c) 2005, 2012, Oracle and/or its affiliates. All rights reserved.
+ * Copyright (c) 2005, 2013, Oracle and/or its affiliates. All rights reserved.
  */
 package org.opensolaris.opengrok.history;
 
@@ -29,26 +29,29 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.logging.Level;
 import org.apache.lucene.document.DateTools;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Sort;
-import org.apache.lucene.search.SortField;
-import org.apache.lucene.search.TopFieldDocs;
 import org.opensolaris.opengrok.OpenGrokLogger;
-import org.opensolaris.opengrok.analysis.CompatibleAnalyser;
 import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
 import org.opensolaris.opengrok.index.IndexDatabase;
-import org.opensolaris.opengrok.search.SearchEngine;
+import org.opensolaris.opengrok.search.QueryBuilder;
+import org.opensolaris.opengrok.search.SearcherCache.SearcherWithCleanup;
+import org.opensolaris.opengrok.search.SelectiveFieldVisitor;
+import org.opensolaris.opengrok.search.SortFields;
+import org.opensolaris.opengrok.web.Util;
 
 /**
  * Generate SCM history for directory by using the Index database. (Please note
@@ -71,63 +74,122 @@ public class DirectoryHistoryReader {
     HistoryEntry currentEntry;
     History history;
 
+    /** max. number of most recently modified files to report the changes of */
+    static final int MAX_FILES = 40;
+    /** max. number of paths whose recent changes are cached */
+    private static final int MAX_CACHED_PATHS = 100;
+    /**
+     * Recent changes per path, together with the time stamp of the index
+     * they have been read from. Feed readers poll the same paths over and
+     * over, but the result only changes if the index has been updated.
+     */
+    private static final Map<String, CachedHistory> recentChanges =
+            new LinkedHashMap<String, CachedHistory>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, CachedHistory> eldest) {
+                    return size() > MAX_CACHED_PATHS;
+                }
+            };
+
+    private static final class CachedHistory {
+        final long timestamp;
+        final History history;
+
+        CachedHistory(long timestamp, History history) {
+            this.timestamp = timestamp;
+            this.history = history;
+        }
+    }
+
+    /**
+     * Get the recent changes of the files in the given directories. The
+     * result is cached until the index gets updated.
+     *
+     * @param path the directories to get the changes for, separated by
+     * spaces
+     * @return the recent changes
+     * @throws IOException if the index database could not be read
+     * @see #DirectoryHistoryReader(String)
+     */
+    public static History getRecentChanges(String path) throws IOException {
+        long timestamp = new File(
+                RuntimeEnvironment.getInstance().getDataRootFile(),
+                "timestamp").lastModified();
+        CachedHistory cached;
+        synchronized (recentChanges) {
+            cached = recentChanges.get(path);
+        }
+        if (cached != null && cached.timestamp == timestamp) {
+            return cached.history;
+        }
+        History history = new DirectoryHistoryReader(path).getHistory();
+        synchronized (recentChanges) {
+            recentChanges.put(path, new CachedHistory(timestamp, history));
+        }
+        return history;
+    }
+
+    /**
+     * Read the last changes of the {@value #MAX_FILES} most recently modified
+     * files in the given directories from the index database.
+     *
+     * @param path the directories to get the changes for, separated by
+     * spaces
+     * @throws IOException if the index database could not be read
+     */
     public DirectoryHistoryReader(String path) throws IOException {
-        //TODO can we introduce paging here ???  this class is used just for rss.jsp !
-        int hitsPerPage = RuntimeEnvironment.getInstance().getHitsPerPage();
-        int cachePages = RuntimeEnvironment.getInstance().getCachePages();
-        IndexReader ireader = null;
+        SearcherWithCleanup sw = null;
         IndexSearcher searcher;
         try {
             String src_root = RuntimeEnvironment.getInstance().getSourceRootPath();
-            ireader = IndexDatabase.getIndexReader(path);
-            if (ireader == null) {
+            sw = IndexDatabase.getIndexSearcher(path);
+            if (sw == null) {
                 throw new IOException("Could not locate index database");
             }
-            searcher = new IndexSearcher(ireader);
-            SortField sfield = new SortField("date", SortField.Type.STRING, true);
-            Sort sort = new Sort(sfield);
-            QueryParser qparser = new QueryParser(SearchEngine.LUCENE_VERSION, "path", new CompatibleAnalyser());
-            Query query;
-            ScoreDoc[] hits = null;
-            try {
-                query = qparser.parse(path);
-                TopFieldDocs fdocs = searcher.search(query, null, hitsPerPage * cachePages, sort);
-                fdocs = searcher.search(query, null, fdocs.totalHits, sort);
-                hits = fdocs.scoreDocs;
-            } catch (ParseException e) {
-                OpenGrokLogger.getLogger().log(Level.WARNING, "An error occured while parsing search query", e);
+            searcher = sw.getSearcher();
+            Sort sort = SortFields.byDate(searcher.getIndexReader());
+            // only the top documents are kept while collecting, so this
+            // does not depend on the number of files below the path
+            ScoreDoc[] hits = searcher.search(getPathQuery(path), null,
+                    MAX_FILES, sort).scoreDocs;
+            List<String> rpaths = new ArrayList<String>(hits.length);
+            List<Date> dates = new ArrayList<Date>(hits.length);
+            List<File> files = new ArrayList<File>(hits.length);
+            for (ScoreDoc hit : hits) {
+                Document doc = SelectiveFieldVisitor.load(searcher, hit.doc,
+                        QueryBuilder.PATH, QueryBuilder.DATE);
+                String rpath = doc.get(QueryBuilder.PATH);
+                int ls = rpath.lastIndexOf('/');
+                if (ls == -1) {
+                    continue;
+                }
+                Date cdate;
+                try {
+                    cdate = DateTools.stringToDate(doc.get(QueryBuilder.DATE));
+                } catch (java.text.ParseException ex) {
+                    OpenGrokLogger.getLogger().log(Level.WARNING, "Could not get date for " + path, ex);
+                    cdate = new Date();
+                }
+                rpaths.add(rpath);
+                dates.add(cdate);
+                files.add(new File(src_root + rpath.substring(0, ls),
+                        rpath.substring(ls + 1)));
             }
-            if (hits != null) {
-                for (int i = 0; i < 40 && i < hits.length; i++) {
-                    int docId = hits[i].doc;
-                    Document doc = searcher.doc(docId);
-                    String rpath = doc.get("path");
-                    if (!rpath.startsWith(path)) {
-                        continue;
-                    }
-                    Date cdate;
-                    try {
-                        cdate = DateTools.stringToDate(doc.get("date"));
-                    } catch (java.text.ParseException ex) {
-                        OpenGrokLogger.getLogger().log(Level.WARNING, "Could not get date for " + path, ex);
-                        cdate = new Date();
-                    }
-                    int ls = rpath.lastIndexOf('/');
-                    if (ls != -1) {
-                        String rparent = rpath.substring(0, ls);
-                        String rbase = rpath.substring(ls + 1);
-                        History hist = null;
-                        try {
-                            File f = new File(src_root + rparent, rbase);
-                            hist = HistoryGuru.getInstance().getHistory(f);
-                        } catch (HistoryException e) {
-                            OpenGrokLogger.getLogger().log(Level.WARNING, "An error occured while getting history reader", e);
-                        }
-                        if (hist == null) {
-                            put(cdate, "-", "", rpath);
-                        } else {
-                            readFromHistory(hist, rpath);
-                        }
+
+            Map<File, HistoryEntry> last =
+                    HistoryGuru.getInstance().getLastHistoryEntries(files);
+            for (int i = 0; i < files.size(); i++) {
+                String rpath = rpaths.get(i);
+                if (!last.containsKey(files.get(i))) {
+                    put(dates.get(i), "-", "", rpath);
+                } else {
+                    HistoryEntry entry = last.get(files.get(i));
+                    if (entry != null) {
+                        put(entry.getDate(), entry.getAuthor(),
+                                entry.getMessage(), rpath);
                     }
                 }
             }
@@ -139,23 +201,46 @@ public class DirectoryHistoryReader {
 
             history = new History(entries);
         } finally {
-            if (ireader != null) {
+            if (sw != null) {
                 try {
-                    ireader.close();
+                    sw.close();
                 } catch (Exception ex) {
-                    OpenGrokLogger.getLogger().log(Level.WARNING, "An error occured while closing reader", ex);
+                    OpenGrokLogger.getLogger().log(Level.WARNING, "An error occured while releasing searcher", ex);
                 }
             }
         }
     }
 
+    /**
+     * Create a query matching all files below the given directories.
+     *
+     * @param path the directories, separated by spaces
+     */
+    static Query getPathQuery(String path) {
+        BooleanQuery query = new BooleanQuery();
+        for (String dir : path.split(" ")) {
+            if (dir.length() > 0) {
+                query.add(getDirectoryQuery(dir), BooleanClause.Occur.SHOULD);
+            }
+        }
+        return query.clauses().isEmpty() ? getDirectoryQuery("") : query;
+    }
+
+    private static Query getDirectoryQuery(String dir) {
+        String d = dir.endsWith("/") ? dir.substring(0, dir.length() - 1) : dir;
+        // the uids of the files below the directory start with its uid
+        return new PrefixQuery(
+                new Term(QueryBuilder.U, Util.path2uid(d, "")));
+    }
+
     public History getHistory() {
         return history;
     }
 
-    private void put(Date date, String author, String comment, String path) {
-        long time = date.getTime();
-        date.setTime(time - (time % 3600000l));
+    private void put(Date cdate, String author, String comment, String path) {
+        // don't modify the date of the (possibly cached) history entry
+        long time = cdate.getTime();
+        Date date = new Date(time - (time % 3600000l));
 
         Map<String, Map<String, SortedSet<String>>> ac = hash.get(date);
         if (ac == null) {
@@ -201,16 +286,4 @@ public class DirectoryHistoryReader {
 
         return true;
     }
-
-    private void readFromHistory(History hist, String rpath) {
-        for (HistoryEntry entry : hist.getHistoryEntries()) {
-            if (entry.isActive()) {
-                String comment = entry.getMessage();
-                String cauthor = entry.getAuthor();
-                Date cdate = entry.getDate();
-                put(cdate, cauthor, comment, rpath);
-                break;
-            }
-        }
-    }
 }
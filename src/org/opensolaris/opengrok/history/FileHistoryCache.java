@@ -23,39 +23,28 @@
 
 package org.opensolaris.opengrok.history;
 
-import java.beans.Encoder;
-import java.beans.Expression;
-import java.beans.PersistenceDelegate;
-import java.beans.XMLDecoder;
-import java.beans.XMLEncoder;
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 import org.opensolaris.opengrok.OpenGrokLogger;
 import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
 
 class FileHistoryCache implements HistoryCache {
     private final Object lock = new Object();
-
-    static class FilePersistenceDelegate extends PersistenceDelegate {
-        @Override
-        protected Expression instantiate(Object oldInstance, Encoder out) {
-            File f = (File)oldInstance;
-            return new Expression(oldInstance, f.getClass(), "new", new Object[] {f.toString()});
-        }
-    }
+    /** the packed history stores, keyed by repository directory */
+    private final ConcurrentMap<String, PackedHistoryStore> stores =
+            new ConcurrentHashMap<String, PackedHistoryStore>();
 
     @Override
     public void initialize() {
@@ -63,8 +52,15 @@ class FileHistoryCache implements HistoryCache {
     }
 
     @Override
-    public void optimize() {
-        // nothing to do
+    public void optimize() throws HistoryException {
+        for (PackedHistoryStore store : stores.values()) {
+            try {
+                store.compact();
+            } catch (IOException e) {
+                throw new HistoryException(
+                        "Failed to compact history store " + store.getFile(), e);
+            }
+        }
     }
 
     @Override
@@ -102,14 +98,75 @@ class FileHistoryCache implements HistoryCache {
     }
 
     /**
-     * Read history from a file.
+     * Get the packed store holding the history of all files of a repository.
+     *
+     * @param repository the repository
+     * @return the store, whose file does not exist if the history of the
+     * repository has not been stored yet
      */
-    private static History readCache(File file) throws IOException {
-        try (FileInputStream in = new FileInputStream(file);
-                XMLDecoder d = new XMLDecoder(
-                        new BufferedInputStream(new GZIPInputStream(in)))) {
-            return (History) d.readObject();
+    private PackedHistoryStore getStore(Repository repository)
+            throws HistoryException {
+        String dir = repository.getDirectoryName();
+        PackedHistoryStore store = stores.get(dir);
+        if (store == null) {
+            RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+            File cacheDir = new File(env.getDataRootFile(), "historycache");
+            try {
+                cacheDir = new File(cacheDir,
+                        env.getPathRelativeToSourceRoot(new File(dir), 0));
+            } catch (IOException e) {
+                throw new HistoryException("Could not resolve " + dir
+                        + " relative to source root", e);
+            }
+            store = new PackedHistoryStore(
+                    new File(cacheDir, PackedHistoryStore.FILE_NAME));
+            PackedHistoryStore old = stores.putIfAbsent(dir, store);
+            if (old != null) {
+                store = old;
+            }
         }
+        return store;
+    }
+
+    /**
+     * Read the history of a file from the packed store of its repository.
+     *
+     * @return the history, or {@code null} if the store does not know the
+     * file, or the file was modified after the last update of the store
+     */
+    private History readStore(File file, Repository repository,
+            boolean withFiles) throws HistoryException {
+        PackedHistoryStore store = getStore(repository);
+        List<HistoryEntry> entries;
+        try {
+            entries = store.get(RuntimeEnvironment.getInstance()
+                    .getPathRelativeToSourceRoot(file, 0),
+                    file.lastModified(), withFiles);
+        } catch (IOException e) {
+            OpenGrokLogger.getLogger().log(Level.WARNING,
+                    "Error when reading history store " + store.getFile(), e);
+            return null;
+        }
+        if (entries == null) {
+            return null;
+        }
+        History history = new History(entries);
+        // The tags are not stored, since they depend on the file
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        if (env.isTagsEnabled() && repository.hasFileBasedTags()) {
+            repository.assignTagsInHistory(history);
+        }
+        return history;
+    }
+
+    /**
+     * Read history from a file. The file is either in the binary format, or
+     * in the XML format written by older versions.
+     *
+     * @see HistoryFormat
+     */
+    private static History readCache(File file) throws IOException {
+        return HistoryFormat.read(file);
     }
 
     private void storeFile(History history, File file) throws HistoryException {
@@ -133,11 +190,9 @@ class FileHistoryCache implements HistoryCache {
         final File output;
         try {
             output = File.createTempFile("oghist", null, dir);
-            try (FileOutputStream out = new FileOutputStream(output);
-                    XMLEncoder e = new XMLEncoder(
-                            new BufferedOutputStream(new GZIPOutputStream(out)))) {
-                e.setPersistenceDelegate(File.class, new FilePersistenceDelegate());
-                e.writeObject(history);
+            try (OutputStream out = new BufferedOutputStream(
+                    new FileOutputStream(output))) {
+                HistoryFormat.write(history, out);
             }
         } catch (IOException ioe) {
             throw new HistoryException("Failed to write history", ioe);
@@ -162,54 +217,48 @@ class FileHistoryCache implements HistoryCache {
     @Override
     public void store(History history, Repository repository)
             throws HistoryException {
-        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
-
         if (history.getHistoryEntries() == null) {
             return;
         }
 
-        HashMap<String, List<HistoryEntry>> map =
-                new HashMap<String, List<HistoryEntry>>();
-
+        // Write all changesets of the repository to a single file instead of
+        // one file per source file. The tags are assigned when reading.
+        // If the store has a latest revision, we have been given the
+        // changesets after that revision, so they are appended to it.
+        List<HistoryEntry> entries =
+                new ArrayList<HistoryEntry>(history.getHistoryEntries().size());
         for (HistoryEntry e : history.getHistoryEntries()) {
-            for (String s : e.getFiles()) {
-                List<HistoryEntry> list = map.get(s);
-                if (list == null) {
-                    list = new ArrayList<HistoryEntry>();
-                    map.put(s, list);
-                }
-                // We need to do deep copy in order to have different tags per each commit
-                if (env.isTagsEnabled() && repository.hasFileBasedTags()) {
-                    list.add(new HistoryEntry(e));
-                } else {
-                    list.add(e);
-                }
+            if (e.getTags() == null) {
+                entries.add(e);
+            } else {
+                HistoryEntry copy = new HistoryEntry(e);
+                copy.setTags(null);
+                entries.add(copy);
             }
         }
-
-        File root = RuntimeEnvironment.getInstance().getSourceRootFile();
-        for (Map.Entry<String, List<HistoryEntry>> e : map.entrySet()) {
-            for (HistoryEntry ent : e.getValue()) {
-                ent.strip();
-            }
-            History hist = new History();
-            hist.setHistoryEntries(e.getValue());
-
-            // Assign tags to changesets they represent
-            if (env.isTagsEnabled() && repository.hasFileBasedTags()) {
-                repository.assignTagsInHistory(hist);
-            }
-
-            File file = new File(root, e.getKey());
-            if (!file.isDirectory()) {
-                storeFile(hist, file);
+        PackedHistoryStore store = getStore(repository);
+        try {
+            if (getLatestCachedRevision(repository) == null) {
+                store.write(entries);
+            } else {
+                store.append(entries);
             }
+        } catch (IOException e) {
+            throw new HistoryException(
+                    "Failed to write history store " + store.getFile(), e);
         }
     }
 
     @Override
     public History get(File file, Repository repository, boolean withFiles)
             throws HistoryException {
+        if (!file.isDirectory()) {
+            History history = readStore(file, repository, withFiles);
+            if (history != null) {
+                return history;
+            }
+        }
+
         File cache = getCachedFile(file);
         if (isUpToDate(file, cache)) {
             try {
@@ -287,8 +336,17 @@ class FileHistoryCache implements HistoryCache {
     }
 
     @Override
-    public String getLatestCachedRevision(Repository repository) {
-        return null;
+    public String getLatestCachedRevision(Repository repository)
+            throws HistoryException {
+        PackedHistoryStore store = getStore(repository);
+        try {
+            return store.getLatestRevision();
+        } catch (IOException e) {
+            // an unreadable store is rewritten from the full history
+            OpenGrokLogger.getLogger().log(Level.WARNING,
+                    "Error when reading history store " + store.getFile(), e);
+            return null;
+        }
     }
 
     @Override
@@ -301,10 +359,25 @@ class FileHistoryCache implements HistoryCache {
     }
 
     @Override
-    public void clear(Repository repository) {
-        // We only expect this method to be called if the cache supports
-        // incremental update, so it's not implemented here for now.
-        throw new UnsupportedOperationException();
+    public Map<File, HistoryEntry> getLastHistoryEntries(
+            Collection<File> files, Repository repository) {
+        // The histories of the files are stored separately, so there is
+        // nothing to gain from reading them together.
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public void clear(Repository repository) throws HistoryException {
+        PackedHistoryStore store = getStore(repository);
+        if (!store.delete()) {
+            throw new HistoryException(
+                    "Failed to remove history store " + store.getFile());
+        }
+    }
+
+    @Override
+    public void close() {
+        // the stores keep no files open between calls
     }
 
     @Override
@@ -0,0 +1,400 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.history;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import org.opensolaris.opengrok.OpenGrokLogger;
+
+/**
+ * Pool of long-lived {@code git cat-file --batch} processes for one
+ * repository. Each process reads object names like {@code rev:path} from its
+ * standard input and writes the objects to its standard output, so getting a
+ * revision of a file does not require starting a new process.
+ * <p>
+ * Blobs are read into memory, so larger blobs are refused, and so are
+ * requests while all processes are busy. The caller is then expected to fall
+ * back to running a separate command. Processes are replaced after serving a
+ * number of requests, and closed when they have been idle for a while, also
+ * when no more requests come in. A process which does not answer a request
+ * in time is killed. Once the pool has been closed, all requests are
+ * refused.
+ */
+final class GitCatFilePool {
+
+    /** Default maximum number of processes. */
+    static final int MAX_PROCESSES = 4;
+    /** Default size limit in bytes of the blobs read from the processes. */
+    static final int MAX_BLOB_SIZE = 8 * 1024 * 1024;
+    /** Default number of requests after which a process is replaced. */
+    static final int MAX_REQUESTS = 1000;
+    /** Default time in milliseconds after which idle processes are closed. */
+    static final long IDLE_TIMEOUT = 300000;
+    /** Default time in milliseconds a process may take to answer. */
+    static final long READ_TIMEOUT = 30000;
+
+    /**
+     * Closes the idle processes of the pools, and kills the processes which
+     * don't answer in time.
+     */
+    private static final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread ret = new Thread(r, "git-cat-file-timer");
+                    ret.setDaemon(true);
+                    return ret;
+                }
+            });
+
+    private final List<String> command;
+    private final File directory;
+    private final int maxProcesses;
+    private final int maxBlobSize;
+    private final int maxRequests;
+    private final long idleTimeout;
+    private final long readTimeout;
+
+    /* below guarded by this */
+    /** processes not in use, most recently used first */
+    private final Deque<CatFile> idle = new ArrayDeque<CatFile>();
+    /** number of processes, including those in use */
+    private int processes;
+    private boolean closed;
+    /** the periodic task closing idle processes, while there are any */
+    private ScheduledFuture<?> reaper;
+
+    /** A running {@code git cat-file --batch} process. */
+    private static final class CatFile {
+        final Process process;
+        final OutputStream in;
+        final InputStream out;
+        int requests;
+        long lastUsed;
+
+        CatFile(Process process) {
+            this.process = process;
+            in = new BufferedOutputStream(process.getOutputStream());
+            out = new BufferedInputStream(process.getInputStream());
+        }
+
+        void close() {
+            try {
+                // cat-file exits when its input is closed
+                in.close();
+            } catch (IOException e) {
+                OpenGrokLogger.getLogger().log(Level.FINE,
+                        "Failed to close git cat-file input", e);
+            }
+            process.destroy();
+        }
+    }
+
+    /**
+     * Create a pool with the default limits.
+     *
+     * @param cmd the git command
+     * @param directory the root of the repository
+     */
+    GitCatFilePool(String cmd, File directory) {
+        this(cmd, directory, MAX_PROCESSES, MAX_BLOB_SIZE, MAX_REQUESTS,
+                IDLE_TIMEOUT, READ_TIMEOUT);
+    }
+
+    /**
+     * Create a pool.
+     *
+     * @param cmd the git command
+     * @param directory the root of the repository
+     * @param maxProcesses the maximum number of processes
+     * @param maxBlobSize the size limit in bytes of the blobs to read
+     * @param maxRequests the number of requests after which a process is
+     * replaced
+     * @param idleTimeout the time in milliseconds after which an idle process
+     * is closed
+     * @param readTimeout the time in milliseconds after which a process which
+     * has not answered a request is killed
+     */
+    GitCatFilePool(String cmd, File directory, int maxProcesses,
+            int maxBlobSize, int maxRequests, long idleTimeout,
+            long readTimeout) {
+        this.command = Arrays.asList(cmd, "cat-file", "--batch");
+        this.directory = directory;
+        this.maxProcesses = maxProcesses;
+        this.maxBlobSize = maxBlobSize;
+        this.maxRequests = maxRequests;
+        this.idleTimeout = idleTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Get the content of a blob.
+     *
+     * @param objectName the name of the blob, typically {@code rev:path}
+     * @return the content, or {@code null} if there is no such object
+     * @throws IOException if the blob could not be read from the pool,
+     * because all processes are busy, the object is not a blob or is too
+     * large, or a process failed
+     */
+    byte[] get(String objectName) throws IOException {
+        if (objectName.indexOf('\n') >= 0) {
+            throw new IOException("Object name contains a newline");
+        }
+        final CatFile cf = borrow();
+        // reading blocks until the process answers, so kill it if it hangs
+        ScheduledFuture<?> watchdog = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                OpenGrokLogger.getLogger().log(Level.WARNING,
+                        "git cat-file in {0} did not answer in time, "
+                        + "killing it", directory);
+                cf.process.destroy();
+            }
+        }, readTimeout, TimeUnit.MILLISECONDS);
+        boolean reuse = false;
+        try {
+            cf.requests++;
+            cf.in.write(objectName.getBytes("UTF-8"));
+            cf.in.write('\n');
+            cf.in.flush();
+
+            // "<sha1> <type> <size>" or "<name> missing"
+            String header = readLine(cf.out);
+            if (header.endsWith(" missing") || header.endsWith(" ambiguous")) {
+                reuse = true;
+                return null;
+            }
+            String[] parts = header.split(" ");
+            if (parts.length != 3) {
+                throw new IOException(
+                        "Unexpected git cat-file output: " + header);
+            }
+            long size = Long.parseLong(parts[2]);
+            if (size > maxBlobSize) {
+                // don't read it just to skip it, replace the process instead
+                throw new IOException(objectName + " is too large ("
+                        + size + " bytes)");
+            }
+            byte[] content = new byte[(int) size];
+            readFully(cf.out, content);
+            if (cf.out.read() != '\n') {
+                throw new IOException("Unexpected git cat-file output");
+            }
+            reuse = true;
+            if (!"blob".equals(parts[1])) {
+                throw new IOException(objectName + " is a " + parts[1]);
+            }
+            return content;
+        } finally {
+            // if the watchdog has already run, the process is dead
+            boolean inTime = watchdog.cancel(false);
+            release(cf, reuse && inTime);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new EOFException("git cat-file exited");
+            }
+            line.write(b);
+        }
+        return line.toString("UTF-8");
+    }
+
+    private static void readFully(InputStream in, byte[] buf)
+            throws IOException {
+        int off = 0;
+        while (off < buf.length) {
+            int len = in.read(buf, off, buf.length - off);
+            if (len == -1) {
+                throw new EOFException("git cat-file exited");
+            }
+            off += len;
+        }
+    }
+
+    /**
+     * Get an idle process, or start a new one, and close the processes which
+     * have been idle for too long.
+     */
+    private CatFile borrow() throws IOException {
+        List<CatFile> toClose = new ArrayList<CatFile>();
+        try {
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("The git cat-file pool is closed");
+                }
+                // the most recently used process is reused even if it has
+                // been idle for long, since it's known to be alive
+                CatFile cf = idle.pollFirst();
+                evictIdle(System.currentTimeMillis(), toClose);
+                if (cf != null) {
+                    return cf;
+                }
+                if (processes >= maxProcesses) {
+                    throw new IOException(
+                            "All git cat-file processes are busy");
+                }
+                processes++;
+                if (reaper == null) {
+                    // without requests, nothing else closes idle processes
+                    reaper = timer.scheduleWithFixedDelay(new Runnable() {
+                        @Override
+                        public void run() {
+                            reap();
+                        }
+                    }, idleTimeout, idleTimeout, TimeUnit.MILLISECONDS);
+                }
+            }
+        } finally {
+            closeAll(toClose);
+        }
+        boolean success = false;
+        try {
+            ProcessBuilder pb = new ProcessBuilder(command);
+            pb.directory(directory);
+            // nothing reads the error output, so don't let it fill a pipe
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+            CatFile cf = new CatFile(pb.start());
+            success = true;
+            return cf;
+        } finally {
+            if (!success) {
+                synchronized (this) {
+                    processes--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Return a process to the pool, or close it if it can't be reused, and
+     * close the processes which have been idle for too long.
+     */
+    private void release(CatFile cf, boolean reuse) {
+        List<CatFile> toClose = new ArrayList<CatFile>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (reuse && !closed && cf.requests < maxRequests) {
+                cf.lastUsed = now;
+                idle.addFirst(cf);
+            } else {
+                toClose.add(cf);
+                processes--;
+            }
+            evictIdle(now, toClose);
+        }
+        closeAll(toClose);
+    }
+
+    /**
+     * Remove the processes which have been idle for too long from the pool.
+     * Must be called while holding the lock on the pool.
+     *
+     * @param now the current time
+     * @param toClose the list to add the removed processes to, they should
+     * be closed by the caller (outside of the lock)
+     */
+    private void evictIdle(long now, List<CatFile> toClose) {
+        Iterator<CatFile> it = idle.descendingIterator();
+        while (it.hasNext()) {
+            CatFile old = it.next();
+            if (now - old.lastUsed < idleTimeout) {
+                break;
+            }
+            it.remove();
+            toClose.add(old);
+            processes--;
+        }
+    }
+
+    /**
+     * Close the processes which have been idle for too long. Called
+     * periodically while the pool has processes, so that they don't linger
+     * if no more requests come in.
+     */
+    private void reap() {
+        List<CatFile> toClose = new ArrayList<CatFile>();
+        synchronized (this) {
+            evictIdle(System.currentTimeMillis(), toClose);
+            if (processes == 0 && reaper != null) {
+                reaper.cancel(false);
+                reaper = null;
+            }
+        }
+        closeAll(toClose);
+    }
+
+    private static void closeAll(List<CatFile> processes) {
+        for (CatFile c : processes) {
+            c.close();
+        }
+    }
+
+    /**
+     * Close the pool. Idle processes are closed right away, the processes
+     * in use when they are released.
+     */
+    void close() {
+        List<CatFile> toClose;
+        synchronized (this) {
+            closed = true;
+            if (reaper != null) {
+                reaper.cancel(false);
+                reaper = null;
+            }
+            toClose = new ArrayList<CatFile>(idle);
+            idle.clear();
+            processes -= toClose.size();
+        }
+        closeAll(toClose);
+    }
+
+    /**
+     * Get the number of processes, including those in use.
+     */
+    synchronized int getProcessCount() {
+        return processes;
+    }
+}
@@ -55,6 +55,9 @@ public class GitRepository extends Repository {
     /** git blame command */
     private static final String BLAME = "blame";
 
+    /** long-lived processes for getting revisions, created on demand */
+    private transient GitCatFilePool catFilePool;
+
     public GitRepository() {
         type = "git";
         datePattern = "EEE MMM dd hh:mm:ss yyyy ZZZZ";
@@ -158,47 +161,84 @@ public class GitRepository extends Repository {
     public InputStream getHistoryGet(String parent, String basename, String rev)
     {
         InputStream ret = null;
+        try {
+            String filename = (new File(parent, basename)).getCanonicalPath()
+                .substring(directoryName.length() + 1)
+                .replace(File.separatorChar, '/');
+            byte[] content = getBlob(rev + ":" + filename);
+            if (content == null) {
+                // File might have changed its location
+                String path = getCorrectPath(filename, rev);
+                content = getBlob(rev + ":" + path);
+            }
+            ret = new ByteArrayInputStream(
+                    content == null ? new byte[0] : content);
+        } catch (Exception exp) {
+            OpenGrokLogger.getLogger().log(Level.SEVERE,
+                "Failed to get history: " + exp.getClass().toString(), exp);
+        }
 
-        File directory = new File(directoryName);
+        return ret;
+    }
+
+    /**
+     * Get the pool of {@code git cat-file} processes of this repository.
+     */
+    private synchronized GitCatFilePool getCatFilePool() {
+        if (catFilePool == null) {
+            ensureCommand(CMD_PROPERTY_KEY, CMD_FALLBACK);
+            catFilePool = new GitCatFilePool(cmd, new File(directoryName));
+        }
+        return catFilePool;
+    }
+
+    /**
+     * Stop the {@code git cat-file} processes of this repository. Blobs
+     * requested afterwards are read by running {@code git show}.
+     */
+    @Override
+    void close() {
+        // creating the pool to close it starts no process, but makes sure
+        // that no process gets started later
+        getCatFilePool().close();
+    }
+
+    /**
+     * Get the content of a blob, preferably from one of the long-lived
+     * {@code git cat-file} processes of this repository, and otherwise by
+     * running {@code git show}.
+     *
+     * @param objectName the name of the blob, like {@code rev:path}
+     * @return the content of the blob, or {@code null} if it doesn't exist
+     */
+    private byte[] getBlob(String objectName) throws IOException {
+        try {
+            return getCatFilePool().get(objectName);
+        } catch (IOException e) {
+            OpenGrokLogger.getLogger().log(Level.FINE,
+                "Could not get {0} from git cat-file: {1}",
+                new Object[]{objectName, e.getMessage()});
+        }
 
         ByteArrayOutputStream output = new ByteArrayOutputStream();
         byte[] buffer = new byte[8192];
-
         Process process = null;
         try {
-            String filename = (new File(parent, basename)).getCanonicalPath()
-                .substring(directoryName.length() + 1);
             ensureCommand(CMD_PROPERTY_KEY, CMD_FALLBACK);
-            String argv[] = {cmd, "show", rev + ":" + filename};
-            process = Runtime.getRuntime().exec(argv, null, directory);
+            String argv[] = {cmd, "show", objectName};
+            process = Runtime.getRuntime().exec(argv, null,
+                    new File(directoryName));
 
             InputStream in = process.getInputStream();
             int len;
             boolean error = true;
-
             while ((len = in.read(buffer)) != -1) {
                 error = false;
                 if (len > 0) {
                     output.write(buffer, 0, len);
                 }
             }
-            if (error) {
-                process.destroy();
-                String path = getCorrectPath(filename, rev);
-                argv[2] = rev + ":" + path;
-                process = Runtime.getRuntime().exec(argv, null, directory);
-                in = process.getInputStream();
-                while ((len = in.read(buffer)) != -1) {
-                    if (len > 0) {
-                        output.write(buffer, 0, len);
-                    }
-                }
-            }
-
-            ret = new ByteArrayInputStream(output.toByteArray());
-        } catch (Exception exp) {
-            OpenGrokLogger.getLogger().log(Level.SEVERE,
-                "Failed to get history: " + exp.getClass().toString(), exp);
+            return error ? null : output.toByteArray();
         } finally {
             // Clean up zombie-processes...
             if (process != null) {
@@ -210,9 +250,8 @@ public class GitRepository extends Repository {
                 }
             }
         }
-
-        return ret;
     }
+
     /** Pattern used to extract author/revision from git blame. */
     private static final Pattern BLAME_PATTERN =
             Pattern.compile("^\\W*(\\w+).+?\\((\\D+).*$");
@@ -18,11 +18,12 @@
  */
 
 /*
- * Copyright (c) 2006, 2012, Oracle and/or its affiliates. All rights reserved.
+ * Copyright (c) 2006, 2013, Oracle and/or its affiliates. All rights reserved.
  */
 package org.opensolaris.opengrok.history;
 
 import java.io.File;
+import java.util.Collection;
 import java.util.Date;
 import java.util.Map;
 
@@ -118,6 +119,22 @@ interface HistoryCache {
             File directory, Repository repository)
         throws HistoryException;
 
+    /**
+     * Get the most recent entry in the cached history of each of the given
+     * files, without the lists of files touched by the changesets.
+     *
+     * @param files files (not directories) in the repository
+     * @param repository the repository in which the files live
+     * @return a map from each file the cache could answer for to its most
+     * recent entry, or to {@code null} if it has no cached history; the
+     * history of the files left out has to be read with
+     * {@link #get(File, Repository, boolean)}
+     * @throws HistoryException if the history could not be read
+     */
+    Map<File, HistoryEntry> getLastHistoryEntries(
+            Collection<File> files, Repository repository)
+            throws HistoryException;
+
     /**
      * Clear the history cache for a repository.
      *
@@ -126,6 +143,14 @@ interface HistoryCache {
      */
     void clear(Repository repository) throws HistoryException;
 
+    /**
+     * Release the resources held by the cache, like open files. The cache
+     * must not be used after it has been closed.
+     *
+     * @throws HistoryException if the resources could not be released
+     */
+    void close() throws HistoryException;
+
     /**
      * Get a string with information about the history cache.
      *
@@ -0,0 +1,512 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.history;
+
+import java.beans.XMLDecoder;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import org.opensolaris.opengrok.OpenGrokLogger;
+
+/**
+ * Compact binary serialization of a {@link History}, used by the
+ * {@link FileHistoryCache} instead of {@code java.beans.XMLEncoder}.
+ * <p>
+ * A file starts with the {@link #MAGIC} bytes, a version and a flags byte.
+ * The rest is deflated if {@link #FLAG_DEFLATED} is set, and holds:
+ * <ul>
+ * <li>a table of the authors, tags and paths of the entries, which tend to
+ * repeat a lot,</li>
+ * <li>the entries, most recent first, with their dates stored as the
+ * difference to the date of the previous entry.</li>
+ * </ul>
+ * All integers are variable length encoded, strings are UTF-8 encoded and
+ * prefixed with their length.
+ * <p>
+ * Cache files written by older versions hold gzipped XML. They are still
+ * read by {@link #read(File)}, and {@link #main(String[])} converts them.
+ */
+public final class HistoryFormat {
+
+    /** the bytes every binary history file starts with */
+    static final byte[] MAGIC = {'O', 'G', 'H', 'C'};
+    /** the current version of the format */
+    static final int VERSION = 1;
+    /** flag telling that the content after the header is deflated */
+    static final int FLAG_DEFLATED = 0x01;
+    /** histories larger than this many bytes are deflated */
+    static final int DEFLATE_THRESHOLD = 4096;
+
+    private static final int ENTRY_ACTIVE = 0x01;
+    private static final int ENTRY_DATE = 0x02;
+    private static final int ENTRY_AUTHOR = 0x04;
+    private static final int ENTRY_TAGS = 0x08;
+    private static final int ENTRY_REVISION = 0x10;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private HistoryFormat() {
+        // Util class, should not be constructed
+    }
+
+    /**
+     * Write a history in the binary format.
+     *
+     * @param history the history to write
+     * @param out the stream to write to, which is not closed
+     * @throws IOException if an error occurs while writing
+     */
+    static void write(History history, OutputStream out) throws IOException {
+        List<HistoryEntry> entries = history.getHistoryEntries();
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        List<String> strings = new ArrayList<String>();
+        for (HistoryEntry entry : entries) {
+            addString(entry.getAuthor(), ids, strings);
+            addString(entry.getTags(), ids, strings);
+            for (String file : entry.getFiles()) {
+                addString(file, ids, strings);
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        writeVInt(data, strings.size());
+        for (String s : strings) {
+            writeString(data, s);
+        }
+        writeVInt(data, entries.size());
+        long prevTime = 0;
+        for (HistoryEntry entry : entries) {
+            Date date = entry.getDate();
+            int flags = (entry.isActive() ? ENTRY_ACTIVE : 0)
+                    | (date == null ? 0 : ENTRY_DATE)
+                    | (entry.getAuthor() == null ? 0 : ENTRY_AUTHOR)
+                    | (entry.getTags() == null ? 0 : ENTRY_TAGS)
+                    | (entry.getRevision() == null ? 0 : ENTRY_REVISION);
+            data.writeByte(flags);
+            if (entry.getRevision() != null) {
+                writeString(data, entry.getRevision());
+            }
+            if (date != null) {
+                long time = date.getTime();
+                writeVLong(data, zigZag(time - prevTime));
+                prevTime = time;
+            }
+            if (entry.getAuthor() != null) {
+                writeVInt(data, ids.get(entry.getAuthor()));
+            }
+            if (entry.getTags() != null) {
+                writeVInt(data, ids.get(entry.getTags()));
+            }
+            writeString(data, entry.getMessage());
+            writeVInt(data, entry.getFiles().size());
+            for (String file : entry.getFiles()) {
+                writeVInt(data, ids.get(file));
+            }
+            List<String> changeRequests = entry.getChangeRequests();
+            writeVInt(data, changeRequests.size());
+            for (String cr : changeRequests) {
+                writeString(data, cr);
+            }
+        }
+        data.flush();
+
+        boolean deflate = bytes.size() > DEFLATE_THRESHOLD;
+        out.write(MAGIC);
+        out.write(VERSION);
+        out.write(deflate ? FLAG_DEFLATED : 0);
+        if (deflate) {
+            // finish() does not free the native memory of the deflater,
+            // so end it instead of waiting for the finalizer
+            Deflater deflater = new Deflater();
+            try {
+                DeflaterOutputStream dout =
+                        new DeflaterOutputStream(out, deflater);
+                bytes.writeTo(dout);
+                dout.finish();
+            } finally {
+                deflater.end();
+            }
+        } else {
+            bytes.writeTo(out);
+        }
+    }
+
+    /**
+     * Read a history written by {@link #write(History, OutputStream)}.
+     *
+     * @param in the stream to read from, positioned after the magic bytes
+     * @return the history
+     * @throws IOException if an error occurs while reading, or the data is
+     * not a history in a supported version
+     */
+    private static History readBinary(InputStream in) throws IOException {
+        int version = in.read();
+        if (version != VERSION) {
+            throw new IOException("Unsupported history format version "
+                    + version);
+        }
+        int fileFlags = in.read();
+        if (fileFlags < 0) {
+            throw new EOFException();
+        }
+        if ((fileFlags & FLAG_DEFLATED) == 0) {
+            return readBody(new DataInputStream(in));
+        }
+        // only the underlying stream is closed by the caller, so end the
+        // inflater instead of waiting for the finalizer
+        Inflater inflater = new Inflater();
+        try {
+            return readBody(new DataInputStream(
+                    new InflaterInputStream(in, inflater)));
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Helper for {@link #readBinary(InputStream)} which reads the part after
+     * the header.
+     */
+    private static History readBody(DataInput data) throws IOException {
+        String[] strings = new String[readVInt(data)];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = readString(data);
+        }
+        int count = readVInt(data);
+        List<HistoryEntry> entries = new ArrayList<HistoryEntry>(count);
+        long time = 0;
+        for (int i = 0; i < count; i++) {
+            int flags = data.readUnsignedByte();
+            String revision = (flags & ENTRY_REVISION) != 0
+                    ? readString(data) : null;
+            Date date = null;
+            if ((flags & ENTRY_DATE) != 0) {
+                time += unZigZag(readVLong(data));
+                date = new Date(time);
+            }
+            String author = (flags & ENTRY_AUTHOR) != 0
+                    ? strings[readVInt(data)] : null;
+            String tags = (flags & ENTRY_TAGS) != 0
+                    ? strings[readVInt(data)] : null;
+            HistoryEntry entry = new HistoryEntry(revision, date, author,
+                    tags, readString(data), (flags & ENTRY_ACTIVE) != 0);
+            int files = readVInt(data);
+            if (files > 0) {
+                TreeSet<String> set = new TreeSet<String>();
+                for (int j = 0; j < files; j++) {
+                    set.add(strings[readVInt(data)]);
+                }
+                entry.setFiles(set);
+            }
+            for (int j = readVInt(data); j > 0; j--) {
+                entry.addChangeRequest(readString(data));
+            }
+            entries.add(entry);
+        }
+        return new History(entries);
+    }
+
+    /**
+     * Read a history cache file, which may be in the binary format or in the
+     * gzipped XML format used by older versions.
+     *
+     * @param file the file to read
+     * @return the history stored in the file
+     * @throws IOException if an error occurs while reading the file
+     */
+    static History read(File file) throws IOException {
+        try (InputStream in =
+                new BufferedInputStream(new FileInputStream(file))) {
+            if (isBinary(in)) {
+                new DataInputStream(in).readFully(new byte[MAGIC.length]);
+                return readBinary(in);
+            }
+            return readXML(in);
+        }
+    }
+
+    /**
+     * Check if a stream holds a history in the binary format, without
+     * consuming any bytes.
+     *
+     * @param in a stream supporting {@code mark()}
+     */
+    private static boolean isBinary(InputStream in) throws IOException {
+        byte[] head = new byte[MAGIC.length];
+        in.mark(head.length);
+        int n = 0;
+        while (n < head.length) {
+            int r = in.read(head, n, head.length - n);
+            if (r < 0) {
+                break;
+            }
+            n += r;
+        }
+        in.reset();
+        return Arrays.equals(head, MAGIC);
+    }
+
+    /**
+     * Read a history stored as gzipped XML by {@code java.beans.XMLEncoder}.
+     */
+    static History readXML(InputStream in) throws IOException {
+        try (XMLDecoder d = new XMLDecoder(
+                new BufferedInputStream(new GZIPInputStream(in)))) {
+            return (History) d.readObject();
+        }
+    }
+
+    /**
+     * Write a single history entry with all its strings inline, for storing
+     * it as a record of its own.
+     *
+     * @param out where to write the entry
+     * @param entry the entry to write
+     * @throws IOException if an error occurs while writing
+     * @see #readEntry(DataInput, boolean)
+     */
+    static void writeEntry(DataOutput out, HistoryEntry entry)
+            throws IOException {
+        Date date = entry.getDate();
+        int flags = (entry.isActive() ? ENTRY_ACTIVE : 0)
+                | (date == null ? 0 : ENTRY_DATE)
+                | (entry.getAuthor() == null ? 0 : ENTRY_AUTHOR)
+                | (entry.getTags() == null ? 0 : ENTRY_TAGS)
+                | (entry.getRevision() == null ? 0 : ENTRY_REVISION);
+        out.writeByte(flags);
+        if (entry.getRevision() != null) {
+            writeString(out, entry.getRevision());
+        }
+        if (date != null) {
+            writeVLong(out, zigZag(date.getTime()));
+        }
+        if (entry.getAuthor() != null) {
+            writeString(out, entry.getAuthor());
+        }
+        if (entry.getTags() != null) {
+            writeString(out, entry.getTags());
+        }
+        writeString(out, entry.getMessage());
+        writeVInt(out, entry.getChangeRequests().size());
+        for (String cr : entry.getChangeRequests()) {
+            writeString(out, cr);
+        }
+        // the files come last, so that they can be skipped when reading
+        writeVInt(out, entry.getFiles().size());
+        for (String file : entry.getFiles()) {
+            writeString(out, file);
+        }
+    }
+
+    /**
+     * Read a history entry written by
+     * {@link #writeEntry(DataOutput, HistoryEntry)}.
+     *
+     * @param in where to read the entry from
+     * @param withFiles whether to read the list of files of the entry
+     * @return the entry
+     * @throws IOException if an error occurs while reading
+     */
+    static HistoryEntry readEntry(DataInput in, boolean withFiles)
+            throws IOException {
+        int flags = in.readUnsignedByte();
+        String revision = (flags & ENTRY_REVISION) != 0
+                ? readString(in) : null;
+        Date date = (flags & ENTRY_DATE) != 0
+                ? new Date(unZigZag(readVLong(in))) : null;
+        String author = (flags & ENTRY_AUTHOR) != 0 ? readString(in) : null;
+        String tags = (flags & ENTRY_TAGS) != 0 ? readString(in) : null;
+        HistoryEntry entry = new HistoryEntry(revision, date, author, tags,
+                readString(in), (flags & ENTRY_ACTIVE) != 0);
+        for (int i = readVInt(in); i > 0; i--) {
+            entry.addChangeRequest(readString(in));
+        }
+        if (withFiles) {
+            for (int i = readVInt(in); i > 0; i--) {
+                entry.addFile(readString(in));
+            }
+        }
+        return entry;
+    }
+
+    private static void addString(String s, Map<String, Integer> ids,
+            List<String> strings) {
+        if (s != null && !ids.containsKey(s)) {
+            ids.put(s, strings.size());
+            strings.add(s);
+        }
+    }
+
+    static void writeString(DataOutput out, String s)
+            throws IOException {
+        byte[] b = s.getBytes(UTF8);
+        writeVInt(out, b.length);
+        out.write(b);
+    }
+
+    static String readString(DataInput in) throws IOException {
+        byte[] b = new byte[readVInt(in)];
+        in.readFully(b);
+        return new String(b, UTF8);
+    }
+
+    static void writeVInt(DataOutput out, int i)
+            throws IOException {
+        writeVLong(out, i & 0xFFFFFFFFL);
+    }
+
+    static void writeVLong(DataOutput out, long l)
+            throws IOException {
+        while ((l & ~0x7FL) != 0) {
+            out.writeByte((int) ((l & 0x7F) | 0x80));
+            l >>>= 7;
+        }
+        out.writeByte((int) l);
+    }
+
+    static int readVInt(DataInput in) throws IOException {
+        return (int) readVLong(in);
+    }
+
+    static long readVLong(DataInput in) throws IOException {
+        long l = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            l |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return l;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+    private static long zigZag(long l) {
+        return (l << 1) ^ (l >> 63);
+    }
+
+    private static long unZigZag(long l) {
+        return (l >>> 1) ^ -(l & 1);
+    }
+
+    /**
+     * Convert the history cache files in the given file or directory (and
+     * its subdirectories) from the XML format to the binary format. The
+     * modification times of the files are kept, so that the cache stays up
+     * to date.
+     *
+     * @param file a history cache file or directory
+     * @return the number of converted files
+     * @throws IOException if a file could not be converted
+     */
+    static int convert(File file) throws IOException {
+        if (file.isDirectory()) {
+            int count = 0;
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    count += convert(child);
+                }
+            }
+            return count;
+        }
+        if (!file.getName().endsWith(".gz")) {
+            return 0;
+        }
+        History history;
+        try (InputStream in =
+                new BufferedInputStream(new FileInputStream(file))) {
+            if (isBinary(in)) {
+                return 0;
+            }
+            history = readXML(in);
+        }
+        File tmp = File.createTempFile("oghist", null, file.getParentFile());
+        try (OutputStream out =
+                new BufferedOutputStream(new FileOutputStream(tmp))) {
+            write(history, out);
+        }
+        long lastModified = file.lastModified();
+        if (!file.delete() || !tmp.renameTo(file)) {
+            if (!tmp.delete()) {
+                OpenGrokLogger.getLogger().log(Level.WARNING,
+                        "Failed to remove temporary history cache file");
+            }
+            throw new IOException("Failed to replace " + file);
+        }
+        if (!file.setLastModified(lastModified)) {
+            OpenGrokLogger.getLogger().log(Level.WARNING,
+                    "Failed to set the modification time of {0}", file);
+        }
+        return 1;
+    }
+
+    /**
+     * Convert existing history caches to the binary format.
+     *
+     * @param args the history cache directories ({@code DATA_ROOT/historycache})
+     * or files to convert
+     */
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("Usage: historyCacheDir [historyCacheDir ...]");
+            System.exit(1);
+        }
+
+        for (String arg : args) {
+            try {
+                int count = convert(new File(arg));
+                System.out.println("Converted " + count + " files in " + arg);
+            } catch (IOException e) {
+                OpenGrokLogger.getLogger().log(Level.WARNING,
+                        "Failed to convert the history cache in " + arg, e);
+                System.exit(1);
+            }
+        }
+    }
+}
@@ -18,13 +18,14 @@
  */
 
 /*
- * Copyright (c) 2005, 2012, Oracle and/or its affiliates. All rights reserved.
+ * Copyright (c) 2005, 2013, Oracle and/or its affiliates. All rights reserved.
  */
 package org.opensolaris.opengrok.history;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -38,6 +39,9 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import org.opensolaris.opengrok.OpenGrokLogger;
 import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
 import org.opensolaris.opengrok.index.IgnoredNames;
@@ -57,6 +61,13 @@ public final class HistoryGuru {
     /** The history cache to use */
     private final HistoryCache historyCache;
 
+    /** The decoded histories of recently requested files */
+    private final HistoryMemoryCache memoryCache;
+
+    /** The JMX name of the memory cache */
+    private static final String MEMORY_CACHE_MBEAN =
+            "org.opensolaris.opengrok:type=HistoryMemoryCache";
+
     private Map<String, Repository> repositories =
         new HashMap<String, Repository>();
     private final int scanningDepth;
@@ -72,6 +83,8 @@ public final class HistoryGuru {
         if (env.useHistoryCache()) {
             if (env.storeHistoryCacheInDB()) {
                 cache = new JDBCHistoryCache();
+            } else if (env.storeHistoryCacheInLucene()) {
+                cache = new LuceneHistoryCache();
             } else {
                 cache = new FileHistoryCache();
             }
@@ -85,6 +98,51 @@ public final class HistoryGuru {
             }
         }
         historyCache = cache;
+        memoryCache = new HistoryMemoryCache(env.getHistoryMemoryCacheSize(),
+                env.getHistoryMemoryCacheMaxSizeMB() * 1024L * 1024L);
+        if (memoryCache.isEnabled()) {
+            registerMemoryCache(memoryCache);
+        }
+    }
+
+    /**
+     * Make the statistics of the memory cache available through JMX. A
+     * previously registered memory cache, e.g. of an earlier deployment of
+     * the web application, is unregistered.
+     */
+    private static void registerMemoryCache(HistoryMemoryCache cache) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(MEMORY_CACHE_MBEAN);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(cache, name);
+        } catch (JMException e) {
+            log.log(Level.FINE,
+                    "Failed to register the history memory cache", e);
+        }
+    }
+
+    /**
+     * Remove the memory cache from JMX, so that it does not keep the classes
+     * of the web application loaded. Should be called when the application
+     * shuts down.
+     */
+    public void unregisterMemoryCache() {
+        if (!memoryCache.isEnabled()) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(MEMORY_CACHE_MBEAN);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            log.log(Level.FINE,
+                    "Failed to unregister the history memory cache", e);
+        }
     }
 
     /**
@@ -114,6 +172,17 @@ public final class HistoryGuru {
         return historyCache == null ? "No cache" : historyCache.getInfo();
     }
 
+    /**
+     * Get a string with statistics about the decoded histories kept in
+     * memory.
+     *
+     * @return a free form text string describing the memory cache
+     */
+    public String getMemoryCacheInfo() {
+        return memoryCache.isEnabled() ? memoryCache.getStatistics()
+                : "Disabled";
+    }
+
     /**
      * Annotate the specified revision of a file.
      *
@@ -199,7 +268,8 @@ public final class HistoryGuru {
      */
     public History getHistory(File file, boolean withFiles)
             throws HistoryException {
-        final File dir = file.isDirectory() ? file : file.getParentFile();
+        final boolean isDirectory = file.isDirectory();
+        final File dir = isDirectory ? file : file.getParentFile();
         final Repository repos = getRepository(dir);
 
         History history = null;
@@ -208,16 +278,186 @@ public final class HistoryGuru {
             && (!repos.isRemote() || RuntimeEnvironment.getInstance()
                 .isRemoteScmSupported()))
         {
-            if (useCache() && historyCache.supportsRepository(repos)) {
-                history = historyCache.get(file, repos, withFiles);
-            } else {
-                history = repos.getHistory(file);
+            if (!memoryCache.isEnabled()
+                    || (isDirectory && !isDirectoryHistoryCacheable(repos))) {
+                return readHistory(file, repos, withFiles);
+            }
+            String path = file.getAbsolutePath();
+            long lastModified = file.lastModified();
+            long indexTime = new File(RuntimeEnvironment.getInstance()
+                    .getDataRootFile(), "timestamp").lastModified();
+            history = memoryCache.get(path, withFiles, lastModified, indexTime);
+            if (history == null) {
+                long generation = memoryCache.getGeneration();
+                history = readHistory(file, repos, withFiles);
+                if (history != null) {
+                    memoryCache.put(path, withFiles, generation, lastModified,
+                            indexTime, history);
+                }
             }
         }
 
         return history;
     }
 
+    /**
+     * Get the most recent active entries of the history of a file or
+     * directory. If the history is read from a database backed history
+     * cache, the reading stops after these entries instead of reading the
+     * entire history. The Lucene history cache finds them with an index
+     * query, if the lists of files are not requested.
+     *
+     * @param file the file or directory to get the history for
+     * @param withFiles whether or not the entries should contain the lists
+     * of files touched by the changesets (may be ignored if false)
+     * @param count the maximum number of entries to return
+     * @return at most {@code count} entries, most recent first, or
+     * {@code null} if the file has no history
+     * @throws HistoryException on error when accessing the history
+     */
+    public History getLatestHistory(File file, boolean withFiles,
+            final int count) throws HistoryException {
+        final List<HistoryEntry> entries = new ArrayList<HistoryEntry>();
+        if (count <= 0) {
+            return new History(entries);
+        }
+        final Repository repos = getRepository(
+                file.isDirectory() ? file : file.getParentFile());
+        final boolean cached = repos != null && repos.isWorking()
+                && repos.fileHasHistory(file)
+                && (!repos.isRemote() || RuntimeEnvironment.getInstance()
+                    .isRemoteScmSupported())
+                && useCache() && historyCache.supportsRepository(repos);
+        if (cached && historyCache instanceof LuceneHistoryCache
+                && !withFiles) {
+            return ((LuceneHistoryCache) historyCache).getLatestChanges(
+                    file, repos, null, 0, count);
+        }
+        if (cached && historyCache instanceof JDBCHistoryCache) {
+            ((JDBCHistoryCache) historyCache).get(file, repos, withFiles,
+                    new JDBCHistoryCache.HistoryVisitor() {
+                @Override
+                public boolean visit(HistoryEntry entry) {
+                    if (entry.isActive()) {
+                        entries.add(entry);
+                    }
+                    return entries.size() < count;
+                }
+            });
+            return new History(entries);
+        }
+        History history = getHistory(file, withFiles);
+        if (history == null) {
+            return null;
+        }
+        for (HistoryEntry entry : history.getHistoryEntries()) {
+            if (entries.size() == count) {
+                break;
+            }
+            if (entry.isActive()) {
+                entries.add(entry);
+            }
+        }
+        return new History(entries);
+    }
+
+    /**
+     * Check whether the history of a directory may be kept in the memory
+     * cache. Its modification time does not change when files further down
+     * change, so only history which changes solely when the index gets
+     * updated, i.e. which is read from a database backed history cache, can
+     * be kept.
+     */
+    private boolean isDirectoryHistoryCacheable(Repository repos) {
+        return useCache() && historyCache.supportsRepository(repos)
+                && (historyCache instanceof JDBCHistoryCache
+                    || historyCache instanceof LuceneHistoryCache);
+    }
+
+    private History readHistory(File file, Repository repos, boolean withFiles)
+            throws HistoryException {
+        if (useCache() && historyCache.supportsRepository(repos)) {
+            return historyCache.get(file, repos, withFiles);
+        }
+        return repos.getHistory(file);
+    }
+
+    /**
+     * Get the most recent active history entry of each of the given files.
+     * The lists of files touched by the changesets are not loaded. The files
+     * whose history is kept in the history cache are looked up together,
+     * one batch per repository. A file whose history can't be read is logged
+     * and left out, so that it does not prevent showing the others.
+     *
+     * @param files the files to get the last changes of
+     * @return a map from each of the given files that has history to its
+     * last active entry, or to {@code null} if there is no active entry
+     */
+    public Map<File, HistoryEntry> getLastHistoryEntries(
+            Collection<File> files) {
+        Map<File, HistoryEntry> ret = new HashMap<File, HistoryEntry>();
+        Map<Repository, List<File>> cached =
+                new HashMap<Repository, List<File>>();
+        List<File> others = new ArrayList<File>();
+        for (File file : files) {
+            Repository repos = getRepository(file.getParentFile());
+            if (repos != null && !file.isDirectory() && repos.isWorking()
+                    && repos.fileHasHistory(file)
+                    && (!repos.isRemote() || RuntimeEnvironment.getInstance()
+                        .isRemoteScmSupported())
+                    && useCache() && historyCache.supportsRepository(repos)) {
+                List<File> list = cached.get(repos);
+                if (list == null) {
+                    list = new ArrayList<File>();
+                    cached.put(repos, list);
+                }
+                list.add(file);
+            } else {
+                others.add(file);
+            }
+        }
+        for (Map.Entry<Repository, List<File>> e : cached.entrySet()) {
+            Map<File, HistoryEntry> last;
+            try {
+                last = historyCache.getLastHistoryEntries(
+                        e.getValue(), e.getKey());
+            } catch (HistoryException he) {
+                log.log(Level.WARNING, "Failed to get the last changes in "
+                        + e.getKey().getDirectoryName(), he);
+                last = Collections.emptyMap();
+            }
+            ret.putAll(last);
+            // read the files the cache could not answer for one by one
+            for (File file : e.getValue()) {
+                if (!last.containsKey(file)) {
+                    others.add(file);
+                }
+            }
+        }
+        for (File file : others) {
+            History history;
+            try {
+                history = getHistory(file, false);
+            } catch (HistoryException e) {
+                log.log(Level.WARNING,
+                        "Failed to get the history of " + file, e);
+                continue;
+            }
+            if (history == null) {
+                continue;
+            }
+            HistoryEntry last = null;
+            for (HistoryEntry entry : history.getHistoryEntries()) {
+                if (entry.isActive()) {
+                    last = entry;
+                    break;
+                }
+            }
+            ret.put(file, last);
+        }
+        return ret;
+    }
+
     /**
      * Get a named revision of the specified file.
      * @param parent The directory containing the file
@@ -471,6 +711,8 @@ public final class HistoryGuru {
                 log.log(Level.WARNING,
                     "An error occured while creating cache for " + path + " ("
                     + type + ")", e);
+            } finally {
+                memoryCache.invalidate();
             }
 
             if (verbose) {
@@ -546,20 +788,32 @@ public final class HistoryGuru {
         List<Repository> repos = getReposFromString(repositories);
         HistoryCache cache = historyCache;
         if (cache == null) {
-            if (RuntimeEnvironment.getInstance().storeHistoryCacheInDB()) {
+            RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+            if (env.storeHistoryCacheInDB()) {
                 cache = new JDBCHistoryCache();
                 cache.initialize();
+            } else if (env.storeHistoryCacheInLucene()) {
+                cache = new LuceneHistoryCache();
+                cache.initialize();
             } else {
                 cache = new FileHistoryCache();
             }
         }
-        for (Repository r : repos) {
-            try {
-                cache.clear(r);
-                log.info("History cache for " + r.getDirectoryName() + " cleared.");
-            } catch (HistoryException e) {
-                log.warning("Clearing history cache for repository " +
-                    r.getDirectoryName() + " failed: " + e.getLocalizedMessage());
+        try {
+            for (Repository r : repos) {
+                try {
+                    cache.clear(r);
+                    log.info("History cache for " + r.getDirectoryName()
+                            + " cleared.");
+                } catch (HistoryException e) {
+                    log.warning("Clearing history cache for repository "
+                            + r.getDirectoryName() + " failed: "
+                            + e.getLocalizedMessage());
+                }
+            }
+        } finally {
+            if (cache != historyCache) {
+                cache.close();
             }
         }
         invalidateRepositories(repos);
@@ -658,6 +912,8 @@ public final class HistoryGuru {
      */
     public void invalidateRepositories(Collection<? extends RepositoryInfo> repos)
     {
+        memoryCache.invalidate();
+        List<Repository> old = new ArrayList<Repository>(repositories.values());
         if (repos == null || repos.isEmpty()) {
             repositories.clear();
         } else {
@@ -685,5 +941,34 @@ public final class HistoryGuru {
             }
             repositories = nrep;
         }
+        closeRepositories(old);
+    }
+
+    /**
+     * Release the resources held by the history cache, like open files.
+     * Should be called when the application shuts down.
+     */
+    public void closeHistoryCache() {
+        if (useCache()) {
+            try {
+                historyCache.close();
+            } catch (HistoryException e) {
+                log.log(Level.WARNING, "Failed to close the history cache", e);
+            }
+        }
+    }
+
+    /**
+     * Release the resources held by the repositories, like long-running
+     * processes. Should be called when the application shuts down.
+     */
+    public void closeRepositories() {
+        closeRepositories(repositories.values());
+    }
+
+    private static void closeRepositories(Collection<Repository> repos) {
+        for (Repository r : repos) {
+            r.close();
+        }
     }
 }
@@ -0,0 +1,285 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.history;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Cache of decoded {@link History} objects, so that the history of popular
+ * files does not have to be read from the history cache or the repository
+ * on every request. Entries are evicted in LRU order once the number of
+ * entries or their estimated memory footprint exceeds the configured limit.
+ * <p>
+ * An entry is only used if the file has not been modified, the index has
+ * not been updated and the cache generation has not changed since it was
+ * added. The generation is incremented whenever the history cache is
+ * updated or removed by this process. The cached histories are shared, and
+ * must not be modified.
+ */
+public final class HistoryMemoryCache implements HistoryMemoryCacheMBean {
+
+    /** rough estimate of the memory used by a history entry and its set */
+    private static final long BYTES_PER_ENTRY = 200;
+    /** rough estimate of the memory used by a string besides its chars */
+    private static final long BYTES_PER_STRING = 48;
+
+    private final int maxEntries;
+    private final long maxWeight;
+
+    /* below guarded by cache */
+    private final LinkedHashMap<String, Entry> cache =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long generation;
+
+    private static final class Entry {
+        final History history;
+        final long weight;
+        final long generation;
+        final long lastModified;
+        final long indexTime;
+
+        Entry(History history, long weight, long generation,
+                long lastModified, long indexTime) {
+            this.history = history;
+            this.weight = weight;
+            this.generation = generation;
+            this.lastModified = lastModified;
+            this.indexTime = indexTime;
+        }
+    }
+
+    /**
+     * Create a new cache.
+     *
+     * @param maxEntries the maximum number of cached histories
+     * @param maxWeight the maximum estimated memory in bytes used by the
+     * cached histories
+     */
+    HistoryMemoryCache(int maxEntries, long maxWeight) {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * Check whether the cache is enabled at all.
+     *
+     * @return {@code false} if nothing gets ever cached
+     */
+    boolean isEnabled() {
+        return maxEntries > 0 && maxWeight > 0;
+    }
+
+    /**
+     * Get the current generation of the cache. It must be obtained before
+     * reading a history which is going to be added with
+     * {@link #put(String, boolean, long, long, long, History)}, so that a
+     * history read while the history cache was updated gets discarded.
+     *
+     * @return the generation
+     */
+    long getGeneration() {
+        synchronized (cache) {
+            return generation;
+        }
+    }
+
+    /**
+     * Discard all cached histories, because the history cache has changed.
+     */
+    void invalidate() {
+        synchronized (cache) {
+            generation++;
+            cache.clear();
+            weight = 0;
+        }
+    }
+
+    /**
+     * Get a cached history. A history with the lists of files touched by
+     * each changeset is also used if the lists are not needed.
+     *
+     * @param path the path of the file
+     * @param withFiles whether the lists of files are needed
+     * @param lastModified the time the file was last modified
+     * @param indexTime the time the index was last updated
+     * @return the history, or {@code null} if none is cached or the cached
+     * one is out of date
+     */
+    History get(String path, boolean withFiles, long lastModified,
+            long indexTime) {
+        synchronized (cache) {
+            Entry e = lookup(key(path, withFiles), lastModified, indexTime);
+            if (e == null && !withFiles) {
+                e = lookup(key(path, true), lastModified, indexTime);
+            }
+            if (e == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            return e.history;
+        }
+    }
+
+    private Entry lookup(String key, long lastModified, long indexTime) {
+        Entry e = cache.get(key);
+        if (e != null && (e.generation != generation
+                || e.lastModified != lastModified
+                || e.indexTime != indexTime)) {
+            cache.remove(key);
+            weight -= e.weight;
+            e = null;
+        }
+        return e;
+    }
+
+    /**
+     * Add a history to the cache.
+     *
+     * @param path the path of the file
+     * @param withFiles whether the history has the lists of files touched by
+     * each changeset
+     * @param generation the generation of the cache when the reading of the
+     * history started
+     * @param lastModified the time the file was last modified
+     * @param indexTime the time the index was last updated
+     * @param history the history
+     */
+    void put(String path, boolean withFiles, long generation,
+            long lastModified, long indexTime, History history) {
+        long w = weigh(history);
+        if (w > maxWeight) {
+            return;
+        }
+        String key = key(path, withFiles);
+        synchronized (cache) {
+            if (generation != this.generation) {
+                return;
+            }
+            Entry old = cache.put(key, new Entry(history, w, generation,
+                    lastModified, indexTime));
+            if (old != null) {
+                weight -= old.weight;
+            }
+            weight += w;
+            Iterator<Entry> it = cache.values().iterator();
+            while (cache.size() > maxEntries || weight > maxWeight) {
+                weight -= it.next().weight;
+                it.remove();
+                evictions++;
+            }
+        }
+    }
+
+    private static String key(String path, boolean withFiles) {
+        return withFiles ? path + "\u0000f" : path;
+    }
+
+    /**
+     * Estimate the memory used by a history.
+     */
+    static long weigh(History history) {
+        long w = BYTES_PER_ENTRY;
+        for (HistoryEntry e : history.getHistoryEntries()) {
+            w += BYTES_PER_ENTRY + weigh(e.getRevision())
+                    + weigh(e.getAuthor()) + weigh(e.getTags())
+                    + weigh(e.getMessage());
+            for (String s : e.getFiles()) {
+                w += weigh(s);
+            }
+            for (String s : e.getChangeRequests()) {
+                w += weigh(s);
+            }
+        }
+        return w;
+    }
+
+    private static long weigh(String s) {
+        return s == null ? 0 : BYTES_PER_STRING + 2L * s.length();
+    }
+
+    @Override
+    public long getHits() {
+        synchronized (cache) {
+            return hits;
+        }
+    }
+
+    @Override
+    public long getMisses() {
+        synchronized (cache) {
+            return misses;
+        }
+    }
+
+    @Override
+    public long getEvictions() {
+        synchronized (cache) {
+            return evictions;
+        }
+    }
+
+    @Override
+    public int getSize() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    @Override
+    public long getWeight() {
+        synchronized (cache) {
+            return weight;
+        }
+    }
+
+    @Override
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    @Override
+    public void clear() {
+        invalidate();
+    }
+
+    /**
+     * Get a human readable summary of the cache state, suitable for the
+     * status page.
+     *
+     * @return cache statistics
+     */
+    public String getStatistics() {
+        synchronized (cache) {
+            return "entries: " + cache.size()
+                    + ", size: " + (weight / 1024) + " KB"
+                    + ", hits: " + hits + ", misses: " + misses
+                    + ", evictions: " + evictions;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.history;
+
+/**
+ * Management interface of the {@link HistoryMemoryCache}.
+ */
+public interface HistoryMemoryCacheMBean {
+
+    /**
+     * Get the number of histories served from the cache.
+     * @return the number of hits
+     */
+    long getHits();
+
+    /**
+     * Get the number of histories which had to be read from the history
+     * cache or the repository.
+     * @return the number of misses
+     */
+    long getMisses();
+
+    /**
+     * Get the number of histories removed to make room for others.
+     * @return the number of evictions
+     */
+    long getEvictions();
+
+    /**
+     * Get the number of cached histories.
+     * @return the number of entries
+     */
+    int getSize();
+
+    /**
+     * Get the estimated memory used by the cached histories.
+     * @return the size in bytes
+     */
+    long getWeight();
+
+    /**
+     * Get the maximum estimated memory used by the cached histories.
+     * @return the size limit in bytes
+     */
+    long getMaxWeight();
+
+    /**
+     * Remove all histories from the cache.
+     */
+    void clear();
+}
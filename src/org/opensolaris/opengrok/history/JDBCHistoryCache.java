@@ -26,6 +26,7 @@ package org.opensolaris.opengrok.history;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -35,9 +36,11 @@ import java.sql.Statement;
 import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
@@ -46,6 +49,9 @@ import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import org.opensolaris.opengrok.OpenGrokLogger;
 import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
 import org.opensolaris.opengrok.jdbc.ConnectionManager;
@@ -318,8 +324,14 @@ class JDBCHistoryCache implements HistoryCache {
     @Override
     public void initialize() throws HistoryException {
         try {
-            connectionManager =
-                    new ConnectionManager(jdbcDriverClass, jdbcConnectionURL);
+            RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+            connectionManager = new ConnectionManager(
+                    jdbcDriverClass, jdbcConnectionURL,
+                    env.getDatabaseMaxConnections(),
+                    env.getDatabaseMinIdleConnections(),
+                    env.getDatabaseBorrowTimeout(),
+                    env.getDatabaseIdleTimeout());
+            registerConnectionManager(connectionManager);
             for (int i = 0;; i++) {
                 final ConnectionResource conn =
                         connectionManager.getConnectionResource();
@@ -341,6 +353,26 @@ class JDBCHistoryCache implements HistoryCache {
         }
     }
 
+    /**
+     * Make the statistics of the connection pool available through JMX.
+     * A previously registered pool, e.g. of a cache instance which has been
+     * replaced, is unregistered.
+     */
+    private static void registerConnectionManager(ConnectionManager cm) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(
+                    "org.opensolaris.opengrok:type=HistoryCacheConnectionPool");
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(cm, name);
+        } catch (JMException e) {
+            OpenGrokLogger.getLogger().log(Level.FINE,
+                    "Failed to register the connection pool", e);
+        }
+    }
+
     private static final PreparedQuery IS_DIR_IN_CACHE =
             new PreparedQuery(getQuery("hasCacheForDirectory"));
 
@@ -504,18 +536,112 @@ class JDBCHistoryCache implements HistoryCache {
     private static final PreparedQuery GET_DIR_HISTORY =
             new PreparedQuery(getQuery("getDirHistory"));
 
-    /** Statement that retrieves all the files touched by a given changeset. */
-    private static final PreparedQuery GET_CS_FILES =
-            new PreparedQuery(getQuery("getFilesInChangeset"));
+    /**
+     * The number of changesets whose files are retrieved with a single
+     * {@link #GET_CS_FILES} query.
+     */
+    static final int CS_FILES_BATCH_SIZE = 100;
+
+    /**
+     * Statement that retrieves all the files touched by a batch of
+     * changesets, together with the id of the changeset which touched them.
+     */
+    private static final PreparedQuery GET_CS_FILES = new PreparedQuery(
+            getQuery("getFilesInChangesets").replace("(?)",
+                    parameterList(CS_FILES_BATCH_SIZE)));
+
+    /**
+     * Create a list of {@code n} parameter markers in parentheses.
+     */
+    private static String parameterList(int n) {
+        StringBuilder sb = new StringBuilder("(?");
+        for (int i = 1; i < n; i++) {
+            sb.append(",?");
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * Callback which receives the entries of a history one by one.
+     *
+     * @see #get(File, Repository, boolean, HistoryVisitor)
+     */
+    interface HistoryVisitor {
+        /**
+         * Process the next history entry.
+         *
+         * @param entry the entry
+         * @return {@code true} to continue with the next entry, or
+         * {@code false} to stop reading the history
+         * @throws HistoryException if the entry could not be processed
+         */
+        boolean visit(HistoryEntry entry) throws HistoryException;
+    }
 
     @Override
     public History get(File file, Repository repository, boolean withFiles)
             throws HistoryException {
+        final ArrayList<HistoryEntry> entries = new ArrayList<HistoryEntry>();
+        HistoryVisitor collector = new HistoryVisitor() {
+            @Override
+            public boolean visit(HistoryEntry entry) {
+                entries.add(entry);
+                return true;
+            }
+        };
+        try {
+            for (int i = 0;; i++) {
+                try {
+                    getHistory(file, repository, withFiles, collector);
+                    break;
+                } catch (SQLException sqle) {
+                    entries.clear();
+                    handleSQLException(sqle, i);
+                }
+            }
+        } catch (SQLException sqle) {
+            throw new HistoryException(sqle);
+        }
+        History history = new History();
+        history.setHistoryEntries(entries);
+        return history;
+    }
+
+    /**
+     * Pass the history of a file or directory to a visitor, most recent
+     * entry first, without creating the entire history in memory. If the
+     * files touched by the changesets are requested, they are retrieved for
+     * {@link #CS_FILES_BATCH_SIZE} changesets at a time.
+     *
+     * @param file the file or directory to get the history for
+     * @param repository the repository the file belongs to
+     * @param withFiles whether the entries should include the files touched
+     * by each changeset
+     * @param visitor the visitor which receives the entries, and which may
+     * stop the retrieval of the history at any time
+     * @throws HistoryException if the history could not be retrieved
+     */
+    void get(File file, Repository repository, boolean withFiles,
+            final HistoryVisitor visitor) throws HistoryException {
+        final boolean[] visited = {false};
+        HistoryVisitor tracker = new HistoryVisitor() {
+            @Override
+            public boolean visit(HistoryEntry entry) throws HistoryException {
+                visited[0] = true;
+                return visitor.visit(entry);
+            }
+        };
         try {
             for (int i = 0;; i++) {
                 try {
-                    return getHistory(file, repository, withFiles);
+                    getHistory(file, repository, withFiles, tracker);
+                    return;
                 } catch (SQLException sqle) {
+                    if (visited[0]) {
+                        // can't start over, the visitor would see the
+                        // entries it has already processed once more
+                        throw sqle;
+                    }
                     handleSQLException(sqle, i);
                 }
             }
@@ -525,14 +651,14 @@ class JDBCHistoryCache implements HistoryCache {
     }
 
     /**
-     * Helper for {@link #get(File, Repository)}.
+     * Helper for {@link #get(File, Repository, boolean)} and
+     * {@link #get(File, Repository, boolean, HistoryVisitor)}.
      */
-    private History getHistory(
-            File file, Repository repository, boolean withFiles)
+    private void getHistory(File file, Repository repository,
+            boolean withFiles, HistoryVisitor visitor)
             throws HistoryException, SQLException {
         final String filePath = getSourceRootRelativePath(file);
         final String reposPath = toUnixPath(repository.getDirectoryName());
-        final ArrayList<HistoryEntry> entries = new ArrayList<HistoryEntry>();
         final ConnectionResource conn =
                 connectionManager.getConnectionResource();
         try {
@@ -551,9 +677,13 @@ class JDBCHistoryCache implements HistoryCache {
 
             final PreparedStatement filePS =
                     withFiles ? conn.getStatement(GET_CS_FILES) : null;
+            // The changesets whose files have not been retrieved yet
+            final LinkedHashMap<Integer, HistoryEntry> batch =
+                    new LinkedHashMap<Integer, HistoryEntry>();
 
             try (ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) {
+                boolean more = true;
+                while (more && rs.next()) {
                     // Get the information about a changeset
                     String revision = rs.getString(1);
                     String author = rs.getString(2);
@@ -562,28 +692,64 @@ class JDBCHistoryCache implements HistoryCache {
                     String message = rs.getString(5);
                     HistoryEntry entry = new HistoryEntry(
                                 revision, time, author, tags, message, true);
-                    entries.add(entry);
-
-                    // Fill the list of files touched by the changeset, if
-                    // requested.
-                    if (withFiles) {
-                        int changeset = rs.getInt(6);
-                        filePS.setInt(1, changeset);
-                        try (ResultSet fileRS = filePS.executeQuery()) {
-                            while (fileRS.next()) {
-                                entry.addFile(fileRS.getString(1));
-                            }
-                        }
+
+                    if (!withFiles) {
+                        more = visitor.visit(entry);
+                        continue;
+                    }
+                    // Fill the lists of files touched by the changesets
+                    // once we have a batch of them.
+                    batch.put(rs.getInt(6), entry);
+                    if (batch.size() == CS_FILES_BATCH_SIZE) {
+                        addFiles(filePS, batch);
+                        more = visitAll(batch.values(), visitor);
+                        batch.clear();
                     }
                 }
             }
+            if (!batch.isEmpty()) {
+                addFiles(filePS, batch);
+                visitAll(batch.values(), visitor);
+            }
         } finally {
             connectionManager.releaseConnection(conn);
         }
+    }
 
-        History history = new History();
-        history.setHistoryEntries(entries);
-        return history;
+    /**
+     * Fill the lists of files touched by a batch of changesets.
+     *
+     * @param ps the {@link #GET_CS_FILES} statement
+     * @param batch the entries of the changesets keyed by changeset id, at
+     * most {@link #CS_FILES_BATCH_SIZE} of them
+     */
+    private static void addFiles(PreparedStatement ps,
+            Map<Integer, HistoryEntry> batch) throws SQLException {
+        int i = 1;
+        int id = 0;
+        for (int changeset : batch.keySet()) {
+            id = changeset;
+            ps.setInt(i++, id);
+        }
+        // fill the rest of the list with an id which is already there
+        while (i <= CS_FILES_BATCH_SIZE) {
+            ps.setInt(i++, id);
+        }
+        try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                batch.get(rs.getInt(1)).addFile(rs.getString(2));
+            }
+        }
+    }
+
+    private static boolean visitAll(Collection<HistoryEntry> entries,
+            HistoryVisitor visitor) throws HistoryException {
+        for (HistoryEntry entry : entries) {
+            if (!visitor.visit(entry)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     private static final PreparedQuery GET_REPOSITORY =
@@ -608,8 +774,22 @@ class JDBCHistoryCache implements HistoryCache {
         }
     }
 
-    private static final InsertQuery ADD_CHANGESET =
-            new InsertQuery(getQuery("addChangeset"));
+    private static final PreparedQuery ADD_CHANGESET =
+            new PreparedQuery(getQuery("addChangeset"));
+
+    /**
+     * The number of changesets added to the database in one transaction
+     * when storing history. The rows of each transaction are sent to the
+     * database in batches.
+     */
+    static final int CHANGESETS_PER_COMMIT = 500;
+
+    /**
+     * The number of changesets added in one transaction by this instance.
+     * Only changed by benchmarks, which compare it with one transaction per
+     * changeset.
+     */
+    int changesetsPerCommit = CHANGESETS_PER_COMMIT;
 
     private static final PreparedQuery ADD_DIRCHANGE =
             new PreparedQuery(getQuery("addDirchange"));
@@ -683,69 +863,96 @@ class JDBCHistoryCache implements HistoryCache {
         // their auto-generated identity column can be used as a chronological
         // ordering column. Otherwise, incremental updates will make the
         // identity column unusable for chronological ordering. So therefore
-        // we walk the list backwards.
+        // we walk the list backwards, changesetsPerCommit entries at a time.
         List<HistoryEntry> entries = history.getHistoryEntries();
-        for (ListIterator<HistoryEntry> it =
-                entries.listIterator(entries.size());
-                it.hasPrevious();) {
-            HistoryEntry entry = it.previous();
-            retry:
+        for (int end = entries.size(); end > 0;
+                end -= changesetsPerCommit) {
+            List<HistoryEntry> group = entries.subList(
+                    Math.max(0, end - changesetsPerCommit), end);
             for (int i = 0;; i++) {
                 try {
-                    addChangeset.setString(2, entry.getRevision());
-                    addChangeset.setInt(3, authors.get(entry.getAuthor()));
-                    if (entry.getTags() != null) {
-                        addChangeset.setInt(4, tags.get(entry.getTags()));
-                    } else {
-                        addChangeset.setNull(4, java.sql.Types.INTEGER);
-                    }
-                    addChangeset.setTimestamp(5,
-                            new Timestamp(entry.getDate().getTime()));
-                    String msg = entry.getMessage();
-                    // Truncate the message if it can't fit in a VARCHAR
-                    // (bug #11663).
-                    if (msg.length() > MAX_MESSAGE_LENGTH) {
-                        msg = truncate(msg, MAX_MESSAGE_LENGTH);
-                    }
-                    addChangeset.setString(6, msg);
-                    int changesetId = nextChangesetId.getAndIncrement();
-                    addChangeset.setInt(7, changesetId);
-                    addChangeset.executeUpdate();
-
-                    // Add one row for each file in FILECHANGES, and one row
-                    // for each path element of the directories in DIRCHANGES.
-                    Set<String> addedDirs = new HashSet<String>();
-                    addDirchange.setInt(1, changesetId);
-                    addFilechange.setInt(1, changesetId);
-                    for (String file : entry.getFiles()) {
-                        String fullPath = toUnixPath(file);
-                        int fileId = files.get(fullPath);
-                        addFilechange.setInt(2, fileId);
-                        addFilechange.executeUpdate();
-                        String[] pathElts = splitPath(fullPath);
-                        for (int j = 0; j < pathElts.length; j++) {
-                            String dir = unsplitPath(pathElts, j);
-                            // Only add to DIRCHANGES if we haven't already
-                            // added this dir/changeset combination.
-                            if (!addedDirs.contains(dir)) {
-                                addDirchange.setInt(2, directories.get(dir));
-                                addDirchange.executeUpdate();
-                                addedDirs.add(dir);
-                            }
-                        }
-                    }
-
+                    addChangesets(group, authors, tags, directories, files,
+                            addChangeset, addDirchange, addFilechange);
                     conn.commit();
-
-                    // Successfully added the entry. Break out of retry loop.
-                    break retry;
-
+                    // Successfully added the entries. Break out of retry loop.
+                    break;
                 } catch (SQLException sqle) {
                     handleSQLException(sqle, i);
                     conn.rollback();
+                    addChangeset.clearBatch();
+                    addDirchange.clearBatch();
+                    addFilechange.clearBatch();
+                }
+            }
+        }
+    }
+
+    /**
+     * Add a group of changesets to the database, without committing them.
+     * The changesets are added in chronological order, that is, from the
+     * end of the list to its beginning.
+     *
+     * @param entries the entries of the changesets, in reverse
+     * chronological order
+     * @param addChangeset the {@link #ADD_CHANGESET} statement, with the
+     * repository id filled in
+     */
+    private void addChangesets(List<HistoryEntry> entries,
+            Map<String, Integer> authors, Map<String, Integer> tags,
+            Map<String, Integer> directories, Map<String, Integer> files,
+            PreparedStatement addChangeset, PreparedStatement addDirchange,
+            PreparedStatement addFilechange) throws SQLException {
+        for (ListIterator<HistoryEntry> it =
+                entries.listIterator(entries.size());
+                it.hasPrevious();) {
+            HistoryEntry entry = it.previous();
+            addChangeset.setString(2, entry.getRevision());
+            addChangeset.setInt(3, authors.get(entry.getAuthor()));
+            if (entry.getTags() != null) {
+                addChangeset.setInt(4, tags.get(entry.getTags()));
+            } else {
+                addChangeset.setNull(4, java.sql.Types.INTEGER);
+            }
+            addChangeset.setTimestamp(5,
+                    new Timestamp(entry.getDate().getTime()));
+            String msg = entry.getMessage();
+            // Truncate the message if it can't fit in a VARCHAR
+            // (bug #11663).
+            if (msg.length() > MAX_MESSAGE_LENGTH) {
+                msg = truncate(msg, MAX_MESSAGE_LENGTH);
+            }
+            addChangeset.setString(6, msg);
+            int changesetId = nextChangesetId.getAndIncrement();
+            addChangeset.setInt(7, changesetId);
+            addChangeset.addBatch();
+
+            // Add one row for each file in FILECHANGES, and one row
+            // for each path element of the directories in DIRCHANGES.
+            Set<String> addedDirs = new HashSet<String>();
+            addDirchange.setInt(1, changesetId);
+            addFilechange.setInt(1, changesetId);
+            for (String file : entry.getFiles()) {
+                String fullPath = toUnixPath(file);
+                int fileId = files.get(fullPath);
+                addFilechange.setInt(2, fileId);
+                addFilechange.addBatch();
+                String[] pathElts = splitPath(fullPath);
+                for (int j = 0; j < pathElts.length; j++) {
+                    String dir = unsplitPath(pathElts, j);
+                    // Only add to DIRCHANGES if we haven't already
+                    // added this dir/changeset combination.
+                    if (addedDirs.add(dir)) {
+                        addDirchange.setInt(2, directories.get(dir));
+                        addDirchange.addBatch();
+                    }
                 }
             }
         }
+
+        // The changesets must be there before the rows referencing them.
+        addChangeset.executeBatch();
+        addFilechange.executeBatch();
+        addDirchange.executeBatch();
     }
 
     /**
@@ -1188,6 +1395,126 @@ class JDBCHistoryCache implements HistoryCache {
         return map;
     }
 
+    /**
+     * The number of files whose last changes are retrieved with a single
+     * {@link #GET_LAST_FILE_CHANGES} query.
+     */
+    static final int LAST_CHANGES_BATCH_SIZE = 100;
+
+    /**
+     * Statement that gets the most recent changeset of each of a batch of
+     * files in the same directory.
+     */
+    private static final PreparedQuery GET_LAST_FILE_CHANGES =
+            new PreparedQuery(getQuery("getLastFileChanges").replace("(?)",
+                    parameterList(LAST_CHANGES_BATCH_SIZE)));
+
+    @Override
+    public Map<File, HistoryEntry> getLastHistoryEntries(
+            Collection<File> files, Repository repository)
+            throws HistoryException {
+        // Group the files by the directory they live in, so that the files
+        // of a directory can be looked up together.
+        final Map<String, Map<String, File>> dirs =
+                new LinkedHashMap<String, Map<String, File>>();
+        for (File file : files) {
+            String path = getSourceRootRelativePath(file);
+            String dir = getParentPath(path);
+            Map<String, File> names = dirs.get(dir);
+            if (names == null) {
+                names = new LinkedHashMap<String, File>();
+                dirs.put(dir, names);
+            }
+            names.put(getBaseName(path), file);
+        }
+        try {
+            for (int i = 0;; i++) {
+                try {
+                    return getLastEntries(dirs, repository);
+                } catch (SQLException sqle) {
+                    handleSQLException(sqle, i);
+                }
+            }
+        } catch (SQLException sqle) {
+            throw new HistoryException(sqle);
+        }
+    }
+
+    /**
+     * Helper for {@link #getLastHistoryEntries(Collection, Repository)}.
+     *
+     * @param dirs the files to look up, keyed by the path of their
+     * directory and then by their names
+     * @param repository the repository in which the files live
+     */
+    private Map<File, HistoryEntry> getLastEntries(
+            Map<String, Map<String, File>> dirs, Repository repository)
+            throws SQLException {
+        final Map<File, HistoryEntry> map = new HashMap<File, HistoryEntry>();
+        final ConnectionResource conn =
+                connectionManager.getConnectionResource();
+        try {
+            PreparedStatement ps = conn.getStatement(GET_LAST_FILE_CHANGES);
+            ps.setString(1, toUnixPath(repository.getDirectoryName()));
+            for (Map.Entry<String, Map<String, File>> dir : dirs.entrySet()) {
+                ps.setString(2, dir.getKey());
+                Map<String, File> names = dir.getValue();
+                List<String> batch =
+                        new ArrayList<String>(LAST_CHANGES_BATCH_SIZE);
+                for (Map.Entry<String, File> name : names.entrySet()) {
+                    // files without history in the cache have no entry
+                    map.put(name.getValue(), null);
+                    batch.add(name.getKey());
+                    if (batch.size() == LAST_CHANGES_BATCH_SIZE) {
+                        addLastEntries(ps, batch, names, map);
+                        batch.clear();
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    addLastEntries(ps, batch, names, map);
+                }
+            }
+        } finally {
+            connectionManager.releaseConnection(conn);
+        }
+        return map;
+    }
+
+    /**
+     * Look up the last changes of a batch of files in the same directory.
+     *
+     * @param ps the {@link #GET_LAST_FILE_CHANGES} statement with the
+     * repository and directory parameters set
+     * @param batch the names of the files, at most
+     * {@link #LAST_CHANGES_BATCH_SIZE} of them
+     * @param files the files of the directory keyed by name
+     * @param map the map to add the entries to
+     */
+    private static void addLastEntries(PreparedStatement ps,
+            List<String> batch, Map<String, File> files,
+            Map<File, HistoryEntry> map) throws SQLException {
+        int i = 3;
+        for (String name : batch) {
+            ps.setString(i++, name);
+        }
+        // fill the rest of the list with a name which is already there
+        String last = batch.get(batch.size() - 1);
+        while (i < 3 + LAST_CHANGES_BATCH_SIZE) {
+            ps.setString(i++, last);
+        }
+        try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                String revision = rs.getString(2);
+                String author = rs.getString(3);
+                String tags = rs.getString(4);
+                Timestamp time = rs.getTimestamp(5);
+                String message = rs.getString(6);
+                map.put(files.get(rs.getString(1)), new HistoryEntry(
+                        revision, time, author, tags, message, true));
+            }
+        }
+    }
+
     @Override
     public void clear(Repository repository) throws HistoryException {
         try {
@@ -1223,8 +1550,16 @@ class JDBCHistoryCache implements HistoryCache {
         }
     }
 
+    @Override
+    public void close() {
+        if (connectionManager != null) {
+            connectionManager.closeIdleConnections();
+        }
+    }
+
     @Override
     public String getInfo() {
-        return info;
+        return connectionManager == null ? info
+                : info + "; " + connectionManager.getStatistics();
     }
 }
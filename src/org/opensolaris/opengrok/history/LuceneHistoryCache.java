@@ -0,0 +1,603 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.PackedLongDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TotalHitCountCollector;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+import org.opensolaris.opengrok.search.SearchEngine;
+
+/**
+ * History cache which stores the changesets of all repositories as
+ * documents in a dedicated Lucene index below the data root.
+ * <p>
+ * Each changeset document has the paths of the files it touches and of all
+ * their parent directories as indexed terms, so that the history of a file
+ * or directory, optionally filtered by author, is a term query. The date of
+ * a changeset and its position in the order the changesets were stored are
+ * indexed as doc values for sorting. Like {@code JDBCHistoryCache}, only
+ * repositories which can produce the history of a whole directory at once
+ * are supported.
+ */
+class LuceneHistoryCache implements HistoryCache {
+
+    /** name of the directory below the data root holding the index */
+    static final String INDEX_DIR = "historyindex";
+
+    /** path of the repository relative to the source root */
+    private static final String REPOSITORY = "repository";
+    private static final String REVISION = "revision";
+    private static final String AUTHOR = "author";
+    private static final String TAGS = "tags";
+    private static final String DATE = "date";
+    private static final String MESSAGE = "message";
+    private static final String CHANGE_REQUEST = "changerequest";
+    /** paths of the files touched by the changeset */
+    private static final String FILE = "file";
+    /** paths of the directories containing the touched files */
+    private static final String DIR = "dir";
+    /**
+     * the position of the changeset in the order the changesets were
+     * stored, the higher the more recent
+     */
+    private static final String SEQ = "seq";
+
+    /** the stored fields needed if the touched files are not requested */
+    private static final Set<String> FIELDS_WITHOUT_FILES =
+            new HashSet<String>(Arrays.asList(REVISION, AUTHOR, TAGS, DATE,
+                MESSAGE, CHANGE_REQUEST));
+
+    private Directory directory;
+    /* below guarded by this */
+    private SearcherManager searcherManager;
+
+    @Override
+    public void initialize() throws HistoryException {
+        File dir = new File(
+                RuntimeEnvironment.getInstance().getDataRootFile(), INDEX_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new HistoryException("Failed to create " + dir);
+        }
+        try {
+            directory = FSDirectory.open(dir);
+        } catch (IOException e) {
+            throw new HistoryException("Failed to open " + dir, e);
+        }
+    }
+
+    @Override
+    public boolean supportsRepository(Repository repository) {
+        return repository.hasHistoryForDirectories();
+    }
+
+    /**
+     * Get the searcher manager for the index, and make sure its searchers
+     * see the latest committed changes.
+     *
+     * @return the searcher manager, or {@code null} if nothing has been
+     * stored yet
+     */
+    private synchronized SearcherManager getSearcherManager()
+            throws IOException {
+        if (searcherManager == null) {
+            if (!DirectoryReader.indexExists(directory)) {
+                return null;
+            }
+            searcherManager = new SearcherManager(directory, null);
+        }
+        searcherManager.maybeRefresh();
+        return searcherManager;
+    }
+
+    private IndexWriter openWriter() throws IOException {
+        IndexWriterConfig iwc = new IndexWriterConfig(
+                SearchEngine.LUCENE_VERSION, new KeywordAnalyzer());
+        iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
+        return new IndexWriter(directory, iwc);
+    }
+
+    /**
+     * Get a path relative to the source root, with '/' as separator.
+     */
+    private static String getPath(File file) throws HistoryException {
+        try {
+            return RuntimeEnvironment.getInstance()
+                    .getPathRelativeToSourceRoot(file, 0)
+                    .replace(File.separatorChar, '/');
+        } catch (IOException e) {
+            throw new HistoryException("Failed to get path relative to "
+                    + "source root for " + file, e);
+        }
+    }
+
+    private static String getPath(Repository repository)
+            throws HistoryException {
+        return getPath(new File(repository.getDirectoryName()));
+    }
+
+    /**
+     * Create the query matching the changesets touching a file, or any of
+     * the files below a directory.
+     */
+    private static Query getPathQuery(File file, Repository repository)
+            throws HistoryException {
+        String path = getPath(file);
+        String reposPath = getPath(repository);
+        if (path.equals(reposPath)) {
+            return new TermQuery(new Term(REPOSITORY, reposPath));
+        }
+        return new TermQuery(
+                new Term(file.isDirectory() ? DIR : FILE, path));
+    }
+
+    private static Sort byField(String field) {
+        // the doc values comparator for INT uses the full 64 bit values
+        SortField sf = new SortField(field, SortField.Type.INT, true);
+        sf.setUseIndexValues(true);
+        return new Sort(sf);
+    }
+
+    /**
+     * Create a history entry from a changeset document.
+     */
+    private static HistoryEntry toEntry(Document doc) {
+        long time = doc.getField(DATE).numericValue().longValue();
+        HistoryEntry entry = new HistoryEntry(doc.get(REVISION),
+                new Date(time), doc.get(AUTHOR), doc.get(TAGS),
+                doc.get(MESSAGE), true);
+        for (String cr : doc.getValues(CHANGE_REQUEST)) {
+            entry.addChangeRequest(cr);
+        }
+        for (String file : doc.getValues(FILE)) {
+            entry.addFile(file);
+        }
+        return entry;
+    }
+
+    /**
+     * Get the changesets matching a query.
+     *
+     * @param query the query
+     * @param sort the order of the changesets
+     * @param offset the number of changesets to skip
+     * @param count the maximum number of changesets to return, or a
+     * negative number to return all of them
+     * @param withFiles whether to include the files touched by the changesets
+     * @return the changesets
+     */
+    private List<HistoryEntry> search(Query query, Sort sort, int offset,
+            int count, boolean withFiles) throws IOException {
+        List<HistoryEntry> entries = new ArrayList<HistoryEntry>();
+        SearcherManager sm = getSearcherManager();
+        if (sm == null) {
+            return entries;
+        }
+        IndexSearcher searcher = sm.acquire();
+        try {
+            int n;
+            if (count < 0) {
+                TotalHitCountCollector counter = new TotalHitCountCollector();
+                searcher.search(query, counter);
+                n = counter.getTotalHits();
+            } else {
+                n = offset + count;
+            }
+            if (n <= offset) {
+                return entries;
+            }
+            ScoreDoc[] hits = searcher.search(query, null, n, sort).scoreDocs;
+            for (int i = offset; i < hits.length; i++) {
+                Document doc = withFiles ? searcher.doc(hits[i].doc)
+                        : searcher.doc(hits[i].doc, FIELDS_WITHOUT_FILES);
+                entries.add(toEntry(doc));
+            }
+        } finally {
+            sm.release(searcher);
+        }
+        return entries;
+    }
+
+    @Override
+    public History get(File file, Repository repository, boolean withFiles)
+            throws HistoryException {
+        try {
+            return new History(search(getPathQuery(file, repository),
+                    byField(SEQ), 0, -1, withFiles));
+        } catch (IOException e) {
+            throw new HistoryException(
+                    "Failed to read the history of " + file, e);
+        }
+    }
+
+    /**
+     * Get the most recent changesets touching the files below a directory,
+     * by date.
+     *
+     * @param file the file or directory to get the changesets for
+     * @param repository the repository the file belongs to
+     * @param author only return the changesets of this author, or
+     * {@code null} to return the changesets of all authors
+     * @param offset the number of changesets to skip
+     * @param count the maximum number of changesets to return
+     * @return the changesets, most recent first, without the files they touch
+     * @throws HistoryException if the index could not be read
+     */
+    History getLatestChanges(File file, Repository repository, String author,
+            int offset, int count) throws HistoryException {
+        Query query = getPathQuery(file, repository);
+        if (author != null) {
+            BooleanQuery bq = new BooleanQuery();
+            bq.add(query, BooleanClause.Occur.MUST);
+            bq.add(new TermQuery(new Term(AUTHOR, author)),
+                    BooleanClause.Occur.MUST);
+            query = bq;
+        }
+        try {
+            return new History(search(query, byField(DATE), offset,
+                    Math.max(0, count), false));
+        } catch (IOException e) {
+            throw new HistoryException(
+                    "Failed to read the history of " + file, e);
+        }
+    }
+
+    @Override
+    public synchronized void store(History history, Repository repository)
+            throws HistoryException {
+        String reposPath = getPath(repository);
+        try {
+            long seq = getLatestSeq(new MatchAllDocsQuery());
+            IndexWriter writer = openWriter();
+            try {
+                // getHistoryEntries() returns the most recent changeset
+                // first, but the oldest one must get the lowest number
+                List<HistoryEntry> entries = history.getHistoryEntries();
+                for (ListIterator<HistoryEntry> it =
+                        entries.listIterator(entries.size());
+                        it.hasPrevious();) {
+                    writer.addDocument(
+                            createDocument(it.previous(), reposPath, ++seq));
+                }
+                writer.commit();
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            throw new HistoryException(
+                    "Failed to store the history of " + reposPath, e);
+        }
+    }
+
+    /**
+     * Get the number of the most recently stored changeset matching a query.
+     *
+     * @return the number, or {@code 0} if there is no such changeset
+     */
+    private long getLatestSeq(Query query) throws IOException {
+        SearcherManager sm = getSearcherManager();
+        if (sm == null) {
+            return 0;
+        }
+        IndexSearcher searcher = sm.acquire();
+        try {
+            ScoreDoc[] hits = searcher.search(query, null, 1, byField(SEQ))
+                    .scoreDocs;
+            if (hits.length == 0) {
+                return 0;
+            }
+            return searcher.doc(hits[0].doc, Collections.singleton(SEQ))
+                    .getField(SEQ).numericValue().longValue();
+        } finally {
+            sm.release(searcher);
+        }
+    }
+
+    private static Document createDocument(HistoryEntry entry,
+            String reposPath, long seq) {
+        Document doc = new Document();
+        doc.add(new StringField(REPOSITORY, reposPath, Field.Store.NO));
+        doc.add(new StoredField(REVISION, entry.getRevision()));
+        if (entry.getAuthor() != null) {
+            doc.add(new StringField(AUTHOR, entry.getAuthor(),
+                    Field.Store.YES));
+        }
+        if (entry.getTags() != null) {
+            doc.add(new StoredField(TAGS, entry.getTags()));
+        }
+        long time = entry.getDate().getTime();
+        doc.add(new StoredField(DATE, time));
+        doc.add(new PackedLongDocValuesField(DATE, time));
+        if (entry.getMessage() != null) {
+            doc.add(new StoredField(MESSAGE, entry.getMessage()));
+        }
+        for (String cr : entry.getChangeRequests()) {
+            doc.add(new StoredField(CHANGE_REQUEST, cr));
+        }
+        doc.add(new StoredField(SEQ, seq));
+        doc.add(new PackedLongDocValuesField(SEQ, seq));
+
+        Set<String> dirs = new HashSet<String>();
+        for (String file : entry.getFiles()) {
+            String path = file.replace(File.separatorChar, '/');
+            doc.add(new StringField(FILE, path, Field.Store.YES));
+            for (int i = path.lastIndexOf('/'); i > 0;
+                    i = path.lastIndexOf('/', i - 1)) {
+                if (!dirs.add(path.substring(0, i))) {
+                    // the parents have been added as well
+                    break;
+                }
+            }
+        }
+        for (String dir : dirs) {
+            doc.add(new StringField(DIR, dir, Field.Store.NO));
+        }
+        return doc;
+    }
+
+    @Override
+    public synchronized void optimize() throws HistoryException {
+        try {
+            if (!DirectoryReader.indexExists(directory)) {
+                return;
+            }
+            IndexWriter writer = openWriter();
+            try {
+                writer.forceMerge(1);
+                writer.commit();
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            throw new HistoryException("Failed to optimize the history index",
+                    e);
+        }
+    }
+
+    @Override
+    public boolean hasCacheForDirectory(File directory, Repository repository)
+            throws HistoryException {
+        try {
+            return !search(getPathQuery(directory, repository), byField(SEQ),
+                    0, 1, false).isEmpty();
+        } catch (IOException e) {
+            throw new HistoryException(
+                    "Failed to read the history of " + directory, e);
+        }
+    }
+
+    @Override
+    public String getLatestCachedRevision(Repository repository)
+            throws HistoryException {
+        try {
+            List<HistoryEntry> latest = search(
+                    new TermQuery(new Term(REPOSITORY, getPath(repository))),
+                    byField(SEQ), 0, 1, false);
+            return latest.isEmpty() ? null : latest.get(0).getRevision();
+        } catch (IOException e) {
+            throw new HistoryException("Failed to read the history of "
+                    + repository.getDirectoryName(), e);
+        }
+    }
+
+    /**
+     * Get the last modified times for all files and subdirectories in the
+     * specified directory. The children are found by enumerating the
+     * indexed paths below the directory, and the date of the most recent
+     * changeset is looked up for each of them.
+     */
+    @Override
+    public Map<String, Date> getLastModifiedTimes(File dir,
+            Repository repository) throws HistoryException {
+        Map<String, Date> times = new HashMap<String, Date>();
+        String prefix = getPath(dir) + "/";
+        try {
+            SearcherManager sm = getSearcherManager();
+            if (sm == null) {
+                return times;
+            }
+            IndexSearcher searcher = sm.acquire();
+            try {
+                addLastModifiedTimes(searcher, FILE, prefix, times);
+                addLastModifiedTimes(searcher, DIR, prefix, times);
+            } finally {
+                sm.release(searcher);
+            }
+        } catch (IOException e) {
+            throw new HistoryException(
+                    "Failed to read the history of " + dir, e);
+        }
+        return times;
+    }
+
+    /**
+     * Add the dates of the most recent changesets touching the children of
+     * a directory, whose paths are indexed in the given field.
+     */
+    private static void addLastModifiedTimes(IndexSearcher searcher,
+            String field, String prefix, Map<String, Date> times)
+            throws IOException {
+        Terms terms = MultiFields.getTerms(searcher.getIndexReader(), field);
+        if (terms == null) {
+            return;
+        }
+        BytesRef prefixBytes = new BytesRef(prefix);
+        TermsEnum te = terms.iterator(null);
+        if (te.seekCeil(prefixBytes) == TermsEnum.SeekStatus.END) {
+            return;
+        }
+        Sort sort = byField(SEQ);
+        BytesRef term = te.term();
+        while (term != null && StringHelper.startsWith(term, prefixBytes)) {
+            String path = term.utf8ToString();
+            String name = path.substring(prefix.length());
+            int slash = name.indexOf('/');
+            if (slash >= 0) {
+                // not an immediate child, so skip the whole subtree of the
+                // child by seeking past its paths ('0' follows '/')
+                if (te.seekCeil(new BytesRef(prefix + name.substring(0, slash)
+                        + '0')) == TermsEnum.SeekStatus.END) {
+                    return;
+                }
+                term = te.term();
+                continue;
+            }
+            // there are no hits if all the changesets have been deleted
+            ScoreDoc[] hits = searcher.search(
+                    new TermQuery(new Term(field, path)), null, 1, sort)
+                    .scoreDocs;
+            if (hits.length > 0) {
+                IndexableField date = searcher.doc(hits[0].doc,
+                        Collections.singleton(DATE)).getField(DATE);
+                times.put(name, new Date(date.numericValue().longValue()));
+            }
+            term = te.next();
+        }
+    }
+
+    /**
+     * Get the most recent changeset touching each of the given files. All
+     * the files are looked up with the same searcher, and only the most
+     * recently stored changeset matching each file is loaded.
+     */
+    @Override
+    public Map<File, HistoryEntry> getLastHistoryEntries(
+            Collection<File> files, Repository repository)
+            throws HistoryException {
+        Map<File, HistoryEntry> map = new HashMap<File, HistoryEntry>();
+        try {
+            SearcherManager sm = getSearcherManager();
+            if (sm == null) {
+                for (File file : files) {
+                    map.put(file, null);
+                }
+                return map;
+            }
+            IndexSearcher searcher = sm.acquire();
+            try {
+                Sort sort = byField(SEQ);
+                for (File file : files) {
+                    ScoreDoc[] hits = searcher.search(
+                            new TermQuery(new Term(FILE, getPath(file))),
+                            null, 1, sort).scoreDocs;
+                    map.put(file, hits.length == 0 ? null : toEntry(
+                            searcher.doc(hits[0].doc, FIELDS_WITHOUT_FILES)));
+                }
+            } finally {
+                sm.release(searcher);
+            }
+        } catch (IOException e) {
+            throw new HistoryException("Failed to read the history of "
+                    + repository.getDirectoryName(), e);
+        }
+        return map;
+    }
+
+    @Override
+    public synchronized void clear(Repository repository)
+            throws HistoryException {
+        String reposPath = getPath(repository);
+        try {
+            if (!DirectoryReader.indexExists(directory)) {
+                return;
+            }
+            IndexWriter writer = openWriter();
+            try {
+                writer.deleteDocuments(new Term(REPOSITORY, reposPath));
+                writer.commit();
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            throw new HistoryException(
+                    "Failed to clear the history of " + reposPath, e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws HistoryException {
+        try {
+            if (searcherManager != null) {
+                searcherManager.close();
+                searcherManager = null;
+            }
+        } catch (IOException e) {
+            throw new HistoryException("Failed to close the history index", e);
+        } finally {
+            try {
+                if (directory != null) {
+                    directory.close();
+                    directory = null;
+                }
+            } catch (IOException e) {
+                throw new HistoryException(
+                        "Failed to close the history index", e);
+            }
+        }
+    }
+
+    @Override
+    public String getInfo() {
+        return getClass().getSimpleName();
+    }
+}
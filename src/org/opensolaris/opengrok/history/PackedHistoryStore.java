@@ -0,0 +1,498 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.history;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The history of all files of a repository, packed into a single file. Each
+ * changeset is stored once, and an index maps the paths of the files to the
+ * changesets which touched them. This replaces one cache file per source
+ * file, which made the first cache build of a large repository take a lot
+ * of file system metadata operations.
+ * <p>
+ * The file holds a header followed by one or more segments. The header
+ * contains {@link #MAGIC}, the version, a generation number that changes
+ * whenever the file is rewritten, the length of the valid part of the file
+ * and the time the store was last synchronized with the repository. A
+ * segment holds changeset records (each prefixed with its length), an index
+ * with the revision of the most recent changeset of the segment and the
+ * positions of the records of each path, and a trailer with the positions
+ * of the records and of the index, so that the segments can be walked from
+ * the end of the file.
+ * <p>
+ * A full store writes a temporary file with a single segment and renames
+ * it. An incremental update appends a segment with the new changesets and
+ * then updates the length in the header, so that readers never see a
+ * partially written segment. When there are too many segments, the file is
+ * compacted into one segment. Readers keep the index in memory, and only
+ * read the segments appended since they last looked at the file.
+ */
+final class PackedHistoryStore {
+
+    /** name of the store file in the history cache directory of a repository */
+    static final String FILE_NAME = ".history.pack";
+    static final byte[] MAGIC = {'O', 'G', 'H', 'P'};
+    static final int VERSION = 1;
+    /** the number of segments which triggers a compaction when appending */
+    static final int MAX_SEGMENTS = 32;
+    /** position of the length and the synchronization time in the header */
+    private static final int LENGTH_POS = MAGIC.length + 1 + 8;
+    /** size of the header: magic, version, generation, length and time */
+    private static final int HEADER_SIZE = LENGTH_POS + 8 + 8;
+    /** size of a trailer: positions of the records and the index, magic */
+    private static final int TRAILER_SIZE = 8 + 8 + MAGIC.length;
+
+    private final File file;
+    /** the index of the file as last read, or {@code null} */
+    private Index index;
+
+    /** the header of a store file */
+    private static final class Header {
+        final long generation;
+        final long length;
+        final long synced;
+
+        Header(long generation, long length, long synced) {
+            this.generation = generation;
+            this.length = length;
+            this.synced = synced;
+        }
+    }
+
+    /** the in-memory index of a store file */
+    private static final class Index {
+        final long generation;
+        final long length;
+        /** the revision of the most recent changeset */
+        final String revision;
+        /** start and end of the records of each segment, most recent first */
+        final List<long[]> segments;
+        final Map<String, long[]> paths;
+
+        Index(long generation, long length, String revision,
+                List<long[]> segments, Map<String, long[]> paths) {
+            this.generation = generation;
+            this.length = length;
+            this.revision = revision;
+            this.segments = segments;
+            this.paths = paths;
+        }
+    }
+
+    /**
+     * Create an object to access a store file.
+     *
+     * @param file the store file, which does not have to exist
+     */
+    PackedHistoryStore(File file) {
+        this.file = file;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    boolean exists() {
+        return file.isFile();
+    }
+
+    /**
+     * Replace the content of the store.
+     *
+     * @param entries the changesets of the repository, most recent first,
+     * with the paths of the files they touched relative to the source root
+     * @throws IOException if the store could not be written
+     */
+    synchronized void write(List<HistoryEntry> entries) throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create cache directory '"
+                    + dir + "'.");
+        }
+        File tmp = File.createTempFile("oghist", null, dir);
+        try {
+            try (OutputStream out = new BufferedOutputStream(
+                    new FileOutputStream(tmp))) {
+                DataOutputStream header = new DataOutputStream(out);
+                header.write(MAGIC);
+                header.writeByte(VERSION);
+                header.writeLong(System.nanoTime() ^ tmp.getName().hashCode());
+                // the length is filled in below
+                header.writeLong(0);
+                header.writeLong(System.currentTimeMillis());
+                header.flush();
+                writeSegment(out, HEADER_SIZE, entries);
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+                raf.seek(LENGTH_POS);
+                raf.writeLong(raf.length());
+            }
+            if (!tmp.renameTo(file)) {
+                if (!file.delete() || !tmp.renameTo(file)) {
+                    throw new IOException("Failed to rename " + tmp
+                            + " to " + file);
+                }
+            }
+            index = null;
+        } finally {
+            if (tmp.exists() && !tmp.delete()) {
+                tmp.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Add changesets more recent than the ones in the store, and mark the
+     * store as synchronized with the repository. If the store does not
+     * exist, it is created.
+     *
+     * @param entries the new changesets, most recent first, which may be
+     * empty
+     * @throws IOException if the store could not be updated
+     */
+    synchronized void append(List<HistoryEntry> entries) throws IOException {
+        if (!exists()) {
+            write(entries);
+            return;
+        }
+        List<HistoryEntry> all = null;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            Index current = getIndex(raf);
+            long length = current.length;
+            if (entries.isEmpty()) {
+                raf.seek(LENGTH_POS + 8);
+                raf.writeLong(System.currentTimeMillis());
+                return;
+            }
+            if (current.segments.size() >= MAX_SEGMENTS) {
+                all = new ArrayList<HistoryEntry>(entries);
+                all.addAll(readAll(raf, current));
+            } else {
+                // drop whatever an interrupted update may have left behind
+                raf.setLength(length);
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                writeSegment(bytes, length, entries);
+                raf.seek(length);
+                raf.write(bytes.toByteArray());
+                raf.getFD().sync();
+                raf.seek(LENGTH_POS);
+                raf.writeLong(length + bytes.size());
+                raf.writeLong(System.currentTimeMillis());
+            }
+        }
+        if (all != null) {
+            write(all);
+        }
+    }
+
+    /**
+     * Rewrite the store as a single segment, if it has more than one.
+     *
+     * @throws IOException if the store could not be rewritten
+     */
+    synchronized void compact() throws IOException {
+        if (!exists()) {
+            return;
+        }
+        List<HistoryEntry> all;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            Index current = getIndex(raf);
+            if (current.segments.size() < 2) {
+                return;
+            }
+            all = readAll(raf, current);
+        }
+        write(all);
+    }
+
+    /**
+     * Get the revision of the most recent changeset in the store.
+     *
+     * @return the revision, or {@code null} if the store does not exist or
+     * the changesets have no revisions
+     * @throws IOException if the store could not be read
+     */
+    String getLatestRevision() throws IOException {
+        if (!exists()) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return getIndex(raf).revision;
+        }
+    }
+
+    /**
+     * Get the history of a file from the store.
+     *
+     * @param path the path of the file relative to the source root
+     * @param lastModified the time the file was last modified
+     * @param withFiles whether the entries should include the files touched
+     * by each changeset
+     * @return the history entries of the file, most recent first, or
+     * {@code null} if the store does not know the file, or the file was
+     * modified after the store was last synchronized with the repository
+     * @throws IOException if the store could not be read
+     */
+    List<HistoryEntry> get(String path, long lastModified, boolean withFiles)
+            throws IOException {
+        if (!exists()) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (lastModified > readHeader(raf).synced) {
+                return null;
+            }
+            long[] offsets = getIndex(raf).paths.get(path);
+            if (offsets == null) {
+                return null;
+            }
+            List<HistoryEntry> entries =
+                    new ArrayList<HistoryEntry>(offsets.length);
+            for (long offset : offsets) {
+                raf.seek(offset);
+                entries.add(readRecord(raf, withFiles));
+            }
+            return entries;
+        }
+    }
+
+    /**
+     * Remove the store.
+     *
+     * @return {@code false} if the store exists but could not be removed
+     */
+    synchronized boolean delete() {
+        index = null;
+        return !file.exists() || file.delete();
+    }
+
+    /**
+     * Write a segment.
+     *
+     * @param out where to write the segment
+     * @param start the position of the segment in the file
+     * @param entries the changesets of the segment, most recent first
+     */
+    private static void writeSegment(OutputStream out, long start,
+            List<HistoryEntry> entries) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        Map<String, List<Long>> paths =
+                new LinkedHashMap<String, List<Long>>();
+        long pos = start;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+        for (HistoryEntry entry : entries) {
+            bytes.reset();
+            HistoryFormat.writeEntry(record, entry);
+            record.flush();
+            data.writeInt(bytes.size());
+            bytes.writeTo(data);
+            for (String path : entry.getFiles()) {
+                List<Long> list = paths.get(path);
+                if (list == null) {
+                    list = new ArrayList<Long>(1);
+                    paths.put(path, list);
+                }
+                list.add(pos);
+            }
+            pos += 4 + bytes.size();
+        }
+        long indexPos = pos;
+        String revision =
+                entries.isEmpty() ? null : entries.get(0).getRevision();
+        writeOptionalString(data, revision);
+        HistoryFormat.writeVInt(data, paths.size());
+        for (Map.Entry<String, List<Long>> e : paths.entrySet()) {
+            HistoryFormat.writeString(data, e.getKey());
+            List<Long> list = e.getValue();
+            HistoryFormat.writeVInt(data, list.size());
+            long prev = 0;
+            for (long offset : list) {
+                // increasing, as the records are written in order
+                HistoryFormat.writeVLong(data, offset - prev);
+                prev = offset;
+            }
+        }
+        data.writeLong(start);
+        data.writeLong(indexPos);
+        data.write(MAGIC);
+        data.flush();
+    }
+
+    private static void writeOptionalString(DataOutput out, String s)
+            throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            HistoryFormat.writeString(out, s);
+        }
+    }
+
+    private Header readHeader(RandomAccessFile raf) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        raf.seek(0);
+        raf.readFully(magic);
+        int version = raf.readUnsignedByte();
+        if (!Arrays.equals(magic, MAGIC) || version != VERSION) {
+            throw new IOException("Unsupported history store " + file);
+        }
+        Header header = new Header(raf.readLong(), raf.readLong(),
+                raf.readLong());
+        if (header.length < HEADER_SIZE || header.length > raf.length()) {
+            throw new IOException("Corrupt history store " + file);
+        }
+        return header;
+    }
+
+    /**
+     * Get the index of the opened store file. Only the segments which are
+     * not yet in the index in memory are read.
+     */
+    private synchronized Index getIndex(RandomAccessFile raf)
+            throws IOException {
+        Header header = readHeader(raf);
+        Index old = index;
+        if (old != null && (old.generation != header.generation
+                || old.length > header.length)) {
+            old = null;
+        }
+        if (old != null && old.length == header.length) {
+            return old;
+        }
+
+        // walk the new segments from the end of the file
+        long stop = old == null ? HEADER_SIZE : old.length;
+        long pos = header.length;
+        List<long[]> segments = new ArrayList<long[]>();
+        List<Map<String, long[]>> segmentPaths =
+                new ArrayList<Map<String, long[]>>();
+        String revision = null;
+        byte[] magic = new byte[MAGIC.length];
+        while (pos > stop) {
+            raf.seek(pos - TRAILER_SIZE);
+            long recordsPos = raf.readLong();
+            long indexPos = raf.readLong();
+            raf.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || recordsPos < stop
+                    || indexPos < recordsPos || indexPos > pos - TRAILER_SIZE) {
+                throw new IOException("Corrupt history store " + file);
+            }
+            byte[] bytes = new byte[(int) (pos - TRAILER_SIZE - indexPos)];
+            raf.seek(indexPos);
+            raf.readFully(bytes);
+            DataInputStream in =
+                    new DataInputStream(new ByteArrayInputStream(bytes));
+            String rev = in.readBoolean() ? HistoryFormat.readString(in) : null;
+            if (segments.isEmpty()) {
+                revision = rev;
+            }
+            int count = HistoryFormat.readVInt(in);
+            Map<String, long[]> paths = new HashMap<String, long[]>(count * 2);
+            for (int i = 0; i < count; i++) {
+                String path = HistoryFormat.readString(in);
+                long[] offsets = new long[HistoryFormat.readVInt(in)];
+                long prev = 0;
+                for (int j = 0; j < offsets.length; j++) {
+                    prev += HistoryFormat.readVLong(in);
+                    offsets[j] = prev;
+                }
+                paths.put(path, offsets);
+            }
+            segments.add(new long[]{recordsPos, indexPos});
+            segmentPaths.add(paths);
+            pos = recordsPos;
+        }
+        if (pos != stop) {
+            throw new IOException("Corrupt history store " + file);
+        }
+
+        // merge with the segments already known, the most recent first
+        Map<String, long[]> paths;
+        if (old == null) {
+            paths = new HashMap<String, long[]>();
+        } else {
+            paths = new HashMap<String, long[]>(old.paths);
+            segments.addAll(old.segments);
+        }
+        for (int i = segmentPaths.size() - 1; i >= 0; i--) {
+            for (Map.Entry<String, long[]> e : segmentPaths.get(i).entrySet()) {
+                long[] newer = e.getValue();
+                long[] older = paths.get(e.getKey());
+                if (older != null) {
+                    long[] merged = Arrays.copyOf(newer,
+                            newer.length + older.length);
+                    System.arraycopy(older, 0, merged, newer.length,
+                            older.length);
+                    newer = merged;
+                }
+                paths.put(e.getKey(), newer);
+            }
+        }
+        index = new Index(header.generation, header.length, revision,
+                Collections.unmodifiableList(segments), paths);
+        return index;
+    }
+
+    /**
+     * Read a record at the current position of the file.
+     */
+    private static HistoryEntry readRecord(RandomAccessFile raf,
+            boolean withFiles) throws IOException {
+        byte[] record = new byte[raf.readInt()];
+        raf.readFully(record);
+        return HistoryFormat.readEntry(new DataInputStream(
+                new ByteArrayInputStream(record)), withFiles);
+    }
+
+    /**
+     * Read all changesets in the store, most recent first.
+     */
+    private static List<HistoryEntry> readAll(RandomAccessFile raf,
+            Index index) throws IOException {
+        List<HistoryEntry> entries = new ArrayList<HistoryEntry>();
+        for (long[] segment : index.segments) {
+            raf.seek(segment[0]);
+            while (raf.getFilePointer() < segment[1]) {
+                entries.add(readRecord(raf, true));
+            }
+        }
+        return entries;
+    }
+}
@@ -18,7 +18,7 @@
  */
 
 /*
- * Copyright (c) 2008, 2012, Oracle and/or its affiliates. All rights reserved.
+ * Copyright (c) 2008, 2013, Oracle and/or its affiliates. All rights reserved.
  */
 package org.opensolaris.opengrok.history;
 
@@ -319,6 +319,14 @@ public abstract class Repository extends RepositoryInfo {
      */
     abstract void update() throws IOException;
 
+    /**
+     * Release the resources held by this object, like long-running processes,
+     * once it is not going to be used anymore. The default implementation
+     * does nothing.
+     */
+    void close() {
+    }
+
     /**
      * Check if this it the right repository type for the given file.
      *
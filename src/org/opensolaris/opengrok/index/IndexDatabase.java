@@ -31,7 +31,10 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -42,16 +45,19 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
 import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.search.spell.LuceneDictionary;
+import org.apache.lucene.search.spell.Dictionary;
 import org.apache.lucene.search.spell.SpellChecker;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.LockFactory;
 import org.apache.lucene.store.NoLockFactory;
 import org.apache.lucene.store.SimpleFSLockFactory;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefIterator;
 import org.opensolaris.opengrok.analysis.AnalyzerGuru;
 import org.opensolaris.opengrok.analysis.Ctags;
 import org.opensolaris.opengrok.analysis.Definitions;
@@ -61,8 +67,14 @@ import org.opensolaris.opengrok.configuration.Project;
 import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
 import org.opensolaris.opengrok.history.HistoryException;
 import org.opensolaris.opengrok.history.HistoryGuru;
+import org.opensolaris.opengrok.search.CompletionIndex;
+import org.opensolaris.opengrok.search.DefinitionIndex;
 import org.opensolaris.opengrok.search.QueryBuilder;
 import org.opensolaris.opengrok.search.SearchEngine;
+import org.opensolaris.opengrok.search.SearcherCache.SearcherWithCleanup;
+import org.opensolaris.opengrok.search.SelectiveFieldVisitor;
+import org.opensolaris.opengrok.search.SortFields;
+import org.opensolaris.opengrok.util.IOUtils;
 import org.opensolaris.opengrok.web.Util;
 
 /**
@@ -94,6 +106,17 @@ public class IndexDatabase {
     private Ctags ctags;
     private LockFactory lockfact;
     private final BytesRef emptyBR = new BytesRef("");
+    /** Words shorter than this are skipped by {@link SpellChecker}. */
+    private static final int MIN_SPELLING_WORD_LENGTH = 3;
+    /** Version of the index before the running update, -1 if unknown. */
+    private long baseVersion = -1L;
+    /**
+     * Paths of the files added or removed by the running update, or
+     * {@code null} if too many to update the definition index incrementally.
+     */
+    private Set<String> changedPaths;
+    /** Max. number of changed files remembered for the definition index. */
+    private static final int MAX_CHANGED_PATHS = 10000;
 
     /**
      * Create a new instance of the Index Database. Use this constructor if you
@@ -330,7 +353,17 @@ public class IndexDatabase {
             iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
             //iwc.setRAMBufferSizeMB(256.0);  //TODO check what is the sweet spot
             writer = new IndexWriter(indexDirectory, iwc);
+            if (writer.maxDoc() == 0) {
+                // all documents of a new index have the doc values to sort
+                // by, unlike the ones written by older versions
+                SortFields.markDocValues(writer);
+            }
             writer.commit(); // to make sure index exists on the disk
+            try (DirectoryReader reader =
+                        DirectoryReader.open(indexDirectory)) {
+                baseVersion = reader.getVersion();
+            }
+            changedPaths = new HashSet<String>();
             //writer.setMaxFieldLength(RuntimeEnvironment.getInstance().getIndexWordLimit());
 
             if (directories.isEmpty()) {
@@ -415,7 +448,12 @@ public class IndexDatabase {
                 optimize();
             }
             createSpellingSuggestions();
+            createDefinitionIndex();
+            createSuggesters();
             RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+            if (env.isIndexReversedTerms()) {
+                logReversedTermsImpact();
+            }
             File timestamp = new File(env.getDataRootFile(), "timestamp");
             if (timestamp.exists()) {
                 if (!timestamp.setLastModified(System.currentTimeMillis())) {
@@ -507,25 +545,65 @@ public class IndexDatabase {
     }
 
     /**
-     * Generate a spelling suggestion for the definitions stored in defs
+     * Generate a spelling suggestion for the definitions stored in defs.
+     * The spelling index is updated incrementally: only the terms which have
+     * been added to or removed from the defs field since the last run are
+     * added to or removed from the spelling index.
      */
     public void createSpellingSuggestions() {
         IndexReader indexReader = null;
-        SpellChecker checker;
+        IndexReader spellReader = null;
+        SpellChecker checker = null;
 
         try {
             log.info("Generating spelling suggestion index ... ");
             indexReader = DirectoryReader.open(indexDirectory);
-            checker = new SpellChecker(spellDirectory);
+            if (DirectoryReader.indexExists(spellDirectory)) {
+                spellReader = DirectoryReader.open(spellDirectory);
+            }
+            List<BytesRef> added = new ArrayList<BytesRef>();
+            List<Term> removed = new ArrayList<Term>();
+            diffSpellingTerms(indexReader, spellReader, added, removed);
+            IOUtils.close(spellReader);
+            spellReader = null;
+
             //TODO below seems only to index "defs" , possible bug ?
             Analyzer analyzer = AnalyzerGuru.getAnalyzer();
-            IndexWriterConfig iwc = new IndexWriterConfig(SearchEngine.LUCENE_VERSION, analyzer);
-            iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
-            checker.indexDictionary(new LuceneDictionary(indexReader, QueryBuilder.DEFS), iwc, false);
-            log.info("done");
+            if (!removed.isEmpty()) {
+                IndexWriterConfig iwc = new IndexWriterConfig(SearchEngine.LUCENE_VERSION, analyzer);
+                iwc.setOpenMode(OpenMode.APPEND);
+                try (IndexWriter spellWriter = new IndexWriter(spellDirectory, iwc)) {
+                    spellWriter.deleteDocuments(removed.toArray(new Term[removed.size()]));
+                }
+            }
+            checker = new SpellChecker(spellDirectory);
+            if (!added.isEmpty()) {
+                IndexWriterConfig iwc = new IndexWriterConfig(SearchEngine.LUCENE_VERSION, analyzer);
+                iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
+                final Iterator<BytesRef> words = added.iterator();
+                checker.indexDictionary(new Dictionary() {
+                    @Override
+                    public BytesRefIterator getWordsIterator() {
+                        return new BytesRefIterator() {
+                            @Override
+                            public BytesRef next() {
+                                return words.hasNext() ? words.next() : null;
+                            }
+
+                            @Override
+                            public Comparator<BytesRef> getComparator() {
+                                return null;
+                            }
+                        };
+                    }
+                }, iwc, false);
+            }
+            log.log(Level.INFO, "done ({0} words added, {1} removed)",
+                    new Object[]{added.size(), removed.size()});
         } catch (IOException e) {
             log.log(Level.SEVERE, "ERROR: Generating spelling: {0}", e);
         } finally {
+            IOUtils.close(spellReader);
             if (indexReader != null) {
                 try {
                     indexReader.close();
@@ -533,12 +611,176 @@ public class IndexDatabase {
                     log.log(Level.WARNING, "An error occured while closing reader", e);
                 }
             }
+            if (checker != null) {
+                try {
+                    checker.close();
+                } catch (IOException e) {
+                    log.log(Level.WARNING, "An error occured while closing spell checker", e);
+                }
+            }
             if (spellDirectory != null) {
                 spellDirectory.close();
             }
         }
     }
 
+    /**
+     * Compare the terms of the defs field with the words of the spelling
+     * index. Both are sorted, so a single pass over both term lists is
+     * enough to find the differences.
+     *
+     * @param indexReader reader of the index database
+     * @param spellReader reader of the spelling index, or {@code null} if
+     * there is no spelling index yet
+     * @param added receives the terms missing in the spelling index
+     * @param removed receives the words of the spelling index which are no
+     * longer used by any document
+     * @throws IOException if an error occurs while reading the indexes
+     */
+    private static void diffSpellingTerms(IndexReader indexReader,
+            IndexReader spellReader, List<BytesRef> added, List<Term> removed)
+            throws IOException {
+        Terms defs = MultiFields.getTerms(indexReader, QueryBuilder.DEFS);
+        Terms words = spellReader == null ? null
+                : MultiFields.getTerms(spellReader, SpellChecker.F_WORD);
+        TermsEnum defsEnum = defs == null ? null : defs.iterator(null);
+        TermsEnum wordsEnum = words == null ? null : words.iterator(null);
+        // deleted documents still contribute their terms until merged away
+        Bits liveDocs = MultiFields.getLiveDocs(indexReader);
+        DocsEnum docs = null;
+
+        BytesRef def = next(defsEnum);
+        BytesRef word = next(wordsEnum);
+        while (def != null || word != null) {
+            if (def != null && liveDocs != null) {
+                docs = defsEnum.docs(liveDocs, docs, DocsEnum.FLAG_NONE);
+                if (docs.nextDoc() == DocIdSetIterator.NO_MORE_DOCS) {
+                    def = next(defsEnum);
+                    continue;
+                }
+            }
+            int cmp = def == null ? 1 : word == null ? -1 : def.compareTo(word);
+            if (cmp < 0) {
+                // the spell checker ignores short words, don't offer them
+                // again on every run
+                if (def.utf8ToString().length() >= MIN_SPELLING_WORD_LENGTH) {
+                    added.add(BytesRef.deepCopyOf(def));
+                }
+                def = next(defsEnum);
+            } else if (cmp > 0) {
+                removed.add(new Term(SpellChecker.F_WORD, BytesRef.deepCopyOf(word)));
+                word = next(wordsEnum);
+            } else {
+                def = next(defsEnum);
+                word = next(wordsEnum);
+            }
+        }
+    }
+
+    private static BytesRef next(TermsEnum termsEnum) throws IOException {
+        return termsEnum == null ? null : termsEnum.next();
+    }
+
+    /**
+     * Generate the definition index used by the web application to look up
+     * symbol definitions without searching the index. After an update, only
+     * the definitions of the changed files are read from the index.
+     */
+    public void createDefinitionIndex() {
+        DirectoryReader indexReader = null;
+        try {
+            log.info("Generating definition index ... ");
+            indexReader = DirectoryReader.open(indexDirectory);
+            DefinitionIndex.update(indexReader, DefinitionIndex.getFile(
+                    RuntimeEnvironment.getInstance().getDataRootFile(),
+                    project == null ? null : project.getPath()),
+                    baseVersion, changedPaths);
+            log.info("done");
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "ERROR: Generating definition index: {0}", e);
+        } finally {
+            IOUtils.close(indexReader);
+        }
+    }
+
+    /**
+     * Generate the type-ahead suggesters for the defs, refs and path fields.
+     */
+    public void createSuggesters() {
+        IndexReader indexReader = null;
+        try {
+            log.info("Generating suggesters ... ");
+            indexReader = DirectoryReader.open(indexDirectory);
+            CompletionIndex.build(indexReader,
+                    RuntimeEnvironment.getInstance().getDataRootFile(),
+                    project == null ? null : project.getPath());
+            log.info("done");
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "ERROR: Generating suggesters: {0}", e);
+        } finally {
+            IOUtils.close(indexReader);
+        }
+    }
+
+    /**
+     * Log how many terms the reversed term fields add to the index, to help
+     * judging the index size impact of indexing reversed terms. The counts
+     * are summed up over all segments, so they are only exact for an
+     * optimized index.
+     */
+    private void logReversedTermsImpact() {
+        if (!log.isLoggable(Level.INFO)) {
+            return;
+        }
+        IndexReader reader = null;
+        try {
+            reader = DirectoryReader.open(indexDirectory);
+            long terms = 0;
+            long reversed = 0;
+            for (AtomicReaderContext context : reader.getContext().leaves()) {
+                Fields fields = context.reader().fields();
+                if (fields == null) {
+                    continue;
+                }
+                for (String field : new String[]{QueryBuilder.FULL,
+                            QueryBuilder.DEFS, QueryBuilder.REFS}) {
+                    terms += getTermCount(fields.terms(field));
+                    reversed += getTermCount(fields.terms(
+                            QueryBuilder.getReversedField(field)));
+                }
+            }
+            log.log(Level.INFO, "Reversed terms: {0} in addition to {1} terms "
+                    + "of the full, defs and refs fields ({2}%)",
+                    new Object[]{reversed, terms,
+                        terms == 0 ? 0 : reversed * 100 / terms});
+        } catch (IOException e) {
+            log.log(Level.WARNING, "An error occured while counting terms", e);
+        } finally {
+            IOUtils.close(reader);
+        }
+    }
+
+    private static long getTermCount(Terms terms) throws IOException {
+        if (terms == null) {
+            return 0;
+        }
+        return Math.max(0, terms.size());
+    }
+
+    /**
+     * Remember a file added or removed by the running update, so that the
+     * definition index can be updated incrementally.
+     */
+    private void addChangedPath(String path) {
+        if (changedPaths != null) {
+            changedPaths.add(path);
+            if (changedPaths.size() > MAX_CHANGED_PATHS) {
+                // reading all documents isn't much slower then
+                changedPaths = null;
+            }
+        }
+    }
+
     private boolean isDirty() {
         synchronized (lock) {
             return dirty;
@@ -577,6 +819,7 @@ public class IndexDatabase {
         writer.deleteDocuments(new Term(QueryBuilder.U, uidIter.term()));        
         writer.prepareCommit();
         writer.commit();
+        addChangedPath(path);
         
         File xrefFile;
         if (RuntimeEnvironment.getInstance().isCompressXref()) {
@@ -639,6 +882,7 @@ public class IndexDatabase {
             }
 
             writer.addDocument(d, fa);
+            addChangedPath(path);
             Genre g = fa.getFactory().getGenre();
             if (xrefDir != null && (g == Genre.PLAIN || g == Genre.XREFABLE)) {
                 File xrefFile = new File(xrefDir, path);
@@ -1052,14 +1296,17 @@ public class IndexDatabase {
     }
 
     /**
-     * Get an indexReader for the Index database where a given file
+     * Get a searcher for the Index database where a given file is located.
+     * The searcher is obtained from the searcher cache shared by the whole
+     * process, so the caller must release it by closing the returned object
+     * as soon as it is done with it.
      *
      * @param path the file to get the database for
-     * @return The index database where the file should be located or null if it
-     * cannot be located.
+     * @return a searcher for the index database where the file should be
+     * located, or {@code null} if it cannot be located.
      */
-    public static IndexReader getIndexReader(String path) {
-        IndexReader ret = null;
+    public static SearcherWithCleanup getIndexSearcher(String path) {
+        SearcherWithCleanup ret = null;
 
         RuntimeEnvironment env = RuntimeEnvironment.getInstance();
         File indexDir = new File(env.getDataRootFile(), "index");
@@ -1071,11 +1318,13 @@ public class IndexDatabase {
             }
             indexDir = new File(indexDir, p.getPath());
         }
+        if (!indexDir.exists()) {
+            return null;
+        }
         try {
-            FSDirectory fdir = FSDirectory.open(indexDir, NoLockFactory.getNoLockFactory());
-            if (indexDir.exists() && DirectoryReader.indexExists(fdir)) {
-                ret = DirectoryReader.open(fdir);
-            }
+            ret = env.getSearcherCache().fetchIndexSearcher(indexDir);
+        } catch (IndexNotFoundException ex) {
+            log.log(Level.FINE, "No index found in {0}", indexDir.getAbsolutePath());
         } catch (Exception ex) {
             log.log(Level.SEVERE, "Failed to open index: {0}", indexDir.getAbsolutePath());
             log.log(Level.FINE, "Stack Trace: ", ex);
@@ -1099,22 +1348,23 @@ public class IndexDatabase {
         RuntimeEnvironment env = RuntimeEnvironment.getInstance();
         String path = env.getPathRelativeToSourceRoot(file, 0);
 
-        IndexReader ireader = getIndexReader(path);
+        SearcherWithCleanup sw = getIndexSearcher(path);
 
-        if (ireader == null) {
+        if (sw == null) {
             // No index, no definitions...
             return null;
         }
 
         try {
             Query q = new QueryBuilder().setPath(path).build();
-            IndexSearcher searcher = new IndexSearcher(ireader);
+            IndexSearcher searcher = sw.getSearcher();
             TopDocs top = searcher.search(q, 1);
             if (top.totalHits == 0) {
                 // No hits, no definitions...
                 return null;
             }
-            Document doc = searcher.doc(top.scoreDocs[0].doc);
+            Document doc = SelectiveFieldVisitor.load(searcher,
+                    top.scoreDocs[0].doc, QueryBuilder.PATH, QueryBuilder.TAGS);
             String foundPath = doc.get(QueryBuilder.PATH);
 
             // Only use the definitions if we found an exact match.
@@ -1125,7 +1375,7 @@ public class IndexDatabase {
                 }
             }
         } finally {
-            ireader.close();
+            IOUtils.close(sw);
         }
 
         // Didn't find any definitions.
@@ -18,8 +18,7 @@
  */
 
 /*
- * Copyright 2008 Sun Microsystems, Inc.  All rights reserved.
- * Use is subject to license terms.
+ * Copyright (c) 2008, 2013, Oracle and/or its affiliates. All rights reserved.
  */
 
 package org.opensolaris.opengrok.jdbc;
@@ -27,22 +26,65 @@ package org.opensolaris.opengrok.jdbc;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Class that manages the pool of database connections.
+ * <p>
+ * The number of connections in use at the same time is bounded, and callers
+ * wait up to the borrow timeout for a connection to be released when the
+ * limit is reached. Connections which have been idle for longer than the
+ * idle timeout are closed, except for the configured minimum number of idle
+ * connections. Idle connections are handed out most recently used first, so
+ * that the surplus ones stay unused and get closed.
  */
-public class ConnectionManager {
+public class ConnectionManager implements ConnectionManagerMBean {
+
+    /** Default maximum number of connections in use at the same time. */
+    public static final int DEFAULT_MAX_CONNECTIONS = 32;
+    /** Default minimum number of idle connections to keep open. */
+    public static final int DEFAULT_MIN_IDLE_CONNECTIONS = 2;
+    /** Default time in milliseconds to wait for a connection. */
+    public static final long DEFAULT_BORROW_TIMEOUT = 30000;
+    /** Default time in milliseconds after which idle connections are closed. */
+    public static final long DEFAULT_IDLE_TIMEOUT = 300000;
+
+    /**
+     * Connections which have been idle for a shorter time than this (in
+     * milliseconds) are handed out without checking that they are still
+     * valid.
+     */
+    static final long VALIDATION_INTERVAL = 30000;
 
     /** The JDBC URL to use when creating new connections. */
     private final String url;
 
-    /** A list of connections not currently in use. */
-    private final ConcurrentLinkedQueue<ConnectionResource> connections =
-            new ConcurrentLinkedQueue<ConnectionResource>();
+    private final int maxConnections;
+    private final int minIdleConnections;
+    private final long borrowTimeout;
+    private final long idleTimeout;
+
+    /** One permit for each connection which may be handed out. */
+    private final Semaphore permits;
+
+    /** A list of connections not currently in use, most recently used first. */
+    private final LinkedBlockingDeque<ConnectionResource> connections =
+            new LinkedBlockingDeque<ConnectionResource>();
+
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong closed = new AtomicLong();
+    private final AtomicLong borrowed = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong statementHits = new AtomicLong();
+    private final AtomicLong statementMisses = new AtomicLong();
 
     /**
-     * Create a new {@code ConnectionManager} instance.
+     * Create a new {@code ConnectionManager} instance with the default pool
+     * settings.
      *
      * @param driverClass the name of the JDBC driver class
      * @param url the JDBC connection URL to the database
@@ -50,8 +92,37 @@ public class ConnectionManager {
      */
     public ConnectionManager(String driverClass, String url)
             throws ClassNotFoundException {
+        this(driverClass, url, DEFAULT_MAX_CONNECTIONS,
+                DEFAULT_MIN_IDLE_CONNECTIONS, DEFAULT_BORROW_TIMEOUT,
+                DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * Create a new {@code ConnectionManager} instance.
+     *
+     * @param driverClass the name of the JDBC driver class
+     * @param url the JDBC connection URL to the database
+     * @param maxConnections the maximum number of connections in use at the
+     * same time, or {@code 0} for no limit
+     * @param minIdleConnections the number of idle connections which are
+     * kept open even if they have been idle for longer than the idle timeout
+     * @param borrowTimeout the time in milliseconds to wait for a connection
+     * if all of them are in use
+     * @param idleTimeout the time in milliseconds after which an idle
+     * connection gets closed, or {@code 0} to keep idle connections open
+     * @throws ClassNotFoundException if the JDBC driver class cannot be found
+     */
+    public ConnectionManager(String driverClass, String url,
+            int maxConnections, int minIdleConnections, long borrowTimeout,
+            long idleTimeout) throws ClassNotFoundException {
         Class.forName(driverClass);
         this.url = url;
+        this.maxConnections = Math.max(0, maxConnections);
+        this.minIdleConnections = Math.max(0, minIdleConnections);
+        this.borrowTimeout = Math.max(0, borrowTimeout);
+        this.idleTimeout = Math.max(0, idleTimeout);
+        permits = new Semaphore(maxConnections > 0
+                ? maxConnections : Integer.MAX_VALUE, true);
     }
 
     /**
@@ -61,35 +132,198 @@ public class ConnectionManager {
      * @throws SQLException if a database error occurs
      */
     Connection openConnection() throws SQLException {
-        return DriverManager.getConnection(url);
+        Connection conn = DriverManager.getConnection(url);
+        opened.incrementAndGet();
+        return conn;
     }
 
     /**
      * Get a {@code ConnectionResource} object from the pool, or create a
-     * new one if the pool is empty. Callers should make sure that the object
-     * is returned to the pool by calling
+     * new one if the pool is empty. If the maximum number of connections is
+     * in use, wait until one is returned. Callers should make sure that the
+     * object is returned to the pool by calling
      * {@link #releaseConnection(ConnectionResource)} after they are finished
      * with it.
      *
      * @return a {@code ConnectionResource} object
+     * @throws SQLTransientConnectionException if no connection became
+     * available within the borrow timeout
      * @throws SQLException if a database error occurs
      */
     public ConnectionResource getConnectionResource() throws SQLException {
-        ConnectionResource cr = connections.poll();
-        if (cr == null || !cr.isValid()) {
-            cr = new ConnectionResource(this);
+        try {
+            if (!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new SQLTransientConnectionException(
+                        "Timed out after " + borrowTimeout
+                        + " ms waiting for a database connection");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(
+                    "Interrupted while waiting for a database connection", ie);
+        }
+
+        boolean success = false;
+        try {
+            ConnectionResource cr;
+            while ((cr = connections.pollFirst()) != null && !isUsable(cr)) {
+                close(cr);
+            }
+            if (cr == null) {
+                cr = new ConnectionResource(this);
+            }
+            borrowed.incrementAndGet();
+            success = true;
+            return cr;
+        } finally {
+            if (!success) {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Check whether an idle connection can be handed out. Only connections
+     * which have been idle for a while are validated, since validation
+     * requires a round trip to the database server.
+     */
+    private static boolean isUsable(ConnectionResource cr) {
+        if (System.currentTimeMillis() - cr.getLastUsed()
+                < VALIDATION_INTERVAL) {
+            return true;
+        }
+        try {
+            return cr.isValid();
+        } catch (SQLException sqle) {
+            return false;
         }
-        return cr;
     }
 
     /**
-     * Return a {@code ConnectionResource} back to the pool.
+     * Return a {@code ConnectionResource} back to the pool. Any uncommitted
+     * changes are rolled back. If that fails, the connection is closed
+     * instead of being returned to the pool.
      *
-     * @param cr
-     * @throws SQLException
+     * @param cr the connection to return
+     * @throws SQLException if the transaction could not be rolled back
      */
     public void releaseConnection(ConnectionResource cr) throws SQLException {
-        cr.rollback();
-        connections.offer(cr);
+        try {
+            cr.rollback();
+            cr.setLastUsed(System.currentTimeMillis());
+            connections.offerFirst(cr);
+        } catch (SQLException sqle) {
+            close(cr);
+            throw sqle;
+        } finally {
+            permits.release();
+            evictIdleConnections();
+        }
+    }
+
+    /**
+     * Close the least recently used idle connections which have been idle
+     * for longer than the idle timeout, while more than the minimum number
+     * of idle connections are open.
+     */
+    private void evictIdleConnections() {
+        if (idleTimeout == 0) {
+            return;
+        }
+        long limit = System.currentTimeMillis() - idleTimeout;
+        while (connections.size() > minIdleConnections) {
+            ConnectionResource cr = connections.peekLast();
+            if (cr == null || cr.getLastUsed() > limit) {
+                break;
+            }
+            if (connections.removeLastOccurrence(cr)) {
+                close(cr);
+            }
+        }
+    }
+
+    private void close(ConnectionResource cr) {
+        closed.incrementAndGet();
+        cr.close();
+    }
+
+    /**
+     * Close all the connections which are not in use.
+     */
+    public void closeIdleConnections() {
+        ConnectionResource cr;
+        while ((cr = connections.pollFirst()) != null) {
+            close(cr);
+        }
+    }
+
+    /** Record the outcome of a lookup in a statement cache. */
+    void statementCacheLookup(boolean hit) {
+        (hit ? statementHits : statementMisses).incrementAndGet();
+    }
+
+    @Override
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return maxConnections > 0
+                ? maxConnections - permits.availablePermits()
+                : Integer.MAX_VALUE - permits.availablePermits();
+    }
+
+    @Override
+    public int getIdleConnections() {
+        return connections.size();
+    }
+
+    @Override
+    public long getOpenedConnections() {
+        return opened.get();
+    }
+
+    @Override
+    public long getClosedConnections() {
+        return closed.get();
+    }
+
+    @Override
+    public long getBorrowedConnections() {
+        return borrowed.get();
+    }
+
+    @Override
+    public long getBorrowTimeouts() {
+        return timeouts.get();
+    }
+
+    @Override
+    public long getStatementCacheHits() {
+        return statementHits.get();
+    }
+
+    @Override
+    public long getStatementCacheMisses() {
+        return statementMisses.get();
+    }
+
+    /**
+     * Get a human readable summary of the pool state, suitable for the
+     * status page.
+     *
+     * @return pool statistics
+     */
+    public String getStatistics() {
+        return "connections: " + getActiveConnections() + " active, "
+                + getIdleConnections() + " idle, "
+                + (maxConnections > 0 ? maxConnections : "unlimited") + " max"
+                + ", opened: " + getOpenedConnections()
+                + ", closed: " + getClosedConnections()
+                + ", borrow timeouts: " + getBorrowTimeouts()
+                + ", statement cache hits: " + getStatementCacheHits()
+                + ", misses: " + getStatementCacheMisses();
     }
 }
@@ -0,0 +1,86 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.jdbc;
+
+/**
+ * Management interface of the {@link ConnectionManager}.
+ */
+public interface ConnectionManagerMBean {
+
+    /**
+     * Get the maximum number of connections which may be in use at the
+     * same time.
+     * @return the maximum number of connections, or {@code 0} if unbounded
+     */
+    int getMaxConnections();
+
+    /**
+     * Get the number of connections currently in use.
+     * @return the number of active connections
+     */
+    int getActiveConnections();
+
+    /**
+     * Get the number of open connections not currently in use.
+     * @return the number of idle connections
+     */
+    int getIdleConnections();
+
+    /**
+     * Get the number of connections opened since the pool was created.
+     * @return the number of opened connections
+     */
+    long getOpenedConnections();
+
+    /**
+     * Get the number of connections closed since the pool was created,
+     * because they were idle for too long or found to be broken.
+     * @return the number of closed connections
+     */
+    long getClosedConnections();
+
+    /**
+     * Get the number of times a connection was handed out.
+     * @return the number of borrowed connections
+     */
+    long getBorrowedConnections();
+
+    /**
+     * Get the number of times no connection became available within the
+     * borrow timeout.
+     * @return the number of timeouts
+     */
+    long getBorrowTimeouts();
+
+    /**
+     * Get the number of times a cached prepared statement was reused.
+     * @return the number of statement cache hits
+     */
+    long getStatementCacheHits();
+
+    /**
+     * Get the number of times a statement had to be prepared.
+     * @return the number of statement cache misses
+     */
+    long getStatementCacheMisses();
+}
@@ -18,7 +18,7 @@
  */
 
 /*
- * Copyright (c) 2009, 2012, Oracle and/or its affiliates. All rights reserved.
+ * Copyright (c) 2009, 2013, Oracle and/or its affiliates. All rights reserved.
  */
 
 package org.opensolaris.opengrok.jdbc;
@@ -28,20 +28,47 @@ import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.logging.Level;
+import org.opensolaris.opengrok.OpenGrokLogger;
 
 /**
  * Class that manages the resources associated with a database connection.
  * This includes a cache of {@code PreparedStatement}s.
  */
 public class ConnectionResource {
+    /**
+     * The maximum number of statements in the statement cache. When the
+     * cache is full, the least recently used statement is closed.
+     */
+    static final int MAX_CACHED_STATEMENTS = 64;
+
+    /** The {@code ConnectionManager} that created this object. */
+    private final ConnectionManager manager;
+
     /** The connection to the database. */
     private final Connection conn;
 
-    /** Statement cache. */
+    /** Statement cache, least recently used first. */
     private final Map<StatementCreator, PreparedStatement> statements =
-            new HashMap<StatementCreator, PreparedStatement>();
+            new LinkedHashMap<StatementCreator, PreparedStatement>(
+                16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<StatementCreator, PreparedStatement> eldest) {
+            if (size() > MAX_CACHED_STATEMENTS) {
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /** The time this object was last returned to the pool. */
+    private volatile long lastUsed;
 
     /**
      * Create a new {@code ConnectionResource} instance.
@@ -49,8 +76,31 @@ public class ConnectionResource {
      * @throws SQLException if an error occurs when connecting to the database
      */
     ConnectionResource(ConnectionManager manager) throws SQLException {
+        this.manager = manager;
         conn = manager.openConnection();
-        conn.setAutoCommit(false);
+        try {
+            conn.setAutoCommit(false);
+        } catch (SQLException sqle) {
+            conn.close();
+            throw sqle;
+        }
+        lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Get the time this object was last returned to the pool.
+     * @return the time in milliseconds since the epoch
+     */
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Set the time this object was last returned to the pool.
+     * @param lastUsed the time in milliseconds since the epoch
+     */
+    void setLastUsed(long lastUsed) {
+        this.lastUsed = lastUsed;
     }
 
     /**
@@ -99,7 +149,9 @@ public class ConnectionResource {
     public PreparedStatement getStatement(StatementCreator creator)
             throws SQLException {
         PreparedStatement ps = statements.get(creator);
-        if (ps == null || ps.isClosed()) {
+        boolean hit = ps != null && !ps.isClosed();
+        manager.statementCacheLookup(hit);
+        if (!hit) {
             ps = creator.create(conn);
             statements.put(creator, ps);
         }
@@ -139,4 +191,31 @@ public class ConnectionResource {
     public DatabaseMetaData getMetaData() throws SQLException {
         return conn.getMetaData();
     }
+
+    /**
+     * Close the cached statements and the connection. Errors are logged
+     * and otherwise ignored, since the connection is about to be discarded
+     * anyway.
+     */
+    void close() {
+        for (PreparedStatement ps : statements.values()) {
+            closeQuietly(ps);
+        }
+        statements.clear();
+        try {
+            conn.close();
+        } catch (SQLException sqle) {
+            OpenGrokLogger.getLogger().log(Level.FINE,
+                    "Failed to close database connection", sqle);
+        }
+    }
+
+    private static void closeQuietly(Statement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException sqle) {
+            OpenGrokLogger.getLogger().log(Level.FINE,
+                    "Failed to close statement", sqle);
+        }
+    }
 }
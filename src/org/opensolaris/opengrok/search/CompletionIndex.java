@@ -0,0 +1,261 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.search.spell.HighFrequencyDictionary;
+import org.apache.lucene.search.suggest.Lookup.LookupResult;
+import org.apache.lucene.search.suggest.fst.WFSTCompletionLookup;
+
+/**
+ * Prebuilt type-ahead suggestions for the {@code defs}, {@code refs} and
+ * {@code path} fields of a project.
+ * <p>
+ * For each field the terms of the index are compiled into a weighted FST
+ * ({@link WFSTCompletionLookup}), using the number of documents containing
+ * a term as its weight, so that the most common completions of a prefix are
+ * returned first. The suggesters are written by the indexer after each
+ * update and kept in memory by the web application.
+ */
+public final class CompletionIndex {
+
+    /** The fields suggestions are generated for. */
+    public static final List<String> FIELDS = Collections.unmodifiableList(
+            Arrays.asList(QueryBuilder.DEFS, QueryBuilder.REFS,
+                QueryBuilder.PATH));
+
+    /** Loaded suggesters, keyed by their file. */
+    private static final Map<File, CompletionIndex> loaded =
+            new ConcurrentHashMap<File, CompletionIndex>();
+
+    private final WFSTCompletionLookup lookup;
+    private final long lastModified;
+
+    private CompletionIndex(WFSTCompletionLookup lookup, long lastModified) {
+        this.lookup = lookup;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * A suggested completion.
+     */
+    public static final class Completion {
+
+        private final String text;
+        private final long weight;
+
+        Completion(String text, long weight) {
+            this.text = text;
+            this.weight = weight;
+        }
+
+        /**
+         * @return the completed term
+         */
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * @return the number of documents containing the term
+         */
+        public long getWeight() {
+            return weight;
+        }
+    }
+
+    /**
+     * Get the file holding the suggester for a field of a project.
+     *
+     * @param dataRoot the data root directory
+     * @param project the path of the project, or {@code null} if projects
+     * are not used
+     * @param field the field the suggester completes
+     * @return the suggester file
+     */
+    public static File getFile(File dataRoot, String project, String field) {
+        File dir = new File(dataRoot, "suggester");
+        if (project != null) {
+            dir = new File(dir, project);
+        }
+        return new File(dir, field + ".wfst");
+    }
+
+    /**
+     * Build the suggesters for all {@link #FIELDS} of an index and write
+     * them to the given directory. Each file is replaced atomically, so that
+     * concurrent readers either see the old or the new suggester.
+     *
+     * @param reader the reader of the Lucene index
+     * @param dataRoot the data root directory
+     * @param project the path of the project, or {@code null} if projects
+     * are not used
+     * @throws IOException if an error occurs while reading the index or
+     * writing the files
+     */
+    public static void build(IndexReader reader, File dataRoot, String project)
+            throws IOException {
+        for (String field : FIELDS) {
+            File file = getFile(dataRoot, project, field);
+            if (MultiFields.getTerms(reader, field) == null) {
+                if (file.exists() && !file.delete()) {
+                    throw new IOException("Failed to remove "
+                            + file.getAbsolutePath());
+                }
+                continue;
+            }
+            WFSTCompletionLookup wfst = new WFSTCompletionLookup(true);
+            wfst.build(new HighFrequencyDictionary(reader, field, 0f));
+            write(wfst, file);
+        }
+    }
+
+    private static void write(WFSTCompletionLookup wfst, File file)
+            throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Failed to create directory "
+                    + dir.getAbsolutePath());
+        }
+        File tmp = new File(dir, file.getName() + ".tmp");
+        boolean stored;
+        try (OutputStream out = new BufferedOutputStream(
+                    new FileOutputStream(tmp))) {
+            stored = wfst.store(out);
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Failed to remove " + file.getAbsolutePath());
+        }
+        if (!stored) {
+            // nothing to complete
+            if (!tmp.delete()) {
+                throw new IOException("Failed to remove "
+                        + tmp.getAbsolutePath());
+            }
+        } else if (!tmp.renameTo(file)) {
+            throw new IOException("Failed to rename " + tmp.getAbsolutePath()
+                    + " to " + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Get the suggester stored in the given file. Suggesters are loaded once
+     * and reloaded when the file has been rewritten by the indexer.
+     *
+     * @param file the suggester file
+     * @return the suggester, or {@code null} if the file does not exist
+     * @throws IOException if the file cannot be read
+     */
+    public static CompletionIndex get(File file) throws IOException {
+        long modified = file.lastModified();
+        if (modified == 0L) {
+            loaded.remove(file);
+            return null;
+        }
+        CompletionIndex index = loaded.get(file);
+        if (index == null || index.lastModified != modified) {
+            WFSTCompletionLookup wfst = new WFSTCompletionLookup(true);
+            try (InputStream in = new BufferedInputStream(
+                        new FileInputStream(file))) {
+                if (!wfst.load(in)) {
+                    throw new IOException("Failed to load "
+                            + file.getAbsolutePath());
+                }
+            }
+            index = new CompletionIndex(wfst, modified);
+            loaded.put(file, index);
+        }
+        return index;
+    }
+
+    /**
+     * Get the most common completions of a prefix.
+     *
+     * @param prefix the prefix to complete
+     * @param max the maximum number of completions to return
+     * @return the completions, ordered by descending weight
+     */
+    public List<Completion> lookup(String prefix, int max) {
+        List<Completion> result = new ArrayList<Completion>();
+        for (LookupResult r : lookup.lookup(prefix, false, max)) {
+            result.add(new Completion(r.key.toString(), r.value));
+        }
+        return result;
+    }
+
+    /**
+     * Get the most common completions of a prefix over several suggesters,
+     * e.g. the suggesters of all selected projects. The weights of
+     * completions returned by more than one suggester are added up.
+     *
+     * @param indexes the suggesters to consult
+     * @param prefix the prefix to complete
+     * @param max the maximum number of completions to return
+     * @return the completions, ordered by descending weight
+     */
+    public static List<Completion> lookup(List<CompletionIndex> indexes,
+            String prefix, int max) {
+        if (indexes.size() == 1) {
+            return indexes.get(0).lookup(prefix, max);
+        }
+        Map<String, Long> weights = new HashMap<String, Long>();
+        for (CompletionIndex index : indexes) {
+            for (Completion c : index.lookup(prefix, max)) {
+                Long w = weights.get(c.getText());
+                weights.put(c.getText(),
+                        w == null ? c.getWeight() : w + c.getWeight());
+            }
+        }
+        List<Completion> result = new ArrayList<Completion>(weights.size());
+        for (Map.Entry<String, Long> e : weights.entrySet()) {
+            result.add(new Completion(e.getKey(), e.getValue()));
+        }
+        Collections.sort(result, new Comparator<Completion>() {
+            @Override
+            public int compare(Completion c1, Completion c2) {
+                if (c1.getWeight() != c2.getWeight()) {
+                    return c1.getWeight() > c2.getWeight() ? -1 : 1;
+                }
+                return c1.getText().compareTo(c2.getText());
+            }
+        });
+        return result.size() > max ? result.subList(0, max) : result;
+    }
+}
@@ -23,6 +23,10 @@
  */
 package org.opensolaris.opengrok.search;
 
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.Query;
@@ -34,13 +38,30 @@ import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
  */
 class CustomQueryParser extends QueryParser {
 
+    /** the reader the queries are going to be executed on, or {@code null} */
+    private final IndexReader reader;
+
     /**
-     * Create a query parser customized for OpenGrok.
+     * Create a query parser customized for OpenGrok, which does not use the
+     * reversed terms.
      *
      * @param field default field for unqualified query terms
      */
     CustomQueryParser(String field) {
+        this(field, null);
+    }
+
+    /**
+     * Create a query parser customized for OpenGrok.
+     *
+     * @param field default field for unqualified query terms
+     * @param reader the reader the queries are going to be executed on, used
+     * to check whether its index has reversed terms, or {@code null} to not
+     * use them
+     */
+    CustomQueryParser(String field, IndexReader reader) {
         super(SearchEngine.LUCENE_VERSION, field, new CompatibleAnalyser());
+        this.reader = reader;
         setDefaultOperator(AND_OPERATOR);
         setAllowLeadingWildcard(
                 RuntimeEnvironment.getInstance().isAllowLeadingWildcard());
@@ -108,6 +129,84 @@ class CustomQueryParser extends QueryParser {
     @Override
     protected Query getWildcardQuery(String field, String term)
             throws ParseException {
-        return super.getWildcardQuery(field, getCanonicalTerm(field, term));
+        String canonical = getCanonicalTerm(field, term);
+        Query reversed = getReversedWildcardQuery(field, canonical);
+        if (reversed != null) {
+            return reversed;
+        }
+        return super.getWildcardQuery(field, canonical);
+    }
+
+    /**
+     * Turn a wildcard query with a leading wildcard into a query on the
+     * reversed terms of the field, so that it can seek to the matching terms
+     * instead of enumerating all terms of the field. For example
+     * {@code *Handler} gets {@code defsrev:reldnaH*}.
+     *
+     * @param field the field to search on
+     * @param term the canonical wildcard term
+     * @return a query on the reversed field, or {@code null} if the term
+     * does not benefit from it or reversed terms are not indexed
+     */
+    private Query getReversedWildcardQuery(String field, String term) {
+        String reversedField = QueryBuilder.getReversedField(field);
+        if (reversedField == null || term.isEmpty()
+                || !getAllowLeadingWildcard()
+                || !RuntimeEnvironment.getInstance().isIndexReversedTerms()
+                || !isWildcard(term.charAt(0))
+                || isWildcard(term.charAt(term.length() - 1))
+                // escaped characters can't be reversed as easily
+                || term.indexOf('\\') >= 0
+                || !hasReversedTerms(field, reversedField)) {
+            return null;
+        }
+        String reversed = new StringBuilder(term).reverse().toString();
+        int last = reversed.length() - 1;
+        int i = 0;
+        while (!isWildcard(reversed.charAt(i))) {
+            i++;
+        }
+        if (i == last && reversed.charAt(last) == '*') {
+            return newPrefixQuery(
+                    new Term(reversedField, reversed.substring(0, last)));
+        }
+        return newWildcardQuery(new Term(reversedField, reversed));
+    }
+
+    /**
+     * Check whether every segment which has the given field also has its
+     * reversed twin. Segments indexed before the reversed terms were
+     * introduced, or with them disabled, must be searched on the original
+     * field.
+     */
+    private boolean hasReversedTerms(String field, String reversedField) {
+        if (reader == null) {
+            return false;
+        }
+        for (AtomicReaderContext ctx : reader.leaves()) {
+            FieldInfos infos = ctx.reader().getFieldInfos();
+            if (infos.fieldInfo(field) != null
+                    && infos.fieldInfo(reversedField) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWildcard(char c) {
+        return c == '*' || c == '?';
+    }
+
+    /**
+     * Regular expressions (enclosed in slashes) in the free text field are
+     * matched against the lines of the source files instead of single terms.
+     */
+    @Override
+    protected Query getRegexpQuery(String field, String termStr)
+            throws ParseException {
+        if (QueryBuilder.FULL.equals(field)) {
+            return RegexpContentQuery.create(field, termStr);
+        }
+        return super.getRegexpQuery(field, termStr);
     }
 }
@@ -0,0 +1,578 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.InputStreamDataInput;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.StringHelper;
+import org.apache.lucene.util.fst.Builder;
+import org.apache.lucene.util.fst.ByteSequenceOutputs;
+import org.apache.lucene.util.fst.BytesRefFSTEnum;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.Util;
+import org.opensolaris.opengrok.analysis.Definitions;
+
+/**
+ * A compact index of all symbol definitions of a project, which maps each
+ * defined symbol to the files, lines and kinds of its definitions.
+ * <p>
+ * The symbols are stored in a finite state transducer (FST), which is
+ * written next to the Lucene index when the index gets updated and kept in
+ * memory by the web application. Exact and prefix lookups therefore neither
+ * need a Lucene query nor the deserialization of the {@code tags} field of
+ * the matching documents.
+ * <p>
+ * The definitions refer to files by path and not by document number, since
+ * the latter change whenever Lucene merges segments.
+ */
+public final class DefinitionIndex {
+
+    /** Name of the index file within the definition index directory. */
+    public static final String FILE_NAME = "definitions.fst";
+
+    private static final String CODEC = "OpenGrokDefinitions";
+    private static final int VERSION = 1;
+
+    private static final Logger log =
+            Logger.getLogger(DefinitionIndex.class.getName());
+
+    /** Loaded indexes, keyed by the index file. */
+    private static final Map<File, DefinitionIndex> loaded =
+            new ConcurrentHashMap<File, DefinitionIndex>();
+
+    private final FST<BytesRef> fst;
+    private final String[] paths;
+    private final String[] kinds;
+    private final long lastModified;
+    /** the version of the Lucene index this index was built from */
+    private final long indexVersion;
+
+    private DefinitionIndex(FST<BytesRef> fst, String[] paths, String[] kinds,
+            long lastModified, long indexVersion) {
+        this.fst = fst;
+        this.paths = paths;
+        this.kinds = kinds;
+        this.lastModified = lastModified;
+        this.indexVersion = indexVersion;
+    }
+
+    /**
+     * A single definition of a symbol.
+     */
+    public static final class Definition {
+
+        private final String symbol;
+        private final String path;
+        private final int line;
+        private final String kind;
+
+        Definition(String symbol, String path, int line, String kind) {
+            this.symbol = symbol;
+            this.path = path;
+            this.line = line;
+            this.kind = kind;
+        }
+
+        /**
+         * @return the defined symbol
+         */
+        public String getSymbol() {
+            return symbol;
+        }
+
+        /**
+         * @return the path of the defining file, relative to the source root
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the line number of the definition
+         */
+        public int getLine() {
+            return line;
+        }
+
+        /**
+         * @return the kind of the definition as reported by ctags, e.g.
+         * {@code function}, or {@code null} if unknown
+         */
+        public String getKind() {
+            return kind;
+        }
+    }
+
+    /**
+     * Orders the definitions of a symbol by path and line. The definitions
+     * of files changed by an update get appended to the existing ones.
+     */
+    private static final Comparator<Definition> BY_PATH =
+            new Comparator<Definition>() {
+        @Override
+        public int compare(Definition d1, Definition d2) {
+            int c = d1.path.compareTo(d2.path);
+            return c != 0 ? c : (d1.line < d2.line ? -1
+                    : (d1.line == d2.line ? 0 : 1));
+        }
+    };
+
+    /**
+     * Get the file holding the definition index of a project.
+     *
+     * @param dataRoot the data root directory
+     * @param project the path of the project, or {@code null} if projects
+     * are not used
+     * @return the index file
+     */
+    public static File getFile(File dataRoot, String project) {
+        File dir = new File(dataRoot, "definitions");
+        if (project != null) {
+            dir = new File(dir, project);
+        }
+        return new File(dir, FILE_NAME);
+    }
+
+    /**
+     * Build the definition index for all live documents of an index reader
+     * and write it to the given file. The file is replaced atomically, so
+     * that concurrent readers either see the old or the new index.
+     *
+     * @param reader the reader of the Lucene index
+     * @param file the file to write
+     * @throws IOException if an error occurs while reading the index or
+     * writing the file
+     */
+    public static void build(DirectoryReader reader, File file)
+            throws IOException {
+        update(reader, file, -1L, null);
+    }
+
+    /**
+     * Update the definition index after some files have been added to or
+     * removed from the Lucene index. If the existing definition index has
+     * been built from the version of the Lucene index the changes were
+     * applied to, only the definitions of the changed files are read from
+     * the Lucene index, and the others are copied from the existing
+     * definition index. Otherwise it is rebuilt from all documents, like
+     * {@link #build(DirectoryReader, File)} does.
+     *
+     * @param reader the reader of the updated Lucene index
+     * @param file the file to update
+     * @param baseVersion the version of the Lucene index before the changes
+     * (see {@link DirectoryReader#getVersion()})
+     * @param changed the paths of the files added or removed since that
+     * version, or {@code null} if unknown
+     * @throws IOException if an error occurs while reading the index or
+     * writing the file
+     */
+    public static void update(DirectoryReader reader, File file,
+            long baseVersion, Set<String> changed) throws IOException {
+        DefinitionIndex old = null;
+        if (changed != null && baseVersion >= 0 && file.exists()) {
+            try {
+                old = load(file, file.lastModified());
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to read the definition index "
+                        + file + ", rebuilding it", e);
+            }
+            if (old != null && old.indexVersion != baseVersion) {
+                // the Lucene index has been changed since, e.g. by an
+                // update which got interrupted
+                old = null;
+            }
+        }
+
+        Postings postings = new Postings();
+        Bits live = MultiFields.getLiveDocs(reader);
+        if (old == null) {
+            for (int i = 0; i < reader.maxDoc(); i++) {
+                if (live == null || live.get(i)) {
+                    postings.addDocument(reader, i);
+                }
+            }
+        } else {
+            old.copyTo(postings, changed);
+            Terms terms = MultiFields.getTerms(reader, QueryBuilder.U);
+            TermsEnum uids = terms == null ? null : terms.iterator(null);
+            if (uids != null) {
+                for (String path : changed) {
+                    addDocuments(postings, reader, uids, live, path);
+                }
+            }
+        }
+        postings.write(file, reader.getVersion());
+    }
+
+    /**
+     * Add the definitions of the live documents of a file to the postings.
+     * The documents are found by the prefix of their unique id, which is
+     * the path followed by the date.
+     */
+    private static void addDocuments(Postings postings, IndexReader reader,
+            TermsEnum uids, Bits live, String path) throws IOException {
+        BytesRef prefix = new BytesRef(
+                org.opensolaris.opengrok.web.Util.path2uid(path, ""));
+        if (uids.seekCeil(prefix) == TermsEnum.SeekStatus.END) {
+            return;
+        }
+        DocsEnum docs = null;
+        for (BytesRef uid = uids.term(); uid != null
+                && StringHelper.startsWith(uid, prefix); uid = uids.next()) {
+            if (isFileUid(uid, prefix.length)) {
+                // no frequencies needed
+                docs = uids.docs(live, docs, 0);
+                for (int doc = docs.nextDoc();
+                        doc != DocIdSetIterator.NO_MORE_DOCS;
+                        doc = docs.nextDoc()) {
+                    postings.addDocument(reader, doc);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check whether the rest of a unique id after the prefix of a file is
+     * a date. Otherwise it is the unique id of a file in a directory of the
+     * same name.
+     */
+    private static boolean isFileUid(BytesRef uid, int prefixLength) {
+        for (int i = prefixLength; i < uid.length; i++) {
+            if (uid.bytes[uid.offset + i] == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add the definitions of this index to the postings, except for the
+     * definitions in the given files.
+     */
+    private void copyTo(Postings postings, Set<String> excluded)
+            throws IOException {
+        if (fst == null) {
+            return;
+        }
+        BytesRefFSTEnum<BytesRef> fstEnum = new BytesRefFSTEnum<BytesRef>(fst);
+        BytesRefFSTEnum.InputOutput<BytesRef> io;
+        while ((io = fstEnum.next()) != null) {
+            ByteArrayDataInput in = new ByteArrayDataInput(io.output.bytes,
+                    io.output.offset, io.output.length);
+            while (!in.eof()) {
+                String path = paths[in.readVInt()];
+                int line = in.readVInt();
+                String kind = kinds[in.readVInt()];
+                if (!excluded.contains(path)) {
+                    postings.add(io.input, path, line, kind);
+                }
+            }
+        }
+    }
+
+    /**
+     * The definitions collected for a new index, in the order the FST
+     * builder requires.
+     */
+    private static final class Postings {
+
+        // BytesRef orders by unsigned bytes, which is the order the FST
+        // builder requires
+        private final TreeMap<BytesRef, ByteArrayOutputStream> postings =
+                new TreeMap<BytesRef, ByteArrayOutputStream>();
+        private final List<String> pathList = new ArrayList<String>();
+        private final Map<String, Integer> pathIds =
+                new HashMap<String, Integer>();
+        private final List<String> kindList = new ArrayList<String>();
+        private final Map<String, Integer> kindIds =
+                new HashMap<String, Integer>();
+
+        /**
+         * Add the definitions stored in a document.
+         */
+        void addDocument(IndexReader reader, int docId) throws IOException {
+            SelectiveFieldVisitor visitor = new SelectiveFieldVisitor(
+                    QueryBuilder.PATH, QueryBuilder.TAGS);
+            reader.document(docId, visitor);
+            Document doc = visitor.getDocument();
+            IndexableField tags = doc.getField(QueryBuilder.TAGS);
+            String path = doc.get(QueryBuilder.PATH);
+            if (tags == null || path == null) {
+                return;
+            }
+            Definitions defs;
+            try {
+                defs = Definitions.deserialize(tags.binaryValue().bytes);
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Failed to read the definitions of "
+                        + path, e);
+            }
+            for (Definitions.Tag tag : defs.getTags()) {
+                if (tag.symbol != null && tag.symbol.length() > 0) {
+                    add(new BytesRef(tag.symbol), path, tag.line,
+                            tag.type == null ? "" : tag.type);
+                }
+            }
+        }
+
+        /**
+         * Add a single definition.
+         */
+        void add(BytesRef symbol, String path, int line, String kind)
+                throws IOException {
+            ByteArrayOutputStream bytes = postings.get(symbol);
+            if (bytes == null) {
+                bytes = new ByteArrayOutputStream(8);
+                postings.put(BytesRef.deepCopyOf(symbol), bytes);
+            }
+            DataOutput out = new OutputStreamDataOutput(bytes);
+            out.writeVInt(getId(path, pathList, pathIds));
+            out.writeVInt(Math.max(0, line));
+            out.writeVInt(getId(kind, kindList, kindIds));
+        }
+
+        private static int getId(String value, List<String> list,
+                Map<String, Integer> ids) {
+            Integer id = ids.get(value);
+            if (id == null) {
+                id = list.size();
+                list.add(value);
+                ids.put(value, id);
+            }
+            return id;
+        }
+
+        /**
+         * Build the FST and write the index to a file. The file is replaced
+         * atomically.
+         */
+        void write(File file, long indexVersion) throws IOException {
+            ByteSequenceOutputs outputs = ByteSequenceOutputs.getSingleton();
+            Builder<BytesRef> builder =
+                    new Builder<BytesRef>(FST.INPUT_TYPE.BYTE1, outputs);
+            IntsRef scratch = new IntsRef();
+            for (Map.Entry<BytesRef, ByteArrayOutputStream> e
+                    : postings.entrySet()) {
+                builder.add(Util.toIntsRef(e.getKey(), scratch),
+                        new BytesRef(e.getValue().toByteArray()));
+            }
+            FST<BytesRef> result = builder.finish();
+
+            File dir = file.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("Failed to create directory "
+                        + dir.getAbsolutePath());
+            }
+            File tmp = new File(dir, file.getName() + ".tmp");
+            try (OutputStream os = new BufferedOutputStream(
+                        new FileOutputStream(tmp))) {
+                DataOutput out = new OutputStreamDataOutput(os);
+                CodecUtil.writeHeader(out, CODEC, VERSION);
+                out.writeLong(indexVersion);
+                writeStrings(out, pathList);
+                writeStrings(out, kindList);
+                out.writeByte((byte) (result == null ? 0 : 1));
+                if (result != null) {
+                    result.save(out);
+                }
+            }
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Failed to remove "
+                        + file.getAbsolutePath());
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Failed to rename "
+                        + tmp.getAbsolutePath() + " to "
+                        + file.getAbsolutePath());
+            }
+        }
+    }
+
+    private static void writeStrings(DataOutput out, List<String> strings)
+            throws IOException {
+        out.writeVInt(strings.size());
+        for (String s : strings) {
+            out.writeString(s == null ? "" : s);
+        }
+    }
+
+    private static String[] readStrings(DataInput in) throws IOException {
+        String[] strings = new String[in.readVInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = in.readString();
+        }
+        return strings;
+    }
+
+    /**
+     * Get the definition index stored in the given file. Indexes are loaded
+     * once and reloaded when the file has been rewritten by the indexer.
+     *
+     * @param file the index file
+     * @return the index, or {@code null} if the file does not exist
+     * @throws IOException if the file cannot be read
+     */
+    public static DefinitionIndex get(File file) throws IOException {
+        long modified = file.lastModified();
+        if (modified == 0L) {
+            loaded.remove(file);
+            return null;
+        }
+        DefinitionIndex index = loaded.get(file);
+        if (index == null || index.lastModified != modified) {
+            index = load(file, modified);
+            loaded.put(file, index);
+        }
+        return index;
+    }
+
+    private static DefinitionIndex load(File file, long modified)
+            throws IOException {
+        try (InputStream is = new BufferedInputStream(
+                    new FileInputStream(file))) {
+            DataInput in = new InputStreamDataInput(is);
+            int version = CodecUtil.checkHeader(in, CODEC, 0, VERSION);
+            // the first version didn't record the version of the index
+            long indexVersion = version > 0 ? in.readLong() : -1L;
+            String[] paths = readStrings(in);
+            String[] kinds = readStrings(in);
+            FST<BytesRef> fst = null;
+            if (in.readByte() != 0) {
+                fst = new FST<BytesRef>(in,
+                        ByteSequenceOutputs.getSingleton());
+            }
+            return new DefinitionIndex(fst, paths, kinds, modified,
+                    indexVersion);
+        }
+    }
+
+    /**
+     * Find the definitions of a symbol.
+     *
+     * @param symbol the symbol to look up (case sensitive)
+     * @return the definitions of the symbol, ordered by path and line
+     * @throws IOException if an error occurs while traversing the FST
+     */
+    public List<Definition> lookup(String symbol) throws IOException {
+        if (fst == null) {
+            return Collections.emptyList();
+        }
+        BytesRef postings = Util.get(fst, new BytesRef(symbol));
+        if (postings == null) {
+            return Collections.emptyList();
+        }
+        List<Definition> result = new ArrayList<Definition>();
+        decode(symbol, postings, result, Integer.MAX_VALUE);
+        Collections.sort(result, BY_PATH);
+        return result;
+    }
+
+    /**
+     * Find the definitions of all symbols starting with the given prefix.
+     *
+     * @param prefix the prefix of the symbols to look up (case sensitive)
+     * @param max the maximum number of definitions to return
+     * @return the definitions, ordered by symbol, path and line
+     * @throws IOException if an error occurs while traversing the FST
+     */
+    public List<Definition> lookupPrefix(String prefix, int max)
+            throws IOException {
+        List<Definition> result = new ArrayList<Definition>();
+        if (fst == null) {
+            return result;
+        }
+        BytesRef target = new BytesRef(prefix);
+        BytesRefFSTEnum<BytesRef> fstEnum = new BytesRefFSTEnum<BytesRef>(fst);
+        BytesRefFSTEnum.InputOutput<BytesRef> io = fstEnum.seekCeil(target);
+        while (io != null && result.size() < max
+                && startsWith(io.input, target)) {
+            int from = result.size();
+            decode(io.input.utf8ToString(), io.output, result, max);
+            Collections.sort(result.subList(from, result.size()), BY_PATH);
+            io = fstEnum.next();
+        }
+        return result;
+    }
+
+    private static boolean startsWith(BytesRef term, BytesRef prefix) {
+        if (term.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (term.bytes[term.offset + i]
+                    != prefix.bytes[prefix.offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void decode(String symbol, BytesRef postings,
+            List<Definition> result, int max) {
+        ByteArrayDataInput in = new ByteArrayDataInput(postings.bytes,
+                postings.offset, postings.length);
+        while (!in.eof() && result.size() < max) {
+            String path = paths[in.readVInt()];
+            int line = in.readVInt();
+            String kind = kinds[in.readVInt()];
+            result.add(new Definition(symbol, path, line,
+                    kind.length() == 0 ? null : kind));
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import org.apache.lucene.search.TopDocs;
+
+/**
+ * Top documents of a search which has been stopped before all matching
+ * documents were collected, because it ran out of time. The total hit count
+ * only covers the documents seen so far.
+ *
+ * @see QueryBudget
+ */
+public final class PartialTopDocs extends TopDocs {
+
+    /**
+     * Create a partial result from what has been collected so far.
+     *
+     * @param docs the collected top documents
+     */
+    public PartialTopDocs(TopDocs docs) {
+        super(docs.totalHits, docs.scoreDocs, docs.getMaxScore());
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TimeLimitingCollector;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopFieldCollector;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+import org.apache.lucene.util.automaton.CompiledAutomaton;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+
+/**
+ * Limits the resources a single query may use, so that a pathological query
+ * (like {@code full:*a*}) does not keep the search threads busy for minutes.
+ * <ul>
+ * <li>Before a query is executed, the number of terms each
+ * {@link WildcardQuery} and {@link PrefixQuery} in it expands to is
+ * estimated. If a query expands to more terms than the degrade limit, it is
+ * rewritten to use only the top scoring terms. If it expands to more terms
+ * than the reject limit, it is refused. Note that degrading only bounds the
+ * number of terms searched, rewriting the query still enumerates all the
+ * terms it matches to pick the top scoring ones.</li>
+ * <li>A query is stopped once it ran longer than the time limit, and the
+ * hits collected so far are returned as {@link PartialTopDocs}. This
+ * includes the verification of the candidates of a
+ * {@link RegexpContentQuery}, which happens before they are collected.</li>
+ * </ul>
+ */
+public class QueryBudget {
+
+    private static final Logger log =
+            Logger.getLogger(QueryBudget.class.getName());
+
+    private final long timeLimit;
+    private final int degradeLimit;
+    private final int rejectLimit;
+
+    /**
+     * Create a new budget.
+     *
+     * @param timeLimit the maximum time in milliseconds a search may take,
+     * or a number {@code <= 0} for no limit
+     * @param degradeLimit the number of terms a multi term query may expand
+     * to before it gets rewritten to use only the top scoring terms, or a
+     * number {@code <= 0} for no limit
+     * @param rejectLimit the number of terms a multi term query may expand to
+     * before it gets refused, or a number {@code <= 0} for no limit
+     */
+    public QueryBudget(long timeLimit, int degradeLimit, int rejectLimit) {
+        this.timeLimit = timeLimit;
+        this.degradeLimit = degradeLimit;
+        this.rejectLimit = rejectLimit;
+    }
+
+    /**
+     * Create a budget with the limits set in the current configuration.
+     *
+     * @return a new budget
+     */
+    public static QueryBudget getDefault() {
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        return new QueryBudget(env.getSearchTimeLimit(),
+                env.getQueryTermExpansionDegradeLimit(),
+                env.getQueryTermExpansionRejectLimit());
+    }
+
+    /**
+     * Estimate the cost of the given query, and degrade it if it is too
+     * expensive. Degrading modifies the given query in place.
+     *
+     * @param query the query to check
+     * @param reader the reader the query is going to be executed on
+     * @return {@code true} if the query has been degraded
+     * @throws QueryTooExpensiveException if the query is too expensive to be
+     * executed at all
+     * @throws IOException if an error occurs while reading the index
+     */
+    public boolean check(Query query, IndexReader reader)
+            throws QueryTooExpensiveException, IOException {
+        if (query instanceof BooleanQuery) {
+            boolean degraded = false;
+            for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+                degraded |= check(clause.getQuery(), reader);
+            }
+            return degraded;
+        }
+        if (!(query instanceof WildcardQuery || query instanceof PrefixQuery)
+                || (degradeLimit <= 0 && rejectLimit <= 0)) {
+            return false;
+        }
+
+        int limit = rejectLimit > 0 ? rejectLimit : degradeLimit;
+        int count = countTerms((MultiTermQuery) query, reader, limit);
+        if (rejectLimit > 0 && count > rejectLimit) {
+            log.log(Level.INFO, "Refused query {0}: expands to more than {1} terms",
+                    new Object[]{query, rejectLimit});
+            throw new QueryTooExpensiveException("Query '" + query
+                    + "' matches too many terms, please use a more specific"
+                    + " pattern");
+        }
+        if (degradeLimit > 0 && count > degradeLimit) {
+            log.log(Level.FINE, "Degraded query {0}: expands to {1} terms",
+                    new Object[]{query, count});
+            ((MultiTermQuery) query).setRewriteMethod(
+                    new MultiTermQuery.TopTermsScoringBooleanQueryRewrite(
+                    degradeLimit));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Count the terms a wildcard or prefix query expands to.
+     *
+     * @param query the query
+     * @param reader the reader to count the terms in
+     * @param limit stop counting once this number has been exceeded
+     * @return the number of terms, at most {@code limit + 1}
+     */
+    private static int countTerms(MultiTermQuery query, IndexReader reader,
+            int limit) throws IOException {
+        Terms terms = MultiFields.getTerms(reader, query.getField());
+        if (terms == null) {
+            return 0;
+        }
+        int count = 0;
+        if (query instanceof PrefixQuery) {
+            BytesRef prefix = ((PrefixQuery) query).getPrefix().bytes();
+            TermsEnum te = terms.iterator(null);
+            if (te.seekCeil(prefix, true) == TermsEnum.SeekStatus.END) {
+                return 0;
+            }
+            BytesRef term = te.term();
+            while (term != null && StringHelper.startsWith(term, prefix)
+                    && count <= limit) {
+                count++;
+                term = te.next();
+            }
+        } else {
+            Term t = ((WildcardQuery) query).getTerm();
+            TermsEnum te = new CompiledAutomaton(WildcardQuery.toAutomaton(t))
+                    .getTermsEnum(terms);
+            while (te.next() != null && count <= limit) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Search the top documents for a query, honoring the time limit.
+     *
+     * @param searcher the searcher to use
+     * @param query the query to execute
+     * @param after the hit to search after (see
+     * {@link IndexSearcher#searchAfter(ScoreDoc, Query, org.apache.lucene.search.Filter, int, Sort)}),
+     * or {@code null} to start with the first hit
+     * @param n the number of top documents to collect
+     * @param sort the sort order
+     * @return the top documents, {@link PartialTopDocs} if the time limit
+     * has been exceeded
+     * @throws IOException if an error occurs while searching
+     */
+    public TopDocs search(IndexSearcher searcher, Query query, ScoreDoc after,
+            int n, Sort sort) throws IOException {
+        if (timeLimit <= 0) {
+            return after == null
+                    ? searcher.search(query, null, n, sort)
+                    : searcher.searchAfter(after, query, null, n, sort);
+        }
+
+        int limit = searcher.getIndexReader().maxDoc();
+        if (limit == 0) {
+            limit = 1;
+        }
+        TopFieldCollector collector = TopFieldCollector.create(sort,
+                Math.min(n, limit), (FieldDoc) after, true, false, false,
+                false);
+        TimeLimitingCollector tlc = new TimeLimitingCollector(collector,
+                TimeLimitingCollector.getGlobalCounter(), timeLimit);
+        setDeadline(query, System.currentTimeMillis() + timeLimit);
+        try {
+            searcher.search(query, tlc);
+        } catch (TimeLimitingCollector.TimeExceededException
+                | RegexpContentQuery.TimeExceededException e) {
+            log.log(Level.INFO, "Search time limit exceeded for query {0}",
+                    query);
+            return new PartialTopDocs(collector.topDocs());
+        } finally {
+            setDeadline(query, 0);
+        }
+        return collector.topDocs();
+    }
+
+    /**
+     * Set the deadline of the regular expression queries in the given query.
+     */
+    private static void setDeadline(Query query, long deadline) {
+        if (query instanceof BooleanQuery) {
+            for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+                setDeadline(clause.getQuery(), deadline);
+            }
+        } else if (query instanceof RegexpContentQuery) {
+            ((RegexpContentQuery) query).setDeadline(deadline);
+        }
+    }
+}
@@ -29,6 +29,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Map;
 import java.util.TreeMap;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanClause.Occur;
@@ -58,6 +59,15 @@ public class QueryBuilder {
     public static final String FULLPATH = "fullpath";
     public static final String PROJECT = "project";
     public static final String DATE = "date";
+    public static final String TRIGRAM = "trigram";
+    public static final String LINES = "lines";
+    /**
+     * Fields holding the reversed terms of the full, defs and refs fields,
+     * used to answer leading wildcard queries with a prefix query
+     */
+    public static final String FULL_REVERSED = "fullrev";
+    public static final String DEFS_REVERSED = "defsrev";
+    public static final String REFS_REVERSED = "refsrev";
     /**
      * A map containing the query text for each field. (We use a sorted map here
      * only because we have tests that check the generated query string. If we
@@ -66,6 +76,42 @@ public class QueryBuilder {
      */
     private final Map<String, String> queries = new TreeMap<String, String>();
 
+    /**
+     * Get the field holding the reversed terms of a field.
+     *
+     * @param field the name of the field
+     * @return the name of the reversed field, or {@code null} if the terms of
+     * the given field don't get indexed in reverse
+     */
+    public static String getReversedField(String field) {
+        if (FULL.equals(field)) {
+            return FULL_REVERSED;
+        } else if (DEFS.equals(field)) {
+            return DEFS_REVERSED;
+        } else if (REFS.equals(field)) {
+            return REFS_REVERSED;
+        }
+        return null;
+    }
+
+    /**
+     * Get the field whose terms are indexed in reverse in the given field.
+     *
+     * @param field the name of a field
+     * @return the name of the original field, or {@code null} if the given
+     * field does not hold reversed terms
+     */
+    public static String getUnreversedField(String field) {
+        if (FULL_REVERSED.equals(field)) {
+            return FULL;
+        } else if (DEFS_REVERSED.equals(field)) {
+            return DEFS;
+        } else if (REFS_REVERSED.equals(field)) {
+            return REFS;
+        }
+        return null;
+    }
+
     /**
      * Set search string for the "full" field.
      *
@@ -188,6 +234,20 @@ public class QueryBuilder {
      * @throws ParseException if the query text cannot be parsed
      */
     public Query build() throws ParseException {
+        return build(null);
+    }
+
+    /**
+     * Build a new query based on the query text that has been passed in to this
+     * builder, for execution on the given reader. Leading wildcards are
+     * searched on the reversed terms if the index of the reader has them.
+     *
+     * @param reader the reader the query is going to be executed on, or
+     * {@code null} if unknown
+     * @return a query, or {@code null} if no query text is available.
+     * @throws ParseException if the query text cannot be parsed
+     */
+    public Query build(IndexReader reader) throws ParseException {
         if (queries.isEmpty()) {
             // We don't have any text to parse
             return null;
@@ -197,7 +257,8 @@ public class QueryBuilder {
         for (Map.Entry<String, String> entry : queries.entrySet()) {
             String field = entry.getKey();
             String queryText = entry.getValue();
-            queryList.add(buildQuery(field, escapeQueryString(field, queryText)));
+            queryList.add(buildQuery(field, escapeQueryString(field, queryText),
+                    reader));
         }
         // If we only have one sub-query, return it directly
         if (queryList.size() == 1) {
@@ -277,12 +338,14 @@ public class QueryBuilder {
      *
      * @param field the field to build the query against
      * @param queryText the query text
+     * @param reader the reader the query is going to be executed on, or
+     * {@code null}
      * @return a parsed query
      * @throws ParseException if the query text cannot be parsed
      */
-    private Query buildQuery(String field, String queryText)
-            throws ParseException {
-        return new CustomQueryParser(field).parse(queryText);
+    private Query buildQuery(String field, String queryText,
+            IndexReader reader) throws ParseException {
+        return new CustomQueryParser(field, reader).parse(queryText);
     }
 
     /**
@@ -0,0 +1,44 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+
+package org.opensolaris.opengrok.search;
+
+/**
+ * Exception thrown when a query is estimated to be too expensive to be
+ * executed.
+ *
+ * @see QueryBudget
+ */
+public class QueryTooExpensiveException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Construct a {@code QueryTooExpensiveException} with the specified
+     * message.
+     *
+     * @param msg the message string
+     */
+    public QueryTooExpensiveException(String msg) {
+        super(msg);
+    }
+}
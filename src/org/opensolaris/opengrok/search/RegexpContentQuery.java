@@ -0,0 +1,648 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.ToStringUtils;
+import org.opensolaris.opengrok.analysis.TrigramTokenizer;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+
+/**
+ * Query for source files with a line matching a regular expression (or,
+ * if the expression consists of literal characters only, containing a
+ * substring). Like the {@code full} field, the expression is matched case
+ * insensitively, unless turned off with the {@code (?-i)} flag.
+ * <p>
+ * The query runs in two phases: the {@code trigram} field is used to find the
+ * candidate documents, which contain all the trigrams of the literal parts of
+ * the expression. Only the candidates are then verified by matching the
+ * expression against the lines of the source file. Only the first
+ * {@value #MAX_VERIFY_BYTES} bytes of a file are verified, and the
+ * verification stops with a {@link TimeExceededException} once the deadline
+ * set by {@link QueryBudget} has passed.
+ */
+public class RegexpContentQuery extends Query {
+
+    private static final Logger log =
+            Logger.getLogger(RegexpContentQuery.class.getName());
+
+    private final String field;
+    private final String regexp;
+    private final Pattern pattern;
+    private final Query trigrams;
+    /** when the verification has to stop, 0 if unlimited */
+    private volatile long deadline;
+
+    /** Max. number of bytes of a file read to verify it. */
+    static final int MAX_VERIFY_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * Thrown when the verification of the candidates has exceeded the
+     * deadline set with {@link RegexpContentQuery#setDeadline(long)}.
+     */
+    static final class TimeExceededException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        TimeExceededException() {
+            super("Time limit for verifying regular expression matches "
+                    + "exceeded");
+        }
+    }
+
+    private RegexpContentQuery(String field, String regexp, Pattern pattern,
+            Query trigrams) {
+        this.field = field;
+        this.regexp = regexp;
+        this.pattern = pattern;
+        this.trigrams = trigrams;
+    }
+
+    /**
+     * Create a query for files containing a line matching the given regular
+     * expression.
+     *
+     * @param field the field the expression has been given for, used for
+     * display purposes only
+     * @param regexp the regular expression (java.util.regex syntax)
+     * @return a new query
+     * @throws ParseException if the expression is invalid or too general to
+     * be searched efficiently
+     */
+    public static RegexpContentQuery create(String field, String regexp)
+            throws ParseException {
+        Pattern p;
+        try {
+            p = Pattern.compile(regexp, Pattern.CASE_INSENSITIVE);
+        } catch (PatternSyntaxException e) {
+            throw new ParseException("Invalid regular expression: "
+                    + e.getDescription());
+        }
+        Query q = getTrigramQuery(regexp);
+        if (q == null) {
+            throw new ParseException("Regular expression '" + regexp
+                    + "' needs at least " + TrigramTokenizer.GRAM_SIZE
+                    + " consecutive literal characters in each alternative");
+        }
+        return new RegexpContentQuery(field, regexp, p, q);
+    }
+
+    /**
+     * Get the regular expression this query searches for.
+     *
+     * @return the expression as given by the user
+     */
+    public String getRegexp() {
+        return regexp;
+    }
+
+    /**
+     * Get the compiled regular expression used to verify the candidates.
+     *
+     * @return a compiled pattern
+     */
+    public Pattern getPattern() {
+        return pattern;
+    }
+
+    /**
+     * Get the query used to find the candidate documents.
+     *
+     * @return a query on the trigram field
+     */
+    public Query getTrigramQuery() {
+        return trigrams;
+    }
+
+    /**
+     * Set the time when the verification of the candidates has to stop. It
+     * happens before the hits get collected, so a time limiting collector
+     * can't stop it.
+     *
+     * @param deadline the time in milliseconds, or {@code 0} for no limit
+     */
+    void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Build a query which matches all documents containing the trigrams of
+     * the parts of the expression which must be part of every match. Only
+     * top level alternatives are considered, groups, character classes and
+     * the like just separate the literal parts.
+     *
+     * @param regexp the regular expression
+     * @return the query, or {@code null} if at least one alternative has no
+     * literal part with a trigram
+     */
+    static Query getTrigramQuery(String regexp) {
+        List<String> branches = splitAlternatives(regexp);
+        BooleanQuery ret = new BooleanQuery();
+        for (String branch : branches) {
+            Set<String> grams = new LinkedHashSet<String>();
+            for (String run : getLiteralRuns(branch)) {
+                for (int i = 0; i + TrigramTokenizer.GRAM_SIZE <= run.length(); i++) {
+                    grams.add(run.substring(i, i + TrigramTokenizer.GRAM_SIZE));
+                }
+            }
+            if (grams.isEmpty()) {
+                return null;
+            }
+            BooleanQuery bq = new BooleanQuery();
+            for (String gram : grams) {
+                bq.add(new TermQuery(new Term(QueryBuilder.TRIGRAM, gram)),
+                        Occur.MUST);
+            }
+            if (branches.size() == 1) {
+                return bq;
+            }
+            ret.add(bq, Occur.SHOULD);
+        }
+        return ret;
+    }
+
+    /**
+     * Split a regular expression at its top level {@code |} operators.
+     */
+    private static List<String> splitAlternatives(String regexp) {
+        List<String> ret = new ArrayList<String>();
+        int depth = 0;
+        int from = 0;
+        for (int i = 0; i < regexp.length(); i++) {
+            char c = regexp.charAt(i);
+            if (c == '\\') {
+                i = skipEscape(regexp, i) - 1;
+            } else if (c == '[') {
+                i = skipClass(regexp, i) - 1;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '|' && depth == 0) {
+                ret.add(regexp.substring(from, i));
+                from = i + 1;
+            }
+        }
+        ret.add(regexp.substring(from));
+        return ret;
+    }
+
+    /**
+     * Get the runs of literal characters every match of the given expression
+     * (without top level alternatives) must contain. The runs are lower cased
+     * and never contain white space, like the indexed trigrams.
+     */
+    static List<String> getLiteralRuns(String regexp) {
+        List<String> runs = new ArrayList<String>();
+        StringBuilder run = new StringBuilder();
+        int i = 0;
+        while (i < regexp.length()) {
+            char c = regexp.charAt(i);
+            int next;
+            int literal = -1;
+            if (c == '\\') {
+                next = skipEscape(regexp, i);
+                if (i + 1 < regexp.length() && regexp.charAt(i + 1) == 'Q') {
+                    // quoted sequence: all literal, and like for a plain
+                    // literal a quantifier applies to the last character
+                    int end = regexp.indexOf("\\E", i + 2);
+                    String quoted = regexp.substring(i + 2,
+                            end < 0 ? regexp.length() : end);
+                    for (int j = 0; j < quoted.length() - 1; j++) {
+                        appendLiteral(runs, run, quoted.charAt(j));
+                    }
+                    if (quoted.length() > 0) {
+                        literal = quoted.charAt(quoted.length() - 1);
+                    }
+                } else if (next == i + 2
+                        && !Character.isLetterOrDigit(regexp.charAt(i + 1))) {
+                    literal = regexp.charAt(i + 1);
+                }
+            } else if (c == '[') {
+                next = skipClass(regexp, i);
+            } else if (c == '(') {
+                next = skipGroup(regexp, i);
+            } else if (c == '.' || c == '^' || c == '$' || c == ')') {
+                next = i + 1;
+            } else {
+                next = i + 1;
+                literal = c;
+            }
+
+            // check the quantifier of the atom, if any
+            int minCount = 1;
+            boolean repeated = false;
+            if (next < regexp.length()) {
+                char q = regexp.charAt(next);
+                boolean quantified = true;
+                if (q == '*' || q == '?') {
+                    minCount = 0;
+                    next++;
+                } else if (q == '+') {
+                    repeated = true;
+                    next++;
+                } else if (q == '{') {
+                    int end = regexp.indexOf('}', next);
+                    if (end > 0) {
+                        String min = regexp.substring(next + 1, end).split(",", -1)[0];
+                        try {
+                            minCount = Integer.parseInt(min.trim());
+                        } catch (NumberFormatException e) {
+                            minCount = 0;
+                        }
+                        repeated = true;
+                        next = end + 1;
+                    }
+                } else {
+                    quantified = false;
+                }
+                // reluctant or possessive quantifier
+                if (quantified && next < regexp.length()
+                        && (regexp.charAt(next) == '?'
+                        || regexp.charAt(next) == '+')) {
+                    next++;
+                }
+            }
+
+            if (literal >= 0 && minCount > 0) {
+                appendLiteral(runs, run, (char) literal);
+            }
+            if (literal < 0 || minCount == 0 || repeated) {
+                endRun(runs, run);
+            }
+            i = next;
+        }
+        endRun(runs, run);
+        return runs;
+    }
+
+    private static void appendLiteral(List<String> runs, StringBuilder run,
+            char c) {
+        if (Character.isWhitespace(c)) {
+            endRun(runs, run);
+        } else {
+            run.append(Character.toLowerCase(c));
+        }
+    }
+
+    private static void endRun(List<String> runs, StringBuilder run) {
+        if (run.length() >= TrigramTokenizer.GRAM_SIZE) {
+            runs.add(run.toString());
+        }
+        run.setLength(0);
+    }
+
+    /**
+     * Get the index right after the escape sequence starting at {@code i}.
+     */
+    private static int skipEscape(String regexp, int i) {
+        if (i + 1 >= regexp.length()) {
+            return regexp.length();
+        }
+        char c = regexp.charAt(i + 1);
+        if (c == 'Q') {
+            int end = regexp.indexOf("\\E", i + 2);
+            return end < 0 ? regexp.length() : end + 2;
+        } else if ((c == 'p' || c == 'P' || c == 'x')
+                && i + 2 < regexp.length() && regexp.charAt(i + 2) == '{') {
+            int end = regexp.indexOf('}', i + 2);
+            return end < 0 ? regexp.length() : end + 1;
+        }
+        return i + 2;
+    }
+
+    /**
+     * Get the index right after the character class starting at {@code i}.
+     */
+    private static int skipClass(String regexp, int i) {
+        int depth = 0;
+        int j = i;
+        while (j < regexp.length()) {
+            char c = regexp.charAt(j);
+            if (c == '\\') {
+                j = skipEscape(regexp, j);
+                continue;
+            } else if (c == '[') {
+                depth++;
+                // a ']' right after the opening bracket is literal
+                if (j + 1 < regexp.length() && regexp.charAt(j + 1) == '^') {
+                    j++;
+                }
+                if (j + 1 < regexp.length() && regexp.charAt(j + 1) == ']') {
+                    j++;
+                }
+            } else if (c == ']' && --depth == 0) {
+                return j + 1;
+            }
+            j++;
+        }
+        return regexp.length();
+    }
+
+    /**
+     * Get the index right after the group starting at {@code i}.
+     */
+    private static int skipGroup(String regexp, int i) {
+        int depth = 0;
+        int j = i;
+        while (j < regexp.length()) {
+            char c = regexp.charAt(j);
+            if (c == '\\') {
+                j = skipEscape(regexp, j);
+                continue;
+            } else if (c == '[') {
+                j = skipClass(regexp, j);
+                continue;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')' && --depth == 0) {
+                return j + 1;
+            }
+            j++;
+        }
+        return regexp.length();
+    }
+
+    /**
+     * Check whether a line of the given file matches the expression. Only
+     * the first {@value #MAX_VERIFY_BYTES} bytes of the file are checked.
+     *
+     * @param path the path of the file relative to the source root
+     * @return {@code true} if the file exists and has a matching line
+     * @throws TimeExceededException if the deadline has passed
+     */
+    boolean verify(String path) {
+        long limit = deadline;
+        if (limit > 0 && System.currentTimeMillis() > limit) {
+            throw new TimeExceededException();
+        }
+        if (path == null) {
+            return false;
+        }
+        File file = new File(
+                RuntimeEnvironment.getInstance().getSourceRootFile(), path);
+        byte[] content;
+        int length = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            content = new byte[(int) Math.min(file.length(), MAX_VERIFY_BYTES)];
+            int n;
+            while (length < content.length
+                    && (n = in.read(content, length, content.length - length))
+                    > 0) {
+                length += n;
+            }
+        } catch (IOException e) {
+            log.log(Level.FINE, "Could not verify " + file, e);
+            return false;
+        }
+        if (file.length() > MAX_VERIFY_BYTES) {
+            log.log(Level.FINE, "Verifying only the first {0} bytes of {1}",
+                    new Object[]{MAX_VERIFY_BYTES, file});
+        }
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(content, 0, length)))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                CharSequence seq = limit > 0
+                        ? new DeadlineCharSequence(line, limit) : line;
+                if (pattern.matcher(seq).find()) {
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            // can't happen when reading from memory
+            log.log(Level.FINE, "Could not verify " + file, e);
+        }
+        return false;
+    }
+
+    /**
+     * A line which makes the matcher give up once the deadline has passed,
+     * since matching a single line with a backtracking expression may take
+     * very long.
+     */
+    private static final class DeadlineCharSequence implements CharSequence {
+
+        private final CharSequence chars;
+        private final long deadline;
+        private int calls;
+
+        DeadlineCharSequence(CharSequence chars, long deadline) {
+            this.chars = chars;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public char charAt(int index) {
+            // don't ask for the time on every character
+            if ((++calls & 0xfff) == 0
+                    && System.currentTimeMillis() > deadline) {
+                throw new TimeExceededException();
+            }
+            return chars.charAt(index);
+        }
+
+        @Override
+        public int length() {
+            return chars.length();
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new DeadlineCharSequence(
+                    chars.subSequence(start, end), deadline);
+        }
+
+        @Override
+        public String toString() {
+            return chars.toString();
+        }
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        Query q = trigrams.rewrite(reader);
+        if (q == trigrams) {
+            return this;
+        }
+        RegexpContentQuery ret =
+                new RegexpContentQuery(field, regexp, pattern, q);
+        ret.setBoost(getBoost());
+        ret.setDeadline(deadline);
+        return ret;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher) throws IOException {
+        return new VerifyingWeight(trigrams.createWeight(searcher));
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder sb = new StringBuilder();
+        if (!this.field.equals(field)) {
+            sb.append(this.field).append(':');
+        }
+        sb.append('/').append(regexp).append('/')
+            .append(ToStringUtils.boost(getBoost()));
+        return sb.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof RegexpContentQuery) || !super.equals(o)) {
+            return false;
+        }
+        RegexpContentQuery other = (RegexpContentQuery) o;
+        return field.equals(other.field) && regexp.equals(other.regexp)
+                && trigrams.equals(other.trigrams);
+    }
+
+    @Override
+    public int hashCode() {
+        return super.hashCode() ^ field.hashCode() ^ regexp.hashCode();
+    }
+
+    /**
+     * Weight of the candidate query, whose scorers skip the documents which
+     * don't match the expression.
+     */
+    private class VerifyingWeight extends Weight {
+
+        private final Weight candidates;
+
+        VerifyingWeight(Weight candidates) {
+            this.candidates = candidates;
+        }
+
+        @Override
+        public Explanation explain(AtomicReaderContext context, int doc)
+                throws IOException {
+            return candidates.explain(context, doc);
+        }
+
+        @Override
+        public Query getQuery() {
+            return RegexpContentQuery.this;
+        }
+
+        @Override
+        public float getValueForNormalization() throws IOException {
+            return candidates.getValueForNormalization();
+        }
+
+        @Override
+        public void normalize(float norm, float topLevelBoost) {
+            candidates.normalize(norm, topLevelBoost * getBoost());
+        }
+
+        @Override
+        public Scorer scorer(AtomicReaderContext context,
+                boolean scoreDocsInOrder, boolean topScorer, Bits acceptDocs)
+                throws IOException {
+            Scorer s = candidates.scorer(context, true, false, acceptDocs);
+            return s == null ? null : new VerifyingScorer(this, s, context);
+        }
+    }
+
+    /**
+     * Scorer which only returns the candidates verified by
+     * {@link RegexpContentQuery#verify(String)}.
+     */
+    private class VerifyingScorer extends Scorer {
+
+        private final Scorer candidates;
+        private final AtomicReaderContext context;
+
+        VerifyingScorer(Weight weight, Scorer candidates,
+                AtomicReaderContext context) {
+            super(weight);
+            this.candidates = candidates;
+            this.context = context;
+        }
+
+        private int verified(int doc) throws IOException {
+            while (doc != NO_MORE_DOCS) {
+                SelectiveFieldVisitor visitor =
+                        new SelectiveFieldVisitor(QueryBuilder.PATH);
+                context.reader().document(doc, visitor);
+                if (verify(visitor.getDocument().get(QueryBuilder.PATH))) {
+                    return doc;
+                }
+                doc = candidates.nextDoc();
+            }
+            return doc;
+        }
+
+        @Override
+        public int docID() {
+            return candidates.docID();
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            return verified(candidates.nextDoc());
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            return verified(candidates.advance(target));
+        }
+
+        @Override
+        public float score() throws IOException {
+            return candidates.score();
+        }
+
+        @Override
+        public int freq() throws IOException {
+            return candidates.freq();
+        }
+    }
+}
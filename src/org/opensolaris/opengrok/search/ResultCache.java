@@ -0,0 +1,232 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import org.apache.lucene.search.TopDocs;
+
+/**
+ * Cache of the top documents found by a query. The key of an entry must
+ * identify the query, the searched indexes and their reader versions and the
+ * sort order, so that the cached document ids stay valid. Entries are evicted
+ * in LRU order once the number of entries or their estimated memory footprint
+ * exceeds the configured limit.
+ * <p>
+ * Concurrent requests for the same key are coalesced: only one of them runs
+ * the search, the others wait for and share its result.
+ */
+public class ResultCache {
+
+    /**
+     * Rough estimate of the memory used by one cached hit (a
+     * {@code ScoreDoc}, or a {@code FieldDoc} with its sort value).
+     */
+    private static final long BYTES_PER_HIT = 96;
+
+    private final int maxEntries;
+    private final long maxSize;
+
+    /* below guarded by cache */
+    private final LinkedHashMap<String, TopDocs> cache =
+            new LinkedHashMap<String, TopDocs>(16, 0.75f, true);
+    private long size;
+    private long hits;
+    private long misses;
+    private long coalesced;
+
+    private final ConcurrentHashMap<String, FutureTask<TopDocs>> running =
+            new ConcurrentHashMap<String, FutureTask<TopDocs>>();
+
+    /**
+     * Create a new cache.
+     *
+     * @param maxEntries the maximum number of cached queries
+     * @param maxSize the maximum estimated memory in bytes used by the cached
+     * hits
+     */
+    public ResultCache(int maxEntries, long maxSize) {
+        this.maxEntries = maxEntries;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Check whether the cache is enabled at all.
+     *
+     * @return {@code false} if nothing gets ever cached
+     */
+    public boolean isEnabled() {
+        return maxEntries > 0 && maxSize > 0;
+    }
+
+    /**
+     * Get the top documents for a query, either from the cache or by running
+     * the given search.
+     *
+     * @param key the key identifying the query, see the class description
+     * @param n the number of top documents needed
+     * @param search the search to run if the cache can't satisfy the request.
+     * It must collect at least {@code n} top documents.
+     * @return the top documents. The score docs array may be longer than
+     * {@code n} and must not be modified.
+     * @throws IOException if the search failed
+     */
+    public TopDocs search(String key, int n, Callable<TopDocs> search)
+            throws IOException {
+        if (!isEnabled()) {
+            return call(search);
+        }
+
+        TopDocs ret = lookup(key, n);
+        if (ret != null) {
+            return ret;
+        }
+
+        FutureTask<TopDocs> task = new FutureTask<TopDocs>(search);
+        FutureTask<TopDocs> other = running.putIfAbsent(key, task);
+        if (other != null) {
+            // an identical query is running, wait for it
+            ret = get(other);
+            if (covers(ret, n)) {
+                synchronized (cache) {
+                    coalesced++;
+                }
+                return ret;
+            }
+            // it did not collect enough documents, search ourselves
+            ret = call(search);
+            put(key, ret);
+            return ret;
+        }
+
+        try {
+            task.run();
+            ret = get(task);
+            put(key, ret);
+        } finally {
+            running.remove(key, task);
+        }
+        return ret;
+    }
+
+    private TopDocs lookup(String key, int n) {
+        synchronized (cache) {
+            TopDocs ret = cache.get(key);
+            if (covers(ret, n)) {
+                hits++;
+                return ret;
+            }
+            misses++;
+            return null;
+        }
+    }
+
+    private void put(String key, TopDocs docs) {
+        long weight = weigh(docs);
+        if (weight > maxSize || docs instanceof PartialTopDocs) {
+            // don't keep results of searches which have been cut short
+            return;
+        }
+        synchronized (cache) {
+            TopDocs old = cache.put(key, docs);
+            if (old != null) {
+                size -= weigh(old);
+            }
+            size += weight;
+            Iterator<TopDocs> it = cache.values().iterator();
+            while (cache.size() > maxEntries || size > maxSize) {
+                size -= weigh(it.next());
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Check whether the given top documents hold the first {@code n} hits.
+     */
+    private static boolean covers(TopDocs docs, int n) {
+        return docs != null && (docs.scoreDocs.length >= n
+                || docs.scoreDocs.length >= docs.totalHits);
+    }
+
+    private static long weigh(TopDocs docs) {
+        return (docs.scoreDocs.length + 1) * BYTES_PER_HIT;
+    }
+
+    private static TopDocs call(Callable<TopDocs> search) throws IOException {
+        try {
+            return search.call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static TopDocs get(FutureTask<TopDocs> task) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Get a human readable summary of the cache state, suitable for the
+     * status page.
+     *
+     * @return cache statistics
+     */
+    public String getStatistics() {
+        synchronized (cache) {
+            return "entries: " + cache.size()
+                    + ", size: " + (size / 1024) + " KB"
+                    + ", hits: " + hits + ", misses: " + misses
+                    + ", coalesced: " + coalesced;
+        }
+    }
+}
@@ -31,10 +31,20 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.zip.GZIPInputStream;
 import org.apache.lucene.document.Document;
@@ -45,8 +55,13 @@ import org.apache.lucene.search.ScoreDoc;
 import org.opensolaris.opengrok.OpenGrokLogger;
 import org.opensolaris.opengrok.analysis.Definitions;
 import org.opensolaris.opengrok.analysis.FileAnalyzer.Genre;
+import org.opensolaris.opengrok.analysis.LineOffsets;
 import org.opensolaris.opengrok.analysis.TagFilter;
+import org.opensolaris.opengrok.configuration.Configuration;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
 import org.opensolaris.opengrok.history.HistoryException;
+import org.opensolaris.opengrok.search.context.Context;
+import org.opensolaris.opengrok.search.context.HistoryContext;
 import org.opensolaris.opengrok.web.Prefix;
 import org.opensolaris.opengrok.web.SearchHelper;
 import org.opensolaris.opengrok.web.Util;
@@ -61,31 +76,50 @@ public final class Results {
     }
 
     /**
-     * Create a has map keyed by the directory of the document found.
+     * A hit's document id together with the stored fields loaded for it.
+     */
+    static final class DocHit {
+
+        final int docId;
+        final Document doc;
+
+        DocHit(int docId, Document doc) {
+            this.docId = docId;
+            this.doc = doc;
+        }
+    }
+
+    /**
+     * Create a has map keyed by the directory of the document found. Only the
+     * {@code path} and {@code t} fields of the documents are loaded.
      *
      * @param searcher searcher to use.
      * @param hits hits produced by the given searcher's search
+     * @param hitsOffset the index of the hit stored in {@code hits[0]}
      * @param startIdx the index of the first hit to check
      * @param stopIdx the index of the last hit to check
      * @return a (directory, hitDocument) hashmap
      * @throws CorruptIndexException
      * @throws IOException
      */
-    private static Map<String, ArrayList<Document>> createMap(IndexSearcher searcher, ScoreDoc[] hits, int startIdx, int stopIdx)
+    private static Map<String, ArrayList<DocHit>> createMap(IndexSearcher searcher, ScoreDoc[] hits, int hitsOffset, int startIdx, int stopIdx)
             throws CorruptIndexException, IOException {
-        LinkedHashMap<String, ArrayList<Document>> dirHash =
-                new LinkedHashMap<String, ArrayList<Document>>();
+        LinkedHashMap<String, ArrayList<DocHit>> dirHash =
+                new LinkedHashMap<String, ArrayList<DocHit>>();
+        // a search stopped by its time limit may hold fewer hits than asked for
+        stopIdx = Math.min(stopIdx, hitsOffset + hits.length);
         for (int i = startIdx; i < stopIdx; i++) {
-            int docId = hits[i].doc;
-            Document doc = searcher.doc(docId);
-            String rpath = doc.get("path");
+            int docId = hits[i - hitsOffset].doc;
+            Document doc = SelectiveFieldVisitor.load(searcher, docId,
+                    QueryBuilder.PATH, QueryBuilder.T);
+            String rpath = doc.get(QueryBuilder.PATH);
             String parent = rpath.substring(0, rpath.lastIndexOf('/'));
-            ArrayList<Document> dirDocs = dirHash.get(parent);
+            ArrayList<DocHit> dirDocs = dirHash.get(parent);
             if (dirDocs == null) {
-                dirDocs = new ArrayList<Document>();
+                dirDocs = new ArrayList<DocHit>();
                 dirHash.put(parent, dirDocs);
             }
-            dirDocs.add(doc);
+            dirDocs.add(new DocHit(docId, doc));
         }
         return dirHash;
     }
@@ -121,6 +155,7 @@ public final class Results {
      * <li>{@link SearchHelper#dataRoot}</li>
      * <li>{@link SearchHelper#contextPath}</li>
      * <li>{@link SearchHelper#searcher}</li> <li>{@link SearchHelper#hits}</li>
+     * <li>{@link SearchHelper#hitsOffset}</li>
      * <li>{@link SearchHelper#historyContext} (ignored if {@code null})</li>
      * <li>{@link SearchHelper#sourceContext} (ignored if {@code null})</li>
      * <li>{@link SearchHelper#summerizer} (if sourceContext is not
@@ -140,78 +175,285 @@ public final class Results {
             int end)
             throws HistoryException, IOException, ClassNotFoundException {
         String ctxE = Util.URIEncodePath(sh.contextPath);
-        String xrefPrefix = sh.contextPath + Prefix.XREF_P;
-        String morePrefix = sh.contextPath + Prefix.MORE_P;
         String xrefPrefixE = ctxE + Prefix.XREF_P;
         String histPrefixE = ctxE + Prefix.HIST_L;
         String rawPrefixE = ctxE + Prefix.RAW_P;
-        File xrefDataDir = new File(sh.dataRoot, Prefix.XREF_P.toString());
 
-        for (Map.Entry<String, ArrayList<Document>> entry :
-                createMap(sh.searcher, sh.hits, start, end).entrySet()) {
-            String parent = entry.getKey();
-            out.write("<tr class=\"dir\"><td colspan=\"3\"><a href=\"");
-            out.write(xrefPrefixE);
-            out.write(Util.URIEncodePath(parent));
-            out.write("/\">");
-            out.write(parent); // htmlize ???
-            out.write("/</a>");
-            if (sh.desc != null) {
-                out.write(" - <i>");
-                out.write(sh.desc.get(parent)); // htmlize ???
-                out.write("</i>");
+        Map<String, ArrayList<DocHit>> map =
+                createMap(sh.searcher, sh.hits, sh.hitsOffset, start, end);
+        HitContexts contexts = new HitContexts(sh);
+        try {
+            for (ArrayList<DocHit> dirHits : map.values()) {
+                for (DocHit hit : dirHits) {
+                    contexts.submit(hit);
+                }
             }
-            out.write("</td></tr>");
-            for (Document doc : entry.getValue()) {
-                String rpath = doc.get("path");
-                String rpathE = Util.URIEncodePath(rpath);
-                out.write("<tr><td class=\"q\"><a href=\"");
-                out.write(histPrefixE);
-                out.write(rpathE);
-                out.write("\" title=\"History\">H</a> <a href=\"");
+            for (Map.Entry<String, ArrayList<DocHit>> entry : map.entrySet()) {
+                String parent = entry.getKey();
+                out.write("<tr class=\"dir\"><td colspan=\"3\"><a href=\"");
                 out.write(xrefPrefixE);
-                out.write(rpathE);
-                out.write("?a=true\" title=\"Annotate\">A</a> <a href=\"");
-                out.write(rawPrefixE);
-                out.write(rpathE);
-                out.write("\" title=\"Download\">D</a>");
-                out.write("</td>");
-                out.write("<td class=\"f\"><a href=\"");
-                out.write(xrefPrefixE);
-                out.write(rpathE);
-                out.write("\">");
-                out.write(rpath.substring(rpath.lastIndexOf('/') + 1)); // htmlize ???
-                out.write("</a></td><td><tt class=\"con\">");
-                if (sh.sourceContext != null) {
-                    Genre genre = Genre.get(doc.get("t"));
-                    Definitions tags = null;
-                    IndexableField tagsField = doc.getField("tags");
-                    if (tagsField != null) {
-                        tags = Definitions.deserialize(tagsField.binaryValue().bytes);
+                out.write(Util.URIEncodePath(parent));
+                out.write("/\">");
+                out.write(parent); // htmlize ???
+                out.write("/</a>");
+                if (sh.desc != null) {
+                    out.write(" - <i>");
+                    out.write(sh.desc.get(parent)); // htmlize ???
+                    out.write("</i>");
+                }
+                out.write("</td></tr>");
+                for (DocHit hit : entry.getValue()) {
+                    Document doc = hit.doc;
+                    String rpath = doc.get(QueryBuilder.PATH);
+                    String rpathE = Util.URIEncodePath(rpath);
+                    out.write("<tr><td class=\"q\"><a href=\"");
+                    out.write(histPrefixE);
+                    out.write(rpathE);
+                    out.write("\" title=\"History\">H</a> <a href=\"");
+                    out.write(xrefPrefixE);
+                    out.write(rpathE);
+                    out.write("?a=true\" title=\"Annotate\">A</a> <a href=\"");
+                    out.write(rawPrefixE);
+                    out.write(rpathE);
+                    out.write("\" title=\"Download\">D</a>");
+                    out.write("</td>");
+                    out.write("<td class=\"f\"><a href=\"");
+                    out.write(xrefPrefixE);
+                    out.write(rpathE);
+                    out.write("\">");
+                    out.write(rpath.substring(rpath.lastIndexOf('/') + 1)); // htmlize ???
+                    out.write("</a></td><td><tt class=\"con\">");
+                    contexts.print(out, hit);
+                    out.write("</tt></td></tr>\n");
+                }
+            }
+        } finally {
+            contexts.cancel();
+        }
+    }
+
+    /**
+     * Print the matching lines of a hit.
+     *
+     * @param out write destination
+     * @param sh search helper which has all required fields set
+     * @param hit the hit to print
+     * @param sourceContext the source context to use, or {@code null}
+     * @param historyContext the history context to use, or {@code null}
+     */
+    private static void printContext(Writer out, SearchHelper sh, DocHit hit,
+            Context sourceContext, HistoryContext historyContext)
+            throws HistoryException, IOException, ClassNotFoundException {
+        String xrefPrefix = sh.contextPath + Prefix.XREF_P;
+        String morePrefix = sh.contextPath + Prefix.MORE_P;
+        File xrefDataDir = new File(sh.dataRoot, Prefix.XREF_P.toString());
+        Document doc = hit.doc;
+        String rpath = doc.get(QueryBuilder.PATH);
+        if (sourceContext != null) {
+            Genre genre = Genre.get(doc.get(QueryBuilder.T));
+            if (Genre.XREFABLE == genre && sh.summerizer != null) {
+                String xtags = getTags(xrefDataDir, rpath, sh.compressed);
+                // FIXME use Highlighter from lucene contrib here,
+                // instead of summarizer, we'd also get rid of
+                // apache lucene in whole source ...
+                out.write(sh.summerizer.getSummary(xtags).toString());
+            } else if (Genre.HTML == genre && sh.summerizer != null) {
+                String htags = getTags(sh.sourceRoot, rpath, false);
+                out.write(sh.summerizer.getSummary(htags).toString());
+            } else {
+                // the tags are only needed (and thus only loaded)
+                // for the source context
+                Document ctx = SelectiveFieldVisitor.load(sh.searcher,
+                        hit.docId, QueryBuilder.TAGS, QueryBuilder.LINES);
+                IndexableField tagsField = ctx.getField(QueryBuilder.TAGS);
+                Definitions tags = tagsField == null ? null
+                        : Definitions.deserialize(tagsField.binaryValue().bytes);
+                int linesToRead = -1;
+                IndexableField linesField = ctx.getField(QueryBuilder.LINES);
+                if (genre == Genre.PLAIN && linesField != null) {
+                    linesToRead = sourceContext.getLinesToRead(
+                            sh.searcher.getIndexReader().getTermVector(
+                                hit.docId, QueryBuilder.FULL),
+                            LineOffsets.decode(linesField.binaryValue()),
+                            tags);
+                }
+                // don't even open the file if no line matches
+                FileReader r = genre == Genre.PLAIN && linesToRead != 0
+                        ? new FileReader(new File(sh.sourceRoot, rpath))
+                        : null;
+                sourceContext.getContext(r, out, xrefPrefix,
+                        morePrefix, rpath, tags, true, null,
+                        linesToRead);
+            }
+        }
+        if (historyContext != null) {
+            historyContext.getContext(new File(sh.sourceRoot, rpath),
+                    rpath, out, sh.contextPath);
+        }
+    }
+
+    /**
+     * Generates the matching lines of the hits of a result page. If a
+     * context thread pool is configured, the hits are processed concurrently
+     * and the hits whose matching lines are not ready when the time limit of
+     * the page has passed are shown without them. The output is the same as
+     * if the hits were processed one after the other.
+     */
+    static class HitContexts {
+
+        private final SearchHelper sh;
+        private final ExecutorService executor;
+        /** the configuration of the request, for the pool threads */
+        private final Configuration config;
+        /** when the time for the whole page is up, 0 if unlimited */
+        private final long deadline;
+        private final Map<DocHit, Future<String>> pending =
+                new HashMap<DocHit, Future<String>>();
+        /*
+         * Contexts keep the state of the current file, so each concurrently
+         * processed hit needs its own. They are reused for the following
+         * hits, so no more contexts than threads are created.
+         */
+        private final Queue<Context> sourceContexts =
+                new ConcurrentLinkedQueue<Context>();
+        private final Queue<HistoryContext> historyContexts =
+                new ConcurrentLinkedQueue<HistoryContext>();
+
+        HitContexts(SearchHelper sh) {
+            this(sh, RuntimeEnvironment.getInstance().getContextExecutor(),
+                    RuntimeEnvironment.getInstance().getContextTimeout());
+        }
+
+        /**
+         * @param sh the search helper of the request
+         * @param executor the pool generating the contexts, or {@code null}
+         * to generate them in the calling thread
+         * @param timeout the time limit for the page in milliseconds, 0 if
+         * unlimited
+         */
+        HitContexts(SearchHelper sh, ExecutorService executor, int timeout) {
+            this.sh = sh;
+            this.executor = executor;
+            this.config = RuntimeEnvironment.getInstance().getConfiguration();
+            this.deadline = timeout > 0
+                    ? System.currentTimeMillis() + timeout : 0;
+            if (sh.sourceContext != null) {
+                sourceContexts.add(sh.sourceContext);
+            }
+            if (sh.historyContext != null) {
+                historyContexts.add(sh.historyContext);
+            }
+        }
+
+        /**
+         * Start generating the matching lines of a hit.
+         */
+        void submit(final DocHit hit) {
+            if (executor == null
+                    || (sh.sourceContext == null && sh.historyContext == null)) {
+                return;
+            }
+            pending.put(hit, executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    // pool threads would use the configuration they saw
+                    // first otherwise
+                    RuntimeEnvironment.getInstance().register(config);
+                    Context sc = null;
+                    HistoryContext hc = null;
+                    if (sh.sourceContext != null) {
+                        sc = sourceContexts.poll();
+                        if (sc == null) {
+                            sc = new Context(sh.query, sh.builder.getQueries());
+                        }
                     }
-                    if (Genre.XREFABLE == genre && sh.summerizer != null) {
-                        String xtags = getTags(xrefDataDir, rpath, sh.compressed);
-                        // FIXME use Highlighter from lucene contrib here,
-                        // instead of summarizer, we'd also get rid of
-                        // apache lucene in whole source ...
-                        out.write(sh.summerizer.getSummary(xtags).toString());
-                    } else if (Genre.HTML == genre && sh.summerizer != null) {
-                        String htags = getTags(sh.sourceRoot, rpath, false);
-                        out.write(sh.summerizer.getSummary(htags).toString());
-                    } else {
-                        FileReader r = genre == Genre.PLAIN
-                                ? new FileReader(new File(sh.sourceRoot, rpath))
-                                : null;
-                        sh.sourceContext.getContext(r, out, xrefPrefix,
-                                morePrefix, rpath, tags, true, null);
+                    if (sh.historyContext != null) {
+                        hc = historyContexts.poll();
+                        if (hc == null) {
+                            hc = new HistoryContext(sh.query);
+                        }
+                    }
+                    boolean reusable = false;
+                    try {
+                        StringWriter sw = new StringWriter();
+                        printContext(sw, hit, sc, hc);
+                        // a task which ignored the interrupt of the
+                        // cancellation may still notice the timeout
+                        reusable = !Thread.currentThread().isInterrupted()
+                                && (deadline == 0
+                                || System.currentTimeMillis() < deadline);
+                        return sw.toString();
+                    } finally {
+                        // the contexts of a failed, cancelled or timed out
+                        // task may be left in the middle of a file
+                        if (reusable && sc != null) {
+                            sourceContexts.add(sc);
+                        }
+                        if (reusable && hc != null) {
+                            historyContexts.add(hc);
+                        }
                     }
                 }
-                if (sh.historyContext != null) {
-                    sh.historyContext.getContext(new File(sh.sourceRoot, rpath),
-                            rpath, out, sh.contextPath);
-                }
-                out.write("</tt></td></tr>\n");
+            }));
+        }
+
+        /**
+         * Generate the matching lines of a hit.
+         *
+         * @param out write destination
+         * @param hit the hit to print
+         * @param sc the source context to use, or {@code null}
+         * @param hc the history context to use, or {@code null}
+         */
+        void printContext(Writer out, DocHit hit, Context sc,
+                HistoryContext hc)
+                throws HistoryException, IOException, ClassNotFoundException {
+            Results.printContext(out, sh, hit, sc, hc);
+        }
+
+        /**
+         * Print the matching lines of a hit, waiting for them if they are
+         * generated concurrently.
+         */
+        void print(Writer out, DocHit hit)
+                throws HistoryException, IOException, ClassNotFoundException {
+            Future<String> f = pending.remove(hit);
+            if (f == null) {
+                printContext(out, hit, sh.sourceContext, sh.historyContext);
+                return;
+            }
+            String path = hit.doc.get(QueryBuilder.PATH);
+            try {
+                // hits are generated concurrently, so the time limit applies
+                // to the page rather than to each hit
+                out.write(deadline > 0 ? f.get(Math.max(0,
+                        deadline - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS) : f.get());
+            } catch (TimeoutException e) {
+                f.cancel(true);
+                OpenGrokLogger.getLogger().log(Level.INFO,
+                        "Timed out generating the context of {0}", path);
+                out.write("...");
+            } catch (ExecutionException e) {
+                OpenGrokLogger.getLogger().log(Level.WARNING,
+                        "An error occured while generating the context of "
+                        + path, e.getCause());
+                out.write("...");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                f.cancel(true);
+                out.write("...");
+            }
+        }
+
+        /**
+         * Cancel the generation of all matching lines not printed yet.
+         */
+        void cancel() {
+            for (Future<String> f : pending.values()) {
+                f.cancel(true);
             }
+            pending.clear();
         }
     }
 }
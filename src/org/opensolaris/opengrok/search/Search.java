@@ -161,6 +161,7 @@ final class Search {
         if (searcher.parseCmdLine(argv) && searcher.search()) {
             success = true;
             searcher.dumpResults();
+            searcher.engine.destroy();
         }
 
         if (!success) {
@@ -0,0 +1,182 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Position in the sorted result list of a search, suitable to be passed
+ * around in an URL. It remembers the last hit of a page, so that the next
+ * page can be fetched with
+ * {@link IndexSearcher#searchAfter(ScoreDoc, org.apache.lucene.search.Query, org.apache.lucene.search.Filter, int, org.apache.lucene.search.Sort)}
+ * instead of collecting all the hits before it. A cursor is only valid for
+ * the index reader versions it has been created with, since document ids
+ * may change whenever an index gets updated.
+ */
+public final class SearchCursor {
+
+    private static final char SEP = ':';
+
+    private final int start;
+    private final String version;
+    private final FieldDoc after;
+
+    /**
+     * Create a new cursor.
+     *
+     * @param start the index of the first hit after the cursor
+     * @param version the versions of the index readers the hit is from (see
+     * {@link SearcherCache.SearcherWithCleanup#getVersion()})
+     * @param after the hit right before {@code start}
+     */
+    public SearchCursor(int start, String version, FieldDoc after) {
+        this.start = start;
+        this.version = version;
+        this.after = after;
+    }
+
+    /**
+     * Get the index of the first hit after this cursor.
+     *
+     * @return a hit index
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * Get the versions of the index readers this cursor is valid for.
+     *
+     * @return index reader versions
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the hit to search after.
+     *
+     * @return the last hit before {@link #getStart()}
+     */
+    public FieldDoc getAfter() {
+        return after;
+    }
+
+    /**
+     * Encode this cursor as an opaque string which contains only characters
+     * which may be used in an URL query string without encoding.
+     *
+     * @return the encoded cursor
+     * @see #decode(String)
+     */
+    public String encode() {
+        StringBuilder sb = new StringBuilder(64);
+        sb.append(Integer.toString(start, 36)).append(SEP)
+            .append(version.replace(',', '.')).append(SEP)
+            .append(Integer.toString(after.doc, 36)).append(SEP)
+            .append(Integer.toHexString(Float.floatToIntBits(after.score)));
+        if (after.fields != null) {
+            for (Object o : after.fields) {
+                sb.append(SEP);
+                if (o == null) {
+                    sb.append('n');
+                } else if (o instanceof Float) {
+                    sb.append('f').append(Integer.toHexString(
+                            Float.floatToIntBits((Float) o)));
+                } else if (o instanceof Long) {
+                    // doc values are compared as longs, even for Type.INT
+                    sb.append('l').append(Long.toString((Long) o, 36));
+                } else if (o instanceof BytesRef) {
+                    BytesRef b = (BytesRef) o;
+                    sb.append('b');
+                    for (int i = b.offset; i < b.offset + b.length; i++) {
+                        int v = b.bytes[i] & 0xff;
+                        sb.append(Character.forDigit(v >> 4, 16))
+                            .append(Character.forDigit(v & 0xf, 16));
+                    }
+                } else {
+                    throw new IllegalArgumentException(
+                            "Unsupported sort value: " + o.getClass());
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Decode a cursor created by {@link #encode()}.
+     *
+     * @param s the encoded cursor, may be {@code null}
+     * @return the cursor, or {@code null} if the given string is {@code null}
+     * or not a valid cursor
+     */
+    public static SearchCursor decode(String s) {
+        if (s == null || s.length() == 0) {
+            return null;
+        }
+        String[] parts = s.split(String.valueOf(SEP), -1);
+        if (parts.length < 4) {
+            return null;
+        }
+        try {
+            int start = Integer.parseInt(parts[0], 36);
+            String version = parts[1].replace('.', ',');
+            int doc = Integer.parseInt(parts[2], 36);
+            float score = Float.intBitsToFloat(
+                    (int) Long.parseLong(parts[3], 16));
+            Object[] fields = new Object[parts.length - 4];
+            for (int i = 0; i < fields.length; i++) {
+                String p = parts[i + 4];
+                if (p.equals("n")) {
+                    fields[i] = null;
+                } else if (p.charAt(0) == 'f') {
+                    fields[i] = Float.intBitsToFloat(
+                            (int) Long.parseLong(p.substring(1), 16));
+                } else if (p.charAt(0) == 'l') {
+                    fields[i] = Long.parseLong(p.substring(1), 36);
+                } else if (p.charAt(0) == 'b' && (p.length() % 2) == 1) {
+                    byte[] b = new byte[(p.length() - 1) / 2];
+                    for (int j = 0; j < b.length; j++) {
+                        b[j] = (byte) Integer.parseInt(
+                                p.substring(1 + 2 * j, 3 + 2 * j), 16);
+                    }
+                    fields[i] = new BytesRef(b);
+                } else {
+                    return null;
+                }
+            }
+            if (start < 0 || doc < 0) {
+                return null;
+            }
+            return new SearchCursor(start, version,
+                    new FieldDoc(doc, score, fields));
+        } catch (NumberFormatException e) {
+            return null;
+        } catch (StringIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+}
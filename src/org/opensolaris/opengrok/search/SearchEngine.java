@@ -25,20 +25,15 @@ package org.opensolaris.opengrok.search;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.zip.GZIPInputStream;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexableField;
-import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TopScoreDocCollector;
-import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.Version;
 import org.opensolaris.opengrok.OpenGrokLogger;
 import org.opensolaris.opengrok.analysis.CompatibleAnalyser;
@@ -48,9 +43,11 @@ import org.opensolaris.opengrok.analysis.TagFilter;
 import org.opensolaris.opengrok.configuration.Project;
 import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
 import org.opensolaris.opengrok.history.HistoryException;
+import org.opensolaris.opengrok.search.SearcherCache.SearcherWithCleanup;
 import org.opensolaris.opengrok.search.Summary.Fragment;
 import org.opensolaris.opengrok.search.context.Context;
 import org.opensolaris.opengrok.search.context.HistoryContext;
+import org.opensolaris.opengrok.util.IOUtils;
 
 /**
  * This is an encapsulation of the details on how to search in the index
@@ -115,6 +112,7 @@ public class SearchEngine {
     private ScoreDoc[] hits;
     private TopScoreDocCollector collector;
     private IndexSearcher searcher;
+    private SearcherWithCleanup searcherWithCleanup;
     boolean allCollected;
 
     /**
@@ -159,21 +157,10 @@ public class SearchEngine {
      * @throws IOException
      */
     private void searchSingleDatabase(File root, boolean paging) throws IOException {
-        IndexReader ireader = DirectoryReader.open(FSDirectory.open(root));
-        searcher = new IndexSearcher(ireader);
-        collector = TopScoreDocCollector.create(hitsPerPage * cachePages, docsScoredInOrder);
-        searcher.search(query, collector);
-        totalHits = collector.getTotalHits();
-        if (!paging && totalHits > 0) {
-            collector = TopScoreDocCollector.create(totalHits, docsScoredInOrder);
-            searcher.search(query, collector);
-        }
-        hits = collector.topDocs().scoreDocs;
-        for (int i = 0; i < hits.length; i++) {
-            int docId = hits[i].doc;
-            Document d = searcher.doc(docId);
-            docs.add(d);
-        }
+        searcherWithCleanup = RuntimeEnvironment.getInstance()
+                .getSearcherCache().fetchIndexSearcher(root);
+        searcher = searcherWithCleanup.getSearcher();
+        collect(paging);
     }
 
     /**
@@ -184,20 +171,26 @@ public class SearchEngine {
      * @throws IOException
      */
     private void searchMultiDatabase(List<Project> root, boolean paging) throws IOException {
-        IndexReader[] subreaders = new IndexReader[root.size()];
+        File[] indexes = new File[root.size()];
         File droot = new File(RuntimeEnvironment.getInstance().getDataRootFile(), "index");
         int ii = 0;
         for (Project project : root) {
-            IndexReader ireader = (DirectoryReader.open(FSDirectory.open(new File(droot, project.getPath()))));
-            subreaders[ii++] = ireader;
+            indexes[ii++] = new File(droot, project.getPath());
         }
-        MultiReader searchables = new MultiReader(subreaders, true);
-        if (Runtime.getRuntime().availableProcessors() > 1) {
-            int noThreads = 2 + (2 * Runtime.getRuntime().availableProcessors()); //TODO there might be a better way for counting this - or we should honor the command line option here too!
-            ExecutorService executor = Executors.newFixedThreadPool(noThreads);
-            searcher = new IndexSearcher(searchables, executor);
-        } else {
-            searcher = new IndexSearcher(searchables);
+        searcherWithCleanup = RuntimeEnvironment.getInstance()
+                .getSearcherCache().fetchIndexSearcher(indexes);
+        searcher = searcherWithCleanup.getSearcher();
+        collect(paging);
+    }
+
+    private void collect(boolean paging) throws IOException {
+        try {
+            // now that the index is known, leading wildcards may be able to
+            // use its reversed terms
+            query = createQueryBuilder().build(searcher.getIndexReader());
+        } catch (ParseException e) {
+            // can't happen, the same query text has been parsed before
+            throw new IOException(e);
         }
         collector = TopScoreDocCollector.create(hitsPerPage * cachePages, docsScoredInOrder);
         searcher.search(query, collector);
@@ -209,11 +202,24 @@ public class SearchEngine {
         hits = collector.topDocs().scoreDocs;
         for (int i = 0; i < hits.length; i++) {
             int docId = hits[i].doc;
-            Document d = searcher.doc(docId);
+            Document d = SelectiveFieldVisitor.load(searcher, docId,
+                    QueryBuilder.PATH, QueryBuilder.T, QueryBuilder.TAGS);
             docs.add(d);
         }
     }
 
+    /**
+     * Release the index searcher used by the last {@link #search()}. No
+     * more results can be fetched after this call.
+     */
+    public void destroy() {
+        if (searcherWithCleanup != null) {
+            IOUtils.close(searcherWithCleanup);
+            searcherWithCleanup = null;
+            searcher = null;
+        }
+    }
+
     public String getQuery() {
         return query.toString();
     }
@@ -230,6 +236,8 @@ public class SearchEngine {
         source = RuntimeEnvironment.getInstance().getSourceRootPath();
         data = RuntimeEnvironment.getInstance().getDataRootPath();
         docs.clear();
+        destroy();
+        allCollected = false;
 
         QueryBuilder queryBuilder = createQueryBuilder();
 
@@ -295,7 +303,7 @@ public class SearchEngine {
     public void results(int start, int end, List<Hit> ret) {
 
         //return if no start search() was done
-        if (hits == null || (end < start)) {
+        if (hits == null || searcher == null || (end < start)) {
             ret.clear();
             return;
         }
@@ -317,7 +325,8 @@ public class SearchEngine {
             for (int i = start; i < hits.length; i++) {
                 int docId = hits[i].doc;
                 try {
-                    d = searcher.doc(docId);
+                    d = SelectiveFieldVisitor.load(searcher, docId,
+                            QueryBuilder.PATH, QueryBuilder.T, QueryBuilder.TAGS);
                 } catch (Exception e) {
                     OpenGrokLogger.getLogger().log(
                             Level.SEVERE, SEARCH_EXCEPTION_MSG, e);
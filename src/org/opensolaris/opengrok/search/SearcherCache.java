@@ -23,15 +23,16 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.MultiReader;
 import org.apache.lucene.search.IndexSearcher;
@@ -44,63 +45,108 @@ import org.opensolaris.opengrok.util.IOUtils;
  * This class caches  {@link IndexSearcher} objects so that they do not have
  * to be recreated on each search. It also provides a thread pool on which
  * the searches can be executed.
+ * <p>
+ * The number of open index databases and their accumulated size on disk can
+ * be bounded. When a limit is exceeded, the least recently used index is
+ * evicted from the cache. An evicted index is not closed before all the
+ * searchers acquired from it have been released.
  */
 public class SearcherCache {
     
     private static final Logger log =
             Logger.getLogger(SearcherCache.class.getName());
 
-    private final ConcurrentHashMap<File, SearcherManager> searcherManagerMap =
-            new ConcurrentHashMap<File, SearcherManager>();
+    /**
+     * The cached managers in LRU order (access ordered). All accesses to the
+     * map and to the reference counts of its entries must be synchronized
+     * on the map.
+     */
+    private final LinkedHashMap<File, CachedSearcherManager> searcherManagerMap =
+            new LinkedHashMap<File, CachedSearcherManager>(16, 0.75f, true);
 
     private final ExecutorService searchThreadPool;
 
     private final SearcherFactory searcherFactory;
+
+    private final int maxOpen;
+
+    private final long maxSize;
+
+    /* below guarded by searcherManagerMap */
+    private long openSize;
+    private int pendingClose;
+    private long hits;
+    private long misses;
+    private long evictions;
     
     private boolean isDestroyed = false;
     
     public abstract class SearcherWithCleanup implements Closeable {
 
         protected IndexSearcher searcher;
+
+        protected String version;
         
         public IndexSearcher getSearcher() {
             return searcher;
         }
 
+        /**
+         * Get the versions of the index readers used by the searcher. Two
+         * searchers over the same indexes with the same version see exactly
+         * the same documents, with the same document ids.
+         *
+         * @return a string identifying the index reader versions
+         */
+        public String getVersion() {
+            return version;
+        }
+
     }
     
     private class SimpleSearcherWithCleanup extends SearcherWithCleanup {
 
-        private SearcherManager sm;
+        private CachedSearcherManager csm;
 
-        public SimpleSearcherWithCleanup(SearcherManager sm) {
-            this.searcher = sm.acquire();
-            this.sm = sm;
+        public SimpleSearcherWithCleanup(CachedSearcherManager csm) {
+            this.searcher = csm.sm.acquire();
+            this.version = Long.toString(versionOf(searcher));
+            this.csm = csm;
         }
 
         @Override
         public void close() throws IOException {
-            sm.release(getSearcher());
+            try {
+                csm.sm.release(getSearcher());
+            } finally {
+                release(csm);
+            }
         }
 
     }
     
     private class MultiSearcherWithCleanup extends SearcherWithCleanup {
         
-        private List<SearcherManager> sms;
+        private List<CachedSearcherManager> sms;
         private List<IndexSearcher> searchers;
         
-        public MultiSearcherWithCleanup(List<SearcherManager> sms) {
+        public MultiSearcherWithCleanup(List<CachedSearcherManager> sms) {
             this.searchers = new ArrayList<IndexSearcher>(sms.size());
             this.sms = sms;
             
             IndexReader readers[] = new IndexReader[sms.size()];
+            StringBuilder versions = new StringBuilder();
             
             for (int i = 0; i < sms.size(); i++) {
-                IndexSearcher searcher = sms.get(i).acquire();
+                IndexSearcher searcher = sms.get(i).sm.acquire();
                 this.searchers.add(searcher);
                 readers[i] = searcher.getIndexReader();
+                if (i > 0) {
+                    versions.append(',');
+                }
+                versions.append(versionOf(searcher));
             }
+            this.version = versions.toString();
             
             if (searchThreadPool != null) {
                 this.searcher = new IndexSearcher(
@@ -116,16 +162,86 @@ public class SearcherCache {
         public void close() throws IOException {
             for (int i = 0; i < sms.size(); i++) {
                 try {
-                    sms.get(i).release(searchers.get(i));
+                    sms.get(i).sm.release(searchers.get(i));
                 } catch (IOException e) {
                     log.log(Level.WARNING, "Failed to release index searcher: ", e);
+                } finally {
+                    release(sms.get(i));
                 }
             }
         }
 
     }
 
+    /**
+     * Get the version of the index reader used by a searcher obtained from a
+     * {@link SearcherManager}.
+     */
+    private static long versionOf(IndexSearcher searcher) {
+        return ((DirectoryReader) searcher.getIndexReader()).getVersion();
+    }
+
+    /**
+     * Get the version of the index reader currently used by a
+     * {@link SearcherManager}.
+     */
+    private static long currentVersion(SearcherManager sm) throws IOException {
+        IndexSearcher searcher = sm.acquire();
+        try {
+            return versionOf(searcher);
+        } finally {
+            sm.release(searcher);
+        }
+    }
+
+    /**
+     * A cached {@link SearcherManager} together with the number of
+     * {@link SearcherWithCleanup} objects currently using it.
+     */
+    private static final class CachedSearcherManager {
+
+        final File index;
+        final SearcherManager sm;
+        /* below guarded by searcherManagerMap */
+        long size;
+        /** the reader version for which the size was computed */
+        long version;
+        int refCount;
+        boolean evicted;
+
+        CachedSearcherManager(File index, SearcherManager sm)
+                throws IOException {
+            this.index = index;
+            this.sm = sm;
+            this.version = currentVersion(sm);
+            this.size = sizeOf(index);
+        }
+    }
+
+    /**
+     * Create a new cache which does not limit the number of open indexes.
+     *
+     * @param numSearchThreads the size of the search thread pool, a negative
+     * number for the default to be used, or 0 for no thread pool to be used
+     */
     public SearcherCache(int numSearchThreads) {
+        this(numSearchThreads, 0, 0);
+    }
+
+    /**
+     * Create a new cache.
+     *
+     * @param numSearchThreads the size of the search thread pool, a negative
+     * number for the default to be used, or 0 for no thread pool to be used
+     * @param maxOpen the maximum number of index databases kept open, or a
+     * number {@code <= 0} for no limit
+     * @param maxSize the maximum accumulated size in bytes of the index
+     * databases kept open, or a number {@code <= 0} for no limit
+     */
+    public SearcherCache(int numSearchThreads, int maxOpen, long maxSize) {
+        this.maxOpen = maxOpen;
+        this.maxSize = maxSize;
+
         if (numSearchThreads < 0) {
             numSearchThreads =
                     2 + (2 * Runtime.getRuntime().availableProcessors());
@@ -169,46 +285,237 @@ public class SearcherCache {
     public SearcherWithCleanup fetchIndexSearcher(File index)
             throws IOException {
         
-        return new SimpleSearcherWithCleanup(fetchSearchManager(index));
+        CachedSearcherManager csm = acquire(index);
+        try {
+            return new SimpleSearcherWithCleanup(csm);
+        } catch (RuntimeException e) {
+            release(csm);
+            throw e;
+        }
     }
     
     public SearcherWithCleanup fetchIndexSearcher(File indexes[])
             throws IOException {
         
-        List<SearcherManager> sms =
-                new ArrayList<SearcherManager>(indexes.length);
+        List<CachedSearcherManager> sms =
+                new ArrayList<CachedSearcherManager>(indexes.length);
         
-        for (int i = 0; i < indexes.length; i++) {
-            sms.add(fetchSearchManager(indexes[i]));
+        try {
+            for (int i = 0; i < indexes.length; i++) {
+                sms.add(acquire(indexes[i]));
+            }
+            return new MultiSearcherWithCleanup(sms);
+        } catch (IOException | RuntimeException e) {
+            for (CachedSearcherManager csm : sms) {
+                release(csm);
+            }
+            throw e;
         }
-        
-        return new MultiSearcherWithCleanup(sms);
     }
 
-    private SearcherManager fetchSearchManager(File index) throws IOException {
-        SearcherManager sm = searcherManagerMap.get(index);
-        if (sm == null) {
-            sm = new SearcherManager(FSDirectory.open(index), searcherFactory);
-                    
-            if (searcherManagerMap.putIfAbsent(index, sm) != null) {
-                /* another thread opened the index in the meantime */
-                IOUtils.close(sm);
-                sm = searcherManagerMap.get(index);
+    /**
+     * Get the cached manager for the given index, opening it if needed, and
+     * register a new user of it. Every call must be paired with a call to
+     * {@link #release(CachedSearcherManager)}.
+     */
+    private CachedSearcherManager acquire(File index) throws IOException {
+        CachedSearcherManager csm;
+        synchronized (searcherManagerMap) {
+            csm = searcherManagerMap.get(index);
+            if (csm != null) {
+                csm.refCount++;
+                hits++;
             }
-        } else {
+        }
+
+        if (csm != null) {
             /* a better way would be to maybeRefresh periodically in another
              * thread to avoid penalizing the query that happens to refresh,
              * as the Lucene docs say
              */
-            sm.maybeRefresh();
+            try {
+                csm.sm.maybeRefresh();
+                updateSize(csm);
+            } catch (IOException | RuntimeException e) {
+                release(csm);
+                throw e;
+            }
+            return csm;
+        }
+
+        SearcherManager sm =
+                new SearcherManager(FSDirectory.open(index), searcherFactory);
+        CachedSearcherManager fresh;
+        try {
+            fresh = new CachedSearcherManager(index, sm);
+        } catch (IOException | RuntimeException e) {
+            IOUtils.close(sm);
+            throw e;
+        }
+        List<CachedSearcherManager> toClose;
+        synchronized (searcherManagerMap) {
+            csm = searcherManagerMap.get(index);
+            if (csm == null) {
+                csm = fresh;
+                searcherManagerMap.put(index, csm);
+                openSize += csm.size;
+                misses++;
+            } else {
+                /* another thread opened the index in the meantime */
+                hits++;
+            }
+            csm.refCount++;
+            toClose = evict();
         }
 
-        return sm;
+        if (csm != fresh) {
+            IOUtils.close(fresh.sm);
+        }
+        for (CachedSearcherManager e : toClose) {
+            IOUtils.close(e.sm);
+        }
+
+        return csm;
+    }
+
+    /**
+     * Recompute the size of an index if its reader has been reopened since
+     * the size was last computed, since merges and new segments change it,
+     * and evict other indexes if the limits are exceeded now.
+     */
+    private void updateSize(CachedSearcherManager csm) throws IOException {
+        long version = currentVersion(csm.sm);
+        synchronized (searcherManagerMap) {
+            if (version == csm.version) {
+                return;
+            }
+            csm.version = version;
+        }
+
+        long size = sizeOf(csm.index);
+        List<CachedSearcherManager> toClose;
+        synchronized (searcherManagerMap) {
+            if (!csm.evicted) {
+                openSize += size - csm.size;
+            }
+            csm.size = size;
+            toClose = evict();
+        }
+        for (CachedSearcherManager e : toClose) {
+            IOUtils.close(e.sm);
+        }
+    }
+
+    /**
+     * Unregister a user of the given manager. If it was the last user of an
+     * evicted manager, the manager gets closed.
+     */
+    private void release(CachedSearcherManager csm) {
+        boolean doClose;
+        synchronized (searcherManagerMap) {
+            csm.refCount--;
+            doClose = csm.evicted && csm.refCount == 0;
+            if (doClose) {
+                pendingClose--;
+            }
+        }
+        if (doClose) {
+            IOUtils.close(csm.sm);
+        }
+    }
+
+    /**
+     * Remove least recently used entries from the map until the limits are
+     * met again. The most recently used entry is never removed. Must be
+     * called while holding the lock on the map.
+     *
+     * @return the evicted managers which are not used anymore and thus should
+     * be closed by the caller (outside of the lock)
+     */
+    private List<CachedSearcherManager> evict() {
+        List<CachedSearcherManager> ret =
+                new ArrayList<CachedSearcherManager>(0);
+        Iterator<CachedSearcherManager> it =
+                searcherManagerMap.values().iterator();
+        while (searcherManagerMap.size() > 1
+                && ((maxOpen > 0 && searcherManagerMap.size() > maxOpen)
+                    || (maxSize > 0 && openSize > maxSize))) {
+            CachedSearcherManager eldest = it.next();
+            it.remove();
+            openSize -= eldest.size;
+            evictions++;
+            eldest.evicted = true;
+            if (eldest.refCount == 0) {
+                ret.add(eldest);
+            } else {
+                pendingClose++;
+            }
+            log.log(Level.FINE, "Evicted index {0} from searcher cache",
+                    eldest.index);
+        }
+        return ret;
+    }
+
+    /**
+     * Get the accumulated size of the files in the given index directory.
+     */
+    private static long sizeOf(File index) {
+        long ret = 0;
+        File[] files = index.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                ret += f.length();
+            }
+        }
+        return ret;
     }
     
+    /**
+     * Get the number of index databases currently open, including evicted
+     * ones still in use by a search.
+     *
+     * @return number of open index readers
+     */
+    public int getOpenReaderCount() {
+        synchronized (searcherManagerMap) {
+            return searcherManagerMap.size() + pendingClose;
+        }
+    }
+
+    /**
+     * Get the number of index databases evicted from the cache since it was
+     * created.
+     *
+     * @return number of evictions
+     */
+    public long getEvictionCount() {
+        synchronized (searcherManagerMap) {
+            return evictions;
+        }
+    }
+
+    /**
+     * Get a human readable summary of the cache state, suitable for the
+     * status page.
+     *
+     * @return cache statistics
+     */
+    public String getStatistics() {
+        synchronized (searcherManagerMap) {
+            return "open readers: " + (searcherManagerMap.size() + pendingClose)
+                    + " (" + pendingClose + " evicted, still in use)"
+                    + ", open size: " + (openSize / (1024 * 1024)) + " MB"
+                    + ", hits: " + hits + ", misses: " + misses
+                    + ", evictions: " + evictions;
+        }
+    }
+
     public boolean awaitTasksTermination(int waitSeconds)
             throws InterruptedException {
         
+        if (searchThreadPool == null) {
+            return true;
+        }
         searchThreadPool.shutdown();
         return searchThreadPool.awaitTermination(waitSeconds, TimeUnit.SECONDS);
     }
@@ -224,11 +531,20 @@ public class SearcherCache {
         
         isDestroyed = true;
         
-        searchThreadPool.shutdownNow();
+        if (searchThreadPool != null) {
+            searchThreadPool.shutdownNow();
+        }
         
         //shutdown the searcher managers
-        for (Entry<File, SearcherManager> e : searcherManagerMap.entrySet()) {
-            IOUtils.close(e.getValue());
+        List<CachedSearcherManager> all;
+        synchronized (searcherManagerMap) {
+            all = new ArrayList<CachedSearcherManager>(
+                    searcherManagerMap.values());
+            searcherManagerMap.clear();
+            openSize = 0;
+        }
+        for (CachedSearcherManager csm : all) {
+            IOUtils.close(csm.sm);
         }
         
     }
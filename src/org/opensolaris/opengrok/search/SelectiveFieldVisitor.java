@@ -0,0 +1,78 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.search.IndexSearcher;
+
+/**
+ * Stored field visitor which only loads the given (single valued) fields of
+ * a document and stops reading the stored fields as soon as all of them have
+ * been seen. This avoids decoding fields we don't need, like the potentially
+ * large {@code tags} blob, when only the path of a hit is of interest.
+ */
+public final class SelectiveFieldVisitor extends DocumentStoredFieldVisitor {
+
+    private final Set<String> pending;
+
+    /**
+     * Create a visitor loading the given fields.
+     *
+     * @param fields names of the fields to load
+     */
+    public SelectiveFieldVisitor(String... fields) {
+        super(fields);
+        pending = new HashSet<String>(Arrays.asList(fields));
+    }
+
+    @Override
+    public Status needsField(FieldInfo fieldInfo) throws IOException {
+        if (pending.remove(fieldInfo.name)) {
+            return Status.YES;
+        }
+        return pending.isEmpty() ? Status.STOP : Status.NO;
+    }
+
+    /**
+     * Load the given stored fields of a document.
+     *
+     * @param searcher the searcher to use
+     * @param docId id of the document to load
+     * @param fields names of the fields to load
+     * @return a document holding only the requested fields (if they have been
+     * stored for the document at all)
+     * @throws IOException if an error occurs while reading the index
+     */
+    public static Document load(IndexSearcher searcher, int docId,
+            String... fields) throws IOException {
+        SelectiveFieldVisitor visitor = new SelectiveFieldVisitor(fields);
+        searcher.doc(docId, visitor);
+        return visitor.getDocument();
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.opensolaris.opengrok.OpenGrokLogger;
+
+/**
+ * Creates the sort orders for search results. The {@link QueryBuilder#DATE}
+ * and {@link QueryBuilder#FULLPATH} fields are also indexed as doc values,
+ * which can be used for sorting without uninverting the indexed terms into
+ * the field cache.
+ * <p>
+ * Documents written by older versions do not have these doc values, and
+ * once their segments are merged with newer ones, they silently get the
+ * default value. So the doc values are only used for indexes which were
+ * created from scratch by a version writing them, which the indexer marks
+ * in the commit user data (see {@link #markDocValues(IndexWriter)}). Other
+ * indexes are sorted with the field cache.
+ */
+public final class SortFields {
+
+    /**
+     * Key of the commit user data telling that all documents of an index
+     * have the doc values used for sorting.
+     */
+    static final String DOC_VALUES = "sortDocValues";
+
+    private SortFields() {
+        // Util class, should not be constructed
+    }
+
+    /**
+     * Mark the index of a writer as having the doc values used for sorting
+     * for all documents. Only call this for a new, empty index. The mark is
+     * stored with the next commit and kept by the following ones.
+     *
+     * @param writer the writer of the index
+     */
+    public static void markDocValues(IndexWriter writer) {
+        Map<String, String> data =
+                new HashMap<String, String>(writer.getCommitData());
+        data.put(DOC_VALUES, Boolean.TRUE.toString());
+        writer.setCommitData(data);
+    }
+
+    /**
+     * Get the sort order by last modification time, most recent first.
+     *
+     * @param reader the reader to sort the documents of
+     * @return a sort order
+     */
+    public static Sort byDate(IndexReader reader) {
+        SortField field;
+        if (hasDocValues(reader, QueryBuilder.DATE)) {
+            // the doc values comparator for INT uses the full 64 bit values
+            field = new SortField(QueryBuilder.DATE, SortField.Type.INT, true);
+            field.setUseIndexValues(true);
+        } else {
+            field = new SortField(QueryBuilder.DATE, SortField.Type.STRING,
+                    true);
+        }
+        return new Sort(field);
+    }
+
+    /**
+     * Get the sort order by full path.
+     *
+     * @param reader the reader to sort the documents of
+     * @return a sort order
+     */
+    public static Sort byPath(IndexReader reader) {
+        SortField field =
+                new SortField(QueryBuilder.FULLPATH, SortField.Type.STRING);
+        field.setUseIndexValues(hasDocValues(reader, QueryBuilder.FULLPATH));
+        return new Sort(field);
+    }
+
+    /**
+     * Check whether the given reader can be sorted by the doc values of the
+     * given field: all its indexes have been marked as having doc values for
+     * all documents, and all its segments have doc values for the field.
+     */
+    static boolean hasDocValues(IndexReader reader, String field) {
+        if (reader.leaves().isEmpty() || !isMarked(reader)) {
+            OpenGrokLogger.getLogger().log(Level.FINE,
+                    "Index not marked as having doc values, recreate it to "
+                    + "sort without the field cache");
+            return false;
+        }
+        for (AtomicReaderContext ctx : reader.leaves()) {
+            FieldInfo fi = ctx.reader().getFieldInfos().fieldInfo(field);
+            if (fi == null || !fi.hasDocValues()) {
+                OpenGrokLogger.getLogger().log(Level.FINE,
+                        "No doc values for the {0} field", field);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check whether the indexes of a reader have all been marked by
+     * {@link #markDocValues(IndexWriter)}. A multi reader combines the
+     * readers of several indexes.
+     */
+    private static boolean isMarked(IndexReader reader) {
+        if (reader instanceof DirectoryReader) {
+            try {
+                Map<String, String> data = ((DirectoryReader) reader)
+                        .getIndexCommit().getUserData();
+                return Boolean.TRUE.toString().equals(data.get(DOC_VALUES));
+            } catch (IOException e) {
+                OpenGrokLogger.getLogger().log(Level.FINE,
+                        "Failed to read the commit user data", e);
+                return false;
+            }
+        }
+        List<IndexReaderContext> children = reader.getContext().children();
+        if (children == null || children.isEmpty()) {
+            return false;
+        }
+        for (IndexReaderContext child : children) {
+            if (!isMarked(child.reader())) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.search.spell.SpellChecker;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * Long-lived {@link SpellChecker} instances for the spelling indexes of the
+ * projects. A checker is opened on first use and refreshed as soon as the
+ * indexer has committed a new version of its spelling index, instead of
+ * opening a new checker for each search without hits.
+ */
+public class SpellCheckerCache {
+
+    private static final Logger log =
+            Logger.getLogger(SpellCheckerCache.class.getName());
+
+    private static final class Entry {
+        final FSDirectory directory;
+        final SpellChecker checker;
+        long generation;
+
+        Entry(FSDirectory directory, SpellChecker checker, long generation) {
+            this.directory = directory;
+            this.checker = checker;
+            this.generation = generation;
+        }
+    }
+
+    /* guarded by this */
+    private final Map<File, Entry> checkers = new HashMap<File, Entry>();
+
+    /**
+     * Get the spell checker for the given spelling index.
+     *
+     * @param dir the directory of the spelling index
+     * @return the spell checker, or {@code null} if there is no spelling
+     * index in the given directory
+     * @throws IOException if the spelling index cannot be opened
+     */
+    public synchronized SpellChecker get(File dir) throws IOException {
+        Entry e = checkers.get(dir);
+        if (e == null) {
+            if (!dir.isDirectory()) {
+                return null;
+            }
+            FSDirectory directory = FSDirectory.open(dir);
+            long generation = SegmentInfos.getLastCommitGeneration(directory);
+            if (generation < 0) {
+                directory.close();
+                return null;
+            }
+            e = new Entry(directory, new SpellChecker(directory), generation);
+            checkers.put(dir, e);
+        } else {
+            long generation =
+                    SegmentInfos.getLastCommitGeneration(e.directory);
+            if (generation != e.generation) {
+                // reopens the searcher, pending suggestions keep the old one
+                e.checker.setSpellIndex(e.directory);
+                e.generation = generation;
+            }
+        }
+        return e.checker;
+    }
+
+    /**
+     * Close all spell checkers. The cache must not be used afterwards.
+     */
+    public synchronized void destroy() {
+        for (Entry e : checkers.values()) {
+            try {
+                e.checker.close();
+            } catch (IOException ex) {
+                log.log(Level.WARNING, "Failed to close spell checker", ex);
+            }
+            e.directory.close();
+        }
+        checkers.clear();
+    }
+}
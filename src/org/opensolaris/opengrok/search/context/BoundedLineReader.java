@@ -0,0 +1,158 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search.context;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A reader which passes through the content of another reader in chunks,
+ * up to a given number of characters or lines. This allows to scan the
+ * beginning of a file for matching lines without reading it into one large
+ * buffer.
+ * <p>
+ * If the character limit is hit, the content is cut after the last newline
+ * found in the last {@value #MAX_LOOK_BACK} characters, so that no partial
+ * line is passed on unless the line is very long.
+ */
+final class BoundedLineReader extends Reader {
+
+    /** how many characters to look back for a newline at the limit */
+    static final int MAX_LOOK_BACK = 100;
+
+    private final Reader in;
+    private final char[] chunk;
+    private int pos;
+    private int len;
+    private int charsLeft;
+    private int linesLeft;
+    private boolean done;
+    private boolean truncated;
+    private boolean lineCut;
+
+    /**
+     * Create a new reader.
+     *
+     * @param in the reader to read from
+     * @param chunk the buffer to use for reading from <var>in</var>, which
+     * must be longer than {@value #MAX_LOOK_BACK} characters
+     * @param maxChars the maximum number of characters to pass through
+     * @param maxLines the maximum number of lines to pass through, or a
+     * number &lt;= 0 for no limit
+     */
+    BoundedLineReader(Reader in, char[] chunk, int maxChars, int maxLines) {
+        this.in = in;
+        this.chunk = chunk;
+        this.charsLeft = maxChars;
+        this.linesLeft = maxLines;
+    }
+
+    /**
+     * Check whether the character limit has been hit, i.e. parts of the
+     * content of the underlying reader were probably not passed through.
+     */
+    boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Check whether the content has been cut in the middle of a line,
+     * because no newline was found near the character limit.
+     */
+    boolean isLineCut() {
+        return lineCut;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int n) throws IOException {
+        if (n == 0) {
+            return 0;
+        }
+        if (pos == len && !fill()) {
+            return -1;
+        }
+        int count = Math.min(n, len - pos);
+        if (linesLeft > 0) {
+            for (int i = pos; i < pos + count; i++) {
+                if (chunk[i] == '\n' && --linesLeft == 0) {
+                    count = i - pos + 1;
+                    done = true;
+                    len = pos + count;
+                    break;
+                }
+            }
+        }
+        System.arraycopy(chunk, pos, cbuf, off, count);
+        pos += count;
+        return count;
+    }
+
+    /**
+     * Read the next chunk from the underlying reader. The chunk that reaches
+     * the character limit always holds at least the last
+     * {@value #MAX_LOOK_BACK} characters, so that they can be cut at a
+     * newline before being passed through.
+     *
+     * @return {@code false} if there is nothing more to pass through
+     */
+    private boolean fill() throws IOException {
+        pos = 0;
+        len = 0;
+        if (done) {
+            return false;
+        }
+        int want = Math.min(chunk.length, charsLeft);
+        if (want < charsLeft && charsLeft - want < MAX_LOOK_BACK) {
+            // carry the look back window over into the last chunk
+            want = charsLeft - MAX_LOOK_BACK;
+        }
+        boolean last = want == charsLeft;
+        do {
+            int n = in.read(chunk, len, want - len);
+            if (n < 0) {
+                done = true;
+                break;
+            }
+            len += n;
+        } while (last ? len < want : len == 0);
+        charsLeft -= len;
+        if (last && len == want) {
+            done = true;
+            truncated = true;
+            lineCut = true;
+            for (int i = len - 1; i >= 0 && i > want - MAX_LOOK_BACK; i--) {
+                if (chunk[i] == '\n') {
+                    len = i;
+                    lineCut = false;
+                    break;
+                }
+            }
+        }
+        return len > 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
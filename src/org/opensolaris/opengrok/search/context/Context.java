@@ -18,7 +18,7 @@
  */
 
 /*
- * Copyright (c) 2005, 2012, Oracle and/or its affiliates. All rights reserved.
+ * Copyright (c) 2005, 2013, Oracle and/or its affiliates. All rights reserved.
  *
  * Portions Copyright 2011 Jens Elkner.
  */
@@ -29,28 +29,62 @@
  */
 package org.opensolaris.opengrok.search.context;
 
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.util.BytesRef;
 import org.opensolaris.opengrok.OpenGrokLogger;
 import org.opensolaris.opengrok.analysis.Definitions;
+import org.opensolaris.opengrok.analysis.LineOffsets;
 import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
 import org.opensolaris.opengrok.search.Hit;
+import org.opensolaris.opengrok.search.RegexpContentQuery;
 import org.opensolaris.opengrok.util.IOUtils;
 import org.opensolaris.opengrok.web.Util;
 
 public class Context {
 
     private final LineMatcher[] m;
+    /** regular expressions to match against whole lines, if any */
+    private final List<Pattern> regexps;
     static final int MAXFILEREAD = 1024 * 1024;
-    private char[] buffer;
-    PlainLineTokenizer tokens;
+    /** max. number of matching lines shown if the context is limited */
+    private static final int MAXLINES = 10;
+    /** number of characters to read at once when scanning a limited context */
+    private static final int READ_CHUNK = 8 * 1024;
+    /**
+     * whether the matching lines can be located with the term vector of the
+     * full field, see {@link #getLinesToRead(Terms, int[], Definitions)}
+     */
+    private final boolean linesFromVectors;
+    /**
+     * max. number of idle tokenizers and read buffers kept for reuse by the
+     * next contexts
+     */
+    private static final int MAX_IDLE = 64;
+    private static final BlockingQueue<PlainLineTokenizer> idleTokenizers =
+            new ArrayBlockingQueue<PlainLineTokenizer>(MAX_IDLE);
+    private static final BlockingQueue<char[]> idleChunks =
+            new ArrayBlockingQueue<char[]>(MAX_IDLE);
     String queryAsURI;
 
     /**
@@ -74,16 +108,130 @@ public class Context {
     public Context(Query query, Map<String, String> queryStrings) {
         QueryMatchers qm = new QueryMatchers();
         m = qm.getMatchers(query, tokenFields);
-        if (m != null) {
+        regexps = getRegexps(query, new ArrayList<Pattern>());
+        linesFromVectors = canUseVectors(query);
+        if (m != null || regexps != null) {
             buildQueryAsURI(queryStrings);
             //System.err.println("Found Matchers = "+ m.length + " for " + query);
-            buffer = new char[MAXFILEREAD];
-            tokens = new PlainLineTokenizer((Reader) null);
         }
     }
 
     public boolean isEmpty() {
-        return m == null;
+        return m == null && regexps == null;
+    }
+
+    /**
+     * Check whether the lines matched by {@link #m} can be located with the
+     * term vector of the full field: this is the case if all matchers match
+     * single terms of the full field.
+     */
+    private boolean canUseVectors(Query query) {
+        if (m == null || regexps != null) {
+            return false;
+        }
+        Map<String, Boolean> otherFields = new HashMap<String, Boolean>();
+        otherFields.put("refs", Boolean.FALSE);
+        otherFields.put("defs", Boolean.FALSE);
+        if (new QueryMatchers().getMatchers(query, otherFields) != null) {
+            return false;
+        }
+        for (LineMatcher lm : m) {
+            if (lm instanceof PhraseMatcher) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find out how many lines of a file need to be read to print its
+     * limited context, i.e. the first {@value #MAXLINES} matching lines, by
+     * looking at the offsets of the matching terms stored in the index.
+     *
+     * @param vector the term vector of the full field of the document, with
+     * offsets
+     * @param lineStarts the offsets of the lines of the document, see
+     * {@link LineOffsets}
+     * @param tags the definitions of the document, if any
+     * @return the number of lines to read, {@code 0} if no line matches or
+     * {@code -1} if the matching lines cannot be located without reading
+     * the whole file
+     * @throws IOException if an error occurs while reading the term vector
+     */
+    public int getLinesToRead(Terms vector, int[] lineStarts, Definitions tags)
+            throws IOException {
+        if (!linesFromVectors || vector == null || lineStarts == null) {
+            return -1;
+        }
+        TreeSet<Integer> lines = new TreeSet<Integer>();
+        TermsEnum te = vector.iterator(null);
+        DocsAndPositionsEnum dpe = null;
+        BytesRef term;
+        while ((term = te.next()) != null) {
+            if (!matches(term.utf8ToString())) {
+                continue;
+            }
+            dpe = te.docsAndPositions(null, dpe,
+                    DocsAndPositionsEnum.FLAG_OFFSETS);
+            if (dpe == null
+                    || dpe.nextDoc() == DocIdSetIterator.NO_MORE_DOCS) {
+                // offsets have not been stored
+                return -1;
+            }
+            for (int i = dpe.freq(); i > 0; i--) {
+                dpe.nextPosition();
+                int offset = dpe.startOffset();
+                if (offset < 0) {
+                    return -1;
+                }
+                lines.add(LineOffsets.getLine(lineStarts, offset));
+            }
+        }
+        if (tags != null) {
+            for (Definitions.Tag tag : tags.getTags()) {
+                if (matches(tag.symbol)) {
+                    lines.add(tag.line);
+                }
+            }
+        }
+        if (lines.isEmpty()) {
+            return 0;
+        }
+        int n = 0;
+        for (Integer line : lines) {
+            if (++n == MAXLINES) {
+                return line;
+            }
+        }
+        return lines.last();
+    }
+
+    private boolean matches(String token) {
+        for (LineMatcher lm : m) {
+            if (lm.match(token) == LineMatcher.MATCHED) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Collect the patterns of the (not prohibited) regular expression
+     * queries in the given query.
+     *
+     * @return the patterns, or {@code null} if there are none
+     */
+    private static List<Pattern> getRegexps(Query query, List<Pattern> ret) {
+        if (query instanceof RegexpContentQuery) {
+            ret.add(((RegexpContentQuery) query).getPattern());
+        } else if (query instanceof BooleanQuery) {
+            for (BooleanClause clause : ((BooleanQuery) query).getClauses()) {
+                if (!clause.isProhibited()) {
+                    getRegexps(clause.getQuery(), ret);
+                }
+            }
+        }
+        return ret.isEmpty() ? null : ret;
     }
 
     /**
@@ -128,8 +276,25 @@ public class Context {
     public boolean getContext(Reader in, Writer out, String urlPrefix,
             String morePrefix, String path, Definitions tags,
             boolean limit, List<Hit> hits) {
+        return getContext(in, out, urlPrefix, morePrefix, path, tags, limit,
+                hits, -1);
+    }
+
+    /**
+     * Same as {@link #getContext(Reader, Writer, String, String, String,
+     * Definitions, boolean, List)}, but if the context is limited, only the
+     * given number of lines are read from <var>in</var>.
+     *
+     * @param linesToRead the number of lines to read as returned by
+     * {@link #getLinesToRead(Terms, int[], Definitions)}, or {@code -1} to
+     * read as much as needed
+     * @return Did it get any matching context?
+     */
+    public boolean getContext(Reader in, Writer out, String urlPrefix,
+            String morePrefix, String path, Definitions tags,
+            boolean limit, List<Hit> hits, int linesToRead) {
         alt = !alt;
-        if (m == null) {
+        if (isEmpty()) {
             IOUtils.close(in);
             return false;
         }
@@ -138,7 +303,7 @@ public class Context {
         String urlPrefixE =
                 (urlPrefix == null) ? "" : Util.URIEncodePath(urlPrefix);
         String pathE = Util.URIEncodePath(path);
-        if (tags != null) {
+        if (tags != null && m != null) {
             matchingTags = new TreeMap<Integer, String[]>();
             try {
                 for (Definitions.Tag tag : tags.getTags()) {
@@ -198,40 +363,37 @@ public class Context {
         if (in == null) {
             return anything;
         }
-        int charsRead = 0;
-        boolean truncated = false;
-
+        if (regexps != null) {
+            return getRegexpContext(in, out, urlPrefixE + pathE + "#",
+                    morePrefix, pathE, path, limit, hits) || anything;
+        }
         boolean lim = limit;
         if (!RuntimeEnvironment.getInstance().isQuickContextScan()) {
             lim = false;
         }
 
+        if (lim && linesToRead == 0) {
+            // nothing in the file matches
+            IOUtils.close(in);
+            return anything;
+        }
+
+        PlainLineTokenizer tokens = idleTokenizers.poll();
+        if (tokens == null) {
+            tokens = new PlainLineTokenizer((Reader) null);
+        }
+        char[] chunk = null;
+        BoundedLineReader bounded = null;
         if (lim) {
-            try {
-                charsRead = in.read(buffer);
-                if (charsRead == MAXFILEREAD) {
-                    // we probably only read parts of the file, so set the
-                    // truncated flag to enable the [all...] link that
-                    // requests all matches
-                    truncated = true;
-                    // truncate to last line read (don't look more than 100
-                    // characters back)
-                    for (int i = charsRead - 1; i > charsRead - 100; i--) {
-                        if (buffer[i] == '\n') {
-                            charsRead = i;
-                            break;
-                        }
-                    }
-                }
-            } catch (IOException e) {
-                OpenGrokLogger.getLogger().log(Level.WARNING, "An error occured while reading data", e);
-                return anything;
-            }
-            if (charsRead == 0) {
-                return anything;
+            // only scan the beginning of the file, but don't read it into
+            // one large buffer
+            chunk = idleChunks.poll();
+            if (chunk == null) {
+                chunk = new char[READ_CHUNK];
             }
-
-            tokens.reInit(buffer, charsRead, out, urlPrefixE + pathE + "#", matchingTags);
+            bounded = new BoundedLineReader(in, chunk, MAXFILEREAD,
+                    linesToRead);
+            tokens.reInit(bounded, out, urlPrefixE + pathE + "#", matchingTags);
         } else {
             tokens.reInit(in, out, urlPrefixE + pathE + "#", matchingTags);
         }
@@ -246,7 +408,7 @@ public class Context {
             String token;
             int matchState = LineMatcher.NOT_MATCHED;
             int matchedLines = 0;
-            while ((token = tokens.yylex()) != null && (!lim || matchedLines < 10)) {
+            while ((token = tokens.yylex()) != null && (!lim || matchedLines < MAXLINES)) {
                 for (int i = 0; i < m.length; i++) {
                     matchState = m[i].match(token);
                     if (matchState == LineMatcher.MATCHED) {
@@ -262,15 +424,26 @@ public class Context {
                 }
             }
             anything = matchedLines > 0;
+            // if the character limit was hit, we probably only read parts
+            // of the file, so enable the [all...] link that requests all
+            // matches
+            boolean truncated = bounded != null && bounded.isTruncated();
+            tokens.setLineCut(bounded != null && bounded.isLineCut());
             tokens.dumpRest();
-            if (lim && (truncated || matchedLines == 10) && out != null) {
+            if (lim && (truncated || matchedLines == MAXLINES) && out != null) {
                 out.write("<a href=\"" + Util.URIEncodePath(morePrefix) + pathE + "?" + queryAsURI + "\">[all...]</a>");
             }
         } catch (IOException e) {
             OpenGrokLogger.getLogger().log(Level.WARNING, "Could not get context for " + path, e);
         } finally {
             IOUtils.close(in);
-            
+            if (tokens.release()) {
+                idleTokenizers.offer(tokens);
+            }
+            if (chunk != null) {
+                idleChunks.offer(chunk);
+            }
+
             if (out != null) {
                 try {
                     out.flush();
@@ -281,4 +454,99 @@ public class Context {
         }
         return anything;
     }
+
+    /**
+     * Write the lines matching any of the {@link #regexps}, with the matches
+     * highlighted. Closes the given <var>in</var> reader on return.
+     *
+     * @param in File to be matched
+     * @param out to write the context, or {@code null} to add to hits
+     * @param lineUrl URL prefix of the line anchors
+     * @param morePrefix to link to more... page
+     * @param pathE encoded path of the file
+     * @param path path of the file
+     * @param limit should the number of matching lines be limited?
+     * @param hits list to add the matching lines to if out is {@code null}
+     * @return Did it get any matching context?
+     */
+    private boolean getRegexpContext(Reader in, Writer out, String lineUrl,
+            String morePrefix, String pathE, String path, boolean limit,
+            List<Hit> hits) {
+        boolean lim = limit
+                && RuntimeEnvironment.getInstance().isQuickContextScan();
+        int matchedLines = 0;
+        boolean truncated = false;
+        try (BufferedReader reader = new BufferedReader(in)) {
+            String line;
+            int lineNo = 0;
+            int charsRead = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNo++;
+                charsRead += line.length() + 1;
+                String html = highlight(line);
+                if (html != null) {
+                    matchedLines++;
+                    String num = Integer.toString(lineNo);
+                    if (out == null) {
+                        hits.add(new Hit(path, html, num, false, alt));
+                    } else {
+                        out.write("<a class=\"s\" href=\"");
+                        out.write(lineUrl);
+                        out.write(num);
+                        out.write("\"><span class=\"l\">");
+                        out.write(num);
+                        out.write("</span> ");
+                        out.write(html);
+                        out.write("</a><br/>");
+                    }
+                }
+                if (lim && (matchedLines == MAXLINES || charsRead >= MAXFILEREAD)) {
+                    truncated = reader.readLine() != null;
+                    break;
+                }
+            }
+            if (lim && truncated && out != null) {
+                out.write("<a href=\"" + Util.URIEncodePath(morePrefix) + pathE + "?" + queryAsURI + "\">[all...]</a>");
+            }
+        } catch (IOException e) {
+            OpenGrokLogger.getLogger().log(Level.WARNING, "Could not get context for " + path, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    OpenGrokLogger.getLogger().log(Level.WARNING, "Failed to flush stream: ", e);
+                }
+            }
+        }
+        return matchedLines > 0;
+    }
+
+    /**
+     * Highlight the matches of the {@link #regexps} in a line.
+     *
+     * @return the htmlized line, or {@code null} if nothing matched
+     */
+    private String highlight(String line) {
+        for (Pattern p : regexps) {
+            Matcher matcher = p.matcher(line);
+            if (!matcher.find()) {
+                continue;
+            }
+            StringBuilder sb = new StringBuilder(line.length() + 16);
+            int last = 0;
+            do {
+                if (matcher.end() > matcher.start()) {
+                    sb.append(Util.htmlize(line.substring(last, matcher.start())))
+                        .append("<b>")
+                        .append(Util.htmlize(matcher.group()))
+                        .append("</b>");
+                    last = matcher.end();
+                }
+            } while (matcher.find());
+            sb.append(Util.htmlize(line.substring(last)));
+            return sb.toString();
+        }
+        return null;
+    }
 }
@@ -36,6 +36,7 @@ import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.WildcardQuery;
+import org.opensolaris.opengrok.search.QueryBuilder;
 
 /**
  * Utility class used to extract the terms used in a query
@@ -126,7 +127,7 @@ public final class QueryMatchers {
     }
 
     private void getWildTerm(WildcardQuery query) {
-        Term term = query.getTerm();
+        Term term = unreverse(query.getTerm());
         if (useTerm(term)) {
             matchers.add(
                     new WildCardMatcher(term.text(), isCaseInsensitive(term)));
@@ -135,12 +136,32 @@ public final class QueryMatchers {
 
     private void getPrefix(PrefixQuery query) {
         Term term = query.getPrefix();
-        if (useTerm(term)) {
+        if (QueryBuilder.getUnreversedField(term.field()) != null) {
+            // a prefix of the reversed terms is a suffix of the terms
+            term = unreverse(new Term(term.field(), term.text() + '*'));
+            if (useTerm(term)) {
+                matchers.add(new WildCardMatcher(term.text(),
+                        isCaseInsensitive(term)));
+            }
+        } else if (useTerm(term)) {
             matchers.add(
                     new PrefixMatcher(term.text(), isCaseInsensitive(term)));
         }
     }
 
+    /**
+     * Map a term of a field holding reversed terms to the corresponding term
+     * of the original field. Other terms are returned as is.
+     */
+    private static Term unreverse(Term term) {
+        String field = QueryBuilder.getUnreversedField(term.field());
+        if (field == null) {
+            return term;
+        }
+        return new Term(field,
+                new StringBuilder(term.text()).reverse().toString());
+    }
+
     /**
      * Check whether a matcher should be created for a term.
      */
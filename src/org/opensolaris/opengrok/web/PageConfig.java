@@ -1168,6 +1168,7 @@ public final class PageConfig {
         }
         sh.start = getSearchStart();
         sh.maxItems = getSearchMaxItems();
+        sh.cursor = req.getParameter("c");
         sh.contextPath = req.getContextPath();
         sh.isCrossRefSearch = getPrefix() == Prefix.SEARCH_R;
         sh.compressed = env.isCompressXref();
@@ -68,6 +68,11 @@ public enum Prefix {
     SEARCH_R("/s"),
     /** opensearch description page */
     SEARCH_O("/opensearch"),
+    /** definition lookup, returns the definitions of a symbol as JSON or
+     * jumps directly to the definition if it is unique */
+    DEF_P("/def"),
+    /** type-ahead completion of search terms */
+    COMPLETE_P("/complete"),
     /** related source file or directory not found/unavailable/ignored */
     NOT_FOUND("/enoent"),
     /** misc error occurred */
@@ -30,6 +30,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.SortedSet;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -37,14 +38,20 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.search.*;
 import org.apache.lucene.search.spell.SpellChecker;
-import org.apache.lucene.store.FSDirectory;
 import org.opensolaris.opengrok.OpenGrokLogger;
 import org.opensolaris.opengrok.analysis.CompatibleAnalyser;
 import org.opensolaris.opengrok.analysis.Definitions;
 import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+import org.opensolaris.opengrok.search.DefinitionIndex;
+import org.opensolaris.opengrok.search.PartialTopDocs;
+import org.opensolaris.opengrok.search.QueryBudget;
 import org.opensolaris.opengrok.search.QueryBuilder;
+import org.opensolaris.opengrok.search.QueryTooExpensiveException;
+import org.opensolaris.opengrok.search.SearchCursor;
 import org.opensolaris.opengrok.search.SearcherCache;
 import org.opensolaris.opengrok.search.SearcherCache.SearcherWithCleanup;
+import org.opensolaris.opengrok.search.SelectiveFieldVisitor;
+import org.opensolaris.opengrok.search.SortFields;
 import org.opensolaris.opengrok.search.Summarizer;
 import org.opensolaris.opengrok.search.context.Context;
 import org.opensolaris.opengrok.search.context.HistoryContext;
@@ -125,13 +132,33 @@ public class SearchHelper {
      */
     public SearcherWithCleanup searcherWithCleanup;
     /**
-     * list of docs which result from the executing the query
+     * list of docs which result from the executing the query, starting with
+     * the hit at index {@link #hitsOffset}. It may hold more than
+     * {@link #start} + {@link #maxItems} docs and is possibly shared with
+     * other searches, so it must not be modified.
      */
     public ScoreDoc[] hits;
+    /**
+     * index of the hit stored in {@code hits[0]}. Usually {@code 0}, but
+     * deep pages are fetched without the hits before {@link #start}.
+     */
+    public int hitsOffset;
+    /**
+     * opaque cursor produced by {@link #getNextCursor()} for the requested
+     * page, if any. Used to fetch deep pages efficiently, ignored if it does
+     * not match the current {@link #start} or index versions.
+     */
+    public String cursor;
     /**
      * total number of hits
      */
     public int totalHits;
+    /**
+     * {@code true} if the search has been stopped because it exceeded the
+     * configured time limit, i.e. {@link #hits} and {@link #totalHits} only
+     * reflect the documents found so far.
+     */
+    public boolean partialResults;
     /**
      * the query created by the used {@link QueryBuilder} via
      * {@link #prepareExec(SortedSet)}.
@@ -165,6 +192,23 @@ public class SearchHelper {
     public static final String PARSE_ERROR_MSG = "Unable to parse your query: ";
 
     private static final Logger log = Logger.getLogger(SearchHelper.class.getName());
+
+    /**
+     * Max. number of hits collected at once when skipping to a deep page
+     * without a valid cursor.
+     */
+    private static final int SKIP_CHUNK_SIZE = 1000;
+
+    /**
+     * Max. number of chunks searched when skipping to a deep page without a
+     * valid cursor. Deeper pages can only be reached with a cursor.
+     */
+    private static final int MAX_SKIP_CHUNKS = 10;
+
+    /**
+     * Max. number of hits shown on one result page.
+     */
+    private static final int MAX_PAGE_SIZE = 1000;
            
     private SearcherCache searcherCache;
     
@@ -194,9 +238,7 @@ public class SearchHelper {
         if (redirect != null || errorMsg != null) {
             return this;
         }
-        // the Query created by the QueryBuilder
         try {
-            query = builder.build();
             if (projects == null) {
                 errorMsg = "No project selected!";
                 return this;
@@ -226,16 +268,19 @@ public class SearchHelper {
                         searcherCache.fetchIndexSearcher(indexDirs);
                 searcher = searcherWithCleanup.getSearcher();
             }
+            // the Query created by the QueryBuilder, which depends on the
+            // fields available in the indexes
+            query = builder.build(searcher.getIndexReader());
             // TODO check if below is somehow reusing sessions so we don't
             // requery again and again, I guess 2min timeout sessions could be
             // usefull, since you click on the next page within 2mins, if not,
             // then wait ;)
             switch (order) {
                 case LASTMODIFIED:
-                    sort = new Sort(new SortField("date", SortField.Type.STRING, true));
+                    sort = SortFields.byDate(searcher.getIndexReader());
                     break;
                 case BY_PATH:
-                    sort = new Sort(new SortField("fullpath", SortField.Type.STRING));
+                    sort = SortFields.byPath(searcher.getIndexReader());
                     break;
                 default:
                     sort = Sort.RELEVANCE;
@@ -260,8 +305,8 @@ public class SearchHelper {
      * {@link #prepareExec(SortedSet)})</li> <li>{@link #start} (default:
      * 0)</li> <li>{@link #maxItems} (default: 0)</li>
      * <li>{@link #isCrossRefSearch} (default: false)</li> </ul> Populates/sets:
-     * <ul> <li>{@link #hits} (see {@link TopFieldDocs#scoreDocs})</li>
-     * <li>{@link #totalHits} (see {@link TopFieldDocs#totalHits})</li>
+     * <ul> <li>{@link #hits} (see {@link TopDocs#scoreDocs})</li>
+     * <li>{@link #totalHits} (see {@link TopDocs#totalHits})</li>
      * <li>{@link #contextPath}</li> <li>{@link #errorMsg} if an error
      * occurs</li> <li>{@link #redirect} if certain conditions are met</li>
      * </ul>
@@ -273,9 +318,80 @@ public class SearchHelper {
             return this;
         }
         try {
-            TopFieldDocs fdocs = searcher.search(query, null, start + maxItems, sort);
-            totalHits = fdocs.totalHits;
-            hits = fdocs.scoreDocs;
+            if (isCrossRefSearch && query instanceof TermQuery
+                    && QueryBuilder.DEFS.equals(
+                        ((TermQuery) query).getTerm().field())
+                    && findUniqueDefinition(
+                        ((TermQuery) query).getTerm().text())) {
+                return this;
+            }
+            // the page size comes from the request, don't let it force the
+            // collection of arbitrarily many hits
+            maxItems = Math.min(maxItems, MAX_PAGE_SIZE);
+            final int n = start + maxItems;
+            // collect a few pages in advance, so that paging through the
+            // results can be served from the result cache
+            final int window = RuntimeEnvironment.getInstance().getHitsPerPage()
+                    * RuntimeEnvironment.getInstance().getCachePages();
+            final int collect = Math.max(n, window);
+            final QueryBudget budget = QueryBudget.getDefault();
+            TopDocs fdocs;
+            SearchCursor c = null;
+            if (n > window && start > 0) {
+                c = SearchCursor.decode(cursor);
+                if (c != null && (c.getStart() != start || !c.getVersion()
+                        .equals(searcherWithCleanup.getVersion()))) {
+                    c = null;
+                }
+            }
+            if (c == null && n > window
+                    && start > MAX_SKIP_CHUNKS * SKIP_CHUNK_SIZE) {
+                // without a cursor, a very deep page could only be reached by
+                // collecting or skipping all the hits before it
+                errorMsg = "Result " + (start + 1) + " is too far down to be "
+                        + "shown directly. Please page through the results "
+                        + "or refine your search.";
+                return this;
+            }
+            if (c == null && (n <= window || start == 0)) {
+                fdocs = RuntimeEnvironment.getInstance().getResultCache()
+                    .search(getResultCacheKey(), n, new Callable<TopDocs>() {
+                        @Override
+                        public TopDocs call()
+                                throws IOException, QueryTooExpensiveException {
+                            // only estimate the cost if the results are not
+                            // cached, it may enumerate many terms
+                            budget.check(query, searcher.getIndexReader());
+                            return budget.search(searcher, query, null,
+                                    collect, sort);
+                        }
+                    });
+                totalHits = fdocs.totalHits;
+                hits = fdocs.scoreDocs;
+                hitsOffset = 0;
+            } else {
+                // deep paging: only collect the requested page
+                budget.check(query, searcher.getIndexReader());
+                ScoreDoc after;
+                if (c != null) {
+                    after = c.getAfter();
+                    hitsOffset = start;
+                } else {
+                    SkippedHits skipped = skipHits(budget, start);
+                    if (skipped.partial) {
+                        // don't list hits which may not be the requested ones
+                        errorMsg = "The search took too long to reach result "
+                                + (start + 1) + ". Please refine your search.";
+                        return this;
+                    }
+                    after = skipped.last;
+                    hitsOffset = skipped.count;
+                }
+                fdocs = budget.search(searcher, query, after, maxItems, sort);
+                totalHits = fdocs.totalHits;
+                hits = fdocs.scoreDocs;
+            }
+            partialResults = fdocs instanceof PartialTopDocs;
             // Bug #3900: Check if this is a search for a single term, and that
             // term is a definition. If that's the case, and we only have one match,
             // we'll generate a direct link instead of a listing.
@@ -286,10 +402,13 @@ public class SearchHelper {
             // one single definition term AND we have exactly one match AND there
             // is only one definition of that symbol in the document that matches.
             boolean uniqueDefinition = false;
-            if (isSingleDefinitionSearch && hits != null && hits.length == 1) {
-                Document doc = searcher.doc(hits[0].doc);
-                if (doc.getField("tags") != null) {
-                    byte[] rawTags = doc.getField("tags").binaryValue().bytes;
+            Document doc = null;
+            if (isSingleDefinitionSearch && hits != null && hits.length == 1
+                    && totalHits == 1) {
+                doc = SelectiveFieldVisitor.load(searcher, hits[0].doc,
+                        QueryBuilder.PATH, QueryBuilder.TAGS);
+                if (doc.getField(QueryBuilder.TAGS) != null) {
+                    byte[] rawTags = doc.getField(QueryBuilder.TAGS).binaryValue().bytes;
                     Definitions tags = Definitions.deserialize(rawTags);
                     String symbol = ((TermQuery) query).getTerm().text();
                     if (tags.occurrences(symbol) == 1) {
@@ -299,18 +418,144 @@ public class SearchHelper {
             }
             // @TODO fix me. I should try to figure out where the exact hit is
             // instead of returning a page with just _one_ entry in....
-            if (uniqueDefinition && hits != null && hits.length > 0 && isCrossRefSearch) {
+            if (uniqueDefinition && isCrossRefSearch) {
                 redirect = contextPath + Prefix.XREF_P
-                        + Util.URIEncodePath(searcher.doc(hits[0].doc).get("path"))
+                        + Util.URIEncodePath(doc.get(QueryBuilder.PATH))
                         + '#' + Util.URIEncode(((TermQuery) query).getTerm().text());
             }
         } catch (BooleanQuery.TooManyClauses e) {
             errorMsg = "Too many results for wildcard!";
+        } catch (QueryTooExpensiveException e) {
+            errorMsg = e.getMessage();
+        } catch (IOException e) {
+            // the result cache wraps exceptions thrown by the search
+            errorMsg = e.getCause() instanceof QueryTooExpensiveException
+                    ? e.getCause().getMessage() : e.getMessage();
         } catch (Exception e) {
             errorMsg = e.getMessage();
         }
         return this;
     }
+    /**
+     * Bug #3900: Look up the given symbol in the definition indexes of the
+     * selected projects and, if it is defined exactly once, set
+     * {@link #redirect} to the definition without searching the index.
+     *
+     * @param symbol the symbol to look up
+     * @return {@code true} if {@link #redirect} has been set, {@code false}
+     * if the index has to be searched instead
+     * @throws IOException if a definition index cannot be read
+     */
+    private boolean findUniqueDefinition(String symbol) throws IOException {
+        List<File> files = new ArrayList<File>();
+        if (projects.isEmpty()) {
+            files.add(DefinitionIndex.getFile(dataRoot, null));
+        } else {
+            for (String proj : projects) {
+                files.add(DefinitionIndex.getFile(dataRoot, proj));
+            }
+        }
+        List<DefinitionIndex.Definition> defs =
+                new ArrayList<DefinitionIndex.Definition>();
+        for (File file : files) {
+            DefinitionIndex index = DefinitionIndex.get(file);
+            if (index == null) {
+                // not generated yet, fall back to the search
+                return false;
+            }
+            defs.addAll(index.lookup(symbol));
+            if (defs.size() > 1) {
+                return false;
+            }
+        }
+        if (defs.size() != 1) {
+            return false;
+        }
+        String path = defs.get(0).getPath();
+        if (sourceRoot != null && !new File(sourceRoot, path).isFile()) {
+            // removed since the definition index has been generated
+            return false;
+        }
+        redirect = contextPath + Prefix.XREF_P + Util.URIEncodePath(path)
+                + '#' + Util.URIEncode(symbol);
+        return true;
+    }
+
+    /**
+     * The position reached by {@link #skipHits(QueryBudget, int)}.
+     */
+    private static final class SkippedHits {
+        /** the last skipped hit, or {@code null} if none was skipped */
+        ScoreDoc last;
+        /** the number of hits skipped */
+        int count;
+        /** whether skipping has been stopped by the time limit */
+        boolean partial;
+    }
+
+    /**
+     * Walk the sorted results in chunks of bounded size, without keeping the
+     * hits, until the given number of hits has been passed. Fewer hits are
+     * skipped if there are not as many, or if the time limit is exceeded.
+     *
+     * @param budget the budget to search with
+     * @param count the number of hits to skip
+     * @return the position reached
+     */
+    private SkippedHits skipHits(QueryBudget budget, int count)
+            throws IOException {
+        SkippedHits ret = new SkippedHits();
+        while (ret.count < count) {
+            int chunk = Math.min(SKIP_CHUNK_SIZE, count - ret.count);
+            TopDocs docs = budget.search(searcher, query, ret.last, chunk, sort);
+            if (docs instanceof PartialTopDocs) {
+                // the chunk may miss hits, so it can't be skipped
+                ret.partial = true;
+                break;
+            }
+            if (docs.scoreDocs.length == 0) {
+                break;
+            }
+            ret.last = docs.scoreDocs[docs.scoreDocs.length - 1];
+            ret.count += docs.scoreDocs.length;
+        }
+        return ret;
+    }
+
+    /**
+     * Get the cursor pointing to the page following the current one. Should
+     * be passed as {@link #cursor} when requesting that page, so that it can
+     * be fetched without collecting all the hits before it.
+     *
+     * @return the encoded cursor, or {@code null} if there is no next page or
+     * no search has been executed
+     */
+    public String getNextCursor() {
+        int next = start + maxItems;
+        int idx = next - 1 - hitsOffset;
+        if (hits == null || next >= totalHits || idx < 0 || idx >= hits.length
+                || !(hits[idx] instanceof FieldDoc)) {
+            return null;
+        }
+        return new SearchCursor(next, searcherWithCleanup.getVersion(),
+                (FieldDoc) hits[idx]).encode();
+    }
+
+    /**
+     * Get the key identifying the current search in the result cache: the
+     * query, the searched projects and the versions of their index readers,
+     * and the sort order.
+     */
+    private String getResultCacheKey() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(dataRoot).append('\u0000')
+            .append(projects).append('\u0000')
+            .append(searcherWithCleanup.getVersion()).append('\u0000')
+            .append(sort).append('\u0000')
+            .append(query);
+        return sb.toString();
+    }
+
     private static final Pattern TABSPACE = Pattern.compile("[\t ]+");
 
     private static void getSuggestion(String term, SpellChecker checker,
@@ -362,12 +607,13 @@ public class SearchHelper {
             if (!spellIndex[idx].exists()) {
                 continue;
             }
-            FSDirectory spellDirectory = null;
-            SpellChecker checker = null;
             Suggestion s = new Suggestion(spellIndex[idx].getName());
             try {
-                spellDirectory = FSDirectory.open(spellIndex[idx]);
-                checker = new SpellChecker(spellDirectory);
+                SpellChecker checker = RuntimeEnvironment.getInstance()
+                        .getSpellCheckerCache().get(spellIndex[idx]);
+                if (checker == null) {
+                    continue;
+                }
                 getSuggestion(builder.getFreetext(), checker, dummy);
                 s.freetext = dummy.toArray(new String[dummy.size()]);
                 dummy.clear();
@@ -385,17 +631,7 @@ public class SearchHelper {
                 }
             } catch (IOException e) {
                 log.log(Level.WARNING, "Got excption while getting spelling suggestions: ", e);
-            } finally {
-                if (spellDirectory != null) {
-                    spellDirectory.close();
-                }
-                if (checker != null) {
-                    try {
-                        checker.close();
-                    } catch (Exception x) { 
-                        log.log(Level.WARNING, "Got excption while closing spelling suggestions: ", x);
-                    }
-                }
+                dummy.clear();
             }
         }
         return res;
@@ -756,6 +756,12 @@ public final class Util {
             env.isAllowLeadingWildcard());
         printTableRow(out, "History cache", HistoryGuru.getInstance()
             .getCacheInfo());
+        printTableRow(out, "History memory cache", HistoryGuru.getInstance()
+            .getMemoryCacheInfo());
+        printTableRow(out, "Searcher cache",
+            env.getSearcherCache().getStatistics());
+        printTableRow(out, "Result cache",
+            env.getResultCache().getStatistics());
         out.append("</table>");
     }
 
@@ -18,7 +18,7 @@
  */
 
 /*
- * Copyright (c) 2007, 2010, Oracle and/or its affiliates. All rights reserved.
+ * Copyright (c) 2007, 2013, Oracle and/or its affiliates. All rights reserved.
  */
 package org.opensolaris.opengrok.web;
 
@@ -34,6 +34,7 @@ import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 import org.opensolaris.opengrok.OpenGrokLogger;
 import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+import org.opensolaris.opengrok.history.HistoryGuru;
 
 /**
  * Populate the Mercurial Repositories
@@ -87,5 +88,8 @@ public final class WebappListener implements ServletContextListener {
         RuntimeEnvironment env = RuntimeEnvironment.getInstance();
         env.stopConfigurationListenerThread();
         env.destroySearcherCache();
+        HistoryGuru.getInstance().closeRepositories();
+        HistoryGuru.getInstance().unregisterMemoryCache();
+        HistoryGuru.getInstance().closeHistoryCache();
     }
 }
@@ -0,0 +1,105 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.analysis;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+import org.opensolaris.opengrok.search.QueryBuilder;
+import org.opensolaris.opengrok.search.SearchEngine;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the {@code ReversedTermsField} class.
+ */
+public class ReversedTermsFieldTest {
+
+    private static List<String> getTerms(DirectoryReader reader,
+            String field) throws Exception {
+        List<String> list = new ArrayList<String>();
+        Terms terms = MultiFields.getTerms(reader, field);
+        if (terms != null) {
+            TermsEnum te = terms.iterator(null);
+            BytesRef term;
+            while ((term = te.next()) != null) {
+                list.add(term.utf8ToString());
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Fields with their own reader or token stream, like the ones of the
+     * Java class analyzer, get reversed terms too.
+     */
+    @Test
+    public void testReaderAndTokenStreamFields() throws Exception {
+        Document doc = new Document();
+        for (TextField f : new TextField[]{
+                    new TextField(QueryBuilder.DEFS, new List2TokenStream(
+                    Arrays.asList("getHandler", "Foo"))),
+                    new TextField(QueryBuilder.FULL,
+                    new StringReader("abc def")),
+                    new TextField(QueryBuilder.FULL,
+                    new StringReader("abc xyz"))}) {
+            ReversedTermsField reversed = new ReversedTermsField(f);
+            doc.add(reversed.getSource());
+            doc.add(reversed);
+        }
+
+        RAMDirectory dir = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(
+                SearchEngine.LUCENE_VERSION,
+                new WhitespaceAnalyzer(SearchEngine.LUCENE_VERSION)));
+        writer.addDocument(doc);
+        writer.close();
+
+        DirectoryReader reader = DirectoryReader.open(dir);
+        try {
+            assertEquals(Arrays.asList("Foo", "getHandler"),
+                    getTerms(reader, QueryBuilder.DEFS));
+            assertEquals(Arrays.asList("ooF", "reldnaHteg"),
+                    getTerms(reader, QueryBuilder.DEFS_REVERSED));
+            assertEquals(Arrays.asList("abc", "def", "xyz"),
+                    getTerms(reader, QueryBuilder.FULL));
+            assertEquals(Arrays.asList("cba", "fed", "zyx"),
+                    getTerms(reader, QueryBuilder.FULL_REVERSED));
+        } finally {
+            reader.close();
+            dir.close();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.history;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensolaris.opengrok.util.FileUtilities;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the {@code GitCatFilePool} class.
+ */
+public class GitCatFilePoolTest {
+
+    private File root;
+    /** whether git could be run to set up the test repository */
+    private boolean skip;
+
+    private int git(String... args) throws IOException, InterruptedException {
+        String[] cmd = new String[args.length + 1];
+        cmd[0] = GitRepository.CMD_FALLBACK;
+        System.arraycopy(args, 0, cmd, 1, args.length);
+        ProcessBuilder pb = new ProcessBuilder(cmd);
+        pb.directory(root);
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+        return pb.start().waitFor();
+    }
+
+    private void commit(String file, String content, String message)
+            throws Exception {
+        try (OutputStream out = new FileOutputStream(new File(root, file))) {
+            out.write(content.getBytes("UTF-8"));
+        }
+        assertEquals(0, git("add", file));
+        assertEquals(0, git("-c", "user.name=Test", "-c",
+                "user.email=test@example.com", "commit", "-q", "-m",
+                message));
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        root = FileUtilities.createTemporaryDirectory("gitcatfile");
+        try {
+            if (git("init", "-q") != 0) {
+                skip = true;
+                return;
+            }
+        } catch (IOException e) {
+            // git is not installed
+            skip = true;
+            return;
+        }
+        commit("file.txt", "first\n", "first");
+        commit("file.txt", "second\n", "second");
+        commit("big.txt", "0123456789012345678901234567890123456789", "big");
+    }
+
+    @After
+    public void tearDown() {
+        FileUtilities.removeDirs(root);
+    }
+
+    @Test
+    public void testGet() throws Exception {
+        if (skip) {
+            return;
+        }
+        GitCatFilePool pool = new GitCatFilePool(
+                GitRepository.CMD_FALLBACK, root, 2, 16, 3, 60000, 60000);
+        assertEquals("second\n",
+                new String(pool.get("HEAD:file.txt"), "UTF-8"));
+        assertEquals("first\n",
+                new String(pool.get("HEAD~2:file.txt"), "UTF-8"));
+        // the process is reused, and replaced after three requests
+        assertEquals(1, pool.getProcessCount());
+        assertNull(pool.get("HEAD:nonexistent.txt"));
+        assertEquals(0, pool.getProcessCount());
+        assertEquals("second\n",
+                new String(pool.get("HEAD:file.txt"), "UTF-8"));
+        assertEquals(1, pool.getProcessCount());
+
+        try {
+            pool.get("HEAD:big.txt");
+            fail("the blob should be too large");
+        } catch (IOException e) {
+            // expected, and the process can't be reused
+        }
+        assertEquals(0, pool.getProcessCount());
+    }
+
+    @Test
+    public void testNotABlob() throws Exception {
+        if (skip) {
+            return;
+        }
+        GitCatFilePool pool = new GitCatFilePool(
+                GitRepository.CMD_FALLBACK, root, 2, 1024, 100, 60000, 60000);
+        try {
+            pool.get("HEAD:");
+            fail("a tree is not a blob");
+        } catch (IOException e) {
+            // expected, but the process can be reused
+        }
+        assertEquals(1, pool.getProcessCount());
+        assertEquals("second\n",
+                new String(pool.get("HEAD:file.txt"), "UTF-8"));
+        pool.close();
+        assertEquals(0, pool.getProcessCount());
+    }
+
+    @Test
+    public void testIdleTimeout() throws Exception {
+        if (skip) {
+            return;
+        }
+        GitCatFilePool pool = new GitCatFilePool(
+                GitRepository.CMD_FALLBACK, root, 2, 1024, 100, 50, 60000);
+        assertNotNull(pool.get("HEAD:file.txt"));
+        assertEquals(1, pool.getProcessCount());
+        Thread.sleep(100);
+        // the idle process is reused, and the timeout applies after that
+        assertNotNull(pool.get("HEAD~1:file.txt"));
+        assertEquals(1, pool.getProcessCount());
+        pool.close();
+    }
+
+    /**
+     * Idle processes are closed even if no more requests come in.
+     */
+    @Test
+    public void testReaper() throws Exception {
+        if (skip) {
+            return;
+        }
+        GitCatFilePool pool = new GitCatFilePool(
+                GitRepository.CMD_FALLBACK, root, 2, 1024, 100, 50, 60000);
+        assertNotNull(pool.get("HEAD:file.txt"));
+        assertEquals(1, pool.getProcessCount());
+        for (int i = 0; i < 100 && pool.getProcessCount() > 0; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, pool.getProcessCount());
+        // the pool starts a new process when needed
+        assertNotNull(pool.get("HEAD:file.txt"));
+        assertEquals(1, pool.getProcessCount());
+        pool.close();
+    }
+
+    /**
+     * A process which does not answer is killed, instead of blocking the
+     * request forever.
+     */
+    @Test
+    public void testReadTimeout() throws Exception {
+        if (File.separatorChar != '/') {
+            return;
+        }
+        File script = new File(root, "hang.sh");
+        try (OutputStream out = new FileOutputStream(script)) {
+            out.write("#!/bin/sh\nexec sleep 60\n".getBytes("UTF-8"));
+        }
+        assertTrue(script.setExecutable(true));
+        GitCatFilePool pool = new GitCatFilePool(
+                script.getAbsolutePath(), root, 2, 1024, 100, 60000, 200);
+        long start = System.currentTimeMillis();
+        try {
+            pool.get("HEAD:file.txt");
+            fail("the process should have been killed");
+        } catch (IOException e) {
+            // expected, and the process is not reused
+        }
+        assertTrue(System.currentTimeMillis() - start < 30000);
+        assertEquals(0, pool.getProcessCount());
+        pool.close();
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        if (skip) {
+            return;
+        }
+        GitCatFilePool pool = new GitCatFilePool(
+                GitRepository.CMD_FALLBACK, root, 2, 1024, 100, 60000, 60000);
+        assertNotNull(pool.get("HEAD:file.txt"));
+        assertEquals(1, pool.getProcessCount());
+        pool.close();
+        assertEquals(0, pool.getProcessCount());
+        try {
+            pool.get("HEAD:file.txt");
+            fail("a closed pool should refuse requests");
+        } catch (IOException e) {
+            // expected, and no process has been started
+        }
+        assertEquals(0, pool.getProcessCount());
+    }
+}
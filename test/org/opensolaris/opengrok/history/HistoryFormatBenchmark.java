@@ -0,0 +1,75 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.history;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.opensolaris.opengrok.util.FileUtilities;
+
+/**
+ * Compares the size and the decoding time of a large history in the binary
+ * format of {@link HistoryFormat} and in the XML format written by
+ * {@code java.beans.XMLEncoder}. It is not part of the unit tests, run it
+ * with {@code java org.opensolaris.opengrok.history.HistoryFormatBenchmark
+ * [entries [rounds]]}.
+ */
+public final class HistoryFormatBenchmark {
+
+    private HistoryFormatBenchmark() {
+        // only main() is used
+    }
+
+    public static void main(String[] args) throws IOException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        History history = HistoryFormatTest.createHistory(size, false);
+        File dir = FileUtilities.createTemporaryDirectory("historybench");
+        try {
+            File xml = new File(dir, "xml.gz");
+            HistoryFormatTest.writeXML(history, xml);
+            File binary = new File(dir, "binary.gz");
+            try (OutputStream out = new FileOutputStream(binary)) {
+                HistoryFormat.write(history, out);
+            }
+            System.out.println("Decoding " + size + " history entries: XML "
+                    + xml.length() + " bytes, binary " + binary.length()
+                    + " bytes");
+            // the first rounds warm up the JIT compiler
+            for (int i = 1; i <= rounds; i++) {
+                long time = System.nanoTime();
+                HistoryFormat.read(xml);
+                long xmlTime = System.nanoTime() - time;
+                time = System.nanoTime();
+                HistoryFormat.read(binary);
+                long binaryTime = System.nanoTime() - time;
+                System.out.println("Round " + i + ": XML "
+                        + xmlTime / 1000000 + " ms, binary "
+                        + binaryTime / 1000000 + " ms");
+            }
+        } finally {
+            FileUtilities.removeDirs(dir);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.history;
+
+import java.beans.XMLEncoder;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensolaris.opengrok.util.FileUtilities;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the {@code HistoryFormat} class.
+ */
+public class HistoryFormatTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = FileUtilities.createTemporaryDirectory("historyformat");
+    }
+
+    @After
+    public void tearDown() {
+        FileUtilities.removeDirs(dir);
+    }
+
+    /**
+     * Create a history with the given number of entries. Change requests
+     * are not included if the history should be compared with the XML
+     * format, which does not store them.
+     */
+    static History createHistory(int size, boolean changeRequests) {
+        List<HistoryEntry> entries = new ArrayList<HistoryEntry>();
+        long time = 1357000000000L;
+        for (int i = size; i > 0; i--) {
+            HistoryEntry e = new HistoryEntry("1." + i, new Date(time),
+                    "author" + (i % 7), i % 10 == 0 ? "tag" + i : null,
+                    "Fix bug " + i + "\nwith a second line", i % 3 != 0);
+            e.addFile("/src/file" + (i % 5) + ".c");
+            if (changeRequests && i % 4 == 0) {
+                e.addChangeRequest("CR " + i);
+            }
+            entries.add(e);
+            time -= 3600000L + i;
+        }
+        // entries without optional values
+        entries.add(new HistoryEntry(null, null, null, null, "", true));
+        History history = new History();
+        history.setHistoryEntries(entries);
+        return history;
+    }
+
+    private static void assertHistoryEquals(History expected, History actual) {
+        List<HistoryEntry> exp = expected.getHistoryEntries();
+        List<HistoryEntry> act = actual.getHistoryEntries();
+        assertEquals(exp.size(), act.size());
+        for (int i = 0; i < exp.size(); i++) {
+            HistoryEntry e = exp.get(i);
+            HistoryEntry a = act.get(i);
+            assertEquals(e.getRevision(), a.getRevision());
+            assertEquals(e.getDate(), a.getDate());
+            assertEquals(e.getAuthor(), a.getAuthor());
+            assertEquals(e.getTags(), a.getTags());
+            assertEquals(e.getMessage(), a.getMessage());
+            assertEquals(e.isActive(), a.isActive());
+            assertEquals(e.getFiles(), a.getFiles());
+            assertEquals(e.getChangeRequests(), a.getChangeRequests());
+        }
+    }
+
+    static void writeXML(History history, File file)
+            throws IOException {
+        try (OutputStream out = new FileOutputStream(file);
+                XMLEncoder e = new XMLEncoder(
+                    new BufferedOutputStream(new GZIPOutputStream(out)))) {
+            e.writeObject(history);
+        }
+    }
+
+    private File writeBinary(History history, String name)
+            throws IOException {
+        File file = new File(dir, name);
+        try (OutputStream out = new FileOutputStream(file)) {
+            HistoryFormat.write(history, out);
+        }
+        return file;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        History small = createHistory(3, true);
+        File file = writeBinary(small, "small.gz");
+        assertHistoryEquals(small, HistoryFormat.read(file));
+
+        // large histories are deflated
+        History large = createHistory(1000, true);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        HistoryFormat.write(large, bytes);
+        assertEquals(HistoryFormat.FLAG_DEFLATED, bytes.toByteArray()[5]);
+        file = writeBinary(large, "large.gz");
+        assertHistoryEquals(large, HistoryFormat.read(file));
+    }
+
+    @Test
+    public void testReadAndConvertXML() throws IOException {
+        History history = createHistory(50, false);
+        File sub = new File(dir, "sub");
+        assertTrue(sub.mkdir());
+        File file = new File(sub, "file.c.gz");
+        writeXML(history, file);
+        assertTrue(file.setLastModified(1000000000000L));
+        assertHistoryEquals(history, HistoryFormat.read(file));
+
+        assertEquals(1, HistoryFormat.convert(dir));
+        assertEquals(1000000000000L, file.lastModified());
+        assertHistoryEquals(history, HistoryFormat.read(file));
+        // already converted
+        assertEquals(0, HistoryFormat.convert(dir));
+    }
+
+    /**
+     * Check that the binary format reads back the same history as the XML
+     * format, and is smaller.
+     */
+    @Test
+    public void testSmallerThanXML() throws IOException {
+        History history = createHistory(1000, false);
+        File xml = new File(dir, "xml.gz");
+        writeXML(history, xml);
+        File binary = writeBinary(history, "binary.gz");
+
+        assertHistoryEquals(HistoryFormat.read(xml),
+                HistoryFormat.read(binary));
+        assertTrue(binary.length() < xml.length());
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnsupportedVersion() throws IOException {
+        byte[] data = {'O', 'G', 'H', 'C', 99, 0};
+        File file = new File(dir, "future.gz");
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        HistoryFormat.read(file);
+    }
+}
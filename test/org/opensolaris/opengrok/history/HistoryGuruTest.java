@@ -24,11 +24,15 @@
 package org.opensolaris.opengrok.history;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import org.junit.After;
 import org.junit.AfterClass;
 import static org.junit.Assert.*;
@@ -142,6 +146,86 @@ public class HistoryGuruTest {
         }
     }
 
+    private static void write(File file, String text) throws IOException {
+        FileWriter out = new FileWriter(file);
+        try {
+            out.write(text);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Create a directory with an RCS repository below the source root.
+     */
+    private static File createRCSDirectory(String name) {
+        File dir = new File(repository.getSourceRoot(), name);
+        assertTrue(new File(dir, "RCS").mkdirs());
+        return dir;
+    }
+
+    /**
+     * Create a file with the revisions 1.1 by alice and 1.2 by bob in an
+     * RCS directory.
+     */
+    private static File createRCSFile(File dir, String name)
+            throws IOException {
+        File file = new File(dir, name);
+        write(file, "int main;\n");
+        write(new File(dir, "RCS/" + name + ",v"),
+                "head\t1.2;\naccess;\nsymbols;\nlocks; strict;\n"
+                + "comment\t@ * @;\n\n\n"
+                + "1.2\ndate\t2013.01.16.10.00.00;\tauthor bob;"
+                + "\tstate Exp;\nbranches;\nnext\t1.1;\n\n"
+                + "1.1\ndate\t2013.01.15.10.00.00;\tauthor alice;"
+                + "\tstate Exp;\nbranches;\nnext\t;\n\n\n"
+                + "desc\n@@\n\n\n"
+                + "1.2\nlog\n@Second revision\n@\ntext\n@int main;\n@\n\n\n"
+                + "1.1\nlog\n@Initial revision\n@\ntext\n@d1 1\n@\n");
+        return file;
+    }
+
+    /**
+     * A file whose history can't be read is left out of the last changes,
+     * without preventing the others from being returned.
+     */
+    @Test
+    public void testGetLastHistoryEntries() throws Exception {
+        File dir = createRCSDirectory("rcs_last");
+        File good = createRCSFile(dir, "good.c");
+        File broken = new File(dir, "broken.c");
+        File unversioned = new File(dir, "unversioned.c");
+        write(broken, "int main;\n");
+        write(unversioned, "int main;\n");
+        write(new File(dir, "RCS/broken.c,v"), "this is not an RCS file\n");
+
+        HistoryGuru instance = HistoryGuru.getInstance();
+        instance.addRepositories(repository.getSourceRoot());
+        Map<File, HistoryEntry> last = instance.getLastHistoryEntries(
+                Arrays.asList(good, broken, unversioned));
+        assertEquals(Collections.singleton(good), last.keySet());
+        assertEquals("1.2", last.get(good).getRevision());
+        assertEquals("bob", last.get(good).getAuthor());
+    }
+
+    @Test
+    public void testGetLatestHistory() throws Exception {
+        File dir = createRCSDirectory("rcs_latest");
+        File file = createRCSFile(dir, "file.c");
+        HistoryGuru instance = HistoryGuru.getInstance();
+        instance.addRepositories(repository.getSourceRoot());
+
+        List<HistoryEntry> latest =
+                instance.getLatestHistory(file, false, 1).getHistoryEntries();
+        assertEquals(1, latest.size());
+        assertEquals("1.2", latest.get(0).getRevision());
+        latest = instance.getLatestHistory(file, false, 5).getHistoryEntries();
+        assertEquals(2, latest.size());
+        assertEquals("1.1", latest.get(1).getRevision());
+        assertNull(instance.getLatestHistory(
+                new File(dir, "unversioned.c"), false, 5));
+    }
+
     @Test
     public void getCacheInfo() throws HistoryException {
         // FileHistoryCache is used by default
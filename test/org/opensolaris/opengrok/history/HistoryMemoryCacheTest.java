@@ -0,0 +1,132 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.history;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the {@code HistoryMemoryCache} class.
+ */
+public class HistoryMemoryCacheTest {
+
+    private static History createHistory(int size) {
+        List<HistoryEntry> entries = new ArrayList<HistoryEntry>();
+        for (int i = size; i > 0; i--) {
+            HistoryEntry e = new HistoryEntry(Integer.toString(i),
+                    new Date(i * 1000L), "author", null, "Change " + i, true);
+            e.addFile("/repo/file.c");
+            entries.add(e);
+        }
+        return new History(entries);
+    }
+
+    @Test
+    public void testGetAndPut() {
+        HistoryMemoryCache cache = new HistoryMemoryCache(10, 1024 * 1024);
+        assertTrue(cache.isEnabled());
+        History h = createHistory(3);
+        assertNull(cache.get("/a", true, 1, 2));
+        cache.put("/a", true, cache.getGeneration(), 1, 2, h);
+        assertSame(h, cache.get("/a", true, 1, 2));
+        // a history with files can be used if the files are not needed
+        assertSame(h, cache.get("/a", false, 1, 2));
+        // but not the other way round
+        cache.put("/b", false, cache.getGeneration(), 1, 2, h);
+        assertNull(cache.get("/b", true, 1, 2));
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.getSize());
+        assertEquals(2 * HistoryMemoryCache.weigh(h), cache.getWeight());
+    }
+
+    @Test
+    public void testOutOfDate() {
+        HistoryMemoryCache cache = new HistoryMemoryCache(10, 1024 * 1024);
+        History h = createHistory(3);
+        cache.put("/a", true, cache.getGeneration(), 1, 2, h);
+        // the file has been modified
+        assertNull(cache.get("/a", true, 5, 2));
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getWeight());
+
+        cache.put("/a", true, cache.getGeneration(), 1, 2, h);
+        // the index has been updated
+        assertNull(cache.get("/a", true, 1, 3));
+
+        cache.put("/a", true, cache.getGeneration(), 1, 2, h);
+        cache.invalidate();
+        assertNull(cache.get("/a", true, 1, 2));
+    }
+
+    @Test
+    public void testStaleGeneration() {
+        HistoryMemoryCache cache = new HistoryMemoryCache(10, 1024 * 1024);
+        long generation = cache.getGeneration();
+        // the history cache gets updated while the history is read
+        cache.invalidate();
+        cache.put("/a", true, generation, 1, 2, createHistory(3));
+        assertEquals(0, cache.getSize());
+        assertNull(cache.get("/a", true, 1, 2));
+    }
+
+    @Test
+    public void testEviction() {
+        History h = createHistory(10);
+        long weight = HistoryMemoryCache.weigh(h);
+        HistoryMemoryCache cache = new HistoryMemoryCache(10, 3 * weight);
+        cache.put("/a", true, 0, 1, 1, h);
+        cache.put("/b", true, 0, 1, 1, h);
+        cache.put("/c", true, 0, 1, 1, h);
+        // make /b the least recently used entry
+        assertNotNull(cache.get("/a", true, 1, 1));
+        assertNotNull(cache.get("/c", true, 1, 1));
+        cache.put("/d", true, 0, 1, 1, h);
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get("/b", true, 1, 1));
+        assertNotNull(cache.get("/a", true, 1, 1));
+        assertEquals(3 * weight, cache.getWeight());
+
+        // too large to be cached at all
+        cache.put("/e", true, 0, 1, 1, createHistory(40));
+        assertNull(cache.get("/e", true, 1, 1));
+        assertEquals(3, cache.getSize());
+
+        // limited by the number of entries
+        cache = new HistoryMemoryCache(2, 1024 * 1024);
+        cache.put("/a", true, 0, 1, 1, h);
+        cache.put("/b", true, 0, 1, 1, h);
+        cache.put("/c", true, 0, 1, 1, h);
+        assertEquals(2, cache.getSize());
+        assertNull(cache.get("/a", true, 1, 1));
+    }
+
+    @Test
+    public void testDisabled() {
+        assertFalse(new HistoryMemoryCache(0, 1024).isEnabled());
+        assertFalse(new HistoryMemoryCache(10, 0).isEnabled());
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.history;
+
+import java.io.File;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.opensolaris.opengrok.util.FileUtilities;
+
+/**
+ * Imports a synthetic history into an embedded Derby database on disk, once
+ * with a transaction per changeset, like the cache did before the rows were
+ * sent in batches, and once with {@link JDBCHistoryCache#CHANGESETS_PER_COMMIT}
+ * changesets per transaction. It is not part of the unit tests, run it
+ * with derby.jar on the class path and {@code java
+ * org.opensolaris.opengrok.history.JDBCHistoryCacheBenchmark [changesets]}.
+ */
+public final class JDBCHistoryCacheBenchmark {
+
+    private static final String DERBY_EMBEDDED_DRIVER =
+            "org.apache.derby.jdbc.EmbeddedDriver";
+
+    private JDBCHistoryCacheBenchmark() {
+        // only main() is used
+    }
+
+    /**
+     * Create a history of the given number of changesets, most recent
+     * first, each of them touching two files.
+     */
+    private static History createHistory(int count) {
+        List<HistoryEntry> entries = new ArrayList<HistoryEntry>();
+        for (int i = count; i > 0; i--) {
+            HistoryEntry e = new HistoryEntry("r" + i, new Date(i * 1000L),
+                    "author" + (i % 7), null, "Change " + i, true);
+            e.addFile("/bench/Makefile");
+            e.addFile("/bench/dir" + (i % 10) + "/file" + (i % 50) + ".c");
+            entries.add(e);
+        }
+        return new History(entries);
+    }
+
+    private static long store(File dir, History history, int perCommit)
+            throws Exception {
+        String url = "jdbc:derby:" + new File(dir, "db" + perCommit);
+        JDBCHistoryCache cache = new JDBCHistoryCache(
+                DERBY_EMBEDDED_DRIVER, url + ";create=true");
+        cache.initialize();
+        cache.changesetsPerCommit = perCommit;
+        Repository repository = new MercurialRepository();
+        repository.setDirectoryName("/bench");
+        try {
+            long time = System.nanoTime();
+            cache.store(history, repository);
+            return (System.nanoTime() - time) / 1000000;
+        } finally {
+            try {
+                DriverManager.getConnection(url + ";shutdown=true");
+            } catch (SQLException sqle) {
+                // Derby reports a successful shutdown with an exception
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        History history = createHistory(count);
+        File dir = FileUtilities.createTemporaryDirectory("jdbcbench");
+        try {
+            long single = store(dir, history, 1);
+            long grouped = store(dir, history,
+                    JDBCHistoryCache.CHANGESETS_PER_COMMIT);
+            System.out.println("Storing " + count + " changesets: "
+                    + single + " ms with one changeset per transaction, "
+                    + grouped + " ms with "
+                    + JDBCHistoryCache.CHANGESETS_PER_COMMIT
+                    + " changesets per transaction");
+        } finally {
+            FileUtilities.removeDirs(dir);
+        }
+    }
+}
@@ -18,7 +18,7 @@
  */
 
 /*
- * Copyright (c) 2009, 2012, Oracle and/or its affiliates. All rights reserved.
+ * Copyright (c) 2009, 2013, Oracle and/or its affiliates. All rights reserved.
  */
 
 package org.opensolaris.opengrok.history;
@@ -28,12 +28,14 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -433,4 +435,119 @@ public class JDBCHistoryCacheTest extends TestCase {
                 entries,
                 cache.get(reposRoot, r, true).getHistoryEntries());
     }
+
+    /**
+     * Test that the files touched by the changesets are retrieved correctly
+     * when there are more changesets than fit in one batch, and that the
+     * visitor is able to stop the retrieval of the history.
+     */
+    public void testGetFilesInBatches() throws Exception {
+        File reposRoot = new File(repositories.getSourceRoot(), "mercurial");
+        Repository r = RepositoryFactory.getRepository(reposRoot);
+        int count = 2 * JDBCHistoryCache.CS_FILES_BATCH_SIZE + 10;
+        List<HistoryEntry> entries = new ArrayList<HistoryEntry>();
+        for (int i = count; i > 0; i--) {
+            HistoryEntry e = new HistoryEntry("r" + i, new Date(i * 1000L),
+                    "author", null, "Change " + i, true);
+            e.addFile("/mercurial/Makefile");
+            e.addFile("/mercurial/file" + i + ".c");
+            entries.add(e);
+        }
+        cache.store(new History(entries), r);
+
+        assertSameEntries(entries,
+                cache.get(reposRoot, r, true).getHistoryEntries());
+        assertSameEntries(entries, cache.get(
+                new File(reposRoot, "Makefile"), r, true).getHistoryEntries());
+
+        final int limit = JDBCHistoryCache.CS_FILES_BATCH_SIZE + 5;
+        final List<HistoryEntry> visited = new ArrayList<HistoryEntry>();
+        cache.get(reposRoot, r, true, new JDBCHistoryCache.HistoryVisitor() {
+            @Override
+            public boolean visit(HistoryEntry entry) {
+                visited.add(entry);
+                return visited.size() < limit;
+            }
+        });
+        assertSameEntries(entries.subList(0, limit), visited);
+    }
+
+    /**
+     * Test that the last changes of files in several directories are looked
+     * up correctly when a directory has more files than fit in one batch.
+     */
+    public void testGetLastHistoryEntries() throws Exception {
+        File reposRoot = new File(repositories.getSourceRoot(), "mercurial");
+        Repository r = RepositoryFactory.getRepository(reposRoot);
+        int count = JDBCHistoryCache.LAST_CHANGES_BATCH_SIZE + 10;
+        List<HistoryEntry> entries = new ArrayList<HistoryEntry>();
+        for (int i = 2 * count; i > 0; i--) {
+            HistoryEntry e = new HistoryEntry("r" + i, new Date(i * 1000L),
+                    "author" + (i % 3), null, "Change " + i, true);
+            e.addFile("/mercurial/Makefile");
+            e.addFile("/mercurial/dir/file" + (i % count) + ".c");
+            entries.add(e);
+        }
+        cache.store(new History(entries), r);
+
+        File makefile = new File(reposRoot, "Makefile");
+        File unknown = new File(reposRoot, "dir/unknown.c");
+        List<File> files = new ArrayList<File>();
+        files.add(makefile);
+        for (int i = 0; i < count; i++) {
+            files.add(new File(reposRoot, "dir/file" + i + ".c"));
+        }
+        files.add(unknown);
+
+        Map<File, HistoryEntry> last = cache.getLastHistoryEntries(files, r);
+        assertEquals(files.size(), last.size());
+        HistoryEntry expected = entries.get(0);
+        HistoryEntry actual = last.get(makefile);
+        assertEquals(expected.getRevision(), actual.getRevision());
+        assertEquals(expected.getDate(), actual.getDate());
+        assertEquals(expected.getAuthor(), actual.getAuthor());
+        assertEquals(expected.getMessage(), actual.getMessage());
+        assertTrue(actual.isActive());
+        // file<i>.c is last touched by changeset i + count, except file0.c
+        // which is touched by changeset 2 * count
+        assertEquals("r" + (2 * count),
+                last.get(new File(reposRoot, "dir/file0.c")).getRevision());
+        for (int i = 1; i < count; i++) {
+            assertEquals("r" + (i + count), last.get(
+                    new File(reposRoot, "dir/file" + i + ".c")).getRevision());
+        }
+        assertTrue(last.containsKey(unknown));
+        assertNull(last.get(unknown));
+    }
+
+    /**
+     * Import a synthetic history which spans several transactions into
+     * the cache, and verify that all of it can be read back. Also print how
+     * long the import took, so that it can be used as a rough benchmark.
+     */
+    public void testStoreManyChangesets() throws Exception {
+        File reposRoot = new File(repositories.getSourceRoot(), "mercurial");
+        Repository r = RepositoryFactory.getRepository(reposRoot);
+        int count = 4 * JDBCHistoryCache.CHANGESETS_PER_COMMIT + 17;
+        List<HistoryEntry> entries = new ArrayList<HistoryEntry>();
+        for (int i = count; i > 0; i--) {
+            HistoryEntry e = new HistoryEntry("r" + i, new Date(i * 1000L),
+                    "author" + (i % 7), null, "Change " + i, true);
+            e.addFile("/mercurial/Makefile");
+            e.addFile("/mercurial/dir" + (i % 10) + "/file" + (i % 50) + ".c");
+            entries.add(e);
+        }
+
+        cache.store(new History(entries), r);
+
+        assertEquals("r" + count, cache.getLatestCachedRevision(r));
+        assertSameEntries(entries,
+                cache.get(reposRoot, r, true).getHistoryEntries());
+        List<HistoryEntry> file7 = cache.get(
+                new File(reposRoot, "dir7/file7.c"), r, false)
+                .getHistoryEntries();
+        assertEquals(count / 50 + 1, file7.size());
+        assertEquals("r" + (count - count % 50 + 7),
+                file7.get(0).getRevision());
+    }
 }
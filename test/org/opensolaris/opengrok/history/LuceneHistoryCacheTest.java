@@ -0,0 +1,225 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.history;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensolaris.opengrok.util.TestRepository;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the {@code LuceneHistoryCache} class.
+ */
+public class LuceneHistoryCacheTest {
+
+    private TestRepository repositories;
+    private LuceneHistoryCache cache;
+    private File reposRoot;
+    private Repository repository;
+
+    @Before
+    public void setUp() throws Exception {
+        repositories = new TestRepository();
+        repositories.create(
+                getClass().getResourceAsStream("repositories.zip"));
+        reposRoot = new File(repositories.getSourceRoot(), "mercurial");
+        assertTrue(new File(reposRoot, "sub").mkdir());
+        repository = RepositoryFactory.getRepository(reposRoot);
+        cache = new LuceneHistoryCache();
+        cache.initialize();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cache.close();
+        repositories.destroy();
+    }
+
+    /**
+     * Create changesets {@code from} to {@code to}, most recent first.
+     * Changeset {@code i} is made by {@code author<i % 2>} and touches
+     * {@code /mercurial/main.c} and {@code /mercurial/sub/file<i % 3>.c}.
+     */
+    private static List<HistoryEntry> createEntries(int from, int to) {
+        List<HistoryEntry> entries = new ArrayList<HistoryEntry>();
+        for (int i = to; i >= from; i--) {
+            HistoryEntry e = new HistoryEntry("r" + i,
+                    new Date(1357000000000L + i * 60000L), "author" + (i % 2),
+                    null, "Change " + i, true);
+            e.addFile("/mercurial/main.c");
+            e.addFile("/mercurial/sub/file" + (i % 3) + ".c");
+            if (i % 5 == 0) {
+                e.addChangeRequest("CR " + i);
+            }
+            entries.add(e);
+        }
+        return entries;
+    }
+
+    private static List<String> revisions(History history) {
+        List<String> revs = new ArrayList<String>();
+        for (HistoryEntry e : history.getHistoryEntries()) {
+            revs.add(e.getRevision());
+        }
+        return revs;
+    }
+
+    @Test
+    public void testStoreAndGet() throws Exception {
+        assertNull(cache.getLatestCachedRevision(repository));
+        assertTrue(cache.get(reposRoot, repository, true)
+                .getHistoryEntries().isEmpty());
+
+        List<HistoryEntry> entries = createEntries(1, 6);
+        cache.store(new History(entries), repository);
+        assertEquals("r6", cache.getLatestCachedRevision(repository));
+        assertTrue(cache.hasCacheForDirectory(reposRoot, repository));
+        assertTrue(cache.hasCacheForDirectory(
+                new File(reposRoot, "sub"), repository));
+
+        History all = cache.get(reposRoot, repository, true);
+        assertEquals(entries.size(), all.getHistoryEntries().size());
+        for (int i = 0; i < entries.size(); i++) {
+            HistoryEntry e = entries.get(i);
+            HistoryEntry a = all.getHistoryEntries().get(i);
+            assertEquals(e.getRevision(), a.getRevision());
+            assertEquals(e.getDate(), a.getDate());
+            assertEquals(e.getAuthor(), a.getAuthor());
+            assertEquals(e.getMessage(), a.getMessage());
+            assertEquals(e.getChangeRequests(), a.getChangeRequests());
+            assertEquals(e.getFiles(), a.getFiles());
+        }
+
+        History file1 = cache.get(new File(reposRoot, "sub/file1.c"),
+                repository, false);
+        assertEquals(Arrays.asList("r4", "r1"), revisions(file1));
+        for (HistoryEntry e : file1.getHistoryEntries()) {
+            assertTrue(e.getFiles().isEmpty());
+        }
+        assertEquals(6, cache.get(new File(reposRoot, "sub"), repository,
+                false).getHistoryEntries().size());
+    }
+
+    @Test
+    public void testIncrementalStore() throws Exception {
+        cache.store(new History(createEntries(1, 3)), repository);
+        cache.store(new History(createEntries(4, 5)), repository);
+        assertEquals("r5", cache.getLatestCachedRevision(repository));
+        assertEquals(Arrays.asList("r5", "r4", "r3", "r2", "r1"),
+                revisions(cache.get(reposRoot, repository, false)));
+        cache.optimize();
+        assertEquals(Arrays.asList("r5", "r2"), revisions(cache.get(
+                new File(reposRoot, "sub/file2.c"), repository, false)));
+    }
+
+    @Test
+    public void testLatestChanges() throws Exception {
+        cache.store(new History(createEntries(1, 10)), repository);
+        File sub = new File(reposRoot, "sub");
+        assertEquals(Arrays.asList("r10", "r9", "r8"), revisions(
+                cache.getLatestChanges(sub, repository, null, 0, 3)));
+        assertEquals(Arrays.asList("r7", "r6", "r5"), revisions(
+                cache.getLatestChanges(sub, repository, null, 3, 3)));
+        assertEquals(Arrays.asList("r9", "r7"), revisions(
+                cache.getLatestChanges(sub, repository, "author1", 0, 2)));
+        assertEquals(Arrays.asList("r4", "r2"), revisions(
+                cache.getLatestChanges(sub, repository, "author0", 3, 10)));
+        assertTrue(cache.getLatestChanges(sub, repository, "nobody", 0, 10)
+                .getHistoryEntries().isEmpty());
+    }
+
+    @Test
+    public void testLastModifiedTimes() throws Exception {
+        List<HistoryEntry> entries = createEntries(1, 4);
+        cache.store(new History(entries), repository);
+        Map<String, Date> times =
+                cache.getLastModifiedTimes(reposRoot, repository);
+        assertEquals(2, times.size());
+        assertEquals(entries.get(0).getDate(), times.get("main.c"));
+        assertEquals(entries.get(0).getDate(), times.get("sub"));
+
+        times = cache.getLastModifiedTimes(
+                new File(reposRoot, "sub"), repository);
+        assertEquals(3, times.size());
+        // r4 touched file1.c, r3 file0.c and r2 file2.c
+        assertEquals(entries.get(0).getDate(), times.get("file1.c"));
+        assertEquals(entries.get(1).getDate(), times.get("file0.c"));
+        assertEquals(entries.get(2).getDate(), times.get("file2.c"));
+    }
+
+    @Test
+    public void testLastHistoryEntries() throws Exception {
+        File main = new File(reposRoot, "main.c");
+        File file2 = new File(reposRoot, "sub/file2.c");
+        File unknown = new File(reposRoot, "sub/unknown.c");
+        Map<File, HistoryEntry> last = cache.getLastHistoryEntries(
+                Arrays.asList(main, unknown), repository);
+        assertEquals(2, last.size());
+        assertNull(last.get(main));
+
+        List<HistoryEntry> entries = createEntries(1, 6);
+        cache.store(new History(entries), repository);
+        last = cache.getLastHistoryEntries(
+                Arrays.asList(main, file2, unknown), repository);
+        assertEquals(3, last.size());
+        HistoryEntry r6 = last.get(main);
+        assertEquals("r6", r6.getRevision());
+        assertEquals(entries.get(0).getDate(), r6.getDate());
+        assertEquals(entries.get(0).getAuthor(), r6.getAuthor());
+        assertEquals(entries.get(0).getMessage(), r6.getMessage());
+        assertTrue(r6.getFiles().isEmpty());
+        assertEquals("r5", last.get(file2).getRevision());
+        assertTrue(last.containsKey(unknown));
+        assertNull(last.get(unknown));
+    }
+
+    /**
+     * The index can be opened again after the cache has been closed.
+     */
+    @Test
+    public void testClose() throws Exception {
+        cache.store(new History(createEntries(1, 3)), repository);
+        assertEquals("r3", cache.getLatestCachedRevision(repository));
+        cache.close();
+        cache = new LuceneHistoryCache();
+        cache.initialize();
+        assertEquals("r3", cache.getLatestCachedRevision(repository));
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        cache.store(new History(createEntries(1, 3)), repository);
+        cache.clear(repository);
+        assertNull(cache.getLatestCachedRevision(repository));
+        assertFalse(cache.hasCacheForDirectory(reposRoot, repository));
+        assertTrue(cache.getLastModifiedTimes(reposRoot, repository)
+                .isEmpty());
+    }
+}
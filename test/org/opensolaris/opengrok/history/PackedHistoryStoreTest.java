@@ -0,0 +1,206 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.history;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensolaris.opengrok.util.FileUtilities;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the {@code PackedHistoryStore} class.
+ */
+public class PackedHistoryStoreTest {
+
+    private File dir;
+    private PackedHistoryStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = FileUtilities.createTemporaryDirectory("packedhistory");
+        store = new PackedHistoryStore(new File(new File(dir, "repo"),
+                PackedHistoryStore.FILE_NAME));
+    }
+
+    @After
+    public void tearDown() {
+        FileUtilities.removeDirs(dir);
+    }
+
+    /**
+     * Create the changesets of a repository, most recent first. Changeset
+     * {@code i} touches {@code /repo/all.c} and {@code /repo/file<i % 3>.c}.
+     */
+    private static List<HistoryEntry> createEntries(int size) {
+        List<HistoryEntry> entries = new ArrayList<HistoryEntry>();
+        long time = 1357000000000L;
+        for (int i = size; i > 0; i--) {
+            HistoryEntry e = new HistoryEntry(Integer.toString(i),
+                    new Date(time - i * 60000L), "author" + (i % 2), null,
+                    "Change " + i, true);
+            e.addFile("/repo/all.c");
+            e.addFile("/repo/file" + (i % 3) + ".c");
+            if (i % 5 == 0) {
+                e.addChangeRequest("CR " + i);
+            }
+            entries.add(e);
+        }
+        return entries;
+    }
+
+    private static List<String> revisions(List<HistoryEntry> entries) {
+        List<String> revs = new ArrayList<String>();
+        for (HistoryEntry e : entries) {
+            revs.add(e.getRevision());
+        }
+        return revs;
+    }
+
+    @Test
+    public void testWriteAndGet() throws IOException {
+        assertFalse(store.exists());
+        assertNull(store.get("/repo/all.c", 0, false));
+
+        List<HistoryEntry> entries = createEntries(10);
+        store.write(entries);
+        assertTrue(store.exists());
+
+        List<HistoryEntry> all = store.get("/repo/all.c", 0, true);
+        assertEquals(revisions(entries), revisions(all));
+        for (int i = 0; i < entries.size(); i++) {
+            HistoryEntry e = entries.get(i);
+            HistoryEntry a = all.get(i);
+            assertEquals(e.getDate(), a.getDate());
+            assertEquals(e.getAuthor(), a.getAuthor());
+            assertEquals(e.getMessage(), a.getMessage());
+            assertEquals(e.getChangeRequests(), a.getChangeRequests());
+            assertEquals(e.getFiles(), a.getFiles());
+        }
+
+        List<HistoryEntry> file1 = store.get("/repo/file1.c", 0, false);
+        List<String> expected = new ArrayList<String>();
+        for (int i = 10; i > 0; i--) {
+            if (i % 3 == 1) {
+                expected.add(Integer.toString(i));
+            }
+        }
+        assertEquals(expected, revisions(file1));
+        for (HistoryEntry e : file1) {
+            assertTrue(e.getFiles().isEmpty());
+        }
+
+        assertNull(store.get("/repo/unknown.c", 0, true));
+    }
+
+    @Test
+    public void testRewrite() throws IOException {
+        store.write(createEntries(3));
+        assertEquals(3, store.get("/repo/all.c", 0, false).size());
+        // a second object for the same file sees the new content
+        PackedHistoryStore other = new PackedHistoryStore(store.getFile());
+        assertEquals(3, other.get("/repo/all.c", 0, false).size());
+
+        store.write(createEntries(7));
+        assertEquals(7, store.get("/repo/all.c", 0, false).size());
+        assertEquals(7, other.get("/repo/all.c", 0, false).size());
+
+        assertTrue(store.delete());
+        assertFalse(store.exists());
+        assertNull(other.get("/repo/all.c", 0, false));
+    }
+
+    @Test
+    public void testAppend() throws IOException {
+        List<HistoryEntry> entries = createEntries(12);
+        store.write(entries.subList(8, 12));
+        assertEquals("4", store.getLatestRevision());
+        store.append(entries.subList(4, 8));
+        store.append(new ArrayList<HistoryEntry>());
+        store.append(entries.subList(0, 4));
+        assertEquals("12", store.getLatestRevision());
+        assertEquals(revisions(entries),
+                revisions(store.get("/repo/all.c", 0, false)));
+
+        // a reader which has seen an older version of the file
+        PackedHistoryStore other = new PackedHistoryStore(store.getFile());
+        assertEquals(12, other.get("/repo/all.c", 0, false).size());
+        HistoryEntry e = new HistoryEntry("13", new Date(), "author", null,
+                "Change 13", true);
+        e.addFile("/repo/file1.c");
+        store.append(Collections.singletonList(e));
+        assertEquals(Arrays.asList("13", "10", "7", "4", "1"),
+                revisions(other.get("/repo/file1.c", 0, false)));
+        assertEquals(12, other.get("/repo/all.c", 0, false).size());
+        assertEquals("13", other.getLatestRevision());
+
+        // compaction keeps the order of the changesets
+        long length = store.getFile().length();
+        store.compact();
+        assertTrue(store.getFile().length() < length);
+        assertEquals(revisions(entries),
+                revisions(other.get("/repo/all.c", 0, false)));
+        assertEquals("13", other.getLatestRevision());
+    }
+
+    @Test
+    public void testCompactWhenAppending() throws IOException {
+        List<HistoryEntry> entries =
+                createEntries(PackedHistoryStore.MAX_SEGMENTS + 1);
+        int last = entries.size() - 1;
+        store.write(entries.subList(last, last + 1));
+        for (int i = last - 1; i >= 0; i--) {
+            store.append(entries.subList(i, i + 1));
+        }
+        assertEquals(revisions(entries),
+                revisions(store.get("/repo/all.c", 0, false)));
+    }
+
+    @Test
+    public void testModifiedAfterSync() throws IOException {
+        store.write(createEntries(3));
+        long future = System.currentTimeMillis() + 3600000L;
+        assertNull(store.get("/repo/all.c", future, false));
+        assertEquals(3, store.get("/repo/all.c",
+                System.currentTimeMillis() - 3600000L, false).size());
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptStore() throws IOException {
+        File file = store.getFile();
+        assertTrue(file.getParentFile().mkdirs());
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[]{'O', 'G', 'H', 'C', 1, 0, 0, 0, 0});
+        }
+        store.get("/repo/all.c", 0, false);
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Properties;
+import java.util.logging.Logger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the {@code ConnectionManager} class.
+ */
+public class ConnectionManagerTest {
+
+    private static final String URL = "jdbc:opengrok-test:";
+
+    /**
+     * Driver which creates connections that don't do anything, except for
+     * keeping track of whether they or their statements have been closed.
+     */
+    public static class TestDriver implements Driver {
+        static volatile boolean valid = true;
+
+        static {
+            try {
+                DriverManager.registerDriver(new TestDriver());
+            } catch (SQLException sqle) {
+                throw new ExceptionInInitializerError(sqle);
+            }
+        }
+
+        @Override
+        public Connection connect(String url, Properties info) {
+            return acceptsURL(url) ? (Connection) newProxy(Connection.class)
+                    : null;
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return URL.equals(url);
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url,
+                Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+
+        private static Object newProxy(Class<?> iface) {
+            return Proxy.newProxyInstance(TestDriver.class.getClassLoader(),
+                    new Class<?>[]{iface}, new InvocationHandler() {
+                private boolean closed;
+
+                @Override
+                public Object invoke(Object proxy, Method m, Object[] args) {
+                    switch (m.getName()) {
+                        case "close":
+                            closed = true;
+                            return null;
+                        case "isClosed":
+                            return closed;
+                        case "isValid":
+                            return valid && !closed;
+                        case "prepareStatement":
+                            return newProxy(PreparedStatement.class);
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                }
+            });
+        }
+    }
+
+    private static ConnectionManager createManager(int max, int minIdle,
+            long borrowTimeout, long idleTimeout) throws Exception {
+        TestDriver.valid = true;
+        return new ConnectionManager(TestDriver.class.getName(), URL,
+                max, minIdle, borrowTimeout, idleTimeout);
+    }
+
+    @Test
+    public void testBoundedPool() throws Exception {
+        ConnectionManager cm = createManager(2, 0, 100, 0);
+        ConnectionResource cr1 = cm.getConnectionResource();
+        ConnectionResource cr2 = cm.getConnectionResource();
+        assertEquals(2, cm.getActiveConnections());
+        try {
+            cm.getConnectionResource();
+            fail("should have timed out");
+        } catch (SQLTransientConnectionException e) {
+            // expected
+        }
+        assertEquals(1, cm.getBorrowTimeouts());
+
+        cm.releaseConnection(cr1);
+        assertEquals(1, cm.getIdleConnections());
+        assertSame(cr1, cm.getConnectionResource());
+        cm.releaseConnection(cr1);
+        cm.releaseConnection(cr2);
+        assertEquals(0, cm.getActiveConnections());
+        assertEquals(2, cm.getIdleConnections());
+        assertEquals(2, cm.getOpenedConnections());
+        assertEquals(3, cm.getBorrowedConnections());
+
+        // the most recently used connection is handed out first
+        assertSame(cr2, cm.getConnectionResource());
+    }
+
+    @Test
+    public void testIdleTimeout() throws Exception {
+        ConnectionManager cm = createManager(4, 1, 100, 50);
+        ConnectionResource cr1 = cm.getConnectionResource();
+        ConnectionResource cr2 = cm.getConnectionResource();
+        ConnectionResource cr3 = cm.getConnectionResource();
+        cm.releaseConnection(cr1);
+        cm.releaseConnection(cr2);
+        cm.releaseConnection(cr3);
+        assertEquals(3, cm.getIdleConnections());
+        Thread.sleep(100);
+
+        // releasing a connection closes the ones idle for too long, but
+        // keeps the minimum number of idle connections
+        ConnectionResource cr = cm.getConnectionResource();
+        assertSame(cr3, cr);
+        cm.releaseConnection(cr);
+        assertEquals(1, cm.getIdleConnections());
+        assertEquals(2, cm.getClosedConnections());
+        assertSame(cr3, cm.getConnectionResource());
+    }
+
+    @Test
+    public void testInvalidConnectionReplaced() throws Exception {
+        ConnectionManager cm = createManager(2, 0, 100, 0);
+        ConnectionResource cr1 = cm.getConnectionResource();
+        cm.releaseConnection(cr1);
+
+        // recently used connections are not validated
+        TestDriver.valid = false;
+        assertSame(cr1, cm.getConnectionResource());
+        cm.releaseConnection(cr1);
+
+        cr1.setLastUsed(System.currentTimeMillis()
+                - ConnectionManager.VALIDATION_INTERVAL - 1);
+        ConnectionResource cr2 = cm.getConnectionResource();
+        assertNotSame(cr1, cr2);
+        assertEquals(1, cm.getClosedConnections());
+        assertEquals(2, cm.getOpenedConnections());
+    }
+
+    @Test
+    public void testStatementCache() throws Exception {
+        ConnectionManager cm = createManager(1, 0, 100, 0);
+        ConnectionResource cr = cm.getConnectionResource();
+        PreparedQuery q = new PreparedQuery("SELECT 1");
+        PreparedStatement ps = cr.getStatement(q);
+        assertSame(ps, cr.getStatement(q));
+        assertEquals(1, cm.getStatementCacheHits());
+        assertEquals(1, cm.getStatementCacheMisses());
+
+        // the least recently used statement is closed when the cache is full
+        PreparedStatement other = cr.getStatement(new PreparedQuery("x"));
+        for (int i = 1; i < ConnectionResource.MAX_CACHED_STATEMENTS; i++) {
+            cr.getStatement(new PreparedQuery("SELECT " + i));
+            cr.getStatement(q);
+        }
+        assertFalse(ps.isClosed());
+        assertTrue(other.isClosed());
+        cm.releaseConnection(cr);
+    }
+}
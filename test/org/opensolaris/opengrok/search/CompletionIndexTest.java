@@ -0,0 +1,120 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensolaris.opengrok.util.FileUtilities;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the {@code CompletionIndex} class.
+ */
+public class CompletionIndexTest {
+
+    private static File dataRoot;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        dataRoot = FileUtilities.createTemporaryDirectory("suggester");
+        buildIndex("/p1", "mainLoop main", "main", "mainWindow main",
+                "mainWindow");
+        buildIndex("/p2", "mainWindow", "mainWindow", "mainWindow", "other");
+    }
+
+    private static void buildIndex(String project, String... defs)
+            throws Exception {
+        RAMDirectory dir = new RAMDirectory();
+        IndexWriterConfig iwc = new IndexWriterConfig(
+                SearchEngine.LUCENE_VERSION,
+                new WhitespaceAnalyzer(SearchEngine.LUCENE_VERSION));
+        try (IndexWriter w = new IndexWriter(dir, iwc)) {
+            for (String d : defs) {
+                Document doc = new Document();
+                doc.add(new Field(QueryBuilder.DEFS, d,
+                        TextField.TYPE_NOT_STORED));
+                w.addDocument(doc);
+            }
+        }
+        try (DirectoryReader reader = DirectoryReader.open(dir)) {
+            CompletionIndex.build(reader, dataRoot, project);
+        }
+        dir.close();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        FileUtilities.removeDirs(dataRoot);
+    }
+
+    private static CompletionIndex get(String project, String field)
+            throws Exception {
+        return CompletionIndex.get(
+                CompletionIndex.getFile(dataRoot, project, field));
+    }
+
+    @Test
+    public void testLookup() throws Exception {
+        CompletionIndex index = get("/p1", QueryBuilder.DEFS);
+        assertNotNull(index);
+        assertSame(index, get("/p1", QueryBuilder.DEFS));
+
+        List<CompletionIndex.Completion> c = index.lookup("mai", 10);
+        assertEquals(3, c.size());
+        // the most common term comes first
+        assertEquals("main", c.get(0).getText());
+        assertEquals(3, c.get(0).getWeight());
+        assertEquals("mainWindow", c.get(1).getText());
+
+        assertEquals(1, index.lookup("mai", 1).size());
+        assertTrue(index.lookup("x", 10).isEmpty());
+    }
+
+    @Test
+    public void testLookupProjects() throws Exception {
+        List<CompletionIndex.Completion> c = CompletionIndex.lookup(
+                Arrays.asList(get("/p1", QueryBuilder.DEFS),
+                    get("/p2", QueryBuilder.DEFS)), "main", 2);
+        assertEquals(2, c.size());
+        assertEquals("mainWindow", c.get(0).getText());
+        assertEquals(5, c.get(0).getWeight());
+        assertEquals("main", c.get(1).getText());
+    }
+
+    @Test
+    public void testMissingField() throws Exception {
+        assertNull(get("/p1", QueryBuilder.REFS));
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import java.io.IOException;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the {@code CustomQueryParser} class.
+ */
+public class CustomQueryParserTest {
+
+    private boolean allowLeadingWildcard;
+    private boolean indexReversedTerms;
+    private IndexReader reader;
+
+    /**
+     * Create a reader on an index with one document holding the given
+     * fields.
+     */
+    private static IndexReader createReader(String... fields)
+            throws IOException {
+        RAMDirectory dir = new RAMDirectory();
+        IndexWriterConfig iwc = new IndexWriterConfig(
+                SearchEngine.LUCENE_VERSION,
+                new StandardAnalyzer(SearchEngine.LUCENE_VERSION));
+        try (IndexWriter w = new IndexWriter(dir, iwc)) {
+            Document doc = new Document();
+            for (String field : fields) {
+                doc.add(new StringField(field, "x", Field.Store.NO));
+            }
+            w.addDocument(doc);
+        }
+        return DirectoryReader.open(dir);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        reader = createReader(QueryBuilder.FULL, QueryBuilder.FULL_REVERSED,
+                QueryBuilder.DEFS, QueryBuilder.DEFS_REVERSED,
+                QueryBuilder.REFS, QueryBuilder.REFS_REVERSED,
+                QueryBuilder.PATH);
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        allowLeadingWildcard = env.isAllowLeadingWildcard();
+        indexReversedTerms = env.isIndexReversedTerms();
+        env.setAllowLeadingWildcard(true);
+        env.setIndexReversedTerms(true);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        reader.close();
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        env.setAllowLeadingWildcard(allowLeadingWildcard);
+        env.setIndexReversedTerms(indexReversedTerms);
+    }
+
+    @Test
+    public void testLeadingWildcardUsesReversedTerms() throws Exception {
+        Query q = new CustomQueryParser(QueryBuilder.DEFS, reader)
+                .parse("*Handler");
+        assertTrue(q instanceof PrefixQuery);
+        assertEquals(QueryBuilder.DEFS_REVERSED,
+                ((PrefixQuery) q).getPrefix().field());
+        assertEquals("reldnaH", ((PrefixQuery) q).getPrefix().text());
+
+        // the full field is case insensitive
+        q = new CustomQueryParser(QueryBuilder.FULL, reader)
+                .parse("?et*Handler");
+        assertTrue(q instanceof WildcardQuery);
+        assertEquals(QueryBuilder.FULL_REVERSED,
+                ((WildcardQuery) q).getTerm().field());
+        assertEquals("reldnah*te?", ((WildcardQuery) q).getTerm().text());
+    }
+
+    @Test
+    public void testWildcardWithoutReversedTerms() throws Exception {
+        // a trailing wildcard does not benefit from the reversed terms
+        Query q = new CustomQueryParser(QueryBuilder.REFS, reader)
+                .parse("*Handler*");
+        assertTrue(q instanceof WildcardQuery);
+        assertEquals(QueryBuilder.REFS, ((WildcardQuery) q).getTerm().field());
+
+        // the path field has no reversed terms
+        q = new CustomQueryParser(QueryBuilder.PATH, reader).parse("*akefile");
+        assertEquals(QueryBuilder.PATH, ((WildcardQuery) q).getTerm().field());
+
+        RuntimeEnvironment.getInstance().setIndexReversedTerms(false);
+        q = new CustomQueryParser(QueryBuilder.DEFS, reader).parse("*Handler");
+        assertTrue(q instanceof WildcardQuery);
+        assertEquals(QueryBuilder.DEFS, ((WildcardQuery) q).getTerm().field());
+    }
+
+    /**
+     * Indexes without reversed terms must be searched on the original field.
+     */
+    @Test
+    public void testIndexWithoutReversedTerms() throws Exception {
+        Query q = new CustomQueryParser(QueryBuilder.DEFS).parse("*Handler");
+        assertEquals(QueryBuilder.DEFS, ((WildcardQuery) q).getTerm().field());
+
+        try (IndexReader old = createReader(QueryBuilder.DEFS)) {
+            q = new CustomQueryParser(QueryBuilder.DEFS, old)
+                    .parse("*Handler");
+            assertEquals(QueryBuilder.DEFS,
+                    ((WildcardQuery) q).getTerm().field());
+        }
+
+        // an index without the original field has nothing to miss
+        try (IndexReader other = createReader(QueryBuilder.FULL)) {
+            q = new CustomQueryParser(QueryBuilder.DEFS, other)
+                    .parse("*Handler");
+            assertTrue(q instanceof PrefixQuery);
+        }
+    }
+}
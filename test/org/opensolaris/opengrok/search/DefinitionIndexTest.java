@@ -0,0 +1,198 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensolaris.opengrok.analysis.Definitions;
+import org.opensolaris.opengrok.util.FileUtilities;
+import org.opensolaris.opengrok.web.Util;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the {@code DefinitionIndex} class.
+ */
+public class DefinitionIndexTest {
+
+    private static File dataRoot;
+    private static File file;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        dataRoot = FileUtilities.createTemporaryDirectory("definitions");
+        file = DefinitionIndex.getFile(dataRoot, "/project");
+        RAMDirectory dir = new RAMDirectory();
+        IndexWriterConfig iwc = new IndexWriterConfig(
+                SearchEngine.LUCENE_VERSION,
+                new StandardAnalyzer(SearchEngine.LUCENE_VERSION));
+        try (IndexWriter w = new IndexWriter(dir, iwc)) {
+            Definitions defs = new Definitions();
+            defs.addTag(10, "main", "function", "int main(void)");
+            defs.addTag(3, "mainLoop", "function", "void mainLoop()");
+            w.addDocument(createDocument("/project/a.c", defs));
+            defs = new Definitions();
+            defs.addTag(7, "mainLoop", "prototype", "void mainLoop();");
+            defs.addTag(1, "other", "variable", "int other;");
+            w.addDocument(createDocument("/project/a.h", defs));
+        }
+        try (DirectoryReader reader = DirectoryReader.open(dir)) {
+            DefinitionIndex.build(reader, file);
+        }
+        dir.close();
+    }
+
+    private static Document createDocument(String path, Definitions defs)
+            throws Exception {
+        Document doc = new Document();
+        doc.add(new StringField(QueryBuilder.PATH, path, Field.Store.YES));
+        doc.add(new StringField(QueryBuilder.U,
+                Util.path2uid(path, "20130101000000000"), Field.Store.NO));
+        doc.add(new StoredField(QueryBuilder.TAGS, defs.serialize()));
+        return doc;
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        FileUtilities.removeDirs(dataRoot);
+    }
+
+    @Test
+    public void testLookup() throws Exception {
+        DefinitionIndex index = DefinitionIndex.get(file);
+        assertNotNull(index);
+        assertSame(index, DefinitionIndex.get(file));
+
+        List<DefinitionIndex.Definition> defs = index.lookup("main");
+        assertEquals(1, defs.size());
+        assertEquals("/project/a.c", defs.get(0).getPath());
+        assertEquals(10, defs.get(0).getLine());
+        assertEquals("function", defs.get(0).getKind());
+
+        defs = index.lookup("mainLoop");
+        assertEquals(2, defs.size());
+        assertEquals("/project/a.c", defs.get(0).getPath());
+        assertEquals("/project/a.h", defs.get(1).getPath());
+        assertEquals("prototype", defs.get(1).getKind());
+
+        assertTrue(index.lookup("mai").isEmpty());
+        assertTrue(index.lookup("MAIN").isEmpty());
+    }
+
+    @Test
+    public void testLookupPrefix() throws Exception {
+        DefinitionIndex index = DefinitionIndex.get(file);
+        List<DefinitionIndex.Definition> defs = index.lookupPrefix("mai", 10);
+        assertEquals(3, defs.size());
+        assertEquals("main", defs.get(0).getSymbol());
+        assertEquals("mainLoop", defs.get(2).getSymbol());
+
+        assertEquals(2, index.lookupPrefix("mai", 2).size());
+        assertTrue(index.lookupPrefix("x", 10).isEmpty());
+    }
+
+    @Test
+    public void testMissingFile() throws Exception {
+        assertNull(DefinitionIndex.get(
+                DefinitionIndex.getFile(dataRoot, "/nonexistent")));
+    }
+
+    /**
+     * An update reads only the definitions of the changed files, unless the
+     * definition index has been built from another version of the index.
+     */
+    @Test
+    public void testUpdate() throws Exception {
+        File incremental = DefinitionIndex.getFile(dataRoot, "/incremental");
+        File rebuilt = DefinitionIndex.getFile(dataRoot, "/rebuilt");
+        RAMDirectory dir = new RAMDirectory();
+        IndexWriterConfig iwc = new IndexWriterConfig(
+                SearchEngine.LUCENE_VERSION,
+                new StandardAnalyzer(SearchEngine.LUCENE_VERSION));
+        try (IndexWriter w = new IndexWriter(dir, iwc)) {
+            Definitions defs = new Definitions();
+            defs.addTag(10, "main", "function", "int main(void)");
+            w.addDocument(createDocument("/p/a.c", defs));
+            defs = new Definitions();
+            defs.addTag(1, "other", "variable", "int other;");
+            w.addDocument(createDocument("/p/a.h", defs));
+            defs = new Definitions();
+            defs.addTag(2, "other", "variable", "int other;");
+            w.addDocument(createDocument("/p/a.h/c.h", defs));
+            w.commit();
+
+            long baseVersion;
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                baseVersion = reader.getVersion();
+                DefinitionIndex.build(reader, incremental);
+                DefinitionIndex.build(reader, rebuilt);
+            }
+
+            w.deleteDocuments(new Term(QueryBuilder.U,
+                    Util.path2uid("/p/a.h", "20130101000000000")));
+            defs = new Definitions();
+            defs.addTag(5, "main", "function", "int main(int argc)");
+            w.addDocument(createDocument("/p/b.c", defs));
+            w.commit();
+
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                DefinitionIndex.update(reader, incremental, baseVersion,
+                        new HashSet<String>(Arrays.asList("/p/a.h", "/p/b.c")));
+                // the changed files are not read if the index has another
+                // version than the definition index
+                DefinitionIndex.update(reader, rebuilt, baseVersion + 1,
+                        Collections.<String>emptySet());
+            }
+        }
+        dir.close();
+
+        for (File file : new File[]{incremental, rebuilt}) {
+            DefinitionIndex index = DefinitionIndex.get(file);
+            List<DefinitionIndex.Definition> defs = index.lookup("main");
+            assertEquals(2, defs.size());
+            assertEquals("/p/a.c", defs.get(0).getPath());
+            assertEquals("/p/b.c", defs.get(1).getPath());
+            assertEquals(5, defs.get(1).getLine());
+
+            // the file in the directory of the same name is unchanged
+            defs = index.lookup("other");
+            assertEquals(1, defs.size());
+            assertEquals("/p/a.h/c.h", defs.get(0).getPath());
+        }
+    }
+}
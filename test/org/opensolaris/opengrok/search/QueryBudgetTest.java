@@ -0,0 +1,105 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the {@code QueryBudget} class.
+ */
+public class QueryBudgetTest {
+
+    private static RAMDirectory dir;
+    private static DirectoryReader reader;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        dir = new RAMDirectory();
+        IndexWriterConfig iwc = new IndexWriterConfig(
+                SearchEngine.LUCENE_VERSION,
+                new StandardAnalyzer(SearchEngine.LUCENE_VERSION));
+        try (IndexWriter w = new IndexWriter(dir, iwc)) {
+            Document doc = new Document();
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 50; i++) {
+                sb.append("abc").append(i).append(' ');
+            }
+            doc.add(new Field(QueryBuilder.FULL, sb.toString(),
+                    TextField.TYPE_NOT_STORED));
+            w.addDocument(doc);
+        }
+        reader = DirectoryReader.open(dir);
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        reader.close();
+        dir.close();
+    }
+
+    @Test
+    public void testCheckCheapQuery() throws Exception {
+        QueryBudget budget = new QueryBudget(0, 10, 100);
+        assertFalse(budget.check(
+                new TermQuery(new Term(QueryBuilder.FULL, "abc1")), reader));
+        assertFalse(budget.check(
+                new PrefixQuery(new Term(QueryBuilder.FULL, "abc9")), reader));
+    }
+
+    @Test
+    public void testCheckDegrade() throws Exception {
+        QueryBudget budget = new QueryBudget(0, 10, 100);
+        WildcardQuery wq = new WildcardQuery(
+                new Term(QueryBuilder.FULL, "*bc*"));
+        BooleanQuery bq = new BooleanQuery();
+        bq.add(wq, BooleanClause.Occur.MUST);
+        assertTrue(budget.check(bq, reader));
+        assertTrue(wq.getRewriteMethod()
+                instanceof MultiTermQuery.TopTermsScoringBooleanQueryRewrite);
+    }
+
+    @Test(expected = QueryTooExpensiveException.class)
+    public void testCheckReject() throws Exception {
+        QueryBudget budget = new QueryBudget(0, 10, 20);
+        budget.check(new PrefixQuery(new Term(QueryBuilder.FULL, "abc")),
+                reader);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.junit.Test;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+import org.opensolaris.opengrok.util.FileUtilities;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the {@code RegexpContentQuery} class.
+ */
+public class RegexpContentQueryTest {
+
+    @Test
+    public void testGetLiteralRuns() {
+        assertEquals(Arrays.asList("hello"),
+                RegexpContentQuery.getLiteralRuns("Hello"));
+        assertEquals(Arrays.asList("foo", "bar", "baz"),
+                RegexpContentQuery.getLiteralRuns("foo.*bar\\w+baz"));
+        // the quantified character is optional
+        assertEquals(Arrays.asList("abc", "efg"),
+                RegexpContentQuery.getLiteralRuns("abcd?efg"));
+        // the repeated character is required, but ends the run
+        assertEquals(Arrays.asList("abcd", "efg"),
+                RegexpContentQuery.getLiteralRuns("abcd+efg"));
+        assertEquals(Arrays.asList("get", "handler("),
+                RegexpContentQuery.getLiteralRuns("get[A-Z](x|y)handler\\("));
+        assertEquals(Arrays.asList("a.b*c"),
+                RegexpContentQuery.getLiteralRuns("\\Qa.b*c\\E"));
+        // a quantifier after a quoted sequence applies to its last character
+        assertEquals(Arrays.asList("foo", "bar"),
+                RegexpContentQuery.getLiteralRuns("\\Qfoo\\E+bar"));
+        assertEquals(Arrays.asList("abcd", "xyz"),
+                RegexpContentQuery.getLiteralRuns("\\Qabcde\\E?xyz"));
+        assertEquals(Arrays.asList("abcd"),
+                RegexpContentQuery.getLiteralRuns("\\Qabcdx\\E*"));
+        assertEquals(Arrays.asList("abcd", "efg"),
+                RegexpContentQuery.getLiteralRuns("\\Qabcde\\E{0,2}efg"));
+        assertEquals(Collections.<String>emptyList(),
+                RegexpContentQuery.getLiteralRuns("\\Qab\\E?c"));
+        assertEquals(Arrays.asList("abcdef"),
+                RegexpContentQuery.getLiteralRuns("\\Qabc\\Edef"));
+        assertEquals(Arrays.asList("foo", "bar"),
+                RegexpContentQuery.getLiteralRuns("foo bar"));
+        assertEquals(Collections.<String>emptyList(),
+                RegexpContentQuery.getLiteralRuns("ab.cd"));
+    }
+
+    @Test
+    public void testGetTrigramQuery() {
+        Query q = RegexpContentQuery.getTrigramQuery("abcd");
+        assertEquals("+trigram:abc +trigram:bcd", q.toString());
+
+        q = RegexpContentQuery.getTrigramQuery("abc|xyz");
+        assertTrue(q instanceof BooleanQuery);
+        assertEquals("(+trigram:abc) (+trigram:xyz)", q.toString());
+
+        assertNull(RegexpContentQuery.getTrigramQuery("abc|x.z"));
+        assertNull(RegexpContentQuery.getTrigramQuery("[a-z]+"));
+    }
+
+    @Test
+    public void testCreate() throws ParseException {
+        RegexpContentQuery q =
+                RegexpContentQuery.create(QueryBuilder.FULL, "foo\\d+bar");
+        assertEquals("/foo\\d+bar/", q.toString(QueryBuilder.FULL));
+        assertEquals("full:/foo\\d+bar/", q.toString());
+        assertTrue(q.getPattern().matcher("x = FOO42bar;").find());
+    }
+
+    @Test(expected = ParseException.class)
+    public void testCreateTooGeneral() throws ParseException {
+        RegexpContentQuery.create(QueryBuilder.FULL, "a.*b");
+    }
+
+    @Test(expected = ParseException.class)
+    public void testCreateInvalid() throws ParseException {
+        RegexpContentQuery.create(QueryBuilder.FULL, "abc(");
+    }
+
+    @Test
+    public void testParser() throws ParseException {
+        Query q = new QueryBuilder().setFreetext("/foo.*bar/").build();
+        assertTrue(q instanceof RegexpContentQuery);
+        assertEquals("foo.*bar", ((RegexpContentQuery) q).getRegexp());
+    }
+
+    @Test
+    public void testVerify() throws Exception {
+        RuntimeEnvironment env = RuntimeEnvironment.getInstance();
+        String sourceRoot = env.getSourceRootPath();
+        File root = FileUtilities.createTemporaryDirectory("regexp");
+        try {
+            try (OutputStream out =
+                    new FileOutputStream(new File(root, "a.c"))) {
+                out.write("int x;\nint foo42bar;\n".getBytes("UTF-8"));
+            }
+            env.setSourceRoot(root.getAbsolutePath());
+            RegexpContentQuery q =
+                    RegexpContentQuery.create(QueryBuilder.FULL, "foo\\d+bar");
+            assertTrue(q.verify("/a.c"));
+            assertFalse(q.verify("/missing.c"));
+            assertFalse(RegexpContentQuery.create(QueryBuilder.FULL,
+                    "foo\\d+baz").verify("/a.c"));
+
+            // the verification stops once the deadline has passed
+            q.setDeadline(1);
+            try {
+                q.verify("/a.c");
+                fail("the deadline has passed");
+            } catch (RegexpContentQuery.TimeExceededException e) {
+                // expected
+            }
+            q.setDeadline(0);
+            assertTrue(q.verify("/a.c"));
+        } finally {
+            env.setSourceRoot(sourceRoot);
+            FileUtilities.removeDirs(root);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensolaris.opengrok.configuration.Configuration;
+import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
+import org.opensolaris.opengrok.search.context.Context;
+import org.opensolaris.opengrok.search.context.HistoryContext;
+import org.opensolaris.opengrok.web.SearchHelper;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the concurrent generation of hit contexts in the
+ * {@code Results} class.
+ */
+public class ResultsTest {
+
+    private ExecutorService executor;
+    private Configuration config;
+    private SearchHelper sh;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(2);
+        config = RuntimeEnvironment.getInstance().getConfiguration();
+        sh = new SearchHelper();
+        sh.query = new TermQuery(new Term(QueryBuilder.HIST, "fix"));
+        sh.historyContext = new HistoryContext(sh.query);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        RuntimeEnvironment.getInstance().register(config);
+    }
+
+    private static Results.DocHit createHit(int docId) {
+        Document doc = new Document();
+        doc.add(new StringField(QueryBuilder.PATH, "/p/f" + docId,
+                Field.Store.YES));
+        return new Results.DocHit(docId, doc);
+    }
+
+    /**
+     * The contexts are generated by the pool threads with the configuration
+     * of the request, and printed in order.
+     */
+    @Test
+    public void testConcurrentContexts() throws Exception {
+        // make the pool threads pick up the current configuration
+        for (int i = 0; i < 2; i++) {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    RuntimeEnvironment.getInstance().getSourceRootPath();
+                }
+            }).get();
+        }
+        Configuration requestConfig = new Configuration();
+        requestConfig.setSourceRoot("/request/source");
+        RuntimeEnvironment.getInstance().register(requestConfig);
+
+        Results.HitContexts contexts =
+                new Results.HitContexts(sh, executor, 0) {
+            @Override
+            void printContext(Writer out, Results.DocHit hit, Context sc,
+                    HistoryContext hc) throws IOException {
+                out.write(hit.docId + ":" + RuntimeEnvironment.getInstance()
+                        .getSourceRootPath() + " ");
+            }
+        };
+        Results.DocHit[] hits = new Results.DocHit[10];
+        for (int i = 0; i < hits.length; i++) {
+            hits[i] = createHit(i);
+            contexts.submit(hits[i]);
+        }
+        StringWriter out = new StringWriter();
+        for (Results.DocHit hit : hits) {
+            contexts.print(out, hit);
+        }
+        contexts.cancel();
+
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < hits.length; i++) {
+            expected.append(i).append(":/request/source ");
+        }
+        assertEquals(expected.toString(), out.toString());
+    }
+
+    /**
+     * A hit not ready in time is printed without its context, and the
+     * context used by the cancelled task is not used again.
+     */
+    @Test
+    public void testTimeout() throws Exception {
+        executor.shutdown();
+        executor = Executors.newFixedThreadPool(1);
+        final Map<Integer, HistoryContext> used =
+                new ConcurrentHashMap<Integer, HistoryContext>();
+        final CountDownLatch nextStarted = new CountDownLatch(1);
+        Results.HitContexts contexts =
+                new Results.HitContexts(sh, executor, 200) {
+            @Override
+            void printContext(Writer out, Results.DocHit hit, Context sc,
+                    HistoryContext hc) throws IOException {
+                used.put(hit.docId, hc);
+                if (hit.docId != 0) {
+                    nextStarted.countDown();
+                    return;
+                }
+                try {
+                    // never ready, until cancelled
+                    Thread.sleep(60000);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        };
+        Results.DocHit slow = createHit(0);
+        Results.DocHit next = createHit(1);
+        contexts.submit(slow);
+        contexts.submit(next);
+
+        long start = System.currentTimeMillis();
+        StringWriter out = new StringWriter();
+        contexts.print(out, slow);
+        assertEquals("...", out.toString());
+        assertTrue(System.currentTimeMillis() - start < 10000);
+
+        // the single pool thread runs the next hit once the slow one has
+        // been cancelled
+        assertTrue(nextStarted.await(10, TimeUnit.SECONDS));
+        contexts.cancel();
+        assertSame(sh.historyContext, used.get(0));
+        assertNotNull(used.get(1));
+        assertNotSame(used.get(0), used.get(1));
+    }
+}
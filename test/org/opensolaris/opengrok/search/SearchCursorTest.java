@@ -0,0 +1,125 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.PackedLongDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the {@code SearchCursor} class.
+ */
+public class SearchCursorTest {
+
+    @Test
+    public void testEncodeDecode() {
+        FieldDoc after = new FieldDoc(4711, 0.75f,
+                new Object[]{new BytesRef("/a/b.c"), null, 1.5f});
+        String encoded = new SearchCursor(125, "17,23", after).encode();
+        assertTrue(encoded.matches("[0-9a-z.:]+"));
+
+        SearchCursor c = SearchCursor.decode(encoded);
+        assertNotNull(c);
+        assertEquals(125, c.getStart());
+        assertEquals("17,23", c.getVersion());
+        assertEquals(4711, c.getAfter().doc);
+        assertEquals(0.75f, c.getAfter().score, 0.0f);
+        assertEquals(3, c.getAfter().fields.length);
+        assertEquals(new BytesRef("/a/b.c"), c.getAfter().fields[0]);
+        assertNull(c.getAfter().fields[1]);
+        assertEquals(1.5f, c.getAfter().fields[2]);
+
+        after = new FieldDoc(1, Float.NaN,
+                new Object[]{1357000000000L, -1L, Long.MIN_VALUE});
+        c = SearchCursor.decode(new SearchCursor(10, "1", after).encode());
+        assertNotNull(c);
+        assertArrayEquals(after.fields, c.getAfter().fields);
+    }
+
+    /**
+     * Test that a cursor created from a search sorted by date, which uses
+     * the doc values of the date field, can be used to fetch the next page.
+     */
+    @Test
+    public void testDateSortedSearch() throws Exception {
+        RAMDirectory dir = new RAMDirectory();
+        IndexWriterConfig iwc = new IndexWriterConfig(
+                SearchEngine.LUCENE_VERSION,
+                new StandardAnalyzer(SearchEngine.LUCENE_VERSION));
+        try (IndexWriter w = new IndexWriter(dir, iwc)) {
+            for (int i = 0; i < 10; i++) {
+                Document doc = new Document();
+                doc.add(new StringField(QueryBuilder.PATH, "/file" + i,
+                        Field.Store.YES));
+                doc.add(new PackedLongDocValuesField(QueryBuilder.DATE,
+                        1357000000000L + i * 1000L));
+                w.addDocument(doc);
+            }
+        }
+        try (IndexReader reader = DirectoryReader.open(dir)) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            Sort sort = SortFields.byDate(reader);
+            TopDocs page = searcher.search(new MatchAllDocsQuery(), null, 4,
+                    sort);
+            FieldDoc last = (FieldDoc) page.scoreDocs[3];
+            assertTrue(last.fields[0] instanceof Long);
+
+            SearchCursor c = SearchCursor.decode(
+                    new SearchCursor(4, "1", last).encode());
+            assertNotNull(c);
+            TopDocs next = searcher.searchAfter(c.getAfter(),
+                    new MatchAllDocsQuery(), null, 4, sort);
+            assertEquals(4, next.scoreDocs.length);
+            // newest first: file9 to file6, then file5 to file2
+            for (int i = 0; i < 4; i++) {
+                assertEquals("/file" + (5 - i), searcher.doc(
+                        next.scoreDocs[i].doc).get(QueryBuilder.PATH));
+            }
+        }
+    }
+
+    @Test
+    public void testDecodeInvalid() {
+        assertNull(SearchCursor.decode(null));
+        assertNull(SearchCursor.decode(""));
+        assertNull(SearchCursor.decode("garbage"));
+        assertNull(SearchCursor.decode("1:2:3:zz"));
+        assertNull(SearchCursor.decode("1:2:3:0:x12"));
+        assertNull(SearchCursor.decode("1:2:3:0:b123"));
+    }
+}
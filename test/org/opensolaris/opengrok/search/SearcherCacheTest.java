@@ -0,0 +1,188 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import java.io.File;
+import java.io.IOException;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensolaris.opengrok.search.SearcherCache.SearcherWithCleanup;
+import org.opensolaris.opengrok.util.FileUtilities;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the {@code SearcherCache} class.
+ */
+public class SearcherCacheTest {
+
+    private File root;
+
+    @Before
+    public void setUp() throws IOException {
+        root = FileUtilities.createTemporaryDirectory("searchercache");
+    }
+
+    @After
+    public void tearDown() {
+        FileUtilities.removeDirs(root);
+    }
+
+    private File createIndex(String name) throws IOException {
+        File dir = new File(root, name);
+        addDocuments(dir, 1);
+        return dir;
+    }
+
+    private static void addDocuments(File dir, int count) throws IOException {
+        IndexWriterConfig iwc = new IndexWriterConfig(
+                SearchEngine.LUCENE_VERSION,
+                new StandardAnalyzer(SearchEngine.LUCENE_VERSION));
+        try (IndexWriter w = new IndexWriter(FSDirectory.open(dir), iwc)) {
+            for (int i = 0; i < count; i++) {
+                Document doc = new Document();
+                doc.add(new StringField("path", dir.getPath() + "/" + i,
+                        Field.Store.YES));
+                w.addDocument(doc);
+            }
+        }
+    }
+
+    private static long sizeOf(File dir) {
+        long size = 0;
+        for (File f : dir.listFiles()) {
+            size += f.length();
+        }
+        return size;
+    }
+
+    /**
+     * Test that the least recently used index gets evicted when the
+     * number of open indexes exceeds the limit.
+     */
+    @Test
+    public void testEviction() throws Exception {
+        File a = createIndex("a");
+        File b = createIndex("b");
+        File c = createIndex("c");
+        SearcherCache cache = new SearcherCache(0, 2, 0);
+        try {
+            cache.fetchIndexSearcher(a).close();
+            cache.fetchIndexSearcher(b).close();
+            cache.fetchIndexSearcher(a).close();
+            assertEquals(2, cache.getOpenReaderCount());
+            assertEquals(0, cache.getEvictionCount());
+
+            // b is the least recently used one
+            cache.fetchIndexSearcher(c).close();
+            assertEquals(2, cache.getOpenReaderCount());
+            assertEquals(1, cache.getEvictionCount());
+
+            cache.fetchIndexSearcher(a).close();
+            assertEquals(1, cache.getEvictionCount());
+        } finally {
+            cache.destroy();
+        }
+    }
+
+    /**
+     * Test that the size of an index is recomputed when it has grown since
+     * it was opened, so that the size limit still holds.
+     */
+    @Test
+    public void testSizeUpdatedOnRefresh() throws Exception {
+        File a = createIndex("a");
+        File b = createIndex("b");
+        SearcherCache cache = new SearcherCache(0, 0, sizeOf(a) + sizeOf(b));
+        try {
+            cache.fetchIndexSearcher(a).close();
+            cache.fetchIndexSearcher(b).close();
+            assertEquals(2, cache.getOpenReaderCount());
+            assertEquals(0, cache.getEvictionCount());
+
+            addDocuments(a, 100);
+            SearcherWithCleanup s = cache.fetchIndexSearcher(a);
+            try {
+                assertEquals(101, s.getSearcher().getIndexReader().numDocs());
+            } finally {
+                s.close();
+            }
+            // a doesn't fit together with b anymore
+            assertEquals(1, cache.getOpenReaderCount());
+            assertEquals(1, cache.getEvictionCount());
+        } finally {
+            cache.destroy();
+        }
+    }
+
+    /**
+     * Test that an evicted index is kept open until the searchers acquired
+     * from it are released.
+     */
+    @Test
+    public void testEvictionWithSearcherInUse() throws Exception {
+        File a = createIndex("a");
+        File b = createIndex("b");
+        SearcherCache cache = new SearcherCache(0, 1, 0);
+        try {
+            SearcherWithCleanup inUse = cache.fetchIndexSearcher(a);
+            cache.fetchIndexSearcher(b).close();
+            assertEquals(1, cache.getEvictionCount());
+            assertEquals(2, cache.getOpenReaderCount());
+
+            // the evicted searcher must still be usable
+            assertEquals(1, inUse.getSearcher().getIndexReader().numDocs());
+            inUse.close();
+            assertEquals(1, cache.getOpenReaderCount());
+        } finally {
+            cache.destroy();
+        }
+    }
+
+    /**
+     * Test that a multi index searcher keeps all its indexes open, even if
+     * they exceed the limit.
+     */
+    @Test
+    public void testMultiSearcher() throws Exception {
+        File a = createIndex("a");
+        File b = createIndex("b");
+        SearcherCache cache = new SearcherCache(0, 1, 0);
+        try {
+            SearcherWithCleanup multi =
+                    cache.fetchIndexSearcher(new File[]{a, b});
+            assertEquals(2, multi.getSearcher().getIndexReader().numDocs());
+            multi.close();
+            assertEquals(1, cache.getOpenReaderCount());
+        } finally {
+            cache.destroy();
+        }
+    }
+}
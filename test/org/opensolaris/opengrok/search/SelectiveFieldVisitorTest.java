@@ -0,0 +1,76 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the {@code SelectiveFieldVisitor} class.
+ */
+public class SelectiveFieldVisitorTest {
+
+    @Test
+    public void testLoad() throws Exception {
+        RAMDirectory dir = new RAMDirectory();
+        IndexWriterConfig iwc = new IndexWriterConfig(
+                SearchEngine.LUCENE_VERSION,
+                new StandardAnalyzer(SearchEngine.LUCENE_VERSION));
+        try (IndexWriter w = new IndexWriter(dir, iwc)) {
+            Document doc = new Document();
+            doc.add(new StringField(QueryBuilder.DATE, "20130101",
+                    Field.Store.YES));
+            doc.add(new Field(QueryBuilder.PATH, "/a/b.c",
+                    TextField.TYPE_STORED));
+            doc.add(new StringField(QueryBuilder.T, "p", Field.Store.YES));
+            doc.add(new StoredField(QueryBuilder.TAGS, new byte[]{1, 2, 3}));
+            w.addDocument(doc);
+        }
+
+        try (DirectoryReader reader = DirectoryReader.open(dir)) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            Document doc = SelectiveFieldVisitor.load(searcher, 0,
+                    QueryBuilder.PATH, QueryBuilder.T);
+            assertEquals("/a/b.c", doc.get(QueryBuilder.PATH));
+            assertEquals("p", doc.get(QueryBuilder.T));
+            assertNull(doc.get(QueryBuilder.DATE));
+            assertNull(doc.getField(QueryBuilder.TAGS));
+
+            doc = SelectiveFieldVisitor.load(searcher, 0, QueryBuilder.TAGS);
+            assertNull(doc.get(QueryBuilder.PATH));
+            assertEquals(3,
+                    doc.getField(QueryBuilder.TAGS).binaryValue().length);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.DateTools;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.PackedLongDocValuesField;
+import org.apache.lucene.document.SortedBytesDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the {@code SortFields} class.
+ */
+public class SortFieldsTest {
+
+    private RAMDirectory dir;
+    private IndexWriter writer;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new RAMDirectory();
+        writer = new IndexWriter(dir, new IndexWriterConfig(
+                SearchEngine.LUCENE_VERSION,
+                new WhitespaceAnalyzer(SearchEngine.LUCENE_VERSION)));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        writer.close();
+        dir.close();
+    }
+
+    private void addDocument(String path, long date, boolean docValues)
+            throws Exception {
+        Document doc = new Document();
+        doc.add(new StringField(QueryBuilder.PATH, path, Field.Store.YES));
+        doc.add(new StringField(QueryBuilder.FULLPATH, "/src" + path,
+                Field.Store.NO));
+        doc.add(new StringField(QueryBuilder.DATE, DateTools.timeToString(
+                date, DateTools.Resolution.MILLISECOND), Field.Store.YES));
+        if (docValues) {
+            doc.add(new SortedBytesDocValuesField(QueryBuilder.FULLPATH,
+                    new BytesRef("/src" + path)));
+            doc.add(new PackedLongDocValuesField(QueryBuilder.DATE, date));
+        }
+        writer.addDocument(doc);
+        // one segment per document
+        writer.commit();
+    }
+
+    private static String[] search(DirectoryReader reader, Sort sort)
+            throws Exception {
+        IndexSearcher searcher = new IndexSearcher(reader);
+        ScoreDoc[] hits =
+                searcher.search(new MatchAllDocsQuery(), 10, sort).scoreDocs;
+        String[] paths = new String[hits.length];
+        for (int i = 0; i < hits.length; i++) {
+            paths[i] = searcher.doc(hits[i].doc).get(QueryBuilder.PATH);
+        }
+        return paths;
+    }
+
+    @Test
+    public void testWithDocValues() throws Exception {
+        SortFields.markDocValues(writer);
+        addDocument("/b", 3000L, true);
+        addDocument("/c", 1000L, true);
+        addDocument("/a", 2000L, true);
+        try (DirectoryReader reader = DirectoryReader.open(dir)) {
+            assertTrue(SortFields.hasDocValues(reader, QueryBuilder.DATE));
+            assertTrue(SortFields.hasDocValues(reader, QueryBuilder.FULLPATH));
+            assertArrayEquals(new String[]{"/b", "/a", "/c"},
+                    search(reader, SortFields.byDate(reader)));
+            assertArrayEquals(new String[]{"/a", "/b", "/c"},
+                    search(reader, SortFields.byPath(reader)));
+        }
+    }
+
+    @Test
+    public void testOldSegments() throws Exception {
+        // a segment written before the doc values were introduced
+        addDocument("/b", 3000L, false);
+        addDocument("/c", 1000L, true);
+        addDocument("/a", 2000L, true);
+        try (DirectoryReader reader = DirectoryReader.open(dir)) {
+            assertFalse(SortFields.hasDocValues(reader, QueryBuilder.DATE));
+            assertFalse(SortFields.hasDocValues(reader, QueryBuilder.FULLPATH));
+            // falls back to the indexed terms
+            assertArrayEquals(new String[]{"/b", "/a", "/c"},
+                    search(reader, SortFields.byDate(reader)));
+            assertArrayEquals(new String[]{"/a", "/b", "/c"},
+                    search(reader, SortFields.byPath(reader)));
+        }
+    }
+
+    /**
+     * Once merged, the old documents get default doc values, and the field
+     * infos claim that the whole segment has them.
+     */
+    @Test
+    public void testMergedOldSegments() throws Exception {
+        addDocument("/b", 3000L, false);
+        addDocument("/c", 1000L, true);
+        addDocument("/a", 2000L, true);
+        writer.forceMerge(1);
+        writer.commit();
+        try (DirectoryReader reader = DirectoryReader.open(dir)) {
+            assertEquals(1, reader.leaves().size());
+            assertFalse(SortFields.hasDocValues(reader, QueryBuilder.DATE));
+            assertFalse(SortFields.hasDocValues(reader, QueryBuilder.FULLPATH));
+            assertArrayEquals(new String[]{"/b", "/a", "/c"},
+                    search(reader, SortFields.byDate(reader)));
+            assertArrayEquals(new String[]{"/a", "/b", "/c"},
+                    search(reader, SortFields.byPath(reader)));
+        }
+    }
+
+    /**
+     * The doc values of several indexes are used only if all of them have
+     * been marked.
+     */
+    @Test
+    public void testMultipleIndexes() throws Exception {
+        SortFields.markDocValues(writer);
+        addDocument("/b", 3000L, true);
+        RAMDirectory dir2 = new RAMDirectory();
+        IndexWriter writer2 = new IndexWriter(dir2, new IndexWriterConfig(
+                SearchEngine.LUCENE_VERSION,
+                new WhitespaceAnalyzer(SearchEngine.LUCENE_VERSION)));
+        try {
+            writer2.addDocument(new Document());
+            writer2.commit();
+            try (DirectoryReader r1 = DirectoryReader.open(dir);
+                    DirectoryReader r2 = DirectoryReader.open(dir2)) {
+                assertTrue(SortFields.hasDocValues(
+                        new MultiReader(new IndexReader[]{r1}, false),
+                        QueryBuilder.DATE));
+                assertFalse(SortFields.hasDocValues(
+                        new MultiReader(new IndexReader[]{r1, r2}, false),
+                        QueryBuilder.DATE));
+            }
+        } finally {
+            writer2.close();
+            dir2.close();
+        }
+    }
+}
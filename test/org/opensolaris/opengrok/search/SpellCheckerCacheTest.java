@@ -0,0 +1,88 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search;
+
+import java.io.File;
+import java.io.StringReader;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.spell.PlainTextDictionary;
+import org.apache.lucene.search.spell.SpellChecker;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensolaris.opengrok.util.FileUtilities;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the {@code SpellCheckerCache} class.
+ */
+public class SpellCheckerCacheTest {
+
+    private File dir;
+    private SpellCheckerCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = FileUtilities.createTemporaryDirectory("spellIndex");
+        cache = new SpellCheckerCache();
+    }
+
+    @After
+    public void tearDown() {
+        cache.destroy();
+        FileUtilities.removeDirs(dir);
+    }
+
+    private void addWords(String words) throws Exception {
+        try (FSDirectory directory = FSDirectory.open(dir)) {
+            SpellChecker checker = new SpellChecker(directory);
+            checker.indexDictionary(
+                    new PlainTextDictionary(new StringReader(words)),
+                    new IndexWriterConfig(SearchEngine.LUCENE_VERSION,
+                        new WhitespaceAnalyzer(SearchEngine.LUCENE_VERSION)),
+                    false);
+            checker.close();
+        }
+    }
+
+    @Test
+    public void testGet() throws Exception {
+        assertNull(cache.get(new File(dir, "nonexistent")));
+
+        addWords("window\n");
+        SpellChecker checker = cache.get(dir);
+        assertNotNull(checker);
+        assertSame(checker, cache.get(dir));
+        assertArrayEquals(new String[]{"window"},
+                checker.suggestSimilar("windaw", 5));
+        assertEquals(0, checker.suggestSimilar("widgat", 5).length);
+
+        // the checker sees words committed after it has been opened
+        addWords("widget\n");
+        assertSame(checker, cache.get(dir));
+        assertArrayEquals(new String[]{"widget"},
+                checker.suggestSimilar("widgat", 5));
+    }
+}
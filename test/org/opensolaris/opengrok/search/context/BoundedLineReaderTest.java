@@ -0,0 +1,104 @@
+/*
+ * CDDL HEADER START
+ *
+ * The contents of this file are subject to the terms of the
+ * Common Development and Distribution License (the "License").
+ * You may not use this file except in compliance with the License.
+ *
+ * See LICENSE.txt included in this distribution for the specific
+ * language governing permissions and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL HEADER in each
+ * file and include the License file at LICENSE.txt.
+ * If applicable, add the following below this CDDL HEADER, with the
+ * fields enclosed by brackets "[]" replaced with your own identifying
+ * information: Portions Copyright [yyyy] [name of copyright owner]
+ *
+ * CDDL HEADER END
+ */
+
+/*
+ * Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+ */
+package org.opensolaris.opengrok.search.context;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the {@code BoundedLineReader} class.
+ */
+public class BoundedLineReaderTest {
+
+    private static String readAll(Reader in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char[] buf = new char[3];
+        int n;
+        while ((n = in.read(buf, 0, buf.length)) != -1) {
+            sb.append(buf, 0, n);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testNoLimitHit() throws IOException {
+        BoundedLineReader r = new BoundedLineReader(
+                new StringReader("one\ntwo\nthree"), new char[128], 100, 0);
+        assertEquals("one\ntwo\nthree", readAll(r));
+        assertFalse(r.isTruncated());
+        assertFalse(r.isLineCut());
+    }
+
+    @Test
+    public void testLineLimit() throws IOException {
+        BoundedLineReader r = new BoundedLineReader(
+                new StringReader("one\ntwo\nthree\nfour\n"), new char[128],
+                100, 2);
+        assertEquals("one\ntwo\n", readAll(r));
+        assertFalse(r.isTruncated());
+    }
+
+    @Test
+    public void testCharLimitCutsAtNewline() throws IOException {
+        BoundedLineReader r = new BoundedLineReader(
+                new StringReader("one\ntwo\nthree\nfour\n"), new char[128],
+                12, 0);
+        // the partial line "thr" is not passed through
+        assertEquals("one\ntwo", readAll(r));
+        assertTrue(r.isTruncated());
+        assertFalse(r.isLineCut());
+    }
+
+    @Test
+    public void testCharLimitAcrossChunks() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 100; i < 300; i++) {
+            sb.append("line ").append(i).append('\n');
+        }
+        String text = sb.toString();
+        // the last chunk is shortened to keep the look back window together
+        BoundedLineReader r = new BoundedLineReader(
+                new StringReader(text), new char[128], 1050, 0);
+        assertEquals(text.substring(0, text.lastIndexOf('\n', 1049)),
+                readAll(r));
+        assertTrue(r.isTruncated());
+        assertFalse(r.isLineCut());
+    }
+
+    @Test
+    public void testCharLimitInLongLine() throws IOException {
+        StringBuilder sb = new StringBuilder("x\n");
+        for (int i = 0; i < 2 * BoundedLineReader.MAX_LOOK_BACK; i++) {
+            sb.append('a');
+        }
+        int max = sb.length() - 10;
+        BoundedLineReader r = new BoundedLineReader(
+                new StringReader(sb.toString()), new char[1024], max, 0);
+        assertEquals(sb.substring(0, max), readAll(r));
+        assertTrue(r.isTruncated());
+        assertTrue(r.isLineCut());
+    }
+}
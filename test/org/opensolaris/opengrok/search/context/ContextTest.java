@@ -31,15 +31,26 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import javax.xml.parsers.DocumentBuilderFactory;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Terms;
 import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
 import org.junit.After;
 import static org.junit.Assert.*;
 import org.junit.Before;
 import org.junit.Test;
+import org.opensolaris.opengrok.analysis.AnalyzerGuru;
 import org.opensolaris.opengrok.analysis.Definitions;
+import org.opensolaris.opengrok.analysis.LineOffsets;
 import org.opensolaris.opengrok.configuration.RuntimeEnvironment;
 import org.opensolaris.opengrok.search.Hit;
 import org.opensolaris.opengrok.search.QueryBuilder;
+import org.opensolaris.opengrok.search.SearchEngine;
 import org.w3c.dom.Document;
 
 public class ContextTest {
@@ -391,6 +402,60 @@ public class ContextTest {
                 new int[]{3}, new String[]{"type2"});
     }
 
+    /**
+     * Test that the lines to read are located with the term vector of the
+     * full field if possible.
+     */
+    @Test
+    public void testGetLinesToRead() throws Exception {
+        String text = "foo\nbar test\nbaz\ntest Test\nfoo\n";
+        RAMDirectory dir = new RAMDirectory();
+        IndexWriterConfig iwc = new IndexWriterConfig(
+                SearchEngine.LUCENE_VERSION,
+                new StandardAnalyzer(SearchEngine.LUCENE_VERSION));
+        try (IndexWriter w = new IndexWriter(dir, iwc)) {
+            org.apache.lucene.document.Document doc =
+                    new org.apache.lucene.document.Document();
+            doc.add(new Field(QueryBuilder.FULL, text,
+                    AnalyzerGuru.full_ft_stored_offsets));
+            w.addDocument(doc);
+        }
+        int[] lines = LineOffsets.decode(new BytesRef(
+                LineOffsets.encode(text.toCharArray(), text.length())));
+        try (DirectoryReader reader = DirectoryReader.open(dir)) {
+            Terms vector = reader.getTermVector(0, QueryBuilder.FULL);
+            assertEquals(4, getLinesToRead("test", vector, lines));
+            assertEquals(5, getLinesToRead("foo test", vector, lines));
+            assertEquals(0, getLinesToRead("nothing", vector, lines));
+            // phrases may span lines
+            assertEquals(-1, getLinesToRead("\"bar test\"", vector, lines));
+            assertEquals(-1, getLinesToRead("test", null, lines));
+            QueryBuilder qb = new QueryBuilder().setRefs("test");
+            assertEquals(-1, new Context(qb.build(), qb.getQueries())
+                    .getLinesToRead(vector, lines, null));
+        }
+        dir.close();
+
+        // only the given number of lines are read
+        RuntimeEnvironment.getInstance().setQuickContextScan(true);
+        QueryBuilder qb = new QueryBuilder().setFreetext("test");
+        Context c = new Context(qb.build(), qb.getQueries());
+        StringWriter out = new StringWriter();
+        assertTrue(c.getContext(new StringReader(text), out, "", "", "",
+                null, true, null, 2));
+        assertTrue(out.toString().contains("href=\"#2\""));
+        assertFalse(out.toString().contains("href=\"#4\""));
+        assertFalse(c.getContext(new StringReader(text), out, "", "", "",
+                null, true, null, 0));
+    }
+
+    private static int getLinesToRead(String freetext, Terms vector,
+            int[] lines) throws Exception {
+        QueryBuilder qb = new QueryBuilder().setFreetext(freetext);
+        return new Context(qb.build(), qb.getQueries())
+                .getLinesToRead(vector, lines, null);
+    }
+
     /**
      * Helper method which does the work for {@link #bug17582()}.
      *
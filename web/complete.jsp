@@ -0,0 +1,89 @@
+<%--
+CDDL HEADER START
+
+The contents of this file are subject to the terms of the
+Common Development and Distribution License (the "License").
+You may not use this file except in compliance with the License.
+
+See LICENSE.txt included in this distribution for the specific
+language governing permissions and limitations under the License.
+
+When distributing Covered Code, include this CDDL HEADER in each
+file and include the License file at LICENSE.txt.
+If applicable, add the following below this CDDL HEADER, with the
+fields enclosed by brackets "[]" replaced with your own identifying
+information: Portions Copyright [yyyy] [name of copyright owner]
+
+CDDL HEADER END
+
+Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+
+Type-ahead completion for the defs, refs and path search fields, using the
+suggesters generated by the indexer. Parameters:
+    field   the field to complete (defs, refs or path)
+    q       the prefix to complete
+    limit   the maximum number of completions (default: 10)
+    project the projects to look in (default: the selected projects)
+The completions are returned one per line as "term|weight", ordered by
+descending weight, as expected by jquery.autocomplete.
+
+--%><%@page session="false" errorPage="error.jsp" import="
+java.io.File,
+java.util.ArrayList,
+java.util.List,
+
+org.opensolaris.opengrok.search.CompletionIndex"
+%><%@
+
+include file="pageconfig.jspf"
+
+%><%
+/* ---------------------- complete.jsp start --------------------- */
+{
+    cfg = PageConfig.get(request);
+    String field = request.getParameter("field");
+    String prefix = request.getParameter("q");
+    if (field == null || !CompletionIndex.FIELDS.contains(field)
+        || prefix == null || prefix.length() == 0)
+    {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+        return;
+    }
+    int limit = 10;
+    try {
+        limit = Math.min(100,
+            Math.max(1, Integer.parseInt(request.getParameter("limit"))));
+    } catch (NumberFormatException e) {
+        // keep the default
+    }
+    File dataRoot = cfg.getEnv().getDataRootFile();
+    List<CompletionIndex> indexes = new ArrayList<CompletionIndex>();
+    if (cfg.getEnv().hasProjects()) {
+        for (String proj : cfg.getRequestedProjects()) {
+            CompletionIndex index = CompletionIndex.get(
+                CompletionIndex.getFile(dataRoot, proj, field));
+            if (index != null) {
+                indexes.add(index);
+            }
+        }
+    } else {
+        CompletionIndex index = CompletionIndex.get(
+            CompletionIndex.getFile(dataRoot, null, field));
+        if (index != null) {
+            indexes.add(index);
+        }
+    }
+    response.setContentType("text/plain");
+    if (indexes.isEmpty()) {
+        return;
+    }
+    StringBuilder sb = new StringBuilder();
+    for (CompletionIndex.Completion c
+        : CompletionIndex.lookup(indexes, prefix, limit))
+    {
+        sb.append(c.getText()).append('|').append(c.getWeight()).append('\n');
+    }
+    out.write(sb.toString());
+}
+/* ---------------------- complete.jsp end --------------------- */
+%>
@@ -0,0 +1,105 @@
+<%--
+CDDL HEADER START
+
+The contents of this file are subject to the terms of the
+Common Development and Distribution License (the "License").
+You may not use this file except in compliance with the License.
+
+See LICENSE.txt included in this distribution for the specific
+language governing permissions and limitations under the License.
+
+When distributing Covered Code, include this CDDL HEADER in each
+file and include the License file at LICENSE.txt.
+If applicable, add the following below this CDDL HEADER, with the
+fields enclosed by brackets "[]" replaced with your own identifying
+information: Portions Copyright [yyyy] [name of copyright owner]
+
+CDDL HEADER END
+
+Copyright (c) 2013, Oracle and/or its affiliates. All rights reserved.
+
+Looks up symbol definitions in the definition index generated by the
+indexer. Parameters:
+    symbol  the symbol (or symbol prefix) to look up
+    prefix  if "true", return the definitions of all symbols starting with
+            the given symbol
+    jump    if "true" and the symbol is defined exactly once, redirect to
+            the definition instead of returning the list
+    project the projects to look in (default: the selected projects)
+The definitions are returned as a JSON array of objects with the members
+symbol, path, line and kind.
+
+--%><%@page session="false" errorPage="error.jsp" import="
+java.io.File,
+java.util.ArrayList,
+java.util.List,
+java.util.SortedSet,
+
+org.opensolaris.opengrok.search.DefinitionIndex,
+org.opensolaris.opengrok.web.Prefix,
+org.opensolaris.opengrok.web.Util"
+%><%@
+
+include file="pageconfig.jspf"
+
+%><%
+/* ---------------------- def.jsp start --------------------- */
+{
+    cfg = PageConfig.get(request);
+    String symbol = request.getParameter("symbol");
+    if (symbol == null || symbol.length() == 0) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+        return;
+    }
+    boolean prefix = "true".equals(request.getParameter("prefix"));
+    int max = cfg.getEnv().getHitsPerPage();
+    File dataRoot = cfg.getEnv().getDataRootFile();
+    SortedSet<String> projects = cfg.getRequestedProjects();
+    List<File> files = new ArrayList<File>();
+    if (cfg.getEnv().hasProjects()) {
+        for (String proj : projects) {
+            files.add(DefinitionIndex.getFile(dataRoot, proj));
+        }
+    } else {
+        files.add(DefinitionIndex.getFile(dataRoot, null));
+    }
+    List<DefinitionIndex.Definition> defs =
+            new ArrayList<DefinitionIndex.Definition>();
+    for (File file : files) {
+        DefinitionIndex index = DefinitionIndex.get(file);
+        if (index == null) {
+            continue;
+        }
+        defs.addAll(prefix
+            ? index.lookupPrefix(symbol, max - defs.size())
+            : index.lookup(symbol));
+        if (defs.size() >= max) {
+            break;
+        }
+    }
+    if (!prefix && defs.size() == 1
+        && "true".equals(request.getParameter("jump")))
+    {
+        response.sendRedirect(request.getContextPath() + Prefix.XREF_P
+            + Util.URIEncodePath(defs.get(0).getPath()) + '#'
+            + Util.URIEncode(symbol));
+        return;
+    }
+    response.setContentType("application/json");
+    StringBuilder sb = new StringBuilder("[");
+    for (DefinitionIndex.Definition d : defs) {
+        if (sb.length() > 1) {
+            sb.append(',');
+        }
+        sb.append("{\"symbol\":").append(Util.jsStringLiteral(d.getSymbol()))
+            .append(",\"path\":").append(Util.jsStringLiteral(d.getPath()))
+            .append(",\"line\":").append(d.getLine())
+            .append(",\"kind\":").append(d.getKind() == null
+                ? "null" : Util.jsStringLiteral(d.getKind()))
+            .append('}');
+    }
+    sb.append(']');
+    out.write(sb.toString());
+}
+/* ---------------------- def.jsp end --------------------- */
+%>
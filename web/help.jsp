@@ -96,6 +96,11 @@ A <dfn>Query</dfn> is a series of clauses. A clause may be prefixed by:</p>
         square brackets <b>[ ]</b> , exclusive by curly brackets <b>{ }</b>.
         For example: title:{Aida TO Carmen} - will find all documents between
         Aida to Carmen, exclusive of Aida and Carmen. </li>
+    <li>to find lines matching a regular expression (or containing a
+        substring) in the Full Search field, enclose it in slashes, e.g.
+        <b>/get[A-Z]\w*Handler\(/</b>. Each alternative of the expression must
+        contain at least three consecutive literal characters. The expression
+        is matched case insensitively unless it starts with <b>(?-i)</b>.</li>
 </ul>
 
 <a id="escaping"><dfn>Escaping special characters:</dfn></a>
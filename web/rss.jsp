@@ -71,9 +71,10 @@ include file="pageconfig.jspf"
     <generator>Java</generator><%
     History hist = null;
     if(cfg.isDir()) {
-        hist = new DirectoryHistoryReader(cfg.getHistoryDirs()).getHistory();
+        hist = DirectoryHistoryReader.getRecentChanges(cfg.getHistoryDirs());
     } else {
-        hist = HistoryGuru.getInstance().getHistory(cfg.getResourceFile());
+        hist = HistoryGuru.getInstance().getLatestHistory(
+                cfg.getResourceFile(), false, 20);
     }
     if (hist != null) {
         int i = 20;
@@ -128,7 +128,7 @@ include file="menu.jspf"
         }%></p><%
     } else if (searchHelper.hits == null) {
         %><p>No hits</p><%
-    } else if (searchHelper.hits.length == 0) {
+    } else if (searchHelper.totalHits == 0) {
         List<Suggestion> hints = searchHelper.getSuggestions();
         for (Suggestion hint : hints) {
         %><p><font color="#cc0000">Did you mean (for <%= hint.name %>)</font>:<%
@@ -164,6 +164,7 @@ include file="menu.jspf"
             StringBuilder buf = new StringBuilder(4096);
             thispage = (start + max) < totalHits ? max : totalHits - start;
             StringBuilder urlp = createUrl(searchHelper, false);
+            String nextCursor = searchHelper.getNextCursor();
             int labelStart = 1;
             int sstart = start - max * (start / max % 10 + 1) ;
             if (sstart < 0) {
@@ -179,7 +180,11 @@ include file="menu.jspf"
                     buf.append("<span class=\"sel\">").append(label).append("</span>");
                 } else {
                     buf.append("<a class=\"more\" href=\"s?n=").append(max)
-                        .append("&amp;start=").append(i).append(urlp).append("\">");
+                        .append("&amp;start=").append(i).append(urlp);
+                    if (i == start + max && nextCursor != null) {
+                        buf.append("&amp;c=").append(nextCursor);
+                    }
+                    buf.append("\">");
                     if (label == labelStart && label != 1) {
                         buf.append("&lt;&lt");
                     } else if (label == labelEnd && i < totalHits) {
@@ -201,6 +206,11 @@ include file="menu.jspf"
             %></b> (Results <b> <%= start + 1 %> - <%= thispage + start
             %></b> of <b><%= totalHits %></b>) sorted by <%=
             searchHelper.order.getDesc() %></p><%
+        if (searchHelper.partialResults) {
+        %>
+        <p class="partial">The search took too long and has been stopped,
+            only the files found so far are listed.</p><%
+        }
         if (slider.length() > 0) {
         %>
         <p class="slider"><%= slider %></p><%